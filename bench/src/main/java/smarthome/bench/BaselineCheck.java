@@ -0,0 +1,130 @@
+package smarthome.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a JMH result in CSV format against the recorded baseline and fails when a benchmark got slower or
+ * allocates more. Only per-operation scores are compared: the average time of each benchmark and, when it was
+ * run with {@code -prof gc}, its {@code gc.alloc.rate.norm}. Benchmarks missing from either file are reported but
+ * do not fail the check.
+ *
+ * <p>Tolerances are relative and set with {@code -Dsmarthome.bench.timeTolerance} (default {@code 0.25}) and
+ * {@code -Dsmarthome.bench.allocTolerance} (default {@code 0.05}); allocations also get one byte of slack so that
+ * the rounding of scores close to zero does not fail the check.
+ */
+public final class BaselineCheck {
+    private static final double TIME_TOLERANCE = Double.parseDouble(
+            System.getProperty("smarthome.bench.timeTolerance", "0.25"));
+    private static final double ALLOC_TOLERANCE = Double.parseDouble(
+            System.getProperty("smarthome.bench.allocTolerance", "0.05"));
+    private static final String ALLOC_UNIT = "B/op";
+
+    private BaselineCheck() {
+    }
+
+    /**
+     * @param args The baseline CSV file and the CSV file of the current run.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BaselineCheck <baseline.csv> <result.csv>");
+            System.exit(2);
+        }
+        Map<String, Score> baseline = read(Path.of(args[0]));
+        Map<String, Score> current = read(Path.of(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score before = baseline.get(entry.getKey());
+            Score after = entry.getValue();
+            if (before == null) {
+                System.out.println("NEW        " + entry.getKey() + " " + after);
+                continue;
+            }
+            boolean regressed = after.unit.equals(ALLOC_UNIT)
+                    ? after.value > before.value * (1 + ALLOC_TOLERANCE) + 1
+                    : after.value > before.value * (1 + TIME_TOLERANCE);
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println((regressed ? "REGRESSED  " : "OK         ") + entry.getKey() + " " + before + " -> "
+                    + after);
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.println("MISSING    " + key);
+            }
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the per-operation scores of a JMH CSV result, keyed by benchmark name and parameter values.
+     */
+    private static Map<String, Score> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file);
+        Map<String, Score> scores = new LinkedHashMap<>();
+        if (lines.isEmpty()) {
+            return scores;
+        }
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int score = header.indexOf("Score");
+        int unit = header.indexOf("Unit");
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> fields = split(line);
+            if (fields.size() != header.size() || !fields.get(unit).endsWith("/op")) {
+                continue;
+            }
+            // Parameters of other benchmarks are left empty
+            List<String> params = new ArrayList<>();
+            for (int i = unit + 1; i < fields.size(); i++) {
+                if (!fields.get(i).isEmpty()) {
+                    params.add(header.get(i).replace("Param: ", "") + "=" + fields.get(i));
+                }
+            }
+            String key = params.isEmpty() ? fields.get(benchmark) : fields.get(benchmark) + " " + params;
+            scores.put(key, new Score(Double.parseDouble(fields.get(score)), fields.get(unit)));
+        }
+        return scores;
+    }
+
+    /**
+     * Splits one CSV line, removing the quotes around fields.
+     */
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private record Score(double value, String unit) {
+        @Override
+        public String toString() {
+            return String.format("%.3f %s", value, unit);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package smarthome.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip of a device command through the cluster router to the node owning the client's home, with the router
+ * and every node in a process of its own. Each benchmark thread is a client of its own home, so the commands of
+ * different homes only meet in the router; with the nodes on separate cores, the time per command at a fixed number
+ * of clients should fall close to one over the number of nodes, the cluster's throughput being
+ * {@code threads / score}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ClusterBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+        @Param({"1", "2", "4"})
+        public int nodes;
+
+        private Process router;
+        private int port;
+        private final AtomicInteger homes = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            router = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), "-Dsmarthome.cluster=router",
+                    "-Dsmarthome.localNodes=" + nodes, "-Dsmarthome.port=0", "Main")
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            String line = new BufferedReader(new InputStreamReader(router.getInputStream(), StandardCharsets.UTF_8))
+                    .readLine();
+            if (line == null || !line.startsWith("Router listening on port ")) {
+                throw new IOException("Router did not start: " + line);
+            }
+            port = Integer.parseInt(line.substring("Router listening on port ".length()));
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws InterruptedException {
+            router.destroy();
+            router.waitFor();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private OutputStream out;
+        private BufferedReader in;
+        private final byte[][] commands = {
+            "TurnOff Light 1\n".getBytes(StandardCharsets.US_ASCII),
+            "TurnOn Light 1\n".getBytes(StandardCharsets.US_ASCII)
+        };
+        private int next;
+
+        @Setup(Level.Trial)
+        public void connect(Cluster cluster) throws IOException {
+            socket = new Socket("127.0.0.1", cluster.port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            out.write(("Home home-" + cluster.homes.getAndIncrement() + "\n").getBytes(StandardCharsets.US_ASCII));
+            in.readLine();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public String command(Client client) throws IOException {
+        client.out.write(client.commands[client.next]);
+        client.next ^= 1;
+        return client.in.readLine();
+    }
+}
@@ -0,0 +1,83 @@
+package smarthome.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a command of bursty automation traffic read from a stream, with and without an ingest window. The trace
+ * repeats bursts of a camera sweeping its angle, a light toggled on and off and a heater ramping its temperature,
+ * each followed by a status query as a dashboard polls it. A window of {@code 1} runs the commands as the plain event
+ * loop does. Effective commands per second are {@code 1e9 / score}. The trace leaves the devices as it found them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoalesceBenchmark {
+    private static final int BURSTS = 16;
+    private static final int BURST = 64;
+    private static final int COMMANDS = BURSTS * 3 * (BURST + 1);
+
+    @Param({"1", "64"})
+    public int window;
+
+    private ByteArrayInputStream in;
+    private Object out;
+    private Object coalescer;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object inventory = Engine.newInventory("list");
+        out = Engine.newSink();
+        coalescer = Engine.newCoalescer(inventory, window);
+        in = new ByteArrayInputStream(Engine.encode(trace()));
+    }
+
+    private static String trace() {
+        StringBuilder trace = new StringBuilder();
+        for (int burst = 0; burst < BURSTS; burst++) {
+            for (int i = 0; i < BURST; i++) {
+                trace.append("SetAngle Camera 4 ").append(45 - 2 * ramp(i)).append('\n');
+            }
+            trace.append("DisplayAllStatus Camera 4\n");
+            for (int i = 0; i < BURST; i++) {
+                trace.append(i % 2 == 0 ? "TurnOff Light 1\n" : "TurnOn Light 1\n");
+            }
+            trace.append("DisplayAllStatus Light 1\n");
+            for (int i = 0; i < BURST; i++) {
+                trace.append("SetTemperature Heater 6 ").append(20 + ramp(i) / 3).append('\n');
+            }
+            trace.append("DisplayAllStatus Heater 6\n");
+        }
+        return trace.toString();
+    }
+
+    /**
+     * @return A step of a burst rising from {@code 1} to half the burst and back to {@code 0}.
+     */
+    private static int ramp(int i) {
+        return i < BURST / 2 ? i + 1 : BURST - 1 - i;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void commands() throws Throwable {
+        in.reset();
+        Engine.runCoalescer(coalescer, in, out);
+    }
+}
@@ -0,0 +1,82 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one line in the event loop, from splitting the line to the buffered response, for each command path.
+ * Repeating a command that changes state takes its "already" branch after the first call; {@link #toggle()} covers
+ * the branch that actually changes a device.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandBenchmark {
+    @Param({"list", "registry", "mapped"})
+    public String store;
+
+    private Object devices;
+    private Object out;
+    private Object cmd;
+    private byte[] turnOff;
+    private byte[] turnOn;
+
+    @Setup
+    public void setUp() throws Throwable {
+        devices = Engine.newInventory(store);
+        out = Engine.newSink();
+        cmd = Engine.newCommandLine();
+        turnOff = Engine.encode("TurnOff Light 3");
+        turnOn = Engine.encode("TurnOn Light 3");
+    }
+
+    /**
+     * The command line under test, kept apart so that {@link #toggle()} does not run once per command.
+     */
+    @State(Scope.Thread)
+    public static class Line {
+        @Param({
+                "TurnOn Light 1",
+                "SetAngle Camera 4 30",
+                "StartCharging Light 2",
+                "DisplayAllStatus",
+                "TurnOn Light 42",
+                "SetAngle Heater 6 30",
+                "SetAngle Camera 4",
+                "Dance Light 1"})
+        public String command;
+
+        private byte[] bytes;
+
+        @Setup
+        public void setUp() {
+            bytes = Engine.encode(command);
+        }
+    }
+
+    @Benchmark
+    public boolean execute(Line line) throws Throwable {
+        return Engine.execute(devices, cmd, line.bytes, out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public boolean toggle() throws Throwable {
+        return Engine.execute(devices, cmd, turnOff, out) & Engine.execute(devices, cmd, turnOn, out);
+    }
+}
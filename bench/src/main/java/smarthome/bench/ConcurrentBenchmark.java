@@ -0,0 +1,100 @@
+package smarthome.bench;
+
+import java.io.Flushable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a device command run through the sharded executor of the concurrent event loop, by number of worker
+ * threads. The trace switches and sets {@value #HEATERS} heaters round robin, so consecutive commands go to different
+ * shards, and ends with the responses written out in order. {@code 0} threads runs the trace on the calling thread,
+ * as the plain event loop does. Effective commands per second are {@code 1e9 / score}; the scores only fall with
+ * more threads on a machine with as many cores to spare.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConcurrentBenchmark {
+    private static final int HEATERS = 1024;
+    private static final int FIRST_HEATER = 10;
+    private static final int COMMANDS = 4 * HEATERS;
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int threads;
+
+    private Object inventory;
+    private Object out;
+    private Object cmd;
+    private Object executor;
+    private byte[][] trace;
+
+    @Setup
+    public void setUp() throws Throwable {
+        inventory = Engine.newInventory("list");
+        out = Engine.newSink();
+        cmd = Engine.newCommandLine();
+        byte[] add = Engine.encode("AddDevice Heater");
+        for (int i = 0; i < HEATERS; i++) {
+            Engine.execute(inventory, cmd, add, out);
+        }
+        trace = new byte[COMMANDS][];
+        for (int i = 0; i < COMMANDS; i++) {
+            int id = FIRST_HEATER + i % HEATERS;
+            switch (i / HEATERS) {
+                case 0:
+                    trace[i] = Engine.encode("TurnOff Heater " + id);
+                    break;
+                case 1:
+                    trace[i] = Engine.encode("TurnOn Heater " + id);
+                    break;
+                case 2:
+                    trace[i] = Engine.encode("SetTemperature Heater " + id + " 25");
+                    break;
+                default:
+                    trace[i] = Engine.encode("SetTemperature Heater " + id + " 20");
+            }
+        }
+        if (threads > 0) {
+            executor = Engine.newConcurrentExecutor(inventory, out, threads);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            ((AutoCloseable) executor).close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void commands() throws Throwable {
+        if (executor == null) {
+            for (byte[] line : trace) {
+                Engine.execute(inventory, cmd, line, out);
+            }
+            ((Flushable) out).flush();
+            return;
+        }
+        for (byte[] line : trace) {
+            Engine.executeConcurrently(executor, cmd, line);
+        }
+        ((Flushable) executor).flush();
+    }
+}
@@ -0,0 +1,128 @@
+package smarthome.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that the concurrent event loop answers exactly like the plain one. Every round runs the same random commands
+ * once on the calling thread and once through the sharded executor with 2, 4 and 8 worker threads, each on a fresh
+ * home, and compares the responses byte for byte, ending with the status of every device. The commands hit a few
+ * dozen devices of all types, so that commands for the same device pile up on a shard, and mix in commands for
+ * several devices, added and removed devices, malformed commands and ids beyond the {@code int} range.
+ *
+ * <p>{@code -Dsmarthome.stress.rounds} sets the number of rounds (default {@code 20}) and
+ * {@code -Dsmarthome.stress.commands} the commands of each round (default {@code 100000}). The first difference is
+ * printed and fails the run.
+ *
+ * <p>Run with {@code java -cp bench/target/benchmarks.jar smarthome.bench.ConcurrentStressTest}.
+ */
+public final class ConcurrentStressTest {
+    private static final int ROUNDS = Integer.getInteger("smarthome.stress.rounds", 20);
+    private static final int COMMANDS = Integer.getInteger("smarthome.stress.commands", 100_000);
+    private static final int[] THREADS = {2, 4, 8};
+    private static final int IDS = 40;
+    private static final String[] TYPES = {"Light", "Camera", "Heater"};
+    private static final String[] SWITCHES = {"TurnOn", "TurnOff", "StartCharging", "StopCharging",
+        "StartRecording", "StopRecording"};
+    private static final String[] BRIGHTNESS = {"LOW", "MEDIUM", "HIGH"};
+    private static final String[] COLORS = {"WHITE", "YELLOW"};
+
+    private ConcurrentStressTest() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[][] commands = commands(new SplittableRandom(round), COMMANDS);
+            String expected = run(commands, 0);
+            for (int threads : THREADS) {
+                String actual = run(commands, threads);
+                if (!actual.equals(expected)) {
+                    System.out.println("Round " + round + " with " + threads + " threads differs: "
+                            + firstDifference(expected, actual));
+                    System.exit(1);
+                }
+            }
+            System.out.println("Round " + round + ": " + commands.length + " commands, "
+                    + expected.lines().count() + " response lines, same with " + THREADS.length + " thread counts");
+        }
+    }
+
+    /**
+     * @param threads Number of worker threads, {@code 0} to run the commands on the calling thread.
+     * @return The responses to the commands followed by the status of all devices.
+     */
+    private static String run(byte[][] commands, int threads) throws Throwable {
+        Object inventory = Engine.newInventory("list");
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
+        Object out = Engine.newSink(responses);
+        Object cmd = Engine.newCommandLine();
+        if (threads == 0) {
+            for (byte[] line : commands) {
+                Engine.execute(inventory, cmd, line, out);
+            }
+        } else {
+            Object executor = Engine.newConcurrentExecutor(inventory, out, threads);
+            try (AutoCloseable closing = (AutoCloseable) executor) {
+                for (byte[] line : commands) {
+                    Engine.executeConcurrently(executor, cmd, line);
+                }
+                ((Flushable) executor).flush();
+            }
+        }
+        Engine.execute(inventory, cmd, Engine.encode("DisplayAllStatus"), out);
+        ((Flushable) out).flush();
+        return responses.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return Random commands over a few dozen devices, as described above.
+     */
+    static byte[][] commands(SplittableRandom random, int count) {
+        byte[][] commands = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            commands[i] = Engine.encode(command(random));
+        }
+        return commands;
+    }
+
+    private static String command(SplittableRandom random) {
+        String type = TYPES[random.nextInt(TYPES.length)];
+        int kind = random.nextInt(100);
+        if (kind == 0) {
+            return "AddDevice " + type;
+        }
+        if (kind == 1) {
+            return "RemoveDevice " + type + " " + random.nextInt(IDS);
+        }
+        if (kind == 2) {
+            return "DisplayAllStatus " + type + " " + random.nextInt(IDS);
+        }
+        // Several devices, out of range and malformed ids
+        String id = kind == 3 ? "*" : kind == 4 ? "99999999999" : kind == 5 ? "x" : String.valueOf(random.nextInt(IDS));
+        switch (random.nextInt(5)) {
+            case 0:
+                return "SetBrightness " + type + " " + id + " " + BRIGHTNESS[random.nextInt(BRIGHTNESS.length)];
+            case 1:
+                return "SetColor " + type + " " + id + " " + COLORS[random.nextInt(COLORS.length)];
+            case 2:
+                return "SetTemperature " + type + " " + id + " " + random.nextInt(5, 45);
+            case 3:
+                return "SetAngle " + type + " " + id + " " + random.nextInt(-80, 80);
+            default:
+                return SWITCHES[random.nextInt(SWITCHES.length)] + " " + type + " " + id;
+        }
+    }
+
+    static String firstDifference(String expected, String actual) {
+        String[] expectedLines = expected.split("\n", -1);
+        String[] actualLines = actual.split("\n", -1);
+        for (int i = 0; i < Math.min(expectedLines.length, actualLines.length); i++) {
+            if (!expectedLines[i].equals(actualLines[i])) {
+                return "line " + (i + 1) + " is \"" + actualLines[i] + "\" instead of \"" + expectedLines[i] + "\"";
+            }
+        }
+        return expectedLines.length + " lines expected, " + actualLines.length + " lines written";
+    }
+}
@@ -0,0 +1,150 @@
+package smarthome.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Opens many connections to a local command server and reports the round-trip latency of the commands on them, as
+ * the server sees a crowd of mostly idle devices and dashboards. The server runs in a process of its own.
+ *
+ * <p>{@code -Dsmarthome.load.connections} clients (default {@code 10000}) connect first, then each sends
+ * {@code -Dsmarthome.load.rate} commands per second (default {@code 2}) for {@code -Dsmarthome.load.seconds} seconds
+ * (default {@code 10}). The first {@code -Dsmarthome.load.warmUp} seconds (default {@code 5}) are not measured, as
+ * both processes compile their hot paths and the server touches the buffers of every connection then. A client sends
+ * a command, waits for its answer and sends the next one when it is due, and the latency of a command is taken from
+ * the time it was due, so a server falling behind is charged for the commands it delays. Clients start at different
+ * phases of their period, toggle a light or set a heater, and keep only a small read buffer, so that they fit in a
+ * virtual thread each, and keep their connection until all clients are done. {@code -Dsmarthome.load.ingestQueue}
+ * runs the server with the ingest pipeline, and {@code -Dsmarthome.load.flushBytes} sets the size up to which the
+ * server grows the response buffer of a connection.
+ *
+ * <p>Run with {@code java -cp bench/target/benchmarks.jar smarthome.bench.ConnectionLoadTest}. The processes need a
+ * limit of open files above the number of connections.
+ */
+public final class ConnectionLoadTest {
+    private static final int CONNECTIONS = Integer.getInteger("smarthome.load.connections", 10_000);
+    private static final int RATE = Integer.getInteger("smarthome.load.rate", 2);
+    private static final int SECONDS = Integer.getInteger("smarthome.load.seconds", 10);
+    private static final int INGEST_QUEUE = Integer.getInteger("smarthome.load.ingestQueue", 0);
+    private static final int FLUSH_BYTES = Integer.getInteger("smarthome.load.flushBytes", 1 << 16);
+    private static final int WARM_UP_SECONDS = Integer.getInteger("smarthome.load.warmUp", 5);
+    private static final int READ_BUFFER = 256;
+    private static final int STRIPES = 64;
+    private static final int LIGHTS = 4;
+    private static final int FIRST_HEATER = 6;
+    private static final int HEATERS = 4;
+    private static final String[] COMMANDS = {"TurnOff Light ", "TurnOn Light ", "SetTemperature Heater ",
+        "SetTemperature Heater "};
+
+    private ConnectionLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long interval = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long commands = (long) RATE * SECONDS;
+        LatencyHistogram[] latencies = new LatencyHistogram[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        AtomicLong failed = new AtomicLong();
+        try (ServerProcess server = new ServerProcess("-Dsmarthome.ingestQueue=" + INGEST_QUEUE,
+                "-Dsmarthome.flushBytes=" + FLUSH_BYTES)) {
+            server.connect().close();
+            CountDownLatch connected = new CountDownLatch(CONNECTIONS);
+            long connecting = System.nanoTime();
+            // Clients start together once all are connected, each at its own phase of the period
+            long[] start = new long[1];
+            CountDownLatch started = new CountDownLatch(1);
+            // Clients keep their connection until all are done, so that closing ones do not delay the last commands
+            CountDownLatch finished = new CountDownLatch(CONNECTIONS);
+            List<Thread> clients = new ArrayList<>(CONNECTIONS);
+            for (int i = 0; i < CONNECTIONS; i++) {
+                int client = i;
+                clients.add(Thread.ofVirtual().start(() -> {
+                    Socket socket;
+                    try {
+                        socket = server.connect();
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        finished.countDown();
+                        return;
+                    } finally {
+                        connected.countDown();
+                    }
+                    try (socket) {
+                        try {
+                            started.await();
+                            long phase = start[0] + interval * client / CONNECTIONS;
+                            run(socket, client, phase, interval, commands, latencies[client % STRIPES]);
+                        } finally {
+                            finished.countDown();
+                        }
+                        finished.await();
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+            connected.await();
+            double connectSeconds = (System.nanoTime() - connecting) / 1e9;
+            start[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            started.countDown();
+            for (Thread client : clients) {
+                client.join();
+            }
+
+            LatencyHistogram all = new LatencyHistogram();
+            for (LatencyHistogram latency : latencies) {
+                all.add(latency);
+            }
+            System.out.printf(Locale.ROOT, "%d connections opened in %.1f s, %d commands/s each for %d s%n",
+                    CONNECTIONS, connectSeconds, RATE, SECONDS);
+            System.out.printf(Locale.ROOT, "%12s %10s %10s %10s %10s %10s%n", "answered/s", "p50 ms", "p99 ms",
+                    "p99.9 ms", "max ms", "failed");
+            System.out.printf(Locale.ROOT, "%12.0f %10.2f %10.2f %10.2f %10.2f %10d%n",
+                    all.count() / (double) SECONDS, all.quantile(0.5) / 1e6, all.quantile(0.99) / 1e6,
+                    all.quantile(0.999) / 1e6, all.max() / 1e6, failed.get());
+        }
+    }
+
+    /**
+     * Sends the commands of a client one at a time on its schedule, recording the latency of those after the warm-up.
+     */
+    private static void run(Socket socket, int client, long phase, long interval, long commands,
+            LatencyHistogram latency) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        ResponseLines in = new ResponseLines(socket.getInputStream(), READ_BUFFER);
+        long warmUp = TimeUnit.SECONDS.toNanos(WARM_UP_SECONDS) / interval;
+        byte[][] lines = new byte[COMMANDS.length][];
+        for (int i = 0; i < COMMANDS.length; i++) {
+            String id = i < 2 ? String.valueOf(client % LIGHTS) : FIRST_HEATER + client % HEATERS + " " + (20 + i);
+            lines[i] = (COMMANDS[i] + id + "\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        for (long i = 0; i < warmUp + commands; i++) {
+            long due = phase + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            out.write(lines[(int) (i % lines.length)]);
+            in.next();
+            if (i >= warmUp) {
+                long nanos = System.nanoTime() - due;
+                synchronized (latency) {
+                    latency.record(nanos);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of dispatching parsed device commands to the devices, without tokenizing and validating the lines.
+ * One invocation runs every device command against every device type, including the combinations a type does not
+ * support, so the dispatch sees as many targets as in a real home. The mix leaves the devices as it found them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    private static final String[] COMMANDS = {
+        "TurnOff Light 1", "TurnOn Light 1", "StartCharging Light 2", "StopCharging Light 2",
+        "SetBrightness Light 0 HIGH", "SetBrightness Light 0 LOW", "SetColor Light 0 WHITE", "SetColor Light 0 YELLOW",
+        "TurnOff Camera 4", "TurnOn Camera 4", "StartRecording Camera 4", "StopRecording Camera 4",
+        "SetAngle Camera 4 30", "SetAngle Camera 4 45", "StartCharging Camera 5", "StopCharging Camera 5",
+        "SetTemperature Heater 6 25", "SetTemperature Heater 6 20", "SetTemperature Heater 6 99",
+        "TurnOff Heater 7", "TurnOn Heater 7",
+        "SetAngle Heater 8 30", "StartCharging Heater 8", "SetTemperature Light 3 20", "StartRecording Light 3"
+    };
+
+    @Param({"list", "registry"})
+    public String store;
+
+    private Object devices;
+    private Object out;
+    private final int[] ops = new int[COMMANDS.length];
+    private final String[] types = new String[COMMANDS.length];
+    private final int[] ids = new int[COMMANDS.length];
+    private final int[] values = new int[COMMANDS.length];
+    private final Enum<?>[] settings = new Enum<?>[COMMANDS.length];
+
+    @Setup
+    public void setUp() throws Throwable {
+        devices = Engine.newInventory(store);
+        out = Engine.newSink();
+        Object cmd = Engine.newCommandLine();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            String[] tokens = COMMANDS[i].split(" ");
+            ops[i] = Engine.opcode(cmd, Engine.encode(COMMANDS[i]));
+            types[i] = tokens[1];
+            ids[i] = Integer.parseInt(tokens[2]);
+            if (tokens[0].equals("SetBrightness")) {
+                settings[i] = Engine.constant("BrightnessLevel", tokens[3]);
+            } else if (tokens[0].equals("SetColor")) {
+                settings[i] = Engine.constant("LightColor", tokens[3]);
+            } else if (tokens.length > 3) {
+                values[i] = Integer.parseInt(tokens[3]);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(25)
+    public void dispatch() throws Throwable {
+        for (int i = 0; i < ops.length; i++) {
+            Engine.applyToDevice(devices, ops[i], types[i], ids[i], values[i], settings[i], out);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of simulating a year of one-minute ticks for a large home, with a mix of lights, recording cameras and
+ * heaters, some of them charging.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EnergyBenchmark {
+    private static final String[] DEVICES = {"Light", "Camera", "Heater"};
+
+    @Param({"1000000"})
+    public int devices;
+
+    private Object inventory;
+    private Object out;
+    private Object cmd;
+    private byte[] simulateYear;
+
+    @Setup
+    public void setUp() throws Throwable {
+        inventory = Engine.newInventory("registry");
+        out = Engine.newSink();
+        cmd = Engine.newCommandLine();
+        for (int i = 0; i < devices; i++) {
+            Engine.execute(inventory, cmd, Engine.encode("AddDevice " + DEVICES[i % DEVICES.length]), out);
+            if (i % 5 == 0) {
+                Engine.execute(inventory, cmd, Engine.encode("StartCharging Light " + i), out);
+                Engine.execute(inventory, cmd, Engine.encode("StartRecording Camera " + i), out);
+            }
+        }
+        simulateYear = Engine.encode("Simulate 525600");
+    }
+
+    @Benchmark
+    public boolean simulateYear() throws Throwable {
+        return Engine.execute(inventory, cmd, simulateYear, out);
+    }
+}
@@ -0,0 +1,513 @@
+package smarthome.bench;
+
+import java.io.Flushable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Access to the command engine. Its classes live in the default package, which can neither be imported nor hold
+ * JMH benchmarks, so they are reached through method handles resolved once when this class is loaded. Every handle
+ * is adapted to {@code Object} parameters and called with {@code invokeExact} from a static final field, which the
+ * JIT compiles to a direct call.
+ */
+final class Engine {
+    private static final MethodHandle NEW_REGISTRY;
+    private static final MethodHandle NEW_MAPPED_STORE;
+    private static final MethodHandle NEW_INVENTORY;
+    private static final MethodHandle ADD_DEFAULT_DEVICES;
+    private static final MethodHandle NEW_SINK;
+    private static final MethodHandle NEW_COMMAND_LINE;
+    private static final MethodHandle SET_COMMAND_LINE;
+    private static final MethodHandle EXECUTE;
+    private static final MethodHandle OPCODE;
+    private static final MethodHandle APPLY_TO_DEVICE;
+    private static final MethodHandle CHECK_INT;
+    private static final MethodHandle CHECK_TYPE;
+    private static final MethodHandle GET_TYPE;
+    private static final MethodHandle GET_DEVICE;
+    private static final MethodHandle NEW_DEVICE;
+    private static final MethodHandle SET_DEVICE_ID;
+    private static final MethodHandle DISPLAY_STATUS;
+    private static final MethodHandle WRITE_STATUS;
+    private static final MethodHandle NEW_LINE;
+    private static final MethodHandle NEW_SCHEDULER;
+    private static final MethodHandle ATTACH;
+    private static final MethodHandle SCHEDULE;
+    private static final MethodHandle RUN_DUE;
+    private static final MethodHandle NEW_COMMAND_READER;
+    private static final MethodHandle READ_LINE;
+    private static final MethodHandle NEW_BINARY_PROTOCOL;
+    private static final MethodHandle RUN_BINARY_PROTOCOL;
+    private static final MethodHandle NEW_COALESCER;
+    private static final MethodHandle RUN_COALESCER;
+    private static final MethodHandle NEW_CONCURRENT_EXECUTOR;
+    private static final MethodHandle EXECUTE_CONCURRENTLY;
+    private static final MethodHandle NEW_JOURNAL;
+    private static final MethodHandle RESTORE_JOURNAL;
+    private static final MethodHandle START_JOURNAL;
+    private static final MethodHandle COMMIT_JOURNAL;
+
+    static {
+        try {
+            Class<?> main = Class.forName("Main");
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(main, MethodHandles.lookup());
+            Class<?> inventory = lookup.findClass("DeviceInventory");
+            Class<?> registry = lookup.findClass("DeviceRegistry");
+            Class<?> mappedStore = lookup.findClass("MappedDeviceStore");
+            Class<?> sink = lookup.findClass("ResponseSink");
+            Class<?> commandLine = lookup.findClass("CommandLine");
+            Class<?> device = lookup.findClass("SmartDevice");
+            Class<?> scheduler = lookup.findClass("Scheduler");
+            Class<?> reader = lookup.findClass("CommandReader");
+            Class<?> binaryProtocol = lookup.findClass("BinaryProtocol");
+            Class<?> coalescer = lookup.findClass("CommandCoalescer");
+            Class<?> concurrentExecutor = lookup.findClass("ConcurrentCommandExecutor");
+            Class<?> journal = lookup.findClass("DeviceJournal");
+
+            NEW_REGISTRY = lookup.findConstructor(registry, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(List.class));
+            NEW_MAPPED_STORE = lookup.findConstructor(mappedStore,
+                            MethodType.methodType(void.class, Path.class, int.class))
+                    .asType(MethodType.methodType(List.class, Path.class, int.class));
+            NEW_INVENTORY = lookup.findConstructor(inventory, MethodType.methodType(void.class, List.class))
+                    .asType(MethodType.methodType(Object.class, List.class));
+            ADD_DEFAULT_DEVICES = lookup.findStatic(main, "addDefaultDevices",
+                            MethodType.methodType(void.class, inventory))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            NEW_SINK = lookup.findConstructor(sink, MethodType.methodType(void.class, OutputStream.class, int.class,
+                            long.class))
+                    .asType(MethodType.methodType(Object.class, OutputStream.class, int.class, long.class));
+            NEW_COMMAND_LINE = lookup.findConstructor(commandLine, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            SET_COMMAND_LINE = lookup.findVirtual(commandLine, "set",
+                            MethodType.methodType(void.class, byte[].class, int.class, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, byte[].class, int.class, int.class));
+            EXECUTE = lookup.findStatic(main, "execute",
+                            MethodType.methodType(boolean.class, inventory, commandLine, sink))
+                    .asType(MethodType.methodType(boolean.class, Object.class, Object.class, Object.class));
+            OPCODE = lookup.findStatic(lookup.findClass("CommandTable"), "opcode",
+                            MethodType.methodType(int.class, commandLine))
+                    .asType(MethodType.methodType(int.class, Object.class));
+            APPLY_TO_DEVICE = lookup.findStatic(main, "applyToDevice",
+                            MethodType.methodType(void.class, inventory, int.class, String.class, int.class, int.class,
+                                    Enum.class, sink))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, String.class, int.class,
+                            int.class, Enum.class, Object.class));
+            CHECK_INT = lookup.findStatic(main, "checkInt", MethodType.methodType(boolean.class, String.class));
+            CHECK_TYPE = lookup.findVirtual(inventory, "checkType",
+                            MethodType.methodType(boolean.class, int.class, String.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class, int.class, String.class));
+            GET_TYPE = lookup.findVirtual(inventory, "getType", MethodType.methodType(String.class, int.class))
+                    .asType(MethodType.methodType(String.class, Object.class, int.class));
+            GET_DEVICE = lookup.findVirtual(inventory, "get", MethodType.methodType(device, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            Class<?> deviceType = lookup.findClass("DeviceType");
+            NEW_DEVICE = MethodHandles.filterReturnValue(
+                            lookup.findStatic(lookup.findClass("DeviceTypes"), "get",
+                                    MethodType.methodType(deviceType, int.class)),
+                            lookup.findVirtual(deviceType, "newDevice", MethodType.methodType(device)))
+                    .asType(MethodType.methodType(Object.class, int.class));
+            SET_DEVICE_ID = lookup.findVirtual(device, "setDeviceId", MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class));
+            DISPLAY_STATUS = lookup.findVirtual(device, "displayStatus", MethodType.methodType(String.class))
+                    .asType(MethodType.methodType(String.class, Object.class));
+            WRITE_STATUS = lookup.findVirtual(device, "writeStatus", MethodType.methodType(void.class, sink))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            NEW_LINE = lookup.findVirtual(sink, "newLine", MethodType.methodType(sink))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            NEW_SCHEDULER = lookup.findConstructor(scheduler, MethodType.methodType(void.class, Clock.class))
+                    .asType(MethodType.methodType(Object.class, Clock.class));
+            ATTACH = lookup.findVirtual(scheduler, "attach",
+                            MethodType.methodType(void.class, Predicate.class, sink, Flushable.class))
+                    .asType(MethodType.methodType(void.class, Object.class, Predicate.class, Object.class,
+                            Flushable.class));
+            SCHEDULE = lookup.findVirtual(scheduler, "schedule", MethodType.methodType(int.class, commandLine))
+                    .asType(MethodType.methodType(int.class, Object.class, Object.class));
+            RUN_DUE = lookup.findVirtual(scheduler, "runDue", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            NEW_COMMAND_READER = lookup.findConstructor(reader,
+                            MethodType.methodType(void.class, InputStream.class, Flushable.class))
+                    .asType(MethodType.methodType(Object.class, InputStream.class, Flushable.class));
+            READ_LINE = lookup.findVirtual(reader, "readLine", MethodType.methodType(boolean.class, commandLine))
+                    .asType(MethodType.methodType(boolean.class, Object.class, Object.class));
+            NEW_BINARY_PROTOCOL = lookup.findStatic(main, "binaryProtocol",
+                            MethodType.methodType(binaryProtocol, inventory, InputStream.class, OutputStream.class,
+                                    int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, InputStream.class, OutputStream.class,
+                            int.class));
+            RUN_BINARY_PROTOCOL = lookup.findVirtual(binaryProtocol, "run", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            NEW_COALESCER = lookup.findConstructor(coalescer, MethodType.methodType(void.class, inventory, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            RUN_COALESCER = lookup.findVirtual(coalescer, "run",
+                            MethodType.methodType(void.class, InputStream.class, sink))
+                    .asType(MethodType.methodType(void.class, Object.class, InputStream.class, Object.class));
+            NEW_CONCURRENT_EXECUTOR = lookup.findConstructor(concurrentExecutor,
+                            MethodType.methodType(void.class, inventory, sink, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class, int.class));
+            EXECUTE_CONCURRENTLY = lookup.findVirtual(concurrentExecutor, "execute",
+                            MethodType.methodType(boolean.class, commandLine))
+                    .asType(MethodType.methodType(boolean.class, Object.class, Object.class));
+            NEW_JOURNAL = lookup.findConstructor(journal,
+                            MethodType.methodType(void.class, Path.class, inventory, long.class, long.class))
+                    .asType(MethodType.methodType(Object.class, Path.class, Object.class, long.class, long.class));
+            RESTORE_JOURNAL = lookup.findVirtual(journal, "restore", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            START_JOURNAL = lookup.findVirtual(journal, "start", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            COMMIT_JOURNAL = lookup.findVirtual(journal, "commit", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Engine() {
+    }
+
+    /**
+     * Creates the inventory of a new home with the default devices.
+     *
+     * @param store {@code registry} for the columnar store, {@code mapped} for the store in a temporary mapped file,
+     *              anything else for a plain list.
+     * @return The {@code DeviceInventory}.
+     */
+    static Object newInventory(String store) throws Throwable {
+        Object inventory = newEmptyInventory(store);
+        ADD_DEFAULT_DEVICES.invokeExact(inventory);
+        return inventory;
+    }
+
+    /**
+     * Creates the inventory of a new home without devices, as the event loop does before restoring a saved state.
+     *
+     * @param store {@code registry} for the columnar store, {@code mapped} for the store in a temporary mapped file,
+     *              anything else for a plain list.
+     * @return The {@code DeviceInventory}.
+     */
+    static Object newEmptyInventory(String store) throws Throwable {
+        return (Object) NEW_INVENTORY.invokeExact((List<?>) newStore(store));
+    }
+
+    /**
+     * Creates an empty device store.
+     *
+     * @param store {@code registry} for the columnar store, {@code mapped} for the store in a temporary mapped file,
+     *              anything else for a plain list.
+     * @return The store, a {@code List<SmartDevice>}.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Object> newStore(String store) throws Throwable {
+        switch (store) {
+            case "registry":
+                return (List<Object>) NEW_REGISTRY.invokeExact();
+            case "mapped":
+                Path file = Files.createTempFile("smarthome-state", ".bin");
+                file.toFile().deleteOnExit();
+                return (List<Object>) NEW_MAPPED_STORE.invokeExact(file, 16);
+            default:
+                return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Creates a response sink with the default thresholds which discards its output.
+     *
+     * @return The {@code ResponseSink}.
+     */
+    static Object newSink() throws Throwable {
+        return newSink(OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Creates a response sink with the default thresholds.
+     *
+     * @param out The stream receiving the responses.
+     * @return The {@code ResponseSink}, which is also a {@link Flushable}.
+     */
+    static Object newSink(OutputStream out) throws Throwable {
+        return (Object) NEW_SINK.invokeExact(out, 1 << 16, 100L);
+    }
+
+    static Object newCommandLine() throws Throwable {
+        return (Object) NEW_COMMAND_LINE.invokeExact();
+    }
+
+    static byte[] encode(String line) {
+        return line.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Splits a line and runs it, as the event loop does for every line it reads.
+     *
+     * @param inventory The {@code DeviceInventory}.
+     * @param cmd       A reusable {@code CommandLine}.
+     * @param line      The encoded command.
+     * @param out       The {@code ResponseSink}.
+     * @return {@code false} if the command ends the session.
+     */
+    static boolean execute(Object inventory, Object cmd, byte[] line, Object out) throws Throwable {
+        SET_COMMAND_LINE.invokeExact(cmd, line, 0, line.length);
+        return (boolean) EXECUTE.invokeExact(inventory, cmd, out);
+    }
+
+    /**
+     * Runs a command line already read, as the event loop does.
+     *
+     * @param inventory The {@code DeviceInventory}.
+     * @param cmd       The {@code CommandLine}.
+     * @param out       The {@code ResponseSink}.
+     * @return {@code false} if the command ends the session.
+     */
+    static boolean execute(Object inventory, Object cmd, Object out) throws Throwable {
+        return (boolean) EXECUTE.invokeExact(inventory, cmd, out);
+    }
+
+    /**
+     * @param cmd  A reusable {@code CommandLine}.
+     * @param line The encoded command.
+     * @return The opcode of the command.
+     */
+    static int opcode(Object cmd, byte[] line) throws Throwable {
+        SET_COMMAND_LINE.invokeExact(cmd, line, 0, line.length);
+        return (int) OPCODE.invokeExact(cmd);
+    }
+
+    /**
+     * Applies a parsed device command to one device, as {@code execute} does for each device it selects.
+     *
+     * @param inventory The {@code DeviceInventory}.
+     * @param op        The opcode of a device command.
+     * @param type      The device type named in the command.
+     * @param id        The device ID.
+     * @param value     The numeric argument.
+     * @param setting   The enum argument, or {@code null}.
+     * @param out       The {@code ResponseSink}.
+     */
+    static void applyToDevice(Object inventory, int op, String type, int id, int value, Enum<?> setting, Object out)
+            throws Throwable {
+        APPLY_TO_DEVICE.invokeExact(inventory, op, type, id, value, setting, out);
+    }
+
+    /**
+     * @param enumClass The name of an enum of the engine, e.g. {@code BrightnessLevel}.
+     * @param name      The name of a constant.
+     * @return The constant.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Enum<?> constant(String enumClass, String name) throws ReflectiveOperationException {
+        Class<?> main = Class.forName("Main");
+        Class enumType = MethodHandles.privateLookupIn(main, MethodHandles.lookup()).findClass(enumClass);
+        return Enum.valueOf(enumType, name);
+    }
+
+    static boolean checkInt(String text) throws Throwable {
+        return (boolean) CHECK_INT.invokeExact(text);
+    }
+
+    static boolean checkType(Object inventory, int id, String type) throws Throwable {
+        return (boolean) CHECK_TYPE.invokeExact(inventory, id, type);
+    }
+
+    static String getType(Object inventory, int id) throws Throwable {
+        return (String) GET_TYPE.invokeExact(inventory, id);
+    }
+
+    static Object device(Object inventory, int id) throws Throwable {
+        return (Object) GET_DEVICE.invokeExact(inventory, id);
+    }
+
+    /**
+     * Creates a device of a type with its default state, outside of any inventory.
+     *
+     * @param type One of the type codes of {@code DeviceInventory}.
+     * @param id   The id of the device.
+     * @return The {@code SmartDevice}.
+     */
+    static Object newDevice(int type, int id) throws Throwable {
+        Object device = (Object) NEW_DEVICE.invokeExact(type);
+        SET_DEVICE_ID.invokeExact(device, id);
+        return device;
+    }
+
+    static String displayStatus(Object device) throws Throwable {
+        return (String) DISPLAY_STATUS.invokeExact(device);
+    }
+
+    /**
+     * Writes the status line of a device, as {@code DisplayAllStatus} does for each device.
+     *
+     * @param device The {@code SmartDevice}.
+     * @param out    The {@code ResponseSink}.
+     */
+    static void writeStatusLine(Object device, Object out) throws Throwable {
+        WRITE_STATUS.invokeExact(device, out);
+        NEW_LINE.invokeExact(out);
+    }
+
+    /**
+     * Creates a scheduler on the given clock whose fired commands do nothing.
+     *
+     * @param clock The clock, usually a simulated one.
+     * @return The {@code Scheduler}.
+     */
+    static Object newScheduler(Clock clock) throws Throwable {
+        Object scheduler = (Object) NEW_SCHEDULER.invokeExact(clock);
+        Object out = newSink();
+        ATTACH.invokeExact(scheduler, (Predicate<?>) cmd -> true, out, (Flushable) out);
+        return scheduler;
+    }
+
+    /**
+     * Adds a timer, as the {@code Schedule} command does.
+     *
+     * @param scheduler The {@code Scheduler}.
+     * @param cmd       A reusable {@code CommandLine}.
+     * @param line      The encoded {@code Schedule} command.
+     * @return The id of the timer.
+     */
+    static int schedule(Object scheduler, Object cmd, byte[] line) throws Throwable {
+        SET_COMMAND_LINE.invokeExact(cmd, line, 0, line.length);
+        return (int) SCHEDULE.invokeExact(scheduler, cmd);
+    }
+
+    static void runDue(Object scheduler) throws Throwable {
+        RUN_DUE.invokeExact(scheduler);
+    }
+
+    /**
+     * Creates a reader of text commands, as the event loop reads standard input.
+     *
+     * @param in  The stream of command lines.
+     * @param out The {@code ResponseSink} flushed before every read.
+     * @return The {@code CommandReader}.
+     */
+    static Object newCommandReader(InputStream in, Object out) throws Throwable {
+        return (Object) NEW_COMMAND_READER.invokeExact(in, (Flushable) out);
+    }
+
+    static boolean readLine(Object reader, Object cmd) throws Throwable {
+        return (boolean) READ_LINE.invokeExact(reader, cmd);
+    }
+
+    /**
+     * Creates a session of the binary protocol over an inventory, as the event loop runs it on standard input.
+     *
+     * @param inventory The {@code DeviceInventory}.
+     * @param in        The stream of request frames.
+     * @param out       The stream receiving the responses.
+     * @return The {@code BinaryProtocol}.
+     */
+    static Object newBinaryProtocol(Object inventory, InputStream in, OutputStream out) throws Throwable {
+        return (Object) NEW_BINARY_PROTOCOL.invokeExact(inventory, in, out, 1 << 16);
+    }
+
+    /**
+     * Answers the frames of a binary protocol session until its input ends.
+     *
+     * @param protocol The {@code BinaryProtocol}.
+     */
+    static void runBinaryProtocol(Object protocol) throws Throwable {
+        RUN_BINARY_PROTOCOL.invokeExact(protocol);
+    }
+
+    /**
+     * Creates the ingest window of the event loop for a given number of commands.
+     *
+     * @param inventory The {@code DeviceInventory}.
+     * @param window    Number of commands after which a window closes, {@code 1} to run without windows.
+     * @return The {@code CommandCoalescer}.
+     */
+    static Object newCoalescer(Object inventory, int window) throws Throwable {
+        return (Object) NEW_COALESCER.invokeExact(inventory, window);
+    }
+
+    /**
+     * Reads and runs commands through an ingest window until the input ends.
+     *
+     * @param coalescer The {@code CommandCoalescer}.
+     * @param in        The stream of command lines.
+     * @param out       The {@code ResponseSink}.
+     */
+    static void runCoalescer(Object coalescer, InputStream in, Object out) throws Throwable {
+        RUN_COALESCER.invokeExact(coalescer, in, out);
+    }
+
+    /**
+     * Creates the executor of the concurrent event loop.
+     *
+     * @param inventory The {@code DeviceInventory}.
+     * @param out       The {@code ResponseSink} receiving the responses in input order.
+     * @param threads   Number of worker threads.
+     * @return The {@code ConcurrentCommandExecutor}, which is also a {@link Flushable} and an {@link AutoCloseable}.
+     */
+    static Object newConcurrentExecutor(Object inventory, Object out, int threads) throws Throwable {
+        return (Object) NEW_CONCURRENT_EXECUTOR.invokeExact(inventory, out, threads);
+    }
+
+    /**
+     * Splits a line and schedules it on an executor, as the concurrent event loop does for every line it reads.
+     *
+     * @param executor The {@code ConcurrentCommandExecutor}.
+     * @param cmd      A reusable {@code CommandLine}.
+     * @param line     The encoded command.
+     * @return {@code false} if the command ends the session.
+     */
+    static boolean executeConcurrently(Object executor, Object cmd, byte[] line) throws Throwable {
+        SET_COMMAND_LINE.invokeExact(cmd, line, 0, line.length);
+        return (boolean) EXECUTE_CONCURRENTLY.invokeExact(executor, cmd);
+    }
+
+    /**
+     * Creates a journal persisting an inventory in a directory, as the event loop does with
+     * {@code -Dsmarthome.dataDir}.
+     *
+     * @param directory     Directory of the journal and the snapshot.
+     * @param inventory     The {@code DeviceInventory}.
+     * @param commitMillis  Maximum time a change waits before it is synced to disk.
+     * @param snapshotEvery Number of journal records after which a new snapshot is taken.
+     * @return The {@code DeviceJournal}, which is also an {@link AutoCloseable}.
+     */
+    static Object newJournal(Path directory, Object inventory, long commitMillis, long snapshotEvery)
+            throws Throwable {
+        return (Object) NEW_JOURNAL.invokeExact(directory, inventory, commitMillis, snapshotEvery);
+    }
+
+    /**
+     * Loads the snapshot and replays the journal of a directory into the inventory of the journal.
+     *
+     * @param journal The {@code DeviceJournal}.
+     * @return {@code false} if no saved state was found.
+     */
+    static boolean restoreJournal(Object journal) throws Throwable {
+        return (boolean) RESTORE_JOURNAL.invokeExact(journal);
+    }
+
+    /**
+     * Writes a snapshot and starts journaling every change of the inventory.
+     *
+     * @param journal The {@code DeviceJournal}.
+     */
+    static void startJournal(Object journal) throws Throwable {
+        START_JOURNAL.invokeExact(journal);
+    }
+
+    /**
+     * Writes the pending records to the journal and syncs it, as the group commit does.
+     *
+     * @param journal The {@code DeviceJournal}.
+     */
+    static void commitJournal(Object journal) throws Throwable {
+        COMMIT_JOURNAL.invokeExact(journal);
+    }
+}
@@ -0,0 +1,125 @@
+package smarthome.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Compares the throughput of the original event loop, reading with {@code Scanner} and splitting with regular
+ * expressions, with the current one on a file of {@code -Dsmarthome.throughput.lines} commands (default
+ * {@code 10000000}). The original {@code Main} is kept in {@code bench/legacy} and compiled into a temporary directory
+ * first. The file repeats the golden command script of {@link GoldenCheck} and ends with {@code end}. Both versions run
+ * {@code -Dsmarthome.throughput.runs} times (default {@code 3}) in a new process each, with the file on standard input,
+ * and the fastest run counts; their outputs are digested and must be the same.
+ *
+ * <p>Run from the repository root with
+ * {@code java -cp bench/target/benchmarks.jar smarthome.bench.EventLoopThroughputTest}.
+ */
+public final class EventLoopThroughputTest {
+    private static final int LINES = Integer.getInteger("smarthome.throughput.lines", 10_000_000);
+    private static final int RUNS = Integer.getInteger("smarthome.throughput.runs", 3);
+    private static final Path LEGACY_SOURCE = Path.of("bench/legacy/Main.java");
+    private static final Path SCRIPT = Path.of("bench/golden/commands.txt");
+
+    private EventLoopThroughputTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path legacy = Files.createTempDirectory("smarthome-legacy");
+        Path input = Files.createTempFile("smarthome-commands", ".txt");
+        try {
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler.run(null, null, null, "-nowarn", "-d", legacy.toString(), LEGACY_SOURCE.toString()) != 0) {
+                throw new IllegalStateException("Cannot compile " + LEGACY_SOURCE);
+            }
+            writeInput(input);
+            System.out.printf(Locale.ROOT, "%d commands, best of %d runs%n", LINES, RUNS);
+            System.out.printf(Locale.ROOT, "%-8s %10s %14s %12s  %s%n", "loop", "seconds", "commands/s", "output MB",
+                    "output SHA-256");
+            Run old = measure("original", legacy.toString(), input);
+            Run current = measure("current", System.getProperty("java.class.path"), input);
+            System.out.printf(Locale.ROOT, "Speedup %.2fx%n", old.seconds / current.seconds);
+            if (!Arrays.equals(old.digest, current.digest) || old.bytes != current.bytes) {
+                System.out.println("Outputs differ");
+                System.exit(1);
+            }
+        } finally {
+            Files.delete(input);
+            try (Stream<Path> files = Files.walk(legacy)) {
+                for (Path file : files.sorted((a, b) -> b.compareTo(a)).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the golden script without its {@code end} again and again, up to the number of commands.
+     */
+    private static void writeInput(Path input) throws IOException {
+        List<String> script = Files.readAllLines(SCRIPT);
+        script = script.subList(0, script.lastIndexOf("end"));
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(input), 1 << 16)) {
+            for (int i = 0; i < LINES - 1; i++) {
+                out.write(script.get(i % script.size()).getBytes(StandardCharsets.US_ASCII));
+                out.write('\n');
+            }
+            out.write("end\n".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static Run measure(String name, String classPath, Path input) throws Exception {
+        Run best = null;
+        for (int i = 0; i < RUNS; i++) {
+            Run run = run(classPath, input);
+            if (best == null || run.seconds < best.seconds) {
+                best = run;
+            }
+        }
+        System.out.printf(Locale.ROOT, "%-8s %10.2f %14.0f %12.1f  %s%n", name, best.seconds, LINES / best.seconds,
+                best.bytes / 1e6, HexFormat.of().formatHex(best.digest));
+        return best;
+    }
+
+    private static Run run(String classPath, Path input) throws IOException, InterruptedException,
+            NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[1 << 16];
+        long bytes = 0;
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classPath, "Main")
+                .redirectInput(input.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (InputStream out = process.getInputStream()) {
+            for (int read; (read = out.read(buffer)) >= 0; ) {
+                digest.update(buffer, 0, read);
+                bytes += read;
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Main exited with " + process.exitValue());
+        }
+        double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        return new Run(seconds, bytes, digest.digest());
+    }
+
+    private record Run(double seconds, long bytes, byte[] digest) {
+    }
+}
@@ -0,0 +1,70 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of finding the few charging lights in a large home, whose devices are spread over a hundred rooms.
+ * One device in a thousand is charging, so the query should only look at a small part of the indexes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FindBenchmark {
+    private static final String[] DEVICES = {"Light", "Camera", "Heater"};
+    private static final int ROOMS = 100;
+    private static final int CHARGING_EVERY = 1000;
+
+    @Param({"1000000"})
+    public int devices;
+
+    private Object inventory;
+    private Object out;
+    private Object cmd;
+    private byte[] findCharging;
+    private byte[] findInRoom;
+
+    @Setup
+    public void setUp() throws Throwable {
+        inventory = Engine.newInventory("registry");
+        out = Engine.newSink();
+        cmd = Engine.newCommandLine();
+        for (int room = 0; room < ROOMS; room++) {
+            Engine.execute(inventory, cmd, Engine.encode("AddRoom Room" + room), out);
+        }
+        for (int i = 0; i < devices; i++) {
+            String type = DEVICES[i % DEVICES.length];
+            Engine.execute(inventory, cmd, Engine.encode("AddDevice " + type), out);
+            Engine.execute(inventory, cmd, Engine.encode("MoveDevice " + type + " " + i + " Room" + i % ROOMS), out);
+            if (i % CHARGING_EVERY == 0) {
+                Engine.execute(inventory, cmd, Engine.encode("StartCharging Light " + i), out);
+            }
+        }
+        findCharging = Engine.encode("Find Light status=ON charging=true");
+        findInRoom = Engine.encode("Find Light status=ON charging=true room=Room0");
+    }
+
+    @Benchmark
+    public boolean findCharging() throws Throwable {
+        return Engine.execute(inventory, cmd, findCharging, out);
+    }
+
+    @Benchmark
+    public boolean findInRoom() throws Throwable {
+        return Engine.execute(inventory, cmd, findInRoom, out);
+    }
+}
@@ -0,0 +1,257 @@
+package smarthome.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Floods a local command server with more commands than it can apply and reports the latency its clients see, once
+ * against the plain server, once with the ingest pipeline shedding load at its queue, and once with the pipeline
+ * also limiting every client to its share of the capacity. Each run starts a server process of its own.
+ *
+ * <p>Every client toggles a light and runs the energy model for a tick in turn, in a home of
+ * {@code -Dsmarthome.flood.heaters} heaters (default {@code 10000}), so that applying a command costs tens of
+ * microseconds and the apply stage, not the reading of the commands, is the bottleneck, as it is when commands do
+ * real work. The capacity is measured first, by every client keeping a fixed number of commands in flight against
+ * the plain server. The flood then spreads {@code -Dsmarthome.flood.overload} times that rate (default {@code 10}) over
+ * {@code -Dsmarthome.flood.clients} clients (default {@code 16}) for {@code -Dsmarthome.flood.seconds} seconds
+ * (default {@code 5}). Clients send on a fixed schedule whatever the server answers, every millisecond the commands
+ * due by then, and the latency of a command is taken from the time it was due to be sent, so a server that stops
+ * reading is charged for the commands waiting in front of it. Commands still unanswered a few seconds after the
+ * flood ends are counted, not measured.
+ *
+ * <p>Run with {@code java -cp bench/target/benchmarks.jar smarthome.bench.FloodTest}.
+ */
+public final class FloodTest {
+    private static final int CLIENTS = Integer.getInteger("smarthome.flood.clients", 16);
+    private static final int SECONDS = Integer.getInteger("smarthome.flood.seconds", 5);
+    private static final int OVERLOAD = Integer.getInteger("smarthome.flood.overload", 10);
+    private static final int QUEUE = Integer.getInteger("smarthome.flood.queue", 1024);
+    private static final int HEATERS = Integer.getInteger("smarthome.flood.heaters", 10_000);
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long SEND_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int CALIBRATION_IN_FLIGHT = 256;
+    private static final long CALIBRATION_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final int LIGHTS = 4;
+    private static final int CYCLE = 4;
+    private static final int MAX_COMMAND_BYTES = 64;
+
+    private FloodTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        double capacity;
+        try (ServerProcess server = start(0, 0)) {
+            capacity = calibrate(server);
+        }
+        double rate = capacity * OVERLOAD;
+        System.out.printf(Locale.ROOT,
+                "Capacity %.0f commands/s, flooding with %.0f commands/s from %d clients for %d s%n", capacity, rate,
+                CLIENTS, SECONDS);
+        System.out.printf(Locale.ROOT, "%-12s %12s %12s %7s %10s %10s %10s %10s %11s%n", "server", "offered/s",
+                "applied/s", "busy", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "unanswered");
+        flood("plain", 0, 0, rate);
+        flood("queue", QUEUE, 0, rate);
+        flood("queue+rate", QUEUE, (int) Math.max(1, capacity / CLIENTS), rate);
+    }
+
+    /**
+     * @return Commands per second answered to all clients, each keeping commands in flight.
+     */
+    private static double calibrate(ServerProcess server) throws Exception {
+        long[] answered = new long[CLIENTS];
+        List<Thread> clients = new ArrayList<>();
+        long started = System.nanoTime();
+        for (int i = 0; i < CLIENTS; i++) {
+            int client = i;
+            Socket socket = server.connect();
+            Thread thread = new Thread(() -> {
+                try (socket) {
+                    OutputStream out = socket.getOutputStream();
+                    ResponseLines in = new ResponseLines(socket.getInputStream());
+                    byte[] batch = commands(client, CALIBRATION_IN_FLIGHT);
+                    while (System.nanoTime() - started < CALIBRATION_NANOS) {
+                        out.write(batch);
+                        for (int j = 0; j < CALIBRATION_IN_FLIGHT; j++) {
+                            in.next();
+                        }
+                        answered[client] += CALIBRATION_IN_FLIGHT;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            thread.start();
+            clients.add(thread);
+        }
+        long total = 0;
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.get(i).join();
+            total += answered[i];
+        }
+        return total * 1e9 / (System.nanoTime() - started);
+    }
+
+    private static void flood(String name, int queue, int clientRate, double rate) throws Exception {
+        try (ServerProcess server = start(queue, clientRate)) {
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long total = (long) (rate / CLIENTS * SECONDS);
+            double interval = TimeUnit.SECONDS.toNanos(SECONDS) / (double) total;
+            List<Client> clients = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                clients.add(new Client(server, i, start, interval, total));
+            }
+            LatencyHistogram applied = new LatencyHistogram();
+            long busy = 0;
+            long unanswered = 0;
+            long end = start;
+            for (Client client : clients) {
+                client.join();
+                applied.add(client.applied);
+                busy += client.busy;
+                unanswered += total - client.answered;
+                end = Math.max(end, client.lastAnswer);
+            }
+            long offered = total * CLIENTS;
+            // Commands are applied until the last answer, which comes late when the server falls behind
+            double applying = Math.max(end - start, TimeUnit.SECONDS.toNanos(SECONDS)) / 1e9;
+            System.out.printf(Locale.ROOT, "%-12s %12.0f %12.0f %6.1f%% %10.2f %10.2f %10.2f %10.2f %11d%n", name,
+                    offered / (double) SECONDS, applied.count() / applying, 100.0 * busy / offered,
+                    applied.quantile(0.5) / 1e6, applied.quantile(0.99) / 1e6, applied.quantile(0.999) / 1e6,
+                    applied.max() / 1e6, unanswered);
+        }
+    }
+
+    /**
+     * Starts a server and adds the heaters of the home.
+     */
+    private static ServerProcess start(int queue, int clientRate) throws IOException {
+        ServerProcess server = new ServerProcess("-Dsmarthome.ingestQueue=" + queue,
+                "-Dsmarthome.clientRate=" + clientRate);
+        try (Socket socket = server.connect()) {
+            ResponseLines in = new ResponseLines(socket.getInputStream());
+            byte[] add = "AddDevice Heater\n".repeat(HEATERS).getBytes(StandardCharsets.US_ASCII);
+            socket.getOutputStream().write(add);
+            for (int i = 0; i < HEATERS; i++) {
+                in.next();
+            }
+        }
+        return server;
+    }
+
+    /**
+     * @return The given number of commands of a client, each answered with one line.
+     */
+    private static byte[] commands(int client, int count) {
+        StringBuilder commands = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            commands.append(command(client, i));
+        }
+        return commands.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return The command a client sends at the given position, toggling its light and running a tick in turn.
+     */
+    private static String command(int client, long position) {
+        switch ((int) (position % CYCLE)) {
+            case 0:
+                return "TurnOff Light " + client % LIGHTS + "\n";
+            case 2:
+                return "TurnOn Light " + client % LIGHTS + "\n";
+            default:
+                return "Simulate 1\n";
+        }
+    }
+
+    /**
+     * A client sending on a fixed schedule from one thread and reading the answers on another.
+     */
+    private static final class Client {
+        final LatencyHistogram applied = new LatencyHistogram();
+        long busy;
+        long answered;
+        long lastAnswer;
+        private final Socket socket;
+        private final Thread sender;
+        private final Thread receiver;
+
+        Client(ServerProcess server, int index, long start, double interval, long total) throws IOException {
+            socket = server.connect();
+            byte[][] commands = new byte[CYCLE][];
+            for (int i = 0; i < CYCLE; i++) {
+                commands[i] = command(index, i).getBytes(StandardCharsets.US_ASCII);
+            }
+            sender = new Thread(() -> send(start, interval, total, commands));
+            receiver = new Thread(() -> receive(start, interval, total));
+            sender.start();
+            receiver.start();
+        }
+
+        void join() throws InterruptedException, IOException {
+            receiver.join();
+            socket.close();
+            sender.join();
+        }
+
+        private void send(long start, double interval, long total, byte[][] commands) {
+            byte[] batch = new byte[1 << 16];
+            long sent = 0;
+            try {
+                OutputStream out = socket.getOutputStream();
+                while (sent < total) {
+                    long now = System.nanoTime();
+                    long due = Math.min(total, now < start ? 0 : (long) ((now - start) / interval) + 1);
+                    int length = 0;
+                    while (sent < due && length + MAX_COMMAND_BYTES <= batch.length) {
+                        byte[] command = commands[(int) (sent % CYCLE)];
+                        System.arraycopy(command, 0, batch, length, command.length);
+                        length += command.length;
+                        sent++;
+                    }
+                    if (length > 0) {
+                        out.write(batch, 0, length);
+                    } else {
+                        LockSupport.parkNanos(SEND_PERIOD_NANOS);
+                    }
+                }
+            } catch (IOException e) {
+                // The receiver gave up and closed the connection
+            }
+        }
+
+        private void receive(long start, double interval, long total) {
+            long deadline = start + TimeUnit.SECONDS.toNanos(SECONDS) + DRAIN_NANOS;
+            try {
+                socket.setSoTimeout(100);
+                ResponseLines in = new ResponseLines(socket.getInputStream());
+                while (answered < total && System.nanoTime() < deadline) {
+                    int first;
+                    try {
+                        first = in.next();
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    lastAnswer = System.nanoTime();
+                    long latency = lastAnswer - start - (long) (answered * interval);
+                    answered++;
+                    if (first == 'B') {
+                        busy++;
+                    } else {
+                        applied.record(latency);
+                    }
+                }
+            } catch (IOException e) {
+                // Counted as unanswered
+            }
+        }
+    }
+}
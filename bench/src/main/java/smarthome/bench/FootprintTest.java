@@ -0,0 +1,128 @@
+package smarthome.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the heap taken by the devices of a home, with one object per device in a list and with the columns of
+ * {@code DeviceRegistry}, at {@code -Dsmarthome.footprint.counts} devices (default {@code 10000,1000000,10000000}).
+ * Every measurement runs in a new process with a heap of {@code -Dsmarthome.footprint.heap} (default {@code 4g}): it
+ * creates a home, adds lights, cameras and heaters in turn with {@code AddDevice} and takes the growth of the used heap
+ * after full collections, home and default devices included. The figures cover everything the inventory keeps per
+ * device, such as its id index, the energy model and the spare capacity of its growing arrays. The last column takes
+ * the store alone, filled with as many new devices without an inventory.
+ *
+ * <p>Run with {@code java -cp bench/target/benchmarks.jar smarthome.bench.FootprintTest}.
+ */
+public final class FootprintTest {
+    private static final String COUNTS = System.getProperty("smarthome.footprint.counts", "10000,1000000,10000000");
+    private static final String HEAP = System.getProperty("smarthome.footprint.heap", "4g");
+    private static final String[] STORES = {"list", "registry"};
+    private static final String[] TYPES = {"Light", "Camera", "Heater"};
+    // Codes of the types above in DeviceInventory
+    private static final int[] TYPE_CODES = {1, 2, 3};
+    private static final int COLLECTIONS = 5;
+    private static final int WARM_UP_DEVICES = 100_000;
+
+    private FootprintTest() {
+    }
+
+    /**
+     * @param args Nothing to compare the stores, or a store and a number of devices to measure that one only.
+     */
+    public static void main(String[] args) throws Throwable {
+        if (args.length == 2) {
+            long[] bytes = measure(args[0], Integer.parseInt(args[1]));
+            System.out.println(bytes[0] + " " + bytes[1]);
+            return;
+        }
+        System.out.printf(Locale.ROOT, "%12s %10s %12s %14s %14s%n", "devices", "store", "heap MB", "bytes/device",
+                "store B/device");
+        for (String count : COUNTS.split(",")) {
+            for (String store : STORES) {
+                long[] bytes = measureInProcess(store, count);
+                int devices = Integer.parseInt(count);
+                System.out.printf(Locale.ROOT, "%12d %10s %12.1f %14.1f %14.1f%n", devices, store, bytes[0] / 1e6,
+                        bytes[0] / (double) devices, bytes[1] / (double) devices);
+            }
+        }
+    }
+
+    private static long[] measureInProcess(String store, String count) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xms" + HEAP, "-Xmx" + HEAP, "-XX:+UseSerialGC", "-cp", System.getProperty("java.class.path"),
+                FootprintTest.class.getName(), store, count)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String line;
+        try (BufferedReader out = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII))) {
+            line = out.readLine();
+        }
+        if (process.waitFor() != 0 || line == null) {
+            throw new IllegalStateException("Measuring " + count + " devices in a " + store + " failed");
+        }
+        String[] bytes = line.split(" ");
+        return new long[] {Long.parseLong(bytes[0]), Long.parseLong(bytes[1])};
+    }
+
+    /**
+     * @return Bytes of heap taken by the given number of devices added to a new home, and by a store holding them.
+     */
+    private static long[] measure(String store, int count) throws Throwable {
+        // A home filled first loads, initializes and compiles everything the measured one uses
+        fill(Engine.newInventory(store), WARM_UP_DEVICES);
+        long before = usedHeap();
+        Object inventory = Engine.newInventory(store);
+        fill(inventory, count);
+        long home = usedHeap() - before;
+        Reference.reachabilityFence(inventory);
+        inventory = null;
+        before = usedHeap();
+        List<Object> devices = Engine.newStore(store);
+        for (int i = 0; i < count; i++) {
+            devices.add(Engine.newDevice(TYPE_CODES[i % TYPE_CODES.length], i));
+        }
+        long alone = usedHeap() - before;
+        Reference.reachabilityFence(devices);
+        return new long[] {home, alone};
+    }
+
+    private static void fill(Object inventory, int count) throws Throwable {
+        Object out = Engine.newSink();
+        Object cmd = Engine.newCommandLine();
+        byte[][] adds = new byte[TYPES.length][];
+        for (int i = 0; i < TYPES.length; i++) {
+            adds[i] = Engine.encode("AddDevice " + TYPES[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            Engine.execute(inventory, cmd, adds[i % TYPES.length], out);
+        }
+    }
+
+    /**
+     * @return Bytes of heap live after full collections, as the pools report them right after the last one, so that
+     * the buffers threads allocate into afterwards do not count.
+     */
+    private static long usedHeap() {
+        for (int i = 0; i < COLLECTIONS; i++) {
+            System.gc();
+        }
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null) {
+                used += pool.getCollectionUsage().getUsed();
+            }
+        }
+        return used;
+    }
+}
@@ -0,0 +1,74 @@
+package smarthome.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks that the event loop still answers a fixed command script byte for byte as the original implementation did.
+ * {@code bench/golden/commands.txt} mixes every command of the original protocol with malformed commands, unknown
+ * types and ids out of range, and {@code bench/golden/responses.txt} holds the responses of the original
+ * {@code Main} kept in {@code bench/legacy}. The script runs in a new process on the class path of this one, with the
+ * default settings, and the first difference is printed and fails the check.
+ *
+ * <p>Run from the repository root with {@code java -cp bench/target/benchmarks.jar smarthome.bench.GoldenCheck}, or
+ * pass the script and the expected responses as arguments.
+ */
+public final class GoldenCheck {
+    private GoldenCheck() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path commands = Path.of(args.length == 2 ? args[0] : "bench/golden/commands.txt");
+        Path responses = Path.of(args.length == 2 ? args[1] : "bench/golden/responses.txt");
+        byte[] expected = Files.readAllBytes(responses);
+        byte[] actual;
+        Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "Main")
+                .redirectInput(commands.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (InputStream out = process.getInputStream()) {
+            actual = out.readAllBytes();
+        }
+        int exit = process.waitFor();
+
+        int mismatch = Arrays.mismatch(expected, actual);
+        if (exit != 0 || mismatch >= 0) {
+            System.out.println(exit != 0 ? "Main exited with " + exit : "Responses differ " + describe(expected,
+                    actual, mismatch));
+            System.exit(1);
+        }
+        System.out.println("Responses to " + commands + " match " + responses + " (" + expected.length + " bytes)");
+    }
+
+    /**
+     * @return The line of the first difference with both versions of it.
+     */
+    private static String describe(byte[] expected, byte[] actual, int mismatch) {
+        int line = 1;
+        int start = 0;
+        for (int i = 0; i < mismatch; i++) {
+            if (expected[i] == '\n') {
+                line++;
+                start = i + 1;
+            }
+        }
+        return "at line " + line + ": \"" + lineAt(actual, start) + "\" instead of \"" + lineAt(expected, start)
+                + "\"";
+    }
+
+    private static String lineAt(byte[] text, int start) {
+        int end = start;
+        while (end < text.length && text[end] != '\n' && text[end] != '\r') {
+            end++;
+        }
+        if (start >= text.length) {
+            return "<end of output>";
+        }
+        return new String(text, start, end - start, StandardCharsets.US_ASCII);
+    }
+}
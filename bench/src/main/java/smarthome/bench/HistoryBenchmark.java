@@ -0,0 +1,57 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of an hourly aggregate over the whole history of one heater, after a given number of temperature changes
+ * spread over a thousand heaters. Every block holds changes of all heaters, so the query decodes the whole history.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryBenchmark {
+    private static final int HEATERS = 1000;
+
+    @Param({"1000000"})
+    public int changes;
+
+    private Object inventory;
+    private Object out;
+    private Object cmd;
+    private byte[] aggregate;
+
+    @Setup
+    public void setUp() throws Throwable {
+        inventory = Engine.newInventory("list");
+        out = Engine.newSink();
+        cmd = Engine.newCommandLine();
+        for (int i = 0; i < HEATERS; i++) {
+            Engine.execute(inventory, cmd, Engine.encode("AddDevice Heater"), out);
+        }
+        for (int i = 0; i < changes; i++) {
+            Engine.execute(inventory, cmd, Engine.encode("SetTemperature Heater " + i % HEATERS + " " + (15 + i % 16)),
+                    out);
+        }
+        aggregate = Engine.encode("History Heater 7 0 now Temperature 1h");
+    }
+
+    @Benchmark
+    public boolean aggregate() throws Throwable {
+        return Engine.execute(inventory, cmd, aggregate, out);
+    }
+}
@@ -0,0 +1,86 @@
+package smarthome.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a command whose change is journaled, toggling a thousand lights, for a given maximum time a change waits
+ * for its group commit. Every toggle appends one record; the committer thread writes and syncs the records gathered
+ * since its last run, and a command only waits for it when the buffer of pending records is full. Snapshots are
+ * turned off so that only appends are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JournalBenchmark {
+    private static final int LIGHTS = 1000;
+
+    @Param({"1", "10", "100"})
+    public long commitMillis;
+
+    private Path directory;
+    private Object journal;
+    private Object inventory;
+    private Object out;
+    private Object cmd;
+    private byte[][] toggles;
+    private int next;
+
+    @Setup
+    public void setUp() throws Throwable {
+        directory = Files.createTempDirectory("smarthome-journal");
+        inventory = Engine.newEmptyInventory("list");
+        out = Engine.newSink();
+        cmd = Engine.newCommandLine();
+        for (int i = 0; i < LIGHTS; i++) {
+            Engine.execute(inventory, cmd, Engine.encode("AddDevice Light"), out);
+        }
+        journal = Engine.newJournal(directory, inventory, commitMillis, Long.MAX_VALUE);
+        Engine.startJournal(journal);
+        toggles = new byte[2 * LIGHTS][];
+        for (int i = 0; i < LIGHTS; i++) {
+            toggles[i] = Engine.encode("TurnOff Light " + i);
+            toggles[LIGHTS + i] = Engine.encode("TurnOn Light " + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((AutoCloseable) journal).close();
+        delete(directory);
+    }
+
+    @Benchmark
+    public boolean toggle() throws Throwable {
+        byte[] line = toggles[next];
+        next = next + 1 == toggles.length ? 0 : next + 1;
+        return Engine.execute(inventory, cmd, line, out);
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
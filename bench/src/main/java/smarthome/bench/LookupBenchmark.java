@@ -0,0 +1,61 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the argument checks and device lookups shared by all commands.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LookupBenchmark {
+    @Param({"list", "registry"})
+    public String store;
+
+    // Non-final so that the JIT cannot fold the calls into constants
+    private Object devices;
+    private String number = "1234";
+    private String notANumber = "12a4";
+    private String type = "Heater";
+    private int id = 6;
+
+    @Setup
+    public void setUp() throws Throwable {
+        devices = Engine.newInventory(store);
+    }
+
+    @Benchmark
+    public boolean checkInt() throws Throwable {
+        return Engine.checkInt(number);
+    }
+
+    @Benchmark
+    public boolean checkIntInvalid() throws Throwable {
+        return Engine.checkInt(notANumber);
+    }
+
+    @Benchmark
+    public boolean checkType() throws Throwable {
+        return Engine.checkType(devices, id, type);
+    }
+
+    @Benchmark
+    public String getType() throws Throwable {
+        return Engine.getType(devices, id);
+    }
+}
@@ -0,0 +1,60 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of showing the devices of a very large home, all at once or one page of a type at a time.
+ * A device changes before every poll, as in a live home, so the full listing re-renders that device and copies out
+ * the status of all the others, while a page only renders its own devices.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PageBenchmark {
+    private static final String[] TYPES = {"Light", "Camera", "Heater"};
+    private static final int DEVICES = 200_000;
+
+    @Param({"DisplayAllStatus", "DisplayAllStatus Camera limit=1000 after=100000"})
+    public String command;
+
+    private Object devices;
+    private Object out;
+    private Object cmd;
+    private byte[] line;
+    private final byte[][] toggles = {Engine.encode("TurnOff Light 0"), Engine.encode("TurnOn Light 0")};
+    private int next;
+
+    @Setup
+    public void setUp() throws Throwable {
+        devices = Engine.newInventory("list");
+        out = Engine.newSink();
+        cmd = Engine.newCommandLine();
+        for (int i = 0; i < DEVICES; i++) {
+            Engine.execute(devices, cmd, Engine.encode("AddDevice " + TYPES[i % TYPES.length]), out);
+        }
+        line = Engine.encode(command);
+    }
+
+    @Benchmark
+    public Object poll() throws Throwable {
+        Engine.execute(devices, cmd, toggles[next], out);
+        next ^= 1;
+        Engine.execute(devices, cmd, line, out);
+        return out;
+    }
+}
@@ -0,0 +1,106 @@
+package smarthome.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a device command read from a stream, executed and answered, in the text protocol and in the binary one.
+ * The same mix of commands is sent as text lines through the reader of the event loop, or as binary frames through
+ * a binary protocol session; both answer into a discarding stream. Commands per second are {@code 1e9 / score}, or
+ * run with {@code -bm thrpt -tu s}. The mix leaves the devices as it found them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    private static final String[] COMMANDS = {
+        "TurnOff Light 1", "TurnOn Light 1", "StartCharging Light 2", "StopCharging Light 2",
+        "SetBrightness Light 0 HIGH", "SetBrightness Light 0 LOW", "SetColor Light 0 WHITE", "SetColor Light 0 YELLOW",
+        "TurnOff Camera 4", "TurnOn Camera 4", "StartRecording Camera 4", "StopRecording Camera 4",
+        "SetAngle Camera 4 30", "SetAngle Camera 4 45", "SetTemperature Heater 6 25", "SetTemperature Heater 6 20",
+        "TurnOff Heater 7", "TurnOn Heater 7", "SetTemperature Heater 7 99", "StartCharging Heater 8"
+    };
+    private static final Map<String, Integer> OPCODES = Map.of("TurnOn", 2, "TurnOff", 3, "StartCharging", 4,
+            "StopCharging", 5, "SetTemperature", 6, "SetBrightness", 7, "SetColor", 8, "SetAngle", 9,
+            "StartRecording", 10, "StopRecording", 11);
+    private static final Map<String, Integer> TYPES = Map.of("Light", 1, "Camera", 2, "Heater", 3);
+    private static final Map<String, Integer> ORDINALS = Map.of("HIGH", 0, "MEDIUM", 1, "LOW", 2, "WHITE", 0,
+            "YELLOW", 1);
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private ByteArrayInputStream in;
+    private Object devices;
+    private Object out;
+    private Object cmd;
+    private Object reader;
+    private Object session;
+
+    @Setup
+    public void setUp() throws Throwable {
+        devices = Engine.newInventory("list");
+        if (protocol.equals("text")) {
+            in = new ByteArrayInputStream(Engine.encode(String.join("\n", COMMANDS) + "\n"));
+            out = Engine.newSink();
+            cmd = Engine.newCommandLine();
+            reader = Engine.newCommandReader(in, out);
+        } else {
+            in = new ByteArrayInputStream(frames());
+            session = Engine.newBinaryProtocol(devices, in, OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Encodes the commands as binary frames: length, opcode, type, id and argument.
+     */
+    private static byte[] frames() {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        ByteBuffer frame = ByteBuffer.allocate(12);
+        for (String command : COMMANDS) {
+            String[] tokens = command.split(" ");
+            int argument = 0;
+            if (tokens.length > 3) {
+                argument = ORDINALS.containsKey(tokens[3]) ? ORDINALS.get(tokens[3]) : Integer.parseInt(tokens[3]);
+            }
+            frame.clear();
+            frame.putShort((short) 10).put(OPCODES.get(tokens[0]).byteValue()).put(TYPES.get(tokens[1]).byteValue())
+                    .putInt(Integer.parseInt(tokens[2])).putInt(argument);
+            frames.write(frame.array(), 0, frame.position());
+        }
+        return frames.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(20)
+    public void commands() throws Throwable {
+        in.reset();
+        if (session != null) {
+            Engine.runBinaryProtocol(session);
+            return;
+        }
+        while (Engine.readLine(reader, cmd)) {
+            Engine.execute(devices, cmd, out);
+        }
+    }
+}
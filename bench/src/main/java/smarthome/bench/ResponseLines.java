@@ -0,0 +1,56 @@
+package smarthome.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reader of the response lines of a connection for the load tools, which only looks at the first byte of each line.
+ * A read timing out leaves the reader where it was.
+ */
+final class ResponseLines {
+    private static final int DEFAULT_BUFFER = 1 << 16;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private int first = -1;
+
+    ResponseLines(InputStream in) {
+        this(in, DEFAULT_BUFFER);
+    }
+
+    /**
+     * @param in         The input stream of the connection.
+     * @param bufferSize Bytes read at once, small for tools keeping many connections open.
+     */
+    ResponseLines(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads a line, returning its first byte.
+     */
+    int next() throws IOException {
+        while (true) {
+            while (position < limit) {
+                byte b = buffer[position++];
+                if (first < 0) {
+                    first = b;
+                }
+                if (b == '\n') {
+                    int line = first;
+                    first = -1;
+                    return line;
+                }
+            }
+            limit = in.read(buffer);
+            position = 0;
+            if (limit < 0) {
+                limit = 0;
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+}
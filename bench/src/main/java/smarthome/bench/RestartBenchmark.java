@@ -0,0 +1,84 @@
+package smarthome.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to restore a home of a million lights, cameras and heaters at startup, either from the snapshot written when
+ * the journal closed or by replaying a journal holding every device as it was added, after an empty snapshot.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RestartBenchmark {
+    private static final String[] DEVICES = {"Light", "Camera", "Heater"};
+
+    @Param({"1000000"})
+    public int devices;
+
+    @Param({"list", "registry"})
+    public String store;
+
+    @Param({"snapshot", "journal"})
+    public String saved;
+
+    private Path directory;
+    private Path crashed;
+
+    @Setup
+    public void setUp() throws Throwable {
+        directory = Files.createTempDirectory("smarthome-restart");
+        crashed = Files.createTempDirectory("smarthome-restart");
+        Object inventory = Engine.newEmptyInventory(store);
+        Object out = Engine.newSink();
+        Object cmd = Engine.newCommandLine();
+        Object journal = Engine.newJournal(directory, inventory, Long.MAX_VALUE, Long.MAX_VALUE);
+        Engine.startJournal(journal);
+        for (int i = 0; i < devices; i++) {
+            Engine.execute(inventory, cmd, Engine.encode("AddDevice " + DEVICES[i % DEVICES.length]), out);
+        }
+        // The files as a crash would leave them, then closing writes the full snapshot
+        Engine.commitJournal(journal);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.copy(file, crashed.resolve(file.getFileName()));
+            }
+        }
+        ((AutoCloseable) journal).close();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        JournalBenchmark.delete(directory);
+        JournalBenchmark.delete(crashed);
+    }
+
+    @Benchmark
+    public Object restore() throws Throwable {
+        Object inventory = Engine.newEmptyInventory(store);
+        Object journal = Engine.newJournal(saved.equals("snapshot") ? directory : crashed, inventory, Long.MAX_VALUE,
+                Long.MAX_VALUE);
+        if (!Engine.restoreJournal(journal)) {
+            throw new IllegalStateException("Nothing restored");
+        }
+        return inventory;
+    }
+}
@@ -0,0 +1,156 @@
+package smarthome.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that a home persisted with {@code -Dsmarthome.dataDir} answers after a restart exactly as it would have
+ * without one. Every round takes the random commands of {@link ConcurrentStressTest}, which add and remove devices,
+ * and runs them once in a single process, then in two processes sharing a data directory: the first runs half of
+ * the commands and the second the rest, ending with {@code DisplayAllStatus}. The second process must answer byte
+ * for byte as the single one did for the same commands, device ids handed out by {@code AddDevice} included: the
+ * first half ends with devices removed in descending order of ids and the rest starts with devices added. The
+ * first process either ends with {@code end}, writing a final snapshot, or is killed once it has answered and the
+ * journal has been committed, so the second one replays the journal tail. Snapshots are taken every
+ * {@code -Dsmarthome.restart.snapshotEvery} journal records (default {@code 500}), so both cases also restart from
+ * snapshots taken along the way.
+ *
+ * <p>{@code -Dsmarthome.restart.rounds} sets the number of rounds (default {@code 5}) and
+ * {@code -Dsmarthome.restart.commands} the commands of each round (default {@code 20000}). The first difference is
+ * printed and fails the run.
+ *
+ * <p>Run with {@code java -cp bench/target/benchmarks.jar smarthome.bench.RestartCheck}.
+ */
+public final class RestartCheck {
+    private static final int ROUNDS = Integer.getInteger("smarthome.restart.rounds", 5);
+    private static final int COMMANDS = Integer.getInteger("smarthome.restart.commands", 20_000);
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("smarthome.restart.snapshotEvery", 500);
+    // Ids freed in descending order just before the restart, which new devices must get back in reverse order
+    private static final String[] REMOVALS = {"RemoveDevice Heater 8", "RemoveDevice Camera 5", "RemoveDevice Light 2"};
+    private static final String[] ADDITIONS = {"AddDevice Light", "AddDevice Camera", "AddDevice Heater"};
+    // Well above the default group commit interval of the journal
+    private static final long COMMIT_WAIT_MILLIS = 200;
+
+    private RestartCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[][] commands = ConcurrentStressTest.commands(new SplittableRandom(round), COMMANDS);
+            int half = COMMANDS / 2 - REMOVALS.length;
+            for (int i = 0; i < REMOVALS.length; i++) {
+                commands[half + i] = Engine.encode(REMOVALS[i]);
+                commands[COMMANDS / 2 + i] = Engine.encode(ADDITIONS[i]);
+            }
+            byte[] first = script(Arrays.copyOfRange(commands, 0, COMMANDS / 2), false);
+            byte[] rest = script(Arrays.copyOfRange(commands, COMMANDS / 2, COMMANDS), true);
+            byte[] all = script(commands, true);
+            // The single process answers the first half as it answers it alone, the rest follows
+            String firstAnswers = run(null, first, true);
+            String expected = run(null, all, true).substring(firstAnswers.length());
+
+            for (boolean killed : new boolean[] {false, true}) {
+                Path directory = Files.createTempDirectory("smarthome-restart");
+                try {
+                    String answers = run(directory, first, !killed);
+                    if (!answers.equals(firstAnswers)) {
+                        fail(round, killed, "before the restart", firstAnswers, answers);
+                    }
+                    String actual = run(directory, rest, true);
+                    if (!actual.equals(expected)) {
+                        fail(round, killed, "after the restart", expected, actual);
+                    }
+                } finally {
+                    JournalBenchmark.delete(directory);
+                }
+            }
+            System.out.println("Round " + round + ": " + COMMANDS + " commands, " + expected.lines().count()
+                    + " response lines after the restart, same after closing and after killing the first process");
+        }
+    }
+
+    private static byte[] script(byte[][] commands, boolean last) {
+        ByteArrayOutputStream script = new ByteArrayOutputStream();
+        for (byte[] line : commands) {
+            script.writeBytes(line);
+            script.write('\n');
+        }
+        if (last) {
+            script.writeBytes("DisplayAllStatus\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        return script.toByteArray();
+    }
+
+    /**
+     * Runs commands in a new process.
+     *
+     * @param directory The data directory, {@code null} to run without persistence.
+     * @param script    The commands, without {@code end}.
+     * @param end       {@code true} to end the session with {@code end}, {@code false} to kill the process once it
+     *                  has answered the commands and committed the journal.
+     * @return The responses.
+     */
+    private static String run(Path directory, byte[] script, boolean end) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path")));
+        if (directory != null) {
+            command.add("-Dsmarthome.dataDir=" + directory);
+            command.add("-Dsmarthome.snapshotEvery=" + SNAPSHOT_EVERY);
+        }
+        command.add("Main");
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
+        Thread reader = Thread.ofPlatform().start(() -> {
+            try (InputStream out = process.getInputStream()) {
+                out.transferTo(responses);
+            } catch (IOException e) {
+                // The process was killed
+            }
+        });
+        try (OutputStream in = process.getOutputStream()) {
+            in.write(script);
+            if (end) {
+                in.write("end\n".getBytes(StandardCharsets.US_ASCII));
+            } else {
+                // The session waits for more commands, after answering and journaling these ones
+                in.flush();
+                Thread.sleep(COMMIT_WAIT_MILLIS);
+                awaitQuiet(responses);
+                process.destroyForcibly();
+            }
+        }
+        int exit = process.waitFor();
+        reader.join();
+        if (end && exit != 0) {
+            throw new IllegalStateException("Main exited with " + exit);
+        }
+        return responses.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Waits until no response has arrived for the commit wait.
+     */
+    private static void awaitQuiet(ByteArrayOutputStream responses) throws InterruptedException {
+        int size = -1;
+        while (size != responses.size()) {
+            size = responses.size();
+            Thread.sleep(COMMIT_WAIT_MILLIS);
+        }
+    }
+
+    private static void fail(int round, boolean killed, String when, String expected, String actual) {
+        System.out.println("Round " + round + (killed ? " killed" : " closed") + ", " + when + ": "
+                + ConcurrentStressTest.firstDifference(expected, actual));
+        System.exit(1);
+    }
+}
@@ -0,0 +1,57 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a command triggering a rule, alone or among many rules watching the same attribute of other devices.
+ * Compare with {@link CommandBenchmark#toggle()}, which runs the same commands without any rule.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RuleBenchmark {
+    @Param({"0", "100000"})
+    public int otherRules;
+
+    private Object devices;
+    private Object out;
+    private Object cmd;
+    private byte[] turnOff;
+    private byte[] turnOn;
+
+    @Setup
+    public void setUp() throws Throwable {
+        devices = Engine.newInventory("list");
+        out = Engine.newSink();
+        cmd = Engine.newCommandLine();
+        Engine.execute(devices, cmd, Engine.encode("AddRule Light 3 Status = ON SetColor Light $ WHITE"), out);
+        for (int i = 0; i < otherRules; i++) {
+            String rule = "AddRule Light " + (i + 10) + " Status = ON SetColor Light $ WHITE";
+            Engine.execute(devices, cmd, Engine.encode(rule), out);
+        }
+        turnOff = Engine.encode("TurnOff Light 3");
+        turnOn = Engine.encode("TurnOn Light 3");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public boolean toggle() throws Throwable {
+        return Engine.execute(devices, cmd, turnOff, out) & Engine.execute(devices, cmd, turnOn, out);
+    }
+}
@@ -0,0 +1,166 @@
+package smarthome.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that rules added and removed while other clients run single-device commands on a command server fire for
+ * the right device and answer the right client. One connection adds a rule setting the brightness of any light
+ * turned on and removes it again, over and over, while {@code -Dsmarthome.stress.clients} connections (default
+ * {@code 8}) toggle lights of their own {@code -Dsmarthome.stress.commands} times each (default {@code 20000}). The
+ * single-device commands take the striped locks while no rule exists and the exclusive lock otherwise, so the
+ * toggles keep crossing the moments a rule appears.
+ *
+ * <p>After every toggle a client sends a malformed command and reads up to its answer: every line before it must be
+ * the answer to the toggle, or a rule triggered by that light and its action on that light. A line about another
+ * light, a missing answer or a connection timing out fails the run.
+ *
+ * <p>Run with {@code java -cp bench/target/benchmarks.jar smarthome.bench.RuleStressTest}.
+ */
+public final class RuleStressTest {
+    private static final int CLIENTS = Integer.getInteger("smarthome.stress.clients", 8);
+    private static final int COMMANDS = Integer.getInteger("smarthome.stress.commands", 20_000);
+    private static final int LIGHTS_PER_CLIENT = 8;
+    private static final int TIMEOUT_MILLIS = 10_000;
+    private static final String ADD_RULE = "AddRule Light * Status = ON SetBrightness Light $ HIGH\n";
+    private static final String MARKER = "Ping\n";
+    private static final String MARKER_ANSWER = "Invalid command";
+
+    private RuleStressTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        AtomicReference<String> failure = new AtomicReference<>();
+        try (ServerProcess server = new ServerProcess()) {
+            int[][] lights = addLights(server);
+            AtomicBoolean running = new AtomicBoolean(true);
+            int[] rules = new int[1];
+            Thread ruler = new Thread(() -> {
+                try {
+                    rules[0] = toggleRules(server, running);
+                } catch (IOException | RuntimeException e) {
+                    failure.compareAndSet(null, "Rule client: " + e);
+                }
+            });
+            List<Thread> clients = new ArrayList<>();
+            for (int c = 0; c < CLIENTS; c++) {
+                int[] own = lights[c];
+                clients.add(new Thread(() -> {
+                    try {
+                        toggleLights(server, own);
+                    } catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, e.getMessage());
+                    }
+                }));
+            }
+            ruler.start();
+            clients.forEach(Thread::start);
+            for (Thread client : clients) {
+                client.join();
+            }
+            running.set(false);
+            ruler.join();
+            if (failure.get() != null) {
+                System.out.println("Failed: " + failure.get());
+                System.exit(1);
+            }
+            System.out.println(CLIENTS + " clients ran " + COMMANDS + " toggles each while " + rules[0]
+                    + " rules were added and removed, all answers matched their commands");
+        }
+    }
+
+    /**
+     * Adds the lights of every client.
+     *
+     * @return The ids of the lights of each client.
+     */
+    private static int[][] addLights(ServerProcess server) throws IOException {
+        int[][] lights = new int[CLIENTS][LIGHTS_PER_CLIENT];
+        try (Socket socket = server.connect()) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = reader(socket);
+            for (int c = 0; c < CLIENTS; c++) {
+                for (int i = 0; i < LIGHTS_PER_CLIENT; i++) {
+                    out.write("AddDevice Light\n".getBytes(StandardCharsets.US_ASCII));
+                    String answer = in.readLine();
+                    if (answer == null || !answer.startsWith("Light ") || !answer.endsWith(" was added")) {
+                        throw new IOException("Unexpected answer to AddDevice: " + answer);
+                    }
+                    lights[c][i] = Integer.parseInt(answer.substring("Light ".length(), answer.indexOf(" was")));
+                }
+            }
+        }
+        return lights;
+    }
+
+    /**
+     * @return The number of rules added.
+     */
+    private static int toggleRules(ServerProcess server, AtomicBoolean running) throws IOException {
+        int added = 0;
+        try (Socket socket = server.connect()) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = reader(socket);
+            while (running.get()) {
+                out.write(ADD_RULE.getBytes(StandardCharsets.US_ASCII));
+                String answer = in.readLine();
+                if (answer == null || !answer.startsWith("Rule ") || !answer.endsWith(" was added")) {
+                    throw new IOException("Unexpected answer to AddRule: " + answer);
+                }
+                String id = answer.substring("Rule ".length(), answer.indexOf(" was"));
+                added++;
+                out.write(("RemoveRule " + id + "\n").getBytes(StandardCharsets.US_ASCII));
+                answer = in.readLine();
+                if (!("Rule " + id + " was removed").equals(answer)) {
+                    throw new IOException("Unexpected answer to RemoveRule " + id + ": " + answer);
+                }
+            }
+        }
+        return added;
+    }
+
+    private static void toggleLights(ServerProcess server, int[] lights) throws IOException {
+        boolean[] on = new boolean[lights.length];
+        // Default lights are on, so the first toggle of each turns it off
+        Arrays.fill(on, true);
+        try (Socket socket = server.connect()) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = reader(socket);
+            for (int i = 0; i < COMMANDS; i++) {
+                int light = i % lights.length;
+                String name = "Light " + lights[light];
+                on[light] = !on[light];
+                out.write(((on[light] ? "TurnOn " : "TurnOff ") + name + "\n" + MARKER)
+                        .getBytes(StandardCharsets.US_ASCII));
+                String expected = name + (on[light] ? " is on" : " is off");
+                String answer = in.readLine();
+                if (!expected.equals(answer)) {
+                    throw new IOException("Expected \"" + expected + "\" but got \"" + answer + "\"");
+                }
+                while (!MARKER_ANSWER.equals(answer = in.readLine())) {
+                    boolean triggered = answer != null && answer.startsWith("Rule ")
+                            && answer.endsWith(" was triggered by " + name);
+                    if (!on[light] || !triggered && !(name + " brightness level is set to HIGH").equals(answer)) {
+                        throw new IOException("Unexpected line after \"" + expected + "\": \"" + answer + "\"");
+                    }
+                }
+            }
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,86 @@
+package smarthome.bench;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of scheduling and firing timers on simulated time, with a given number of other timers pending far in the
+ * future. Each operation schedules a timer a few milliseconds ahead, advances the clock by one millisecond and runs
+ * the due timers, so in the steady state every operation also fires one timer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SchedulerBenchmark {
+    @Param({"0", "1000000"})
+    public int pending;
+
+    private final SimulatedClock clock = new SimulatedClock();
+    private Object scheduler;
+    private Object cmd;
+    private byte[] schedule;
+
+    @Setup
+    public void setUp() throws Throwable {
+        scheduler = Engine.newScheduler(clock);
+        cmd = Engine.newCommandLine();
+        // Spread over the levels of the wheel, from one to 31 days ahead
+        for (int i = 0; i < pending; i++) {
+            Engine.schedule(scheduler, cmd, Engine.encode("Schedule " + (1440 + i % 43200) + "m TurnOn Light 1"));
+        }
+        schedule = Engine.encode("Schedule 5ms TurnOff Light 1");
+    }
+
+    @Benchmark
+    public int scheduleAndFire() throws Throwable {
+        int id = Engine.schedule(scheduler, cmd, schedule);
+        clock.millis++;
+        Engine.runDue(scheduler);
+        return id;
+    }
+
+    /**
+     * A clock that only moves when told to.
+     */
+    static final class SimulatedClock extends Clock {
+        long millis = 1_700_000_000_000L;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+}
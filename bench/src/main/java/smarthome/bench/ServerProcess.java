@@ -0,0 +1,62 @@
+package smarthome.bench;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A command server process of the load tools, listening on a free local port and stopped when closed.
+ */
+final class ServerProcess implements AutoCloseable {
+    final int port;
+    private final Process process;
+
+    /**
+     * Starts the server on the class path of this process.
+     *
+     * @param properties System properties of the server, such as {@code -Dsmarthome.ingestQueue=1024}.
+     */
+    ServerProcess(String... properties) throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "-Dsmarthome.port=" + port));
+        command.addAll(List.of(properties));
+        command.add("Main");
+        process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * Connects to the server, retrying for ten seconds while it starts.
+     */
+    Socket connect() throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        process.waitFor();
+    }
+}
@@ -0,0 +1,53 @@
+package smarthome.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of rendering the status line of one device, as a {@code String} and into a response buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusBenchmark {
+    @Param({"list", "registry"})
+    public String store;
+
+    // A light, a camera and a heater of the default home
+    @Param({"0", "4", "6"})
+    public int id;
+
+    private Object device;
+    private Object out;
+
+    @Setup
+    public void setUp() throws Throwable {
+        device = Engine.device(Engine.newInventory(store), id);
+        out = Engine.newSink();
+    }
+
+    @Benchmark
+    public String displayStatus() throws Throwable {
+        return Engine.displayStatus(device);
+    }
+
+    @Benchmark
+    public Object writeStatus() throws Throwable {
+        Engine.writeStatusLine(device, out);
+        return out;
+    }
+}
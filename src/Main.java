@@ -1,5 +1,71 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
 
 /**
  * Main class for managing a smart home system.
@@ -16,6 +82,9 @@ public class Main {
     public static final int MAX_HEATER = 9;
     public static final int TEMPERATURE = 20;
 
+    private static final BrightnessLevel[] BRIGHTNESS_LEVELS = BrightnessLevel.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+
     /**
      * Main method to initialize the smart devices and start the event loop for command handling.
      *
@@ -23,364 +92,9235 @@ public class Main {
      */
     public static void main(String[] args) {
 
-        // Initialize devices
-        ArrayList<SmartDevice> devices = new ArrayList<>();
-        for (int i = MIN_LIGHT; i <= MAX_LIGHT; i++) { // Lights
-            devices.add(new Light(Status.ON, false, BrightnessLevel.LOW, LightColor.YELLOW));
-            devices.get(i).setDeviceId(i);
+        // Replay a recorded command log instead of running the home, or compare the files written by two replays
+        String replayLog = System.getProperty("smarthome.replay");
+        String diff = System.getProperty("smarthome.diff");
+        // Or show the devices of a home running in another process with the mapped store
+        String showState = System.getProperty("smarthome.showState");
+        try {
+            if (showState != null) {
+                showState(Path.of(showState));
+                return;
+            }
+            if (diff != null) {
+                String[] files = diff.split(",", 2);
+                CommandReplay.diff(Path.of(files[0]), Path.of(files.length > 1 ? files[1] : ""), System.out);
+                return;
+            }
+            if (replayLog != null) {
+                CommandReplay.replay(Path.of(replayLog), Long.getLong("smarthome.replayUntil", Long.MAX_VALUE),
+                        optionalPath("smarthome.replayOutput"), optionalPath("smarthome.replayState"),
+                        optionalPath("smarthome.checkpointDir"),
+                        Long.getLong("smarthome.checkpointEvery", CommandReplay.DEFAULT_CHECKPOINT_EVERY),
+                        System.out);
+                return;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Or run as a node owning a shard of homes, or as the router in front of the nodes
+        String cluster = System.getProperty("smarthome.cluster");
+        if (cluster != null) {
+            runCluster(cluster);
+            return;
+        }
+
+        // Initialize devices, optionally in the column-oriented registry or in a file shared with other processes
+        String storeName = System.getProperty("smarthome.store", "list");
+        List<SmartDevice> store;
+        try {
+            store = newStore(storeName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        DeviceInventory devices = new DeviceInventory(store,
+                Integer.getInteger("smarthome.changeLogSize", ChangeFeed.DEFAULT_CAPACITY));
+
+        // Every change is recorded in the history, kept in files next to the journal if persistence is enabled
+        HistoryStore history = devices.history();
+        history.configure(Long.getLong("smarthome.historyRetentionMillis", HistoryStore.DEFAULT_RETENTION_MILLIS),
+                Long.getLong("smarthome.historyCompactAfterMillis", HistoryStore.DEFAULT_COMPACT_AFTER_MILLIS),
+                Long.getLong("smarthome.historyMaxBytes", HistoryStore.DEFAULT_MAX_BYTES));
+
+        // Restore the saved state if persistence is enabled, default devices are created otherwise
+        String dataDir = System.getProperty("smarthome.dataDir");
+        DeviceJournal journal = null;
+        try {
+            if (dataDir != null) {
+                history.open(Path.of(dataDir, "history"));
+                history.beginRestore();
+                journal = new DeviceJournal(Path.of(dataDir), devices,
+                        Long.getLong("smarthome.journalCommitMillis", DeviceJournal.DEFAULT_COMMIT_MILLIS),
+                        Long.getLong("smarthome.snapshotEvery", DeviceJournal.DEFAULT_SNAPSHOT_EVERY));
+            }
+            if (journal == null || !journal.restore()) {
+                addDefaultDevices(devices);
+            }
+            if (journal != null) {
+                history.endRestore(devices);
+                journal.start();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Periodically dump the command metrics if a file is given, the Stats command shows them on demand
+        String metricsFile = System.getProperty("smarthome.metricsFile");
+        if (metricsFile != null) {
+            devices.metrics().dumpEvery(Path.of(metricsFile),
+                    Long.getLong("smarthome.metricsDumpMillis", CommandMetrics.DEFAULT_DUMP_MILLIS));
+        }
+
+        devices.energy().setTickSeconds(Integer.getInteger("smarthome.tickSeconds",
+                EnergySimulator.DEFAULT_TICK_SECONDS));
+
+        int flushBytes = Integer.getInteger("smarthome.flushBytes", ResponseSink.DEFAULT_FLUSH_BYTES);
+        long flushMillis = Long.getLong("smarthome.flushMillis", ResponseSink.DEFAULT_FLUSH_MILLIS);
+        Integer port = Integer.getInteger("smarthome.port");
+        if (port != null) {
+            // Serve network clients instead of standard input
+            try (CommandServer server = new CommandServer(devices, port, flushBytes, flushMillis,
+                    Integer.getInteger("smarthome.ingestQueue", 0), Integer.getInteger("smarthome.clientRate", 0))) {
+                server.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                history.close();
+                closeStore(store);
+            }
+            return;
+        }
+
+        ResponseSink out = new ResponseSink(System.out, flushBytes, flushMillis);
+        int threads = Integer.getInteger("smarthome.threads", 1);
+        if (System.getProperty("smarthome.protocol", "text").equals("binary")) {
+            // Length-prefixed binary frames on standard input and output instead of text lines
+            binaryEventLoop(devices, System.in, System.out, flushBytes);
+        } else if (threads > 1) {
+            concurrentEventLoop(devices, out, threads);
+        } else if (Integer.getInteger("smarthome.coalesceWindow", 1) > 1) {
+            // Bursts of device commands notify the listeners once per changed attribute
+            coalescingEventLoop(devices, out, Integer.getInteger("smarthome.coalesceWindow"));
+        } else {
+            eventLoop(devices, out);
+        }
+
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        history.close();
+        if (metricsFile != null) {
+            devices.metrics().dump(Path.of(metricsFile));
+        }
+        closeStore(store);
+    }
+
+    /**
+     * Serves a node of the cluster, or the router in front of the nodes listed in {@code smarthome.nodes} or of
+     * {@code smarthome.localNodes} nodes started in local processes, which are stopped with the router.
+     */
+    private static void runCluster(String role) {
+        int flushBytes = Integer.getInteger("smarthome.flushBytes", ResponseSink.DEFAULT_FLUSH_BYTES);
+        long flushMillis = Long.getLong("smarthome.flushMillis", ResponseSink.DEFAULT_FLUSH_MILLIS);
+        int port = Integer.getInteger("smarthome.port", 0);
+        if (role.equals("node")) {
+            try (ClusterNode node = new ClusterNode(port, flushBytes, flushMillis,
+                    Integer.getInteger("smarthome.changeLogSize", ClusterNode.HOME_CHANGE_CAPACITY))) {
+                node.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
+        List<Process> processes = new ArrayList<>();
+        Thread stopNodes = new Thread(() -> processes.forEach(Process::destroy));
+        Runtime.getRuntime().addShutdownHook(stopNodes);
+        try {
+            List<String> nodes = new ArrayList<>();
+            for (String node : System.getProperty("smarthome.nodes", "").split(",")) {
+                if (!node.isEmpty()) {
+                    nodes.add(node);
+                }
+            }
+            for (int i = Integer.getInteger("smarthome.localNodes", 0); i > 0; i--) {
+                nodes.add(ClusterNode.startLocal(processes));
+            }
+            if (nodes.isEmpty()) {
+                throw new IllegalArgumentException("No nodes given in smarthome.nodes or smarthome.localNodes");
+            }
+            try (ClusterRouter router = new ClusterRouter(nodes, port, flushBytes, flushMillis)) {
+                System.out.println("Router listening on port " + router.getPort());
+                System.out.flush();
+                router.serve();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            processes.forEach(Process::destroy);
+        }
+    }
+
+    private static List<SmartDevice> newStore(String name) throws IOException {
+        switch (name) {
+            case "registry":
+                return new DeviceRegistry();
+            case "mapped":
+                String dataDir = System.getProperty("smarthome.dataDir");
+                Path file = optionalPath("smarthome.stateFile");
+                if (file == null) {
+                    file = dataDir == null ? Path.of("smarthome-state.bin") : Path.of(dataDir, "state.bin");
+                }
+                if (file.getParent() != null) {
+                    Files.createDirectories(file.getParent());
+                }
+                return new MappedDeviceStore(file, MappedDeviceStore.DEFAULT_CAPACITY);
+            default:
+                return new ArrayList<>();
         }
+    }
 
-        for (int i = MIN_CAMERA; i <= MAX_CAMERA; i++) { // Cameras
-            devices.add(new Camera(Status.ON, false, false, ANGLE));
-            devices.get(i).setDeviceId(i);
+    private static void closeStore(List<SmartDevice> store) {
+        if (store instanceof MappedDeviceStore) {
+            try {
+                ((MappedDeviceStore) store).close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
+    }
 
-        for (int i = MIN_HEATER; i <= MAX_HEATER; i++) { // Heaters
-            devices.add(new Heater(Status.ON, TEMPERATURE));
-            devices.get(i).setDeviceId(i);
+    /**
+     * Prints the status of the devices in the file of a mapped store, as {@code DisplayAllStatus} shows it.
+     */
+    private static void showState(Path file) throws IOException {
+        try (MappedDeviceStore.Reader reader = new MappedDeviceStore.Reader(file)) {
+            ResponseSink out = new ResponseSink(System.out, ResponseSink.DEFAULT_FLUSH_BYTES, Long.MAX_VALUE);
+            for (SmartDevice device : reader.snapshot()) {
+                device.writeStatus(out);
+                out.newLine();
+            }
+            out.flush();
         }
+    }
 
-        eventLoop(devices);
+    private static Path optionalPath(String property) {
+        String value = System.getProperty(property);
+        return value == null ? null : Path.of(value);
+    }
+
+    /**
+     * Adds the devices of a new home: four lights, two cameras and four heaters, followed by the default devices of
+     * the other device types.
+     *
+     * @param devices The empty inventory.
+     */
+    static void addDefaultDevices(DeviceInventory devices) {
+        for (DeviceType type : DeviceTypes.all()) {
+            for (int i = 0; i < type.defaultCount(); i++) {
+                devices.add(type.newDevice());
+            }
+        }
     }
 
     /**
      * Handles user input commands for controlling the smart devices.
      * Valid commands include turning devices on/off, changing their attributes, and displaying their statuses.
+     * Commands are read from standard input through a reusable byte buffer and tokenized in place.
+     * Responses are batched in the sink, which is flushed whenever the loop waits for more input and at the end.
      *
-     * @param devices List of smart devices to be controlled.
+     * @param devices Inventory of smart devices to be controlled.
+     * @param out     Sink receiving the responses.
      */
-    static void eventLoop(ArrayList<SmartDevice> devices) {
-        Scanner scanner = new Scanner(System.in);
+    static void eventLoop(DeviceInventory devices, ResponseSink out) {
+        Scheduler scheduler = devices.scheduler();
+        CommandReader reader = new CommandReader(System.in, scheduler.locked(out));
+        CommandLine cmd = new CommandLine();
+        CommandBlock block = new CommandBlock(line -> execute(devices, line, out));
+        scheduler.attach(line -> execute(devices, line, out), out, out);
+        scheduler.start();
 
-        while (true) {
-            // Separated arguments and number of them to check validity
-            String[] cmd = scanner.nextLine().split(" ");
-            int length = cmd.length;
-            String dName = "";
-            int dId = MIN_LIGHT;
-            if (length >= MAX_LIGHT && checkInt(cmd[2])) {
-                dName = cmd[1];
-                dId = Integer.parseInt(cmd[2]);
-            }
-            // Router for different requests, handles unknown command by default case
-            switch (cmd[MIN_LIGHT]) {
-                // In each case there is validation for arguments count
-                case "DisplayAllStatus":
-                    if (length != 1) {
-                        System.out.println("Invalid command");
+        try {
+            while (reader.readLine(cmd)) {
+                scheduler.lock().lock();
+                try {
+                    if (!block.execute(cmd)) {
                         break;
                     }
-
-                    for (SmartDevice device : devices) {
-                        System.out.println(device.displayStatus());
+                    if (devices.isSafePointRequested()) {
+                        devices.safePoint();
                     }
+                } finally {
+                    scheduler.lock().unlock();
+                }
+            }
+            scheduler.close();
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-                    break;
-                case "TurnOn":
-                    if (length != MAX_LIGHT || !checkInt(cmd[2])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
+    /**
+     * Handles user input commands like {@link #eventLoop}, coalescing the change notifications of bursts of device
+     * commands as described in {@link CommandCoalescer}.
+     *
+     * @param devices Inventory of smart devices to be controlled.
+     * @param out     Sink receiving the responses.
+     * @param window  Maximum number of commands whose notifications are coalesced.
+     */
+    static void coalescingEventLoop(DeviceInventory devices, ResponseSink out, int window) {
+        Scheduler scheduler = devices.scheduler();
+        scheduler.attach(line -> execute(devices, line, out), out, out);
+        scheduler.start();
+        try {
+            new CommandCoalescer(devices, window).run(System.in, out);
+            scheduler.close();
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (devices.get(dId).isOn()) {
-                        System.out.printf("%s %d is already on%n", dName, dId);
-                        break;
-                    }
-                    devices.get(dId).turnOn();
-                    System.out.printf("%s %d is on%n", dName, dId);
-                    break;
+    /**
+     * Handles commands in the {@link BinaryProtocol} like {@link #eventLoop} does in the text protocol.
+     * Timers run as usual, but what their commands answer is discarded, as it has no place in a binary stream.
+     *
+     * @param devices    Inventory of smart devices to be controlled.
+     * @param in         The stream of request frames.
+     * @param out        The stream receiving the responses.
+     * @param flushBytes Size of the response buffer.
+     */
+    static void binaryEventLoop(DeviceInventory devices, InputStream in, OutputStream out, int flushBytes) {
+        Scheduler scheduler = devices.scheduler();
+        ResponseSink discarded = new ResponseSink(OutputStream.nullOutputStream(), flushBytes, Long.MAX_VALUE);
+        scheduler.attach(line -> execute(devices, line, discarded), discarded, discarded);
+        scheduler.start();
+        try {
+            binaryProtocol(devices, in, out, flushBytes).run();
+            scheduler.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-                case "TurnOff":
-                    if (length != MAX_LIGHT || !checkInt(cmd[2])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!devices.get(dId).isOn()) {
-                        System.out.printf("%s %d is already off%n", dName, dId);
-                        break;
-                    }
-                    devices.get(dId).turnOff();
-                    System.out.printf("%s %d is off%n", dName, dId);
-                    break;
+    /**
+     * Creates a binary protocol session executing every command under the scheduler lock, as the event loop does.
+     *
+     * @param devices     Inventory of smart devices to be controlled.
+     * @param in          The stream of request frames.
+     * @param out         The stream receiving the responses.
+     * @param bufferBytes Size of the response buffer.
+     * @return The session, not started yet.
+     */
+    static BinaryProtocol binaryProtocol(DeviceInventory devices, InputStream in, OutputStream out, int bufferBytes) {
+        ReentrantLock lock = devices.scheduler().lock();
+        return new BinaryProtocol(in, out, bufferBytes, (op, type, id, argument, text) -> {
+            lock.lock();
+            try {
+                byte status = execute(devices, op, type, id, argument, text);
+                if (devices.isSafePointRequested()) {
+                    devices.safePoint();
+                }
+                return status;
+            } finally {
+                lock.unlock();
+            }
+        }, (line, text) -> {
+            lock.lock();
+            try {
+                boolean more = execute(devices, line, text);
+                if (devices.isSafePointRequested()) {
+                    devices.safePoint();
+                }
+                return more;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
 
-                case "StartCharging":
-                    if (length != MAX_LIGHT || !checkInt(cmd[2])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!(devices.get(dId) instanceof Chargeable)) {
-                        System.out.printf("%s %d is not chargeable%n", getType(dId), dId);
-                        break;
-                    }
-                    Chargeable chDevice = (Chargeable) devices.get(dId);
-                    if (chDevice.isCharging()) {
-                        System.out.printf("%s %d is already charging%n", dName, dId);
+    /**
+     * Handles user input commands like {@link #eventLoop}, executing commands for different devices in parallel.
+     * Responses are written in the same order and with the same text as in the single-threaded loop.
+     *
+     * @param devices Inventory of smart devices to be controlled.
+     * @param out     Sink receiving the responses.
+     * @param threads Number of worker threads.
+     */
+    static void concurrentEventLoop(DeviceInventory devices, ResponseSink out, int threads) {
+        Scheduler scheduler = devices.scheduler();
+        try (ConcurrentCommandExecutor executor = new ConcurrentCommandExecutor(devices, out, threads)) {
+            CommandReader reader = new CommandReader(System.in, scheduler.locked(executor));
+            CommandLine cmd = new CommandLine();
+            CommandBlock block = new CommandBlock(executor::execute);
+            scheduler.attach(executor::execute, out, executor);
+            scheduler.start();
+            while (reader.readLine(cmd)) {
+                scheduler.lock().lock();
+                try {
+                    if (!block.execute(cmd)) {
                         break;
                     }
-                    chDevice.startCharging();
-                    System.out.printf("%s %d is charging%n", dName, dId);
-                    break;
+                } finally {
+                    scheduler.lock().unlock();
+                }
+            }
+            scheduler.close();
+            executor.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-                case "StopCharging":
-                    if (length != MAX_LIGHT || !checkInt(cmd[2])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!(devices.get(dId) instanceof Chargeable)) {
-                        System.out.printf("%s %d is not chargeable%n", getType(dId), dId);
-                        break;
-                    }
-                    chDevice = (Chargeable) devices.get(dId);
-                    if (!chDevice.isCharging()) {
-                        System.out.printf("%s %d is not charging%n", getType(dId), dId);
-                        break;
-                    }
-                    chDevice.stopCharging();
-                    System.out.printf("%s %d stopped charging%n", dName, dId);
-                    break;
+    /**
+     * Executes a single tokenized command against the smart devices, then the actions of the rules it triggered,
+     * and records its latency, which includes the actions, in the metrics.
+     *
+     * @param devices Inventory of smart devices to be controlled.
+     * @param cmd     The tokenized command line.
+     * @param out     Sink receiving the response.
+     * @return {@code false} if the command ends the session, {@code true} otherwise.
+     */
+    static boolean execute(DeviceInventory devices, CommandLine cmd, ResponseSink out) {
+        long start = System.nanoTime();
+        int op = CommandTable.opcode(cmd);
+        boolean more = execute(devices, op, cmd, out);
+        runRuleActions(devices, out);
+        byte type = cmd.length() > 1 ? cmd.deviceType(1) : DeviceInventory.NONE;
+        devices.metrics().record(op, type, System.nanoTime() - start);
+        return more;
+    }
 
-                case "SetTemperature":
-                    if (length != MIN_CAMERA || !checkInt(cmd[2]) || !checkInt(cmd[MAX_LIGHT])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!devices.get(dId).isOn()) {
-                        System.out.printf("You can't change the status of the %s %d while it is off%n", dName, dId);
-                        break;
-                    }
-                    if (!(devices.get(dId) instanceof Heater)) {
-                        System.out.printf("%s %d is not a heater%n", getType(dId), dId);
-                        break;
-                    }
-                    int dTemp = Integer.parseInt(cmd[MAX_LIGHT]);
-                    if (dTemp < Heater.MIN_HEATER_TEMP || dTemp > Heater.MAX_HEATER_TEMP) {
-                        System.out.printf("Heater %d temperature should be in the range [15, 30]%n", dId);
-                        break;
-                    }
-                    ((Heater) devices.get(dId)).setTemperature(dTemp);
-                    System.out.printf("%s %d temperature is set to %d%n", dName, dId, dTemp);
+    /**
+     * Runs the actions of the rules triggered by the last command. The metrics count them apart from the commands
+     * of the clients, whose latency already includes them.
+     *
+     * @param devices Inventory of smart devices to be controlled.
+     * @param out     Sink receiving the responses of the actions.
+     */
+    private static void runRuleActions(DeviceInventory devices, ResponseSink out) {
+        RuleEngine rules = devices.rules();
+        for (CommandLine action = rules.nextAction(out); action != null; action = rules.nextAction(out)) {
+            int op = CommandTable.opcode(action);
+            execute(devices, op, action, out);
+            devices.metrics().ruleAction(op);
+        }
+    }
+
+    /**
+     * Executes a single tokenized command against the smart devices.
+     * Device commands accept either a single id or a selector of several devices of the same type, such as
+     * {@code TurnOn Light 0-999} or {@code SetTemperature Heater * 22}.
+     *
+     * @param devices Inventory of smart devices to be controlled.
+     * @param op      The opcode of the command.
+     * @param cmd     The tokenized command line.
+     * @param out     Sink receiving the response.
+     * @return {@code false} if the command ends the session, {@code true} otherwise.
+     */
+    private static boolean execute(DeviceInventory devices, int op, CommandLine cmd, ResponseSink out) {
+        // Separated arguments and number of them to check validity
+        int length = cmd.length();
+        String dName = "";
+        int dId = MIN_LIGHT;
+        if (length >= MAX_LIGHT && cmd.isInt(2)) {
+            dName = cmd.text(1);
+            dId = cmd.parseIntClamped(2);
+        }
+        if (!isWellFormed(op, cmd)) {
+            devices.metrics().invalidCommand();
+            out.append("Invalid command").newLine();
+            return true;
+        }
+
+        // Router for different requests, device commands are handled by default case
+        switch (op) {
+            case CommandTable.DISPLAY_ALL_STATUS:
+                if (length == 1) {
+                    devices.writeAllStatus(out);
+                } else {
+                    StatusPage.parse(cmd).write(devices, out);
+                }
+                return true;
+
+            case CommandTable.ADD_DEVICE:
+                int addedId = devices.add(parseDevice(cmd));
+                out.append(devices.getType(addedId)).append(' ').append(addedId).append(" was added").newLine();
+                return true;
+
+            case CommandTable.REMOVE_DEVICE:
+                if (devices.checkType(dId, dName)) {
+                    devices.metrics().deviceNotFound();
+                    out.append("The smart device was not found").newLine();
+                    return true;
+                }
+                devices.remove(dId);
+                out.append(dName).append(' ').append(dId).append(" was removed").newLine();
+                return true;
+
+            case CommandTable.DISPLAY_CHANGED_SINCE:
+                devices.changes().writeChangesSince(cmd.parseLongClamped(1), out);
+                return true;
+
+            case CommandTable.STATS:
+                devices.metrics().write(out);
+                return true;
+
+            case CommandTable.ADD_RULE:
+                out.append("Rule ").append(devices.rules().add(cmd)).append(" was added").newLine();
+                return true;
+
+            case CommandTable.REMOVE_RULE:
+                int ruleId = cmd.parseIntClamped(1);
+                if (!devices.rules().remove(ruleId)) {
+                    out.append("The rule was not found").newLine();
+                    return true;
+                }
+                out.append("Rule ").append(ruleId).append(" was removed").newLine();
+                return true;
+
+            case CommandTable.SCHEDULE:
+                out.append("Timer ").append(devices.scheduler().schedule(cmd)).append(" was scheduled").newLine();
+                return true;
+
+            case CommandTable.CANCEL:
+                int timerId = cmd.parseIntClamped(1);
+                if (!devices.scheduler().cancel(timerId)) {
+                    out.append("The timer was not found").newLine();
+                    return true;
+                }
+                out.append("Timer ").append(timerId).append(" was cancelled").newLine();
+                return true;
+
+            case CommandTable.SIMULATE:
+                int ticks = cmd.parseIntClamped(1);
+                devices.energy().simulate(ticks);
+                out.append("Simulated ").append(ticks).append(" ticks").newLine();
+                return true;
+
+            case CommandTable.DISPLAY_ENERGY:
+                if (length == 1) {
+                    devices.energy().writeTotals(out);
+                    return true;
+                }
+                if (devices.checkType(dId, dName)) {
+                    devices.metrics().deviceNotFound();
+                    out.append("The smart device was not found").newLine();
+                    return true;
+                }
+                devices.energy().writeDevice(dId, out);
+                return true;
+
+            case CommandTable.HISTORY:
+                if (!devices.history().write(cmd, out)) {
+                    devices.metrics().invalidCommand();
+                    out.append("Invalid command").newLine();
+                }
+                return true;
+
+            case CommandTable.ADD_ROOM:
+                devices.index().addRoom(cmd.text(1), length == 3 ? cmd.text(2) : null, out);
+                return true;
+
+            case CommandTable.REMOVE_ROOM:
+                devices.index().removeRoom(cmd.text(1), out);
+                return true;
+
+            case CommandTable.MOVE_DEVICE:
+                if (devices.checkType(dId, dName)) {
+                    devices.metrics().deviceNotFound();
+                    out.append("The smart device was not found").newLine();
+                    return true;
+                }
+                devices.index().moveDevice(dId, cmd.text(MAX_LIGHT), out);
+                return true;
+
+            case CommandTable.DISPLAY_ROOMS:
+                devices.index().writeRooms(out);
+                return true;
+
+            case CommandTable.FIND:
+                devices.index().find(cmd, out);
+                return true;
+
+            case CommandTable.END:
+                return false;
+
+            default:
+                break;
+        }
+
+        // Arguments are parsed once, also when they are applied to several devices
+        int value = 0;
+        Enum<?> setting = null;
+        if (op == CommandTable.SET_TEMPERATURE || op == CommandTable.SET_ANGLE) {
+            value = cmd.parseIntClamped(MAX_LIGHT);
+        } else if (op == CommandTable.SET_BRIGHTNESS) {
+            setting = cmd.parseEnum(MAX_LIGHT, BRIGHTNESS_LEVELS);
+        } else if (op == CommandTable.SET_COLOR) {
+            setting = cmd.parseEnum(MAX_LIGHT, LIGHT_COLORS);
+        }
+
+        if (cmd.isInt(2)) {
+            applyToDevice(devices, op, dName, dId, value, setting, out);
+            return true;
+        }
+
+        dName = cmd.text(1);
+        byte type = DeviceInventory.typeOf(dName);
+        int last = cmd.selectionTo(2);
+        int matched = 0;
+        for (int id = devices.nextOfType(type, cmd.selectionFrom(2)); id >= 0 && id <= last;
+                id = devices.nextOfType(type, id + 1)) {
+            applyToDevice(devices, op, dName, id, value, setting, out);
+            matched++;
+        }
+        if (matched == 0) {
+            devices.metrics().deviceNotFound();
+            out.append("The smart device was not found").newLine();
+        }
+        return true;
+    }
+
+    /**
+     * Checks the number and the format of a command's arguments.
+     * Commands failing this check are answered with "Invalid command" and change nothing.
+     *
+     * @param op  The opcode of the command.
+     * @param cmd The tokenized command line.
+     * @return {@code true} if the command is well-formed, {@code false} otherwise.
+     */
+    static boolean isWellFormed(int op, CommandLine cmd) {
+        int length = cmd.length();
+        switch (op) {
+            case CommandTable.DISPLAY_ALL_STATUS:
+                return length == 1 || StatusPage.parse(cmd) != null;
+            case CommandTable.STATS:
+            case CommandTable.END:
+                return length == 1;
+            case CommandTable.ADD_DEVICE:
+                return parseDevice(cmd) != null;
+            case CommandTable.REMOVE_DEVICE:
+                return length == MAX_LIGHT && cmd.isInt(2);
+            case CommandTable.DISPLAY_CHANGED_SINCE:
+            case CommandTable.REMOVE_RULE:
+            case CommandTable.CANCEL:
+                return length == 2 && cmd.isInt(1);
+            case CommandTable.ADD_RULE:
+                return RuleEngine.isWellFormed(cmd);
+            case CommandTable.SCHEDULE:
+                return Scheduler.isWellFormed(cmd);
+            case CommandTable.SIMULATE:
+                return length == 2 && cmd.isInt(1) && cmd.parseIntClamped(1) >= 0;
+            case CommandTable.DISPLAY_ENERGY:
+                return length == 1 || length == MAX_LIGHT && cmd.isInt(2);
+            case CommandTable.HISTORY:
+                return HistoryStore.isWellFormed(cmd);
+            case CommandTable.ADD_ROOM:
+                return (length == 2 || length == 3) && cmd.text(1).indexOf(',') < 0;
+            case CommandTable.REMOVE_ROOM:
+                return length == 2;
+            case CommandTable.MOVE_DEVICE:
+                return length == MIN_CAMERA && cmd.isInt(2);
+            case CommandTable.DISPLAY_ROOMS:
+                return length == 1;
+            case CommandTable.FIND:
+                return DeviceIndex.isWellFormed(cmd);
+            case CommandTable.TURN_ON:
+            case CommandTable.TURN_OFF:
+            case CommandTable.START_CHARGING:
+            case CommandTable.STOP_CHARGING:
+            case CommandTable.START_RECORDING:
+            case CommandTable.STOP_RECORDING:
+                return length == MAX_LIGHT && (cmd.isInt(2) || cmd.isSelector(2));
+            case CommandTable.SET_BRIGHTNESS:
+            case CommandTable.SET_COLOR:
+                return length == MIN_CAMERA && (cmd.isInt(2) || cmd.isSelector(2));
+            case CommandTable.SET_TEMPERATURE:
+            case CommandTable.SET_ANGLE:
+                return length == MIN_CAMERA && (cmd.isInt(2) || cmd.isSelector(2)) && cmd.isInt(MAX_LIGHT);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Applies a well-formed device command to a single device.
+     *
+     * @param devices Inventory of smart devices to be controlled.
+     * @param op      The opcode of the command.
+     * @param dName   The device type named in the command.
+     * @param dId     The device ID.
+     * @param value   The temperature or angle argument, if the command has one.
+     * @param setting The brightness or color argument, or {@code null} if it is missing or invalid.
+     * @param out     Sink receiving the response.
+     */
+    static void applyToDevice(DeviceInventory devices, int op, String dName, int dId, int value, Enum<?> setting,
+                              ResponseSink out) {
+        // Device must exist, StopRecording has only checked the id since the beginning
+        if (op == CommandTable.STOP_RECORDING ? !devices.contains(dId) : devices.checkType(dId, dName)) {
+            devices.metrics().deviceNotFound();
+            out.append("The smart device was not found").newLine();
+            return;
+        }
+        if (!DeviceTypes.isDeviceCommand(op)) {
+            throw new IllegalArgumentException("Not a device command: " + op);
+        }
+        SmartDevice device = devices.get(dId);
+        if (DeviceTypes.requiresOn(op) && !device.isOn()) {
+            out.append("You can't change the status of the ").append(dName).append(' ').append(dId)
+                    .append(" while it is off").newLine();
+            return;
+        }
+        // The handlers are declared by the device types, see DeviceTypes
+        DeviceTypes.command(devices.type(dId), op).apply(devices, device, dName, dId, value, setting, out);
+    }
+
+    /**
+     * Executes a device command of the {@link BinaryProtocol}, answering with a status code instead of a sentence.
+     * The command goes through the same checks and handlers as its text form, and rule actions it triggers run too.
+     *
+     * @param devices  Inventory of smart devices to be controlled.
+     * @param op       The opcode of a device command.
+     * @param type     The type code given in the command.
+     * @param id       The device ID.
+     * @param argument The temperature or angle, or the ordinal of the brightness or color.
+     * @param text     Sink receiving the sentences of the text protocol, which nobody reads.
+     * @return One of the status codes of {@link BinaryProtocol}.
+     */
+    static byte execute(DeviceInventory devices, int op, byte type, int id, int argument, ResponseSink text) {
+        long start = System.nanoTime();
+        if (type <= DeviceInventory.NONE || type >= DeviceTypes.COUNT || DeviceTypes.get(type) == null) {
+            devices.metrics().invalidCommand();
+            devices.metrics().record(op, DeviceInventory.NONE, System.nanoTime() - start);
+            return BinaryProtocol.INVALID;
+        }
+        byte status = applyToDevice(devices, op, type, id, argument, text);
+        runRuleActions(devices, text);
+        devices.metrics().record(op, type, System.nanoTime() - start);
+        return status;
+    }
+
+    /**
+     * Applies a device command of the {@link BinaryProtocol} to a single device of a registered type, in the order of
+     * the checks of {@link #applyToDevice(DeviceInventory, int, String, int, int, Enum, ResponseSink)}.
+     * A command is answered with {@link BinaryProtocol#OK} if it changed the device, so handlers keep answering
+     * with sentences only.
+     */
+    private static byte applyToDevice(DeviceInventory devices, int op, byte type, int id, int argument,
+            ResponseSink text) {
+        Enum<?> setting = null;
+        if (op == CommandTable.SET_BRIGHTNESS || op == CommandTable.SET_COLOR) {
+            Enum<?>[] settings = op == CommandTable.SET_BRIGHTNESS ? BRIGHTNESS_LEVELS : LIGHT_COLORS;
+            if (argument < 0 || argument >= settings.length) {
+                devices.metrics().invalidCommand();
+                return BinaryProtocol.INVALID;
+            }
+            setting = settings[argument];
+        }
+        if (!devices.contains(id) || op != CommandTable.STOP_RECORDING && devices.type(id) != type) {
+            devices.metrics().deviceNotFound();
+            return BinaryProtocol.NOT_FOUND;
+        }
+        SmartDevice device = devices.get(id);
+        if (DeviceTypes.requiresOn(op) && !device.isOn()) {
+            return BinaryProtocol.DEVICE_OFF;
+        }
+        byte actual = devices.type(id);
+        if (!DeviceTypes.supports(actual, op)) {
+            return BinaryProtocol.UNSUPPORTED;
+        }
+        if (op == CommandTable.SET_TEMPERATURE || op == CommandTable.SET_ANGLE) {
+            DeviceType deviceType = DeviceTypes.get(actual);
+            DeviceAttribute attribute = op == CommandTable.SET_TEMPERATURE ? DeviceAttribute.TEMPERATURE
+                    : DeviceAttribute.ANGLE;
+            if (argument < deviceType.min(attribute) || argument > deviceType.max(attribute)) {
+                return BinaryProtocol.OUT_OF_RANGE;
+            }
+        }
+        ChangeFeed changes = devices.changes();
+        long version = changes.versionOf(id);
+        DeviceTypes.command(actual, op).apply(devices, device, DeviceTypes.name(actual), id, argument, setting,
+                text);
+        return changes.versionOf(id) != version ? BinaryProtocol.OK : BinaryProtocol.UNCHANGED;
+    }
+
+    /**
+     * Builds a new device from the arguments of an {@code AddDevice} command.
+     * The type alone creates a device with the default settings, otherwise every constructor argument is given:
+     * {@code Light <status> <charging> <brightness> <color>}, {@code Camera <status> <charging> <recording> <angle>}
+     * or {@code Heater <status> <temperature>}. Other device types parse their own arguments.
+     *
+     * @param cmd The tokenized command line.
+     * @return The new device, or {@code null} if the arguments are invalid.
+     */
+    static SmartDevice parseDevice(CommandLine cmd) {
+        int length = cmd.length();
+        if (length < 2) {
+            return null;
+        }
+        byte code = cmd.deviceType(1);
+        if (code == DeviceInventory.NONE) {
+            return null;
+        }
+        DeviceType type = DeviceTypes.get(code);
+        return length == 2 ? type.newDevice() : type.parse(cmd);
+    }
+
+    /**
+     * Validates if a given string represents an integer.
+     *
+     * @param text The string to be validated.
+     * @return {@code true} if the string is a valid integer, {@code false} otherwise.
+     */
+    static boolean checkInt(String text) {
+        int start = !text.isEmpty() && text.charAt(0) == '-' ? 1 : 0;
+        if (start == text.length()) {
+            return false;
+        }
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
+
+/**
+ * Replays a recorded command log through the same command semantics as {@link Main#eventLoop}, for incident analysis.
+ * The log is memory-mapped and run as fast as possible with the responses discarded, or written to a file to be
+ * compared with another run. The clock is fixed during a replay, so timestamps are the same in every run and
+ * scheduled commands never fire.
+ *
+ * <p>Every given number of commands the device state is written to a checkpoint file together with the position in
+ * the log, so that a later replay up to some command starts from the last checkpoint before it instead of from the
+ * beginning. Checkpoints hold the devices and the ids free for reuse, not the rules, timers, rooms, energy model,
+ * change feed or history, so no more checkpoints are written once the log has used rules, timers, rooms or the
+ * energy model, and answers to {@code DisplayChangedSince} and {@code History} after a checkpoint only cover the
+ * commands replayed since.
+ *
+ * <p>Two response files or two state files, checkpoints included, are compared line by line with {@link #diff}.
+ */
+final class CommandReplay {
+    static final long DEFAULT_CHECKPOINT_EVERY = 1_000_000;
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String CHECKPOINT_SUFFIX = ".bin";
+    private static final int CHECKPOINT_MAGIC = 0x53484350;
+    private static final int CHECKPOINT_HEADER = Integer.BYTES + 2 * Long.BYTES + 2 * Integer.BYTES;
+    private static final int WINDOW_BYTES = 1 << 28;
+    private static final int MAX_DIFFERENCES = 20;
+    private static final Clock CLOCK = Clock.fixed(Instant.EPOCH, ZoneOffset.UTC);
+
+    private final FileChannel log;
+    private final long logSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private byte[] line = new byte[256];
+    private long commands;
+
+    private CommandReplay(FileChannel log) throws IOException {
+        this.log = log;
+        this.logSize = log.size();
+    }
+
+    /**
+     * Replays a command log.
+     *
+     * @param logFile         The command log, one command per line.
+     * @param until           Number of commands to replay, {@code Long.MAX_VALUE} for the whole log.
+     * @param output          File receiving the responses, or {@code null} to discard them.
+     * @param state           File receiving the status of all devices at the end, or {@code null} to skip it.
+     * @param checkpoints     Directory of the checkpoint files, or {@code null} for none.
+     * @param checkpointEvery Number of commands between two checkpoints.
+     * @param report          Stream receiving a summary of the replay.
+     * @throws IOException If a file cannot be read or written.
+     */
+    static void replay(Path logFile, long until, Path output, Path state, Path checkpoints, long checkpointEvery,
+            PrintStream report) throws IOException {
+        long started = System.nanoTime();
+        DeviceInventory devices = new DeviceInventory(new ArrayList<>(), ChangeFeed.DEFAULT_CAPACITY, CLOCK);
+        try (FileChannel log = FileChannel.open(logFile, StandardOpenOption.READ);
+                OutputStream stream = output == null ? OutputStream.nullOutputStream()
+                        : new BufferedOutputStream(Files.newOutputStream(output))) {
+            CommandReplay replay = new CommandReplay(log);
+            if (checkpoints != null) {
+                Files.createDirectories(checkpoints);
+            }
+            Path start = checkpoints == null ? null : latestCheckpoint(checkpoints, until);
+            if (start == null) {
+                Main.addDefaultDevices(devices);
+            } else {
+                replay.loadCheckpoint(start, devices);
+                report.println("Started from " + start.getFileName());
+            }
+
+            ResponseSink out = new ResponseSink(stream, ResponseSink.DEFAULT_FLUSH_BYTES, Long.MAX_VALUE);
+            CommandLine cmd = new CommandLine();
+            CommandBlock block = new CommandBlock(line -> Main.execute(devices, line, out));
+            boolean checkpointing = checkpoints != null;
+            while (replay.commands < until && replay.next(cmd)) {
+                checkpointing &= !changesOtherState(CommandTable.opcode(cmd));
+                replay.commands++;
+                if (!block.execute(cmd)) {
                     break;
+                }
+                if (devices.isSafePointRequested()) {
+                    devices.safePoint();
+                }
+                if (checkpointing && replay.commands % checkpointEvery == 0 && !block.isOpen()) {
+                    replay.writeCheckpoint(checkpoints, devices);
+                }
+            }
+            out.flush();
 
-                case "SetBrightness":
-                    if (length != MIN_CAMERA || !checkInt(cmd[2])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!devices.get(dId).isOn()) {
-                        System.out.printf("You can't change the status of the %s %d while it is off%n", dName, dId);
-                        break;
-                    }
-                    if (!(devices.get(dId) instanceof Light)) {
-                        System.out.printf("%s %d is not a light%n", getType(dId), dId);
-                        break;
-                    }
+            if (state != null) {
+                try (OutputStream stateStream = new BufferedOutputStream(Files.newOutputStream(state))) {
+                    ResponseSink stateOut = new ResponseSink(stateStream, ResponseSink.DEFAULT_FLUSH_BYTES,
+                            Long.MAX_VALUE);
+                    devices.writeAllStatus(stateOut);
+                    stateOut.flush();
+                }
+            }
+            report.println("Replayed " + replay.commands + " commands in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        }
+    }
+
+    /**
+     * @return {@code true} if the command changes state that checkpoints do not hold.
+     */
+    private static boolean changesOtherState(int op) {
+        switch (op) {
+            case CommandTable.ADD_RULE:
+            case CommandTable.SCHEDULE:
+            case CommandTable.SIMULATE:
+            case CommandTable.ADD_ROOM:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reads the next line of the log and tokenizes it into the given command line.
+     * Lines are terminated by {@code \n}, {@code \r} or {@code \r\n}, as in {@link CommandReader}.
+     *
+     * @return {@code false} at the end of the log.
+     */
+    private boolean next(CommandLine cmd) throws IOException {
+        if (position >= logSize) {
+            return false;
+        }
+        long end = position;
+        while (end < logSize) {
+            byte b = byteAt(end, position);
+            if (b == '\n' || b == '\r') {
+                break;
+            }
+            end++;
+        }
+        int length = (int) (end - position);
+        if (length > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, length));
+        }
+        window.get((int) (position - windowStart), line, 0, length);
+        cmd.set(line, 0, length);
+
+        position = end + 1;
+        if (end < logSize && byteAt(end, end) == '\r' && position < logSize && byteAt(position, position) == '\n') {
+            position++;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a byte of the log, mapping a new window from the given position if the byte is not mapped.
+     */
+    private byte byteAt(long index, long from) throws IOException {
+        if (window == null || index < windowStart || index >= windowStart + window.limit()) {
+            if (index - from >= WINDOW_BYTES) {
+                throw new IOException("Command line longer than " + WINDOW_BYTES + " bytes at " + from);
+            }
+            window = log.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW_BYTES, logSize - from));
+            windowStart = from;
+        }
+        return window.get((int) (index - windowStart));
+    }
+
+    private void writeCheckpoint(Path directory, DeviceInventory devices) throws IOException {
+        Path file = directory.resolve(CHECKPOINT_PREFIX + commands + CHECKPOINT_SUFFIX);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] freeIds = devices.freeIds();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = CHECKPOINT_HEADER + (long) devices.size() * DeviceJournal.SNAPSHOT_RECORD
+                    + (long) freeIds.length * Integer.BYTES;
+            MappedByteBuffer checkpoint = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            checkpoint.putInt(CHECKPOINT_MAGIC).putLong(commands).putLong(position).putInt(devices.size())
+                    .putInt(freeIds.length);
+            for (SmartDevice device : devices) {
+                DeviceJournal.writeDevice(device, checkpoint);
+            }
+            for (int id : freeIds) {
+                checkpoint.putInt(id);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadCheckpoint(Path file, DeviceInventory devices) throws IOException {
+        ByteBuffer checkpoint = readCheckpoint(file, devices);
+        if (checkpoint == null) {
+            throw new IOException("Not a checkpoint: " + file);
+        }
+        commands = checkpoint.getLong(Integer.BYTES);
+        position = checkpoint.getLong(Integer.BYTES + Long.BYTES);
+    }
+
+    /**
+     * Adds the devices of a checkpoint to an empty inventory.
+     *
+     * @return The checkpoint, or {@code null} if the file is not a checkpoint.
+     */
+    private static ByteBuffer readCheckpoint(Path file, DeviceInventory devices) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer checkpoint = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (checkpoint.limit() < CHECKPOINT_HEADER || checkpoint.getInt(0) != CHECKPOINT_MAGIC) {
+                return null;
+            }
+            checkpoint.position(Integer.BYTES + 2 * Long.BYTES);
+            int count = checkpoint.getInt();
+            int[] freeIds = new int[checkpoint.getInt()];
+            for (int i = 0; i < count; i++) {
+                DeviceJournal.readDevice(checkpoint, devices);
+            }
+            for (int i = 0; i < freeIds.length; i++) {
+                freeIds[i] = checkpoint.getInt();
+            }
+            devices.restoreFreeIds(freeIds);
+            return checkpoint;
+        }
+    }
+
+    /**
+     * @return The checkpoint with the most commands up to the given number, or {@code null} if there is none.
+     */
+    private static Path latestCheckpoint(Path directory, long until) throws IOException {
+        Path latest = null;
+        long latestCommands = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                CHECKPOINT_PREFIX + "*" + CHECKPOINT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long commands = Long.parseLong(name.substring(CHECKPOINT_PREFIX.length(),
+                        name.length() - CHECKPOINT_SUFFIX.length()));
+                if (commands <= until && commands > latestCommands) {
+                    latest = file;
+                    latestCommands = commands;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Compares two response or state files line by line and reports the differing lines.
+     * Checkpoint files are compared by the status of their devices, as {@code DisplayAllStatus} shows it.
+     *
+     * @param first  The first file.
+     * @param second The second file.
+     * @param report Stream receiving the differences.
+     * @return {@code true} if the files have the same lines.
+     * @throws IOException If a file cannot be read.
+     */
+    static boolean diff(Path first, Path second, PrintStream report) throws IOException {
+        List<String> firstLines = lines(first);
+        List<String> secondLines = lines(second);
+        int differences = 0;
+        int common = Math.min(firstLines.size(), secondLines.size());
+        for (int i = 0; i < common; i++) {
+            if (!firstLines.get(i).equals(secondLines.get(i))) {
+                if (++differences <= MAX_DIFFERENCES) {
+                    report.println("Line " + (i + 1));
+                    report.println("- " + firstLines.get(i));
+                    report.println("+ " + secondLines.get(i));
+                }
+            }
+        }
+        if (firstLines.size() != secondLines.size()) {
+            report.println(first + " has " + firstLines.size() + " lines and " + second + " has "
+                    + secondLines.size());
+        }
+        if (differences == 0 && firstLines.size() == secondLines.size()) {
+            report.println("The files have the same lines");
+            return true;
+        }
+        report.println(differences + " lines differ");
+        return false;
+    }
+
+    private static List<String> lines(Path file) throws IOException {
+        DeviceInventory devices = new DeviceInventory(new ArrayList<>(), ChangeFeed.DEFAULT_CAPACITY, CLOCK);
+        if (readCheckpoint(file, devices) == null) {
+            return Files.readAllLines(file, StandardCharsets.UTF_8);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResponseSink out = new ResponseSink(bytes, ResponseSink.DEFAULT_FLUSH_BYTES, Long.MAX_VALUE);
+        devices.writeAllStatus(out);
+        out.flush();
+        return bytes.toString(StandardCharsets.UTF_8).lines().toList();
+    }
+}
+
+/**
+ * Reads newline-terminated commands from a byte stream through a reusable buffer.
+ * Lines are terminated by {@code \n}, {@code \r} or {@code \r\n}, as with {@code Scanner.nextLine()}.
+ * A reader can start with a small buffer, which doubles up to the default size while reads keep filling it.
+ */
+final class CommandReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final Flushable beforeRead;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private boolean skipLineFeed;
+    private boolean filled;
+
+    /**
+     * Creates a reader over the given stream.
+     *
+     * @param in         The stream to read commands from.
+     * @param beforeRead Flushed before every read that may block, so pending responses are not held back.
+     */
+    CommandReader(InputStream in, Flushable beforeRead) {
+        this(in, beforeRead, BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a reader over the given stream with a small buffer at first, e.g. for one of many connections.
+     *
+     * @param in          The stream to read commands from.
+     * @param beforeRead  Flushed before every read that may block, so pending responses are not held back.
+     * @param bufferBytes Initial size of the buffer.
+     */
+    CommandReader(InputStream in, Flushable beforeRead, int bufferBytes) {
+        this.in = in;
+        this.beforeRead = beforeRead;
+        this.buffer = new byte[Math.max(bufferBytes, 1)];
+    }
+
+    /**
+     * Reads the next line and tokenizes it into the given command line.
+     *
+     * @param line The command line to be filled.
+     * @return {@code false} if the end of the stream was reached, {@code true} otherwise.
+     * @throws IOException If reading from the stream fails.
+     */
+    boolean readLine(CommandLine line) throws IOException {
+        if (skipLineFeed) {
+            if (position == limit && !fill()) {
+                return false;
+            }
+            if (buffer[position] == '\n') {
+                position++;
+            }
+            skipLineFeed = false;
+        }
+
+        int scanned = 0;
+        while (true) {
+            for (int i = position + scanned; i < limit; i++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    line.set(buffer, position, i);
+                    position = i + 1;
+                    skipLineFeed = b == '\r';
+                    return true;
+                }
+            }
+            scanned = limit - position;
+            if (!fill()) {
+                if (scanned == 0) {
+                    return false;
+                }
+                line.set(buffer, position, limit);
+                position = limit;
+                return true;
+            }
+        }
+    }
+
+    // Moves the unread bytes to the front of the buffer and reads more, growing it for very long lines
+    private boolean fill() throws IOException {
+        int remaining = limit - position;
+        if (position == 0 && limit == buffer.length || filled && buffer.length < BUFFER_SIZE) {
+            // A full buffer holds a very long line or the last read left more input waiting, as a pipelined batch does
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        position = 0;
+        limit = remaining;
+
+        beforeRead.flush();
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        filled = limit == buffer.length;
+        return true;
+    }
+}
+
+/**
+ * A single command line tokenized in place.
+ * Tokens are kept as offsets into the underlying bytes and follow {@code String.split(" ")} semantics:
+ * every single space separates two tokens and trailing empty tokens are dropped.
+ */
+final class CommandLine {
+    private static final int INITIAL_TOKENS = 8;
+    // Names of the device types by code, null for unused codes
+    private static final String[] DEVICE_TYPES = DeviceTypes.names();
+
+    private byte[] bytes = new byte[0];
+    private int from;
+    private int to;
+    private int[] starts = new int[INITIAL_TOKENS];
+    private int[] ends = new int[INITIAL_TOKENS];
+    private int length;
+
+    /**
+     * Tokenizes the given range of bytes, replacing the previous contents of this command line.
+     *
+     * @param bytes The buffer holding the line.
+     * @param from  The index of the first byte of the line.
+     * @param to    The index after the last byte of the line.
+     */
+    void set(byte[] bytes, int from, int to) {
+        this.bytes = bytes;
+        this.from = from;
+        this.to = to;
+        length = 0;
+        int tokenStart = from;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == ' ') {
+                addToken(tokenStart, i);
+                tokenStart = i + 1;
+            }
+        }
+        addToken(tokenStart, to);
+
+        while (length > 0 && starts[length - 1] == ends[length - 1]) {
+            length--;
+        }
+        // An empty line still yields a single empty token
+        if (from == to) {
+            length = 1;
+        }
+    }
+
+    private void addToken(int start, int end) {
+        if (length == starts.length) {
+            starts = Arrays.copyOf(starts, length * 2);
+            ends = Arrays.copyOf(ends, length * 2);
+        }
+        starts[length] = start;
+        ends[length] = end;
+        length++;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Copies the whole line, so it can outlive the buffer it was read into.
+     *
+     * @return The bytes of the line, without the line terminator.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOfRange(bytes, from, to);
+    }
+
+    /**
+     * Copies a range of tokens, joined by single spaces.
+     *
+     * @param first Index of the first token to copy.
+     * @param end   Index after the last token to copy.
+     * @return The copied tokens, empty if the range is.
+     */
+    byte[] copyTokens(int first, int end) {
+        if (first >= end) {
+            return new byte[0];
+        }
+        byte[] copy = new byte[ends[end - 1] - starts[first]];
+        int length = 0;
+        for (int i = first; i < end; i++) {
+            if (i > first) {
+                copy[length++] = ' ';
+            }
+            System.arraycopy(bytes, starts[i], copy, length, tokenLength(i));
+            length += tokenLength(i);
+        }
+        return Arrays.copyOf(copy, length);
+    }
+
+    int tokenLength(int index) {
+        return ends[index] - starts[index];
+    }
+
+    /**
+     * Checks whether a token is exactly equal to the given ASCII literal.
+     *
+     * @param index   The token index.
+     * @param literal The literal to compare against.
+     * @return {@code true} if the token matches, {@code false} otherwise.
+     */
+    boolean matches(int index, String literal) {
+        int start = starts[index];
+        if (ends[index] - start != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (bytes[start + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a token is equal to the given ASCII literal, ignoring the case of letters.
+     *
+     * @param index   The token index.
+     * @param literal The literal to compare against.
+     * @return {@code true} if the token matches, {@code false} otherwise.
+     */
+    boolean matchesIgnoreCase(int index, String literal) {
+        int start = starts[index];
+        if (ends[index] - start != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            int b = bytes[start + i];
+            int c = literal.charAt(i);
+            if (b != c && ((b | 0x20) != (c | 0x20) || (c | 0x20) < 'a' || (c | 0x20) > 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Validates if a token represents an integer, with the same rules as {@link Main#checkInt(String)}.
+     *
+     * @param index The token index.
+     * @return {@code true} if the token is a valid integer, {@code false} otherwise.
+     */
+    boolean isInt(int index) {
+        int start = starts[index];
+        int end = ends[index];
+        if (start < end && bytes[start] == '-') {
+            start++;
+        }
+        if (start == end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a token already validated by {@link #isInt(int)}.
+     *
+     * @param index The token index.
+     * @return The parsed value.
+     * @throws NumberFormatException If the value does not fit into an {@code int}, as {@code Integer.parseInt} does.
+     */
+    int parseInt(int index) {
+        int i = starts[index];
+        int end = ends[index];
+        boolean negative = bytes[i] == '-';
+        if (negative) {
+            i++;
+        }
+        // Accumulate negatively to cover Integer.MIN_VALUE
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int multiplyMin = limit / 10;
+        int result = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (result < multiplyMin || result * 10 < limit + digit) {
+                throw new NumberFormatException("For input string: \"" + text(index) + "\"");
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Parses a token already validated by {@link #isInt(int)}, clamping values beyond the {@code int} range.
+     *
+     * @param index The token index.
+     * @return The parsed value, or {@code Integer.MIN_VALUE}/{@code Integer.MAX_VALUE} if it does not fit.
+     */
+    int parseIntClamped(int index) {
+        return parseIntClamped(starts[index], ends[index]);
+    }
+
+    private int parseIntClamped(int start, int end) {
+        boolean negative = bytes[start] == '-';
+        long result = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            result = Math.min(result * 10 + bytes[i] - '0', 1L << Integer.SIZE);
+        }
+        result = negative ? -result : result;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, result));
+    }
+
+    /**
+     * Parses a token already validated by {@link #isInt(int)} as a {@code long}, clamping values beyond its range.
+     *
+     * @param index The token index.
+     * @return The parsed value.
+     */
+    long parseLongClamped(int index) {
+        int start = starts[index];
+        boolean negative = bytes[start] == '-';
+        long result = 0;
+        for (int i = negative ? start + 1 : start; i < ends[index]; i++) {
+            int digit = bytes[i] - '0';
+            result = result > (Long.MAX_VALUE - digit) / 10 ? Long.MAX_VALUE : result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Checks whether a token selects several devices at once, either all of them with {@code *}
+     * or an inclusive range of ids such as {@code 0-999}.
+     *
+     * @param index The token index.
+     * @return {@code true} if the token is a selector, {@code false} otherwise.
+     */
+    boolean isSelector(int index) {
+        int start = starts[index];
+        int end = ends[index];
+        if (end - start == 1 && bytes[start] == '*') {
+            return true;
+        }
+        int dash = rangeDash(index);
+        return dash > start && dash < end - 1;
+    }
+
+    /**
+     * Returns the first id selected by a token validated by {@link #isSelector(int)}.
+     *
+     * @param index The token index.
+     * @return The first selected id.
+     */
+    int selectionFrom(int index) {
+        int dash = rangeDash(index);
+        return dash < 0 ? 0 : parseIntClamped(starts[index], dash);
+    }
+
+    /**
+     * Returns the last id selected by a token validated by {@link #isSelector(int)}.
+     *
+     * @param index The token index.
+     * @return The last selected id.
+     */
+    int selectionTo(int index) {
+        int dash = rangeDash(index);
+        return dash < 0 ? Integer.MAX_VALUE : parseIntClamped(dash + 1, ends[index]);
+    }
+
+    // Position of the dash in a token made of digits, a dash and digits, or -1
+    private int rangeDash(int index) {
+        int dash = -1;
+        for (int i = starts[index]; i < ends[index]; i++) {
+            if (bytes[i] == '-' && dash < 0) {
+                dash = i;
+            } else if (bytes[i] < '0' || bytes[i] > '9') {
+                return -1;
+            }
+        }
+        return dash;
+    }
+
+    /**
+     * Finds the enum constant whose name is equal to a token.
+     *
+     * @param index     The token index.
+     * @param constants The constants to search.
+     * @return The matching constant, or {@code null} if there is none.
+     */
+    <E extends Enum<E>> E parseEnum(int index, E[] constants) {
+        for (E constant : constants) {
+            if (matches(index, constant.name())) {
+                return constant;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a token spelled exactly {@code true} or {@code false}.
+     *
+     * @param index The token index.
+     * @return The parsed value, or {@code null} if the token is neither.
+     */
+    Boolean parseBoolean(int index) {
+        if (matches(index, "true")) {
+            return Boolean.TRUE;
+        }
+        return matches(index, "false") ? Boolean.FALSE : null;
+    }
+
+    /**
+     * Returns a token as a string, reusing the constant device type names when possible.
+     *
+     * @param index The token index.
+     * @return The token text.
+     */
+    String text(int index) {
+        for (int i = DeviceInventory.LIGHT; i < DEVICE_TYPES.length; i++) {
+            if (DEVICE_TYPES[i] != null && matches(index, DEVICE_TYPES[i])) {
+                return DEVICE_TYPES[i];
+            }
+        }
+        return new String(bytes, starts[index], tokenLength(index), Charset.defaultCharset());
+    }
+
+    /**
+     * Resolves a token naming a device type without creating a string.
+     *
+     * @param index Index of the token.
+     * @return The type as in {@link DeviceInventory}, or {@link DeviceInventory#NONE} for any other token.
+     */
+    byte deviceType(int index) {
+        for (int i = DeviceInventory.LIGHT; i < DEVICE_TYPES.length; i++) {
+            if (DEVICE_TYPES[i] != null && matches(index, DEVICE_TYPES[i])) {
+                return (byte) i;
+            }
+        }
+        return DeviceInventory.NONE;
+    }
+}
+
+/**
+ * Precomputed table mapping command names to opcodes.
+ * Names are bucketed by length, so a lookup compares the first token against at most a few candidates.
+ */
+final class CommandTable {
+    static final int INVALID = 0;
+    static final int DISPLAY_ALL_STATUS = 1;
+    static final int TURN_ON = 2;
+    static final int TURN_OFF = 3;
+    static final int START_CHARGING = 4;
+    static final int STOP_CHARGING = 5;
+    static final int SET_TEMPERATURE = 6;
+    static final int SET_BRIGHTNESS = 7;
+    static final int SET_COLOR = 8;
+    static final int SET_ANGLE = 9;
+    static final int START_RECORDING = 10;
+    static final int STOP_RECORDING = 11;
+    static final int END = 12;
+    static final int ADD_DEVICE = 13;
+    static final int REMOVE_DEVICE = 14;
+    static final int BEGIN = 15;
+    static final int COMMIT = 16;
+    static final int DISPLAY_CHANGED_SINCE = 17;
+    static final int SUBSCRIBE = 18;
+    static final int STATS = 19;
+    static final int ADD_RULE = 20;
+    static final int REMOVE_RULE = 21;
+    static final int SCHEDULE = 22;
+    static final int CANCEL = 23;
+    static final int SIMULATE = 24;
+    static final int DISPLAY_ENERGY = 25;
+    static final int HISTORY = 26;
+    static final int ADD_ROOM = 27;
+    static final int REMOVE_ROOM = 28;
+    static final int MOVE_DEVICE = 29;
+    static final int DISPLAY_ROOMS = 30;
+    static final int FIND = 31;
+
+    private static final String[] NAMES = {
+        "", "DisplayAllStatus", "TurnOn", "TurnOff", "StartCharging", "StopCharging", "SetTemperature",
+        "SetBrightness", "SetColor", "SetAngle", "StartRecording", "StopRecording", "end", "AddDevice", "RemoveDevice",
+        "BEGIN", "COMMIT", "DisplayChangedSince", "Subscribe", "Stats",
+        "AddRule", "RemoveRule", "Schedule", "Cancel", "Simulate", "DisplayEnergy", "History",
+        "AddRoom", "RemoveRoom", "MoveDevice", "DisplayRooms", "Find"
+    };
+    static final int COUNT = NAMES.length;
+    private static final int[][] BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+        for (String name : NAMES) {
+            maxLength = Math.max(maxLength, name.length());
+        }
+        BY_LENGTH = new int[maxLength + 1][0];
+        for (int op = 1; op < NAMES.length; op++) {
+            int[] bucket = BY_LENGTH[NAMES[op].length()];
+            bucket = Arrays.copyOf(bucket, bucket.length + 1);
+            bucket[bucket.length - 1] = op;
+            BY_LENGTH[NAMES[op].length()] = bucket;
+        }
+    }
+
+    private CommandTable() {
+    }
+
+    /**
+     * Resolves the opcode of a command by its first token.
+     *
+     * @param cmd The tokenized command line.
+     * @return The opcode, or {@link #INVALID} for unknown commands.
+     */
+    static int opcode(CommandLine cmd) {
+        if (cmd.length() == 0 || cmd.tokenLength(0) >= BY_LENGTH.length) {
+            return INVALID;
+        }
+        for (int op : BY_LENGTH[cmd.tokenLength(0)]) {
+            if (cmd.matches(0, NAMES[op])) {
+                return op;
+            }
+        }
+        return INVALID;
+    }
+
+    /**
+     * @param op An opcode other than {@link #INVALID}.
+     * @return The name of the command.
+     */
+    static String name(int op) {
+        return NAMES[op];
+    }
+}
+
+/**
+ * Length-prefixed binary form of the command protocol, for clients sending commands at high rates.
+ * A request is a frame of a big-endian {@code u16} length followed by that many bytes, starting with the opcode of the
+ * command as in {@link CommandTable}:
+ * <ul>
+ *     <li>device commands, {@code TurnOn} to {@code StopRecording}, continue with the type code of the device,
+ *     its {@code i32} id and an {@code i32} argument: the temperature or angle, the ordinal of the
+ *     {@link BrightnessLevel} or {@link LightColor}, or {@code 0} for commands without an argument. They are answered
+ *     with a single status byte instead of a sentence;</li>
+ *     <li>other commands continue with their arguments as text, as they follow the command name in the text
+ *     protocol, and are answered with {@link #TEXT}, the {@code i32} length of the text response and the response;
+ *     </li>
+ *     <li>{@code end} ends the session. {@code BEGIN}, {@code COMMIT} and {@code Subscribe} are only part of the
+ *     text protocol and answered with {@link #INVALID}.</li>
+ * </ul>
+ * Frames are decoded in place from the buffer they are read into, so device commands are executed without copying
+ * their bytes or creating strings. Responses are batched in a buffer that is written out whenever the session waits
+ * for more input.
+ */
+final class BinaryProtocol {
+    // First byte sent by clients choosing the binary protocol on a server connection, no text command starts with it
+    static final int MAGIC = 0xB1;
+
+    static final byte OK = 0;
+    static final byte UNCHANGED = 1;
+    static final byte NOT_FOUND = 2;
+    static final byte DEVICE_OFF = 3;
+    static final byte UNSUPPORTED = 4;
+    static final byte OUT_OF_RANGE = 5;
+    static final byte INVALID = 6;
+    static final byte TEXT = 7;
+
+    static final int LENGTH_BYTES = Short.BYTES;
+    static final int DEVICE_COMMAND_BYTES = 2 + 2 * Integer.BYTES;
+
+    private static final int MAX_FRAME = 0xFFFF;
+    private static final int TEXT_RESPONSE_BUFFER = 1 << 12;
+
+    /**
+     * Executes a device command decoded from a frame.
+     */
+    @FunctionalInterface
+    interface DeviceHandler {
+        /**
+         * @param op       The opcode of a device command.
+         * @param type     The type code given in the frame, not validated yet.
+         * @param id       The device id.
+         * @param argument The value or ordinal argument of the command.
+         * @param text     Sink receiving the sentences of the text protocol, which nobody reads.
+         * @return The status code answering the command.
+         */
+        byte execute(int op, byte type, int id, int argument, ResponseSink text);
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final DeviceHandler deviceHandler;
+    private final BiPredicate<CommandLine, ResponseSink> textHandler;
+    private final ByteBuffer input = ByteBuffer.allocate(LENGTH_BYTES + MAX_FRAME);
+    private final ByteBuffer output;
+    private final ResponseSink discarded;
+    private final ByteArrayOutputStream textResponse = new ByteArrayOutputStream(TEXT_RESPONSE_BUFFER);
+    private final ResponseSink textSink = new ResponseSink(textResponse, TEXT_RESPONSE_BUFFER, Long.MAX_VALUE);
+    private final CommandLine cmd = new CommandLine();
+    private byte[] line = new byte[256];
+
+    /**
+     * Creates a session over a pair of streams.
+     *
+     * @param in            The stream of request frames.
+     * @param out           The stream receiving the responses.
+     * @param bufferBytes   Size of the response buffer.
+     * @param deviceHandler Executes device commands.
+     * @param textHandler   Executes other commands as the text protocol does, returning {@code false} if the command
+     *                      ends the session.
+     */
+    BinaryProtocol(InputStream in, OutputStream out, int bufferBytes, DeviceHandler deviceHandler,
+            BiPredicate<CommandLine, ResponseSink> textHandler) {
+        this.in = in;
+        this.out = out;
+        this.deviceHandler = deviceHandler;
+        this.textHandler = textHandler;
+        this.output = ByteBuffer.allocate(Math.max(bufferBytes, TEXT_RESPONSE_BUFFER));
+        this.discarded = new ResponseSink(OutputStream.nullOutputStream(), TEXT_RESPONSE_BUFFER, Long.MAX_VALUE);
+        input.flip();
+    }
+
+    /**
+     * Answers requests until the end of the input or an {@code end} request, then writes out all responses.
+     * A session can be run again once more input is available.
+     *
+     * @throws IOException If reading or writing fails, or the input ends within a frame.
+     */
+    void run() throws IOException {
+        while (fill(LENGTH_BYTES)) {
+            int length = input.getShort(input.position()) & MAX_FRAME;
+            if (!fill(LENGTH_BYTES + length)) {
+                throw new IOException("Input ended within a frame of " + length + " bytes");
+            }
+            int frame = input.position() + LENGTH_BYTES;
+            input.position(frame + length);
+            if (length == 0) {
+                respond(INVALID);
+            } else if (!execute(frame, length)) {
+                break;
+            }
+        }
+        flush();
+    }
+
+    private boolean execute(int frame, int length) throws IOException {
+        int op = input.get(frame) & 0xff;
+        if (DeviceTypes.isDeviceCommand(op)) {
+            respond(length != DEVICE_COMMAND_BYTES ? INVALID : deviceHandler.execute(op, input.get(frame + 1),
+                    input.getInt(frame + 2), input.getInt(frame + 2 + Integer.BYTES), discarded));
+            return true;
+        }
+        switch (op) {
+            case CommandTable.END:
+                return false;
+            case CommandTable.INVALID:
+            case CommandTable.BEGIN:
+            case CommandTable.COMMIT:
+            case CommandTable.SUBSCRIBE:
+                respond(INVALID);
+                return true;
+            default:
+                if (op >= CommandTable.COUNT) {
+                    respond(INVALID);
+                    return true;
+                }
+                return executeText(op, frame + 1, length - 1);
+        }
+    }
+
+    /**
+     * Runs a command given with text arguments, copying them behind the command name into a text command line.
+     */
+    private boolean executeText(int op, int arguments, int length) throws IOException {
+        String name = CommandTable.name(op);
+        int lineLength = name.length() + (length > 0 ? 1 + length : 0);
+        if (lineLength > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength));
+        }
+        for (int i = 0; i < name.length(); i++) {
+            line[i] = (byte) name.charAt(i);
+        }
+        if (length > 0) {
+            line[name.length()] = ' ';
+            input.get(arguments, line, name.length() + 1, length);
+        }
+        cmd.set(line, 0, lineLength);
+
+        textResponse.reset();
+        boolean more = textHandler.test(cmd, textSink);
+        textSink.flush();
+        if (output.remaining() < 1 + Integer.BYTES + textResponse.size()) {
+            flush();
+        }
+        if (output.remaining() < 1 + Integer.BYTES + textResponse.size()) {
+            // Too large for the buffer, such as the status of a big home, so it goes straight to the stream
+            output.put(TEXT).putInt(textResponse.size());
+            flush();
+            textResponse.writeTo(out);
+        } else {
+            output.put(TEXT).putInt(textResponse.size()).put(textResponse.toByteArray());
+        }
+        return more;
+    }
+
+    private void respond(byte status) throws IOException {
+        if (!output.hasRemaining()) {
+            flush();
+        }
+        output.put(status);
+    }
+
+    /**
+     * Makes at least the given number of bytes available after the input position, reading more if needed.
+     * Responses are written out before a read, so pending responses are not held back.
+     *
+     * @return {@code false} if the input ended first.
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (input.remaining() >= bytes) {
+            return true;
+        }
+        input.compact();
+        try {
+            flush();
+            while (input.position() < bytes) {
+                int read = in.read(input.array(), input.position(), input.remaining());
+                if (read < 0) {
+                    return false;
+                }
+                input.position(input.position() + read);
+            }
+            return true;
+        } finally {
+            input.flip();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (output.position() > 0) {
+            out.write(output.array(), 0, output.position());
+            output.clear();
+        }
+        out.flush();
+    }
+}
+
+/**
+ * Ingest window of the command loop for bursts of device commands, enabled with
+ * {@code -Dsmarthome.coalesceWindow=<commands>}. Consecutive commands changing a single device run in a window during
+ * which the inventory holds back the notifications of their changes, and the window delivers one notification for
+ * every changed attribute of a device, with its final value, when it closes. A sweep of {@code SetAngle Camera 4 x}
+ * or a {@code TurnOn} right before a {@code TurnOff} then costs the change feed, the history, the energy model, the
+ * index and the journal one update instead of one per command.
+ *
+ * <p>Commands still run one by one in input order and are answered exactly as without a window. The ordering is only
+ * relaxed for the listeners: they learn of the final values of a window after it closes, in the order the devices
+ * first changed, so intermediate values of a window are neither in the history nor in the journal, and the changes of
+ * a window open when the process dies are not journaled. A window closes after the given number of commands, before
+ * any other command and before the loop waits for more input, so every command reading what the listeners keep,
+ * such as {@code DisplayAllStatus} or {@code History}, sees all previous changes. No window is opened while there are
+ * rules, as their actions follow every change. Timers wait while a window is open.
+ */
+final class CommandCoalescer {
+    private final DeviceInventory devices;
+    private final int window;
+    private final ReentrantLock lock;
+    private int held;
+
+    /**
+     * @param devices Inventory of smart devices to be controlled.
+     * @param window  Number of commands after which a window closes, {@code 1} to run without windows.
+     */
+    CommandCoalescer(DeviceInventory devices, int window) {
+        this.devices = devices;
+        this.window = window;
+        this.lock = devices.scheduler().lock();
+    }
+
+    /**
+     * Reads and runs commands until the end of the input or {@code end}, like {@link Main#eventLoop}.
+     *
+     * @param in  The stream to read commands from.
+     * @param out Sink receiving the responses.
+     * @throws IOException If reading from the stream fails.
+     */
+    void run(InputStream in, ResponseSink out) throws IOException {
+        Flushable flusher = devices.scheduler().locked(out);
+        CommandReader reader = new CommandReader(in, () -> {
+            close();
+            flusher.flush();
+        });
+        CommandLine cmd = new CommandLine();
+        CommandBlock block = new CommandBlock(line -> Main.execute(devices, line, out));
+        try {
+            while (reader.readLine(cmd)) {
+                if (window > 1 && !block.isOpen() && isCoalescable(cmd)) {
+                    open();
+                } else {
+                    close();
+                }
+                lock.lock();
+                try {
+                    if (!block.execute(cmd)) {
+                        break;
+                    }
+                    if (held == 0 && devices.isSafePointRequested()) {
+                        devices.safePoint();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (held >= window) {
+                    close();
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * @return {@code true} for a device command naming a single device while there are no rules.
+     */
+    private boolean isCoalescable(CommandLine cmd) {
+        return DeviceTypes.isDeviceCommand(CommandTable.opcode(cmd)) && cmd.length() >= Main.MAX_LIGHT
+                && cmd.isInt(2) && devices.rules().isEmpty();
+    }
+
+    private void open() {
+        if (held == 0) {
+            lock.lock();
+            devices.deferChanges();
+        }
+        held++;
+    }
+
+    private void close() {
+        if (held > 0) {
+            held = 0;
+            devices.deliverChanges();
+            if (devices.isSafePointRequested()) {
+                devices.safePoint();
+            }
+            lock.unlock();
+        }
+    }
+}
+
+/**
+ * Pipelined block of commands sent between {@code BEGIN} and {@code COMMIT}.
+ * The commands of an open block are only queued. On {@code COMMIT} the whole block is validated first and then
+ * applied in order; if any command is malformed, only the malformed commands are answered with "Invalid command"
+ * and nothing is applied.
+ */
+final class CommandBlock {
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final Predicate<CommandLine> handler;
+    private final Runnable beforeCommit;
+    private final Runnable afterCommit;
+    private final CommandLine queued = new CommandLine();
+    private byte[] lines = new byte[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY / 16];
+    private int count;
+    private int size;
+    private boolean open;
+
+    /**
+     * Creates a block in front of a command handler.
+     *
+     * @param handler Executes a single command, returning {@code false} if it ends the session.
+     */
+    CommandBlock(Predicate<CommandLine> handler) {
+        this(handler, () -> { }, () -> { });
+    }
+
+    /**
+     * Creates a block in front of a command handler that is told where the commands of each committed block start and
+     * end, so that it can run them as one unit.
+     *
+     * @param handler      Executes a single command, returning {@code false} if it ends the session.
+     * @param beforeCommit Runs before the commands of a committed block are passed to the handler.
+     * @param afterCommit  Runs after them, also when one of them ended the session.
+     */
+    CommandBlock(Predicate<CommandLine> handler, Runnable beforeCommit, Runnable afterCommit) {
+        this.handler = handler;
+        this.beforeCommit = beforeCommit;
+        this.afterCommit = afterCommit;
+    }
+
+    /**
+     * Passes a command to the handler, or queues it while a block is open.
+     *
+     * @param cmd The tokenized command line.
+     * @return {@code false} if the command ends the session, {@code true} otherwise.
+     */
+    boolean execute(CommandLine cmd) {
+        int op = CommandTable.opcode(cmd);
+        if (!open) {
+            if (op == CommandTable.BEGIN && cmd.length() == 1) {
+                open = true;
+                return true;
+            }
+            return handler.test(cmd);
+        }
+        if (op == CommandTable.COMMIT && cmd.length() == 1) {
+            open = false;
+            return commit();
+        }
+        queue(cmd.toByteArray());
+        return true;
+    }
+
+    /**
+     * @return {@code true} while commands are queued between {@code BEGIN} and {@code COMMIT}.
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    private boolean commit() {
+        boolean valid = true;
+        for (int i = 0; i < count; i++) {
+            CommandLine cmd = line(i);
+            valid &= Main.isWellFormed(CommandTable.opcode(cmd), cmd);
+        }
+
+        boolean proceed = true;
+        beforeCommit.run();
+        for (int i = 0; i < count && proceed; i++) {
+            CommandLine cmd = line(i);
+            if (valid || !Main.isWellFormed(CommandTable.opcode(cmd), cmd)) {
+                proceed = handler.test(cmd);
+            }
+        }
+        afterCommit.run();
+        count = 0;
+        size = 0;
+        return proceed;
+    }
+
+    private CommandLine line(int index) {
+        queued.set(lines, index == 0 ? 0 : ends[index - 1], ends[index]);
+        return queued;
+    }
+
+    private void queue(byte[] line) {
+        if (size + line.length > lines.length) {
+            lines = Arrays.copyOf(lines, Math.max(lines.length * 2, size + line.length));
+        }
+        if (count == ends.length) {
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        System.arraycopy(line, 0, lines, size, line.length);
+        size += line.length;
+        ends[count++] = size;
+    }
+}
+
+/**
+ * Batches command responses in a reusable byte buffer before writing them out.
+ * Text and numbers are encoded straight into the buffer, which is written once it grows past the size threshold,
+ * once a completed line has waited longer than the time threshold, or when flushed explicitly. A sink can start with
+ * a small buffer, which only grows up to the size threshold when a batch of responses needs it.
+ */
+final class ResponseSink implements Flushable {
+    static final int DEFAULT_FLUSH_BYTES = 1 << 16;
+    static final long DEFAULT_FLUSH_MILLIS = 100;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final int flushBytes;
+    private final long flushNanos;
+    private byte[] buffer;
+    private int count;
+    private boolean pending;
+    private long pendingSince;
+
+    /**
+     * Creates a sink writing to the given stream.
+     *
+     * @param out         The stream receiving the batched output.
+     * @param flushBytes  Number of buffered bytes after which the buffer is written out.
+     * @param flushMillis Time after which completed lines are written out, {@code 0} to write every line.
+     */
+    ResponseSink(OutputStream out, int flushBytes, long flushMillis) {
+        this(out, flushBytes, flushMillis, flushBytes);
+    }
+
+    /**
+     * Creates a sink writing to the given stream with a small buffer at first, e.g. for one of many connections.
+     *
+     * @param out         The stream receiving the batched output.
+     * @param flushBytes  Number of buffered bytes after which the buffer is written out.
+     * @param flushMillis Time after which completed lines are written out, {@code 0} to write every line.
+     * @param bufferBytes Initial size of the buffer, grown up to {@code flushBytes} as needed.
+     */
+    ResponseSink(OutputStream out, int flushBytes, long flushMillis, int bufferBytes) {
+        this.out = out;
+        this.flushBytes = flushBytes;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.buffer = new byte[Math.max(Math.min(bufferBytes, flushBytes), 1) + LINE_SEPARATOR.length];
+    }
+
+    ResponseSink append(String text) {
+        int start = count;
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // Rare non-ASCII text, such as an echoed device name, goes through the platform encoder
+                count = start;
+                byte[] encoded = text.getBytes(Charset.defaultCharset());
+                ensureCapacity(encoded.length);
+                System.arraycopy(encoded, 0, buffer, count, encoded.length);
+                count += encoded.length;
+                return this;
+            }
+            buffer[count++] = (byte) c;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a single ASCII character.
+     *
+     * @param c The character to append.
+     * @return This sink.
+     */
+    ResponseSink append(char c) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) c;
+        return this;
+    }
+
+    ResponseSink append(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return append(Integer.toString(value));
+        }
+        ensureCapacity(11);
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+        return this;
+    }
+
+    ResponseSink append(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return append((int) value);
+        }
+        return append(Long.toString(value));
+    }
+
+    ResponseSink append(boolean value) {
+        return append(value ? "true" : "false");
+    }
+
+    ResponseSink append(Enum<?> value) {
+        return append(value.toString());
+    }
+
+    /**
+     * Ends the current line and writes the buffer out if one of the thresholds has been reached.
+     *
+     * @return This sink.
+     */
+    ResponseSink newLine() {
+        ensureCapacity(LINE_SEPARATOR.length);
+        System.arraycopy(LINE_SEPARATOR, 0, buffer, count, LINE_SEPARATOR.length);
+        count += LINE_SEPARATOR.length;
+        linesCompleted();
+        return this;
+    }
+
+    /**
+     * Appends complete lines that were already encoded, such as the output of another sink.
+     *
+     * @param lines The encoded lines, each ending with the line separator.
+     * @return This sink.
+     */
+    ResponseSink appendLines(byte[] lines) {
+        return appendLines(lines, lines.length);
+    }
+
+    /**
+     * Appends complete lines that were already encoded, taking the given number of leading bytes.
+     *
+     * @param lines  The encoded lines, each ending with the line separator.
+     * @param length The number of bytes to append.
+     * @return This sink.
+     */
+    ResponseSink appendLines(byte[] lines, int length) {
+        if (length == 0) {
+            return this;
+        }
+        ensureCapacity(length);
+        System.arraycopy(lines, 0, buffer, count, length);
+        count += length;
+        linesCompleted();
+        return this;
+    }
+
+    private void linesCompleted() {
+        long now = System.nanoTime();
+        if (!pending) {
+            pending = true;
+            pendingSince = now;
+        }
+        if (count >= flushBytes || now - pendingSince >= flushNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all buffered output to the underlying stream and flushes it.
+     */
+    @Override
+    public void flush() {
+        if (count == 0) {
+            return;
+        }
+        try {
+            out.write(buffer, 0, count);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
+        pending = false;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buffer.length) {
+            int grown = Math.min(buffer.length * 2, Math.max(flushBytes, 1) + LINE_SEPARATOR.length);
+            buffer = Arrays.copyOf(buffer, Math.max(grown, count + extra));
+        }
+    }
+}
+
+/**
+ * Executes commands on a pool of worker threads while keeping the responses in input order.
+ * Every device id is hashed to one single-threaded shard, so commands for the same device run in order on the same
+ * thread while commands for different devices run in parallel. Commands touching the whole inventory wait for all
+ * shards to drain and then run on the calling thread, as do commands selecting several devices.
+ */
+final class ConcurrentCommandExecutor implements Flushable, AutoCloseable {
+    private static final int MAX_IN_FLIGHT = 1 << 12;
+    private static final int RESPONSE_BUFFER = 256;
+
+    private final DeviceInventory devices;
+    private final ResponseSink out;
+    private final ExecutorService[] shards;
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+    /**
+     * Creates an executor with one worker thread per shard.
+     *
+     * @param devices Inventory of smart devices to be controlled.
+     * @param out     Sink receiving the responses in input order.
+     * @param threads Number of worker threads.
+     */
+    ConcurrentCommandExecutor(DeviceInventory devices, ResponseSink out, int threads) {
+        this.devices = devices;
+        this.out = out;
+        this.shards = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    /**
+     * Schedules a command, or runs it right away if it affects the whole inventory.
+     *
+     * @param cmd The tokenized command line, which may be reused once this method returns.
+     * @return {@code false} if the command ends the session, {@code true} otherwise.
+     */
+    boolean execute(CommandLine cmd) {
+        switch (CommandTable.opcode(cmd)) {
+            case CommandTable.DISPLAY_ALL_STATUS:
+            case CommandTable.ADD_DEVICE:
+            case CommandTable.REMOVE_DEVICE:
+            case CommandTable.DISPLAY_CHANGED_SINCE:
+            case CommandTable.STATS:
+            case CommandTable.ADD_RULE:
+            case CommandTable.REMOVE_RULE:
+            case CommandTable.SIMULATE:
+            case CommandTable.DISPLAY_ENERGY:
+            case CommandTable.HISTORY:
+            case CommandTable.ADD_ROOM:
+            case CommandTable.REMOVE_ROOM:
+            case CommandTable.MOVE_DEVICE:
+            case CommandTable.DISPLAY_ROOMS:
+            case CommandTable.FIND:
+            case CommandTable.END:
+                drain();
+                return Main.execute(devices, cmd, out);
+            default:
+                // Rule actions may change any device, so while there are rules every command runs alone
+                if (cmd.length() >= Main.MAX_LIGHT && cmd.isSelector(2) || !devices.rules().isEmpty()) {
+                    drain();
+                    return Main.execute(devices, cmd, out);
+                }
+                break;
+        }
+
+        if (cmd.length() >= Main.MAX_LIGHT && cmd.isInt(2)) {
+            byte[] line = cmd.toByteArray();
+            int shard = Math.floorMod(cmd.parseIntClamped(2), shards.length);
+            inFlight.add(shards[shard].submit(() -> {
+                CommandLine copy = new CommandLine();
+                copy.set(line, 0, line.length);
+                return respond(copy);
+            }));
+        } else {
+            // Without a device id the command is rejected or only touches the timers, which have their own lock
+            inFlight.add(CompletableFuture.completedFuture(respond(cmd)));
+        }
+
+        while (!inFlight.isEmpty() && (inFlight.peek().isDone() || inFlight.size() > MAX_IN_FLIGHT)) {
+            out.appendLines(await(inFlight.poll()));
+        }
+        if (devices.isSafePointRequested()) {
+            drain();
+            devices.safePoint();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for all scheduled commands and writes out their responses.
+     */
+    @Override
+    public void flush() {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        drain();
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    private void drain() {
+        while (!inFlight.isEmpty()) {
+            out.appendLines(await(inFlight.poll()));
+        }
+    }
+
+    private byte[] respond(CommandLine cmd) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream(RESPONSE_BUFFER);
+        ResponseSink sink = new ResponseSink(response, RESPONSE_BUFFER, Long.MAX_VALUE);
+        Main.execute(devices, cmd, sink);
+        sink.flush();
+        return response.toByteArray();
+    }
+
+    private static byte[] await(Future<byte[]> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
+
+/**
+ * TCP front end speaking the line protocol of {@link Main#eventLoop} to many clients at once.
+ * Every connection is served by its own virtual thread against the shared inventory. Commands for a single device
+ * lock one of a fixed set of stripes chosen by the device id, while commands touching the whole inventory or several
+ * devices lock it exclusively. A client sending {@code Subscribe <version>} turns its connection into a stream of
+ * device changes, and a client starting with the byte {@link BinaryProtocol#MAGIC} speaks the {@link BinaryProtocol}.
+ * With an {@link IngestPipeline}, text commands are validated on the connection threads and applied by its writer.
+ */
+final class CommandServer implements AutoCloseable {
+    // Initial size of the read and response buffers of a connection, which grow while it sends batches
+    static final int CONNECTION_BUFFER = 1 << 10;
+    private static final int BACKLOG = 4096;
+    private static final int STRIPES = 64;
+    private static final long SUBSCRIBE_POLL_MILLIS = 1000;
+
+    private final DeviceInventory devices;
+    private final ServerSocket serverSocket;
+    private final int flushBytes;
+    private final long flushMillis;
+    private final ReentrantReadWriteLock inventoryLock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final IngestPipeline ingest;
+
+    /**
+     * Binds the server to a local port.
+     *
+     * @param devices     Inventory of smart devices shared by all clients.
+     * @param port        The port to listen on, {@code 0} for any free port.
+     * @param flushBytes  Size threshold of each client's response sink.
+     * @param flushMillis Time threshold of each client's response sink.
+     * @param ingestQueue Capacity of the queue of an {@link IngestPipeline} for text commands, {@code 0} to run them
+     *                    on the connection threads.
+     * @param clientRate  Commands per second admitted from each client by the pipeline, {@code 0} for no limit.
+     * @throws IOException If the port cannot be bound.
+     */
+    CommandServer(DeviceInventory devices, int port, int flushBytes, long flushMillis, int ingestQueue,
+            int clientRate) throws IOException {
+        this.devices = devices;
+        this.serverSocket = new ServerSocket(port, BACKLOG);
+        this.flushBytes = flushBytes;
+        this.flushMillis = flushMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.ingest = ingestQueue > 0
+                ? new IngestPipeline(devices, ingestQueue, clientRate, this::execute, this::safePoint) : null;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts clients until the server is closed, starting a virtual thread for each connection.
+     * Scheduled commands run with no client to answer, their effects reach the subscribers of the change feed.
+     */
+    void serve() {
+        Scheduler scheduler = devices.scheduler();
+        ResponseSink discarded = new ResponseSink(OutputStream.nullOutputStream(), flushBytes, flushMillis);
+        scheduler.attach(cmd -> execute(cmd, discarded), discarded, discarded);
+        scheduler.start();
+        if (ingest != null) {
+            ingest.start();
+        }
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (!serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    throw new UncheckedIOException(e);
+                }
+                clients.submit(() -> handle(socket));
+            }
+        } finally {
+            if (ingest != null) {
+                ingest.close();
+            }
+            scheduler.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void handle(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            // Clients choose the binary protocol with its first byte, which is left for the text protocol otherwise
+            PushbackInputStream in = new PushbackInputStream(socket.getInputStream());
+            int first = in.read();
+            if (first == BinaryProtocol.MAGIC) {
+                new BinaryProtocol(in, socket.getOutputStream(), flushBytes, this::execute, this::execute).run();
+                return;
+            }
+            if (first >= 0) {
+                in.unread(first);
+            }
+            ResponseSink out = new ResponseSink(socket.getOutputStream(), flushBytes, flushMillis, CONNECTION_BUFFER);
+            if (ingest != null) {
+                // The responder of the client writes out its responses, which are handed to it before a read
+                try (IngestPipeline.Client client = ingest.newClient(out)) {
+                    serveText(in, client, new CommandBlock(client::execute, client::beginBlock, client::commitBlock));
+                }
+                return;
+            }
+            serveText(in, out, new CommandBlock(line -> execute(line, out)));
+            out.flush();
+        } catch (IOException | UncheckedIOException e) {
+            // The client went away, nothing is left to answer
+        }
+    }
+
+    private void serveText(InputStream in, Flushable beforeRead, CommandBlock block) throws IOException {
+        CommandReader reader = new CommandReader(in, beforeRead, CONNECTION_BUFFER);
+        CommandLine cmd = new CommandLine();
+        while (reader.readLine(cmd)) {
+            if (!block.execute(cmd)) {
+                break;
+            }
+            if (devices.isSafePointRequested()) {
+                safePoint();
+            }
+        }
+    }
+
+    /**
+     * Executes a device command of the binary protocol, locking like its text form.
+     */
+    private byte execute(int op, byte type, int id, int argument, ResponseSink text) {
+        byte status = 0;
+        boolean done = false;
+        inventoryLock.readLock().lock();
+        try {
+            // Rules are added under the write lock, so none can appear while this one is held
+            if (devices.rules().isEmpty()) {
+                ReentrantLock stripe = stripes[Math.floorMod(id, STRIPES)];
+                stripe.lock();
+                try {
+                    status = Main.execute(devices, op, type, id, argument, text);
+                    done = true;
+                } finally {
+                    stripe.unlock();
+                }
+            }
+        } finally {
+            inventoryLock.readLock().unlock();
+        }
+        if (!done) {
+            inventoryLock.writeLock().lock();
+            try {
+                status = Main.execute(devices, op, type, id, argument, text);
+            } finally {
+                inventoryLock.writeLock().unlock();
+            }
+        }
+        if (devices.isSafePointRequested()) {
+            safePoint();
+        }
+        return status;
+    }
+
+    private boolean execute(CommandLine cmd, ResponseSink out) {
+        switch (CommandTable.opcode(cmd)) {
+            case CommandTable.DISPLAY_ALL_STATUS:
+            case CommandTable.ADD_DEVICE:
+            case CommandTable.REMOVE_DEVICE:
+            case CommandTable.DISPLAY_CHANGED_SINCE:
+            case CommandTable.ADD_RULE:
+            case CommandTable.REMOVE_RULE:
+            case CommandTable.SIMULATE:
+            case CommandTable.DISPLAY_ENERGY:
+            case CommandTable.HISTORY:
+            case CommandTable.ADD_ROOM:
+            case CommandTable.REMOVE_ROOM:
+            case CommandTable.MOVE_DEVICE:
+            case CommandTable.DISPLAY_ROOMS:
+            case CommandTable.FIND:
+                return executeExclusively(cmd, out);
+            case CommandTable.SUBSCRIBE:
+                if (cmd.length() != 2 || !cmd.isInt(1)) {
+                    break;
+                }
+                subscribe(cmd.parseLongClamped(1), out);
+                return false;
+            default:
+                // Rule actions may change any device, so while there are rules every command runs alone
+                if (cmd.length() >= Main.MAX_LIGHT && cmd.isSelector(2) || !devices.rules().isEmpty()) {
+                    return executeExclusively(cmd, out);
+                }
+                break;
+        }
+
+        if (cmd.length() >= Main.MAX_LIGHT && cmd.isInt(2)) {
+            ReentrantLock stripe = stripes[Math.floorMod(cmd.parseIntClamped(2), STRIPES)];
+            inventoryLock.readLock().lock();
+            try {
+                // The check above ran without the lock: a rule added since then makes the command run alone
+                if (devices.rules().isEmpty()) {
+                    stripe.lock();
+                    try {
+                        return Main.execute(devices, cmd, out);
+                    } finally {
+                        stripe.unlock();
+                    }
+                }
+            } finally {
+                inventoryLock.readLock().unlock();
+            }
+            return executeExclusively(cmd, out);
+        }
+        // Without a device id the command is rejected, shows the metrics or changes the timers, none touching a device
+        return Main.execute(devices, cmd, out);
+    }
+
+    /**
+     * Turns the connection into a stream of changes, writing the devices changed since the given version and then
+     * every further change as it happens, until the client goes away.
+     */
+    private void subscribe(long since, ResponseSink out) {
+        ChangeFeed changes = devices.changes();
+        long version = since;
+        try {
+            while (true) {
+                inventoryLock.writeLock().lock();
+                try {
+                    version = changes.writeChangesSince(version, out);
+                } finally {
+                    inventoryLock.writeLock().unlock();
+                }
+                out.flush();
+                while (changes.awaitAfter(version, SUBSCRIBE_POLL_MILLIS) == version) {
+                    // Keep waiting for the next change
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void safePoint() {
+        inventoryLock.writeLock().lock();
+        try {
+            if (devices.isSafePointRequested()) {
+                devices.safePoint();
+            }
+        } finally {
+            inventoryLock.writeLock().unlock();
+        }
+    }
+
+    private boolean executeExclusively(CommandLine cmd, ResponseSink out) {
+        inventoryLock.writeLock().lock();
+        try {
+            return Main.execute(devices, cmd, out);
+        } finally {
+            inventoryLock.writeLock().unlock();
+        }
+    }
+}
+
+/**
+ * Staged ingest of the text commands of {@link CommandServer} clients, enabled with
+ * {@code -Dsmarthome.ingestQueue=<commands>}. The connection threads tokenize and validate their clients' commands in
+ * parallel and answer malformed ones, and device commands naming no registered type, without touching the
+ * inventory. The other commands go through a bounded queue to a single writer thread, which applies them in arrival
+ * order with the locking of the server, so that invalid input never delays valid input. A responder thread of every
+ * client writes out its responses in the order of its commands, so a connection thread never waits for the writer.
+ *
+ * <p>Admission is explicit. A command finding the queue full, or arriving while its client is over its rate of
+ * {@code -Dsmarthome.clientRate} commands per second, is answered "Busy, try again later" and not applied, so under
+ * overload the time a command waits is bounded by the queue and not by the backlog of the clients. A client may burst
+ * a tenth of a second of its rate. A client with {@link #MAX_IN_FLIGHT} responses not yet written is no longer read
+ * from until its responder catches up, which pushes back on a client that does not read its responses.
+ * {@code Subscribe} and {@code end} run on the connection thread once the earlier commands of the client are
+ * answered.
+ *
+ * <p>The commands of a committed {@code BEGIN} block are admitted as one unit: they take one place in the queue and
+ * their share of the rate together, and the writer applies them with no other command in between, or they are all
+ * answered "Busy, try again later". A command failing in the writer is answered "Invalid command", and the writer
+ * and its client go on.
+ */
+final class IngestPipeline implements AutoCloseable {
+    private static final int MAX_IN_FLIGHT = 1 << 12;
+    private static final int PUBLISH = 64;
+    private static final int BATCH = 64;
+    private static final int RESPONSE_BUFFER = 256;
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final Future<byte[]> INVALID = answer("Invalid command");
+    private static final Future<byte[]> NOT_FOUND = answer("The smart device was not found");
+    private static final Future<byte[]> BUSY = answer("Busy, try again later");
+    private static final List<Future<byte[]>> CLOSED = List.of();
+
+    private final DeviceInventory devices;
+    private final ArrayBlockingQueue<Request> queue;
+    private final long clientIntervalNanos;
+    private final BiPredicate<CommandLine, ResponseSink> handler;
+    private final Runnable safePoint;
+    private final Thread writer;
+
+    /**
+     * @param devices    Inventory of smart devices shared by all clients.
+     * @param capacity   Number of commands the queue holds.
+     * @param clientRate Commands per second admitted from each client, {@code 0} for no limit.
+     * @param handler    Applies a command with the locking of the server, returning {@code false} if it ends the
+     *                   session.
+     * @param safePoint  Runs the safe point of the inventory, called by the writer once it was requested.
+     */
+    IngestPipeline(DeviceInventory devices, int capacity, int clientRate,
+            BiPredicate<CommandLine, ResponseSink> handler, Runnable safePoint) {
+        this.devices = devices;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.clientIntervalNanos = clientRate > 0 ? TimeUnit.SECONDS.toNanos(1) / clientRate : 0;
+        this.handler = handler;
+        this.safePoint = safePoint;
+        this.writer = new Thread(this::apply, "ingest-writer");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    void start() {
+        writer.start();
+    }
+
+    /**
+     * Stops the writer thread. Commands still queued are not answered.
+     */
+    @Override
+    public void close() {
+        writer.interrupt();
+    }
+
+    /**
+     * Creates the validation stage of a client's connection and starts its responder.
+     *
+     * @param out Sink receiving the responses of the client, only written by the responder until the stage is closed.
+     * @return The stage, to be used by the connection thread only.
+     */
+    Client newClient(ResponseSink out) {
+        return new Client(out);
+    }
+
+    private void apply() {
+        List<Request> batch = new ArrayList<>(BATCH);
+        CommandLine cmd = new CommandLine();
+        ByteArrayOutputStream response = new ByteArrayOutputStream(RESPONSE_BUFFER);
+        ResponseSink out = new ResponseSink(response, RESPONSE_BUFFER, Long.MAX_VALUE);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+                for (Request request : batch) {
+                    for (byte[] line : request.lines) {
+                        cmd.set(line, 0, line.length);
+                        try {
+                            handler.test(cmd, out);
+                        } catch (RuntimeException e) {
+                            out.append("Invalid command").newLine();
+                        }
+                    }
+                    out.flush();
+                    request.complete(response.toByteArray());
+                    response.reset();
+                }
+                batch.clear();
+                if (devices.isSafePointRequested()) {
+                    safePoint.run();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The server was closed
+        }
+    }
+
+    /**
+     * @return {@code true} for a device command, or {@code RemoveDevice}, naming a type no device can have.
+     *         {@code StopRecording} only checks the id of a single device and is left to the writer.
+     */
+    private static boolean namesUnknownType(int op, CommandLine cmd) {
+        return (DeviceTypes.isDeviceCommand(op) && op != CommandTable.STOP_RECORDING
+                || op == CommandTable.REMOVE_DEVICE) && cmd.deviceType(1) == DeviceInventory.NONE;
+    }
+
+    private static Future<byte[]> answer(String text) {
+        return CompletableFuture.completedFuture((text + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * A command, or the commands of a block, waiting in the queue, completed with the responses by the writer.
+     */
+    private static final class Request extends CompletableFuture<byte[]> {
+        final byte[][] lines;
+
+        Request(byte[]... lines) {
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * Validation and admission stage of one client, run by its connection thread, and the responder writing out the
+     * responses of the client on a virtual thread of its own. Responses are handed to the responder in batches, when
+     * a batch is full and whenever the connection thread is about to wait for more input. The commands of a block
+     * are staged between {@link #beginBlock()} and {@link #commitBlock()} and queued together.
+     */
+    final class Client implements Flushable, AutoCloseable {
+        private final ResponseSink out;
+        private final ArrayBlockingQueue<List<Future<byte[]>>> responses =
+                new ArrayBlockingQueue<>(MAX_IN_FLIGHT / PUBLISH);
+        private Thread responder;
+        private List<Future<byte[]>> batch = new ArrayList<>(PUBLISH);
+        // The commands of the committed block being staged, null outside of a block
+        private List<byte[]> unit;
+        // Generic cell rate algorithm: the time at which the client is back to an empty allowance
+        private long theoreticalArrival = System.nanoTime();
+        private boolean closed;
+
+        private Client(ResponseSink out) {
+            this.out = out;
+            this.responder = Thread.ofVirtual().start(this::respond);
+        }
+
+        /**
+         * Validates a command and queues it for the writer, or answers it right away if it is malformed, names no
+         * registered device type or is not admitted.
+         *
+         * @param cmd The tokenized command line, which may be reused once this method returns.
+         * @return {@code false} if the command ends the session, {@code true} otherwise.
+         */
+        boolean execute(CommandLine cmd) {
+            long start = System.nanoTime();
+            int op = CommandTable.opcode(cmd);
+            if (op == CommandTable.SUBSCRIBE || op == CommandTable.END) {
+                if (unit != null) {
+                    submit(unit);
+                    unit = new ArrayList<>();
+                }
+                close();
+                if (!handler.test(cmd, out)) {
+                    return false;
+                }
+                // A malformed Subscribe or end does not end the session
+                closed = false;
+                responder = Thread.ofVirtual().start(this::respond);
+                return true;
+            }
+            if (!Main.isWellFormed(op, cmd)) {
+                devices.metrics().invalidCommand();
+                devices.metrics().record(op, DeviceInventory.NONE, System.nanoTime() - start);
+                enqueue(INVALID);
+            } else if (unit != null) {
+                unit.add(cmd.toByteArray());
+            } else if (namesUnknownType(op, cmd)) {
+                devices.metrics().deviceNotFound();
+                devices.metrics().record(op, DeviceInventory.NONE, System.nanoTime() - start);
+                enqueue(NOT_FOUND);
+            } else if (!admit(start, 1)) {
+                devices.metrics().busy(true);
+                enqueue(BUSY);
+            } else {
+                Request request = new Request(cmd.toByteArray());
+                if (queue.offer(request)) {
+                    enqueue(request);
+                } else {
+                    devices.metrics().busy(false);
+                    enqueue(BUSY);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Starts staging the commands of a committed block, which {@link #execute} passes on one by one.
+         */
+        void beginBlock() {
+            unit = new ArrayList<>();
+        }
+
+        /**
+         * Admits the staged commands of a block as one unit. A block with a malformed command stages nothing, as
+         * only its malformed commands are passed on, and are answered right away.
+         */
+        void commitBlock() {
+            submit(unit);
+            unit = null;
+        }
+
+        private void submit(List<byte[]> commands) {
+            if (commands.isEmpty()) {
+                return;
+            }
+            boolean rateLimited = !admit(System.nanoTime(), commands.size());
+            if (!rateLimited) {
+                Request request = new Request(commands.toArray(new byte[0][]));
+                if (queue.offer(request)) {
+                    enqueue(request);
+                    return;
+                }
+            }
+            for (int i = 0; i < commands.size(); i++) {
+                devices.metrics().busy(rateLimited);
+                enqueue(BUSY);
+            }
+        }
+
+        /**
+         * Hands the batch of responses to the responder, waiting while it has {@link #MAX_IN_FLIGHT} to write.
+         */
+        @Override
+        public void flush() {
+            if (!batch.isEmpty()) {
+                publish(batch);
+                batch = new ArrayList<>(PUBLISH);
+            }
+        }
+
+        /**
+         * Waits until the responses of all commands so far are written out and stops the responder.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                flush();
+                publish(CLOSED);
+                try {
+                    responder.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void enqueue(Future<byte[]> response) {
+            batch.add(response);
+            if (batch.size() == PUBLISH) {
+                flush();
+            }
+        }
+
+        private void publish(List<Future<byte[]>> responses) {
+            try {
+                this.responses.put(responses);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @param commands Number of commands admitted together.
+         * @return {@code true} if the client is within its rate, taking the share of the commands if so.
+         */
+        private boolean admit(long now, int commands) {
+            if (clientIntervalNanos == 0) {
+                return true;
+            }
+            long arrival = Math.max(theoreticalArrival, now);
+            if (arrival - now > BURST_NANOS) {
+                return false;
+            }
+            theoreticalArrival = arrival + commands * clientIntervalNanos;
+            return true;
+        }
+
+        /**
+         * Writes out the responses in order, flushing whenever no further response is ready. Once the client is gone
+         * the remaining responses are discarded, so that the connection thread never waits for a full queue.
+         */
+        private void respond() {
+            boolean connected = true;
+            try {
+                while (true) {
+                    List<Future<byte[]>> published = responses.poll();
+                    if (published == null) {
+                        if (connected) {
+                            connected = flushOut();
+                        }
+                        published = responses.take();
+                    }
+                    if (published == CLOSED) {
+                        break;
+                    }
+                    for (Future<byte[]> response : published) {
+                        if (connected && !response.isDone()) {
+                            connected = flushOut();
+                        }
+                        try {
+                            byte[] lines = await(response);
+                            if (connected) {
+                                out.appendLines(lines);
+                            }
+                        } catch (UncheckedIOException e) {
+                            connected = false;
+                        }
+                    }
+                }
+                if (connected) {
+                    flushOut();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private boolean flushOut() {
+            try {
+                out.flush();
+                return true;
+            } catch (UncheckedIOException e) {
+                return false;
+            }
+        }
+    }
+
+    private static byte[] await(Future<byte[]> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            // The writer completes every request normally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
+
+/**
+ * Cluster member owning a shard of homes, each home a separate inventory with its default devices created on first
+ * use. Requests are lines of the form {@code <home> <command>}, and every response ends with a line holding a single
+ * {@code .}, so a {@link ClusterRouter} knows where it ends. A request for the home {@code *} runs the command in every
+ * home of the node in name order, each preceded by a {@code Home <name>:} line, and {@code * Homes} lists the homes.
+ *
+ * <p>Homes are moved between nodes through migration requests, whose home is prefixed with {@code @}, a name the
+ * router never forwards from its clients. {@code @<home> Export} removes a home and answers its devices and free ids,
+ * encoded in one base64 line, which {@code @<home> Import <state>} restores on another node; any other migration
+ * request, or a state that does not decode, is answered {@code Invalid command}. As with the replay checkpoints,
+ * rules, timers, rooms, the energy model and the history stay behind.
+ *
+ * <p>Commands of a home run under its scheduler lock, so different homes run in parallel. The scheduler thread of a
+ * home is only started by its first {@code Schedule} command; fired commands are answered to no client.
+ */
+final class ClusterNode implements AutoCloseable {
+    static final String ALL_HOMES = "*";
+    static final String END_OF_RESPONSE = ".";
+    static final char MIGRATION = '@';
+    static final int HOME_CHANGE_CAPACITY = 1024;
+
+    private static final int BACKLOG = 4096;
+    private static final String LISTENING = "Node listening on port ";
+
+    private final ServerSocket serverSocket;
+    private final int flushBytes;
+    private final long flushMillis;
+    private final int changeCapacity;
+    private final ConcurrentHashMap<String, Home> homes = new ConcurrentHashMap<>();
+
+    /**
+     * Binds the node to a local port.
+     *
+     * @param port           The port to listen on, {@code 0} for any free port.
+     * @param flushBytes     Size threshold of each connection's response sink.
+     * @param flushMillis    Time threshold of each connection's response sink.
+     * @param changeCapacity Number of recent changes kept for {@code DisplayChangedSince} in each home.
+     * @throws IOException If the port cannot be bound.
+     */
+    ClusterNode(int port, int flushBytes, long flushMillis, int changeCapacity) throws IOException {
+        this.serverSocket = new ServerSocket(port, BACKLOG);
+        this.flushBytes = flushBytes;
+        this.flushMillis = flushMillis;
+        this.changeCapacity = changeCapacity;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts a node listening on any free port in a new process running this program, for a cluster on one machine.
+     *
+     * @param processes List receiving the started process, so it can be stopped.
+     * @return The address of the node.
+     * @throws IOException If the process cannot be started or exits before listening.
+     */
+    static String startLocal(List<Process> processes) throws IOException {
+        Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "-Dsmarthome.cluster=node", "-Dsmarthome.port=0",
+                Main.class.getName())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        processes.add(process);
+        BufferedReader output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = output.readLine();
+        if (line == null || !line.startsWith(LISTENING)) {
+            throw new IOException("Node process did not start: " + line);
+        }
+        return "127.0.0.1:" + line.substring(LISTENING.length());
+    }
+
+    /**
+     * Accepts connections until the node is closed, starting a virtual thread for each one.
+     * The port is announced on standard output first, for {@link #startLocal}.
+     */
+    void serve() {
+        System.out.println(LISTENING + getPort());
+        System.out.flush();
+        try (ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (!serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    throw new UncheckedIOException(e);
+                }
+                connections.submit(() -> handle(socket));
+            }
+        } finally {
+            for (Home home : homes.values()) {
+                home.devices.scheduler().close();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void handle(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            ResponseSink out = new ResponseSink(socket.getOutputStream(), flushBytes, flushMillis,
+                    CommandServer.CONNECTION_BUFFER);
+            CommandReader reader = new CommandReader(socket.getInputStream(), out, CommandServer.CONNECTION_BUFFER);
+            CommandLine request = new CommandLine();
+            CommandLine cmd = new CommandLine();
+            // Every home has its own block per connection, as if each home had its own client
+            Map<String, CommandBlock> blocks = new HashMap<>();
+            while (reader.readLine(request)) {
+                if (request.length() > 0) {
+                    String name = request.text(0);
+                    byte[] command = request.copyTokens(1, request.length());
+                    cmd.set(command, 0, command.length);
+                    if (name.equals(ALL_HOMES)) {
+                        executeInAll(cmd, out);
+                    } else if (name.charAt(0) == MIGRATION) {
+                        migrate(name.substring(1), cmd, out);
+                    } else {
+                        executeInHome(name, cmd, blocks, out);
+                    }
+                }
+                out.append(END_OF_RESPONSE).newLine();
+            }
+            out.flush();
+        } catch (IOException | UncheckedIOException e) {
+            // The router went away, nothing is left to answer
+        }
+    }
+
+    private void executeInAll(CommandLine cmd, ResponseSink out) {
+        List<String> names = new ArrayList<>(homes.keySet());
+        names.sort(null);
+        if (cmd.length() == 1 && cmd.matches(0, "Homes")) {
+            for (String name : names) {
+                out.append(name).newLine();
+            }
+            return;
+        }
+        for (String name : names) {
+            Home home = homes.get(name);
+            if (home != null) {
+                out.append("Home ").append(name).append(':').newLine();
+                home.execute(cmd, out);
+            }
+        }
+    }
+
+    private void migrate(String name, CommandLine cmd, ResponseSink out) {
+        if (cmd.length() == 1 && cmd.matches(0, "Export")) {
+            Home home = homes.remove(name);
+            if (home != null) {
+                out.append(home.export()).newLine();
+                home.devices.scheduler().close();
+            }
+            return;
+        }
+        if (name.isEmpty() || cmd.length() != 2 || !cmd.matches(0, "Import")) {
+            out.append("Invalid command").newLine();
+            return;
+        }
+        Home home = new Home(changeCapacity);
+        try {
+            home.restore(Base64.getDecoder().decode(cmd.text(1)));
+        } catch (RuntimeException e) {
+            // Not base64, or not an exported state; the half restored home is dropped
+            out.append("Invalid command").newLine();
+            return;
+        }
+        Home replaced = homes.put(name, home);
+        if (replaced != null) {
+            replaced.devices.scheduler().close();
+        }
+        out.append("Home ").append(name).append(" was imported").newLine();
+    }
+
+    private void executeInHome(String name, CommandLine cmd, Map<String, CommandBlock> blocks, ResponseSink out) {
+        // The handler looks the home up for every command, as an import may replace it while a block is open
+        blocks.computeIfAbsent(name, n -> new CommandBlock(line -> home(n).execute(line, out))).execute(cmd);
+    }
+
+    private Home home(String name) {
+        return homes.computeIfAbsent(name, n -> {
+            Home home = new Home(changeCapacity);
+            Main.addDefaultDevices(home.devices);
+            return home;
+        });
+    }
+
+    /**
+     * A home of the node with the scheduler thread started on demand.
+     */
+    private static final class Home {
+        private final DeviceInventory devices;
+        private boolean scheduling;
+
+        Home(int changeCapacity) {
+            this.devices = new DeviceInventory(new ArrayList<>(), changeCapacity);
+        }
+
+        boolean execute(CommandLine cmd, ResponseSink out) {
+            Scheduler scheduler = devices.scheduler();
+            scheduler.lock().lock();
+            try {
+                if (!scheduling && CommandTable.opcode(cmd) == CommandTable.SCHEDULE) {
+                    ResponseSink discarded = new ResponseSink(OutputStream.nullOutputStream(),
+                            ResponseSink.DEFAULT_FLUSH_BYTES, Long.MAX_VALUE);
+                    scheduler.attach(line -> Main.execute(devices, line, discarded), discarded, discarded);
+                    scheduler.start();
+                    scheduling = true;
+                }
+                boolean result = Main.execute(devices, cmd, out);
+                if (devices.isSafePointRequested()) {
+                    devices.safePoint();
+                }
+                return result;
+            } finally {
+                scheduler.lock().unlock();
+            }
+        }
+
+        String export() {
+            devices.scheduler().lock().lock();
+            try {
+                int[] freeIds = devices.freeIds();
+                ByteBuffer state = ByteBuffer.allocate(2 * Integer.BYTES
+                        + devices.size() * DeviceJournal.SNAPSHOT_RECORD + freeIds.length * Integer.BYTES);
+                state.putInt(devices.size()).putInt(freeIds.length);
+                for (SmartDevice device : devices) {
+                    DeviceJournal.writeDevice(device, state);
+                }
+                for (int id : freeIds) {
+                    state.putInt(id);
+                }
+                return Base64.getEncoder().encodeToString(state.array());
+            } finally {
+                devices.scheduler().lock().unlock();
+            }
+        }
+
+        void restore(byte[] exported) {
+            ByteBuffer state = ByteBuffer.wrap(exported);
+            int count = state.getInt();
+            int[] freeIds = new int[state.getInt()];
+            for (int i = 0; i < count; i++) {
+                DeviceJournal.readDevice(state, devices);
+            }
+            for (int i = 0; i < freeIds.length; i++) {
+                freeIds[i] = state.getInt();
+            }
+            devices.restoreFreeIds(freeIds);
+        }
+    }
+}
+
+/**
+ * Front end of a cluster of {@link ClusterNode}s, speaking the line protocol of {@link Main#eventLoop} to its clients.
+ * Homes are assigned to nodes by consistent hashing: every node is placed on a hash ring at many points, and a home
+ * belongs to the node at the first point after the hash of its name. A client picks its home with
+ * {@code Home <name>}, {@code default} until then, and every further command is forwarded to the owning node over a
+ * loopback connection of the client's own, so clients of homes on different nodes run in parallel. After
+ * {@code Home *} commands run in every home: they are sent to all nodes at once, and the answers are merged in home
+ * name order.
+ *
+ * <p>{@code AddNode <host>:<port>} adds a node to the ring. Only the homes whose points now fall to the new node
+ * move: they are exported from their old node and imported into the new one while no command is forwarded, through
+ * the migration requests of {@link ClusterNode}. Clients can neither send those commands nor select a home named like
+ * one, they are answered {@code Invalid command}.
+ * {@code Nodes} lists the nodes with their homes. {@code Subscribe} is not forwarded, as changes are only fed per node.
+ */
+final class ClusterRouter implements AutoCloseable {
+    static final String DEFAULT_HOME = "default";
+
+    private static final int BACKLOG = 4096;
+    private static final int POINTS_PER_NODE = 128;
+    private static final String HOME_HEADER = "Home ";
+
+    private final ServerSocket serverSocket;
+    private final int flushBytes;
+    private final long flushMillis;
+    private final ReentrantReadWriteLock ringLock = new ReentrantReadWriteLock();
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> nodes = new ArrayList<>();
+
+    /**
+     * Binds the router to a local port.
+     *
+     * @param nodes       Addresses of the nodes as {@code host:port}, all without homes yet.
+     * @param port        The port to listen on, {@code 0} for any free port.
+     * @param flushBytes  Size threshold of each client's response sink.
+     * @param flushMillis Time threshold of each client's response sink.
+     * @throws IOException If the port cannot be bound.
+     */
+    ClusterRouter(List<String> nodes, int port, int flushBytes, long flushMillis) throws IOException {
+        this.serverSocket = new ServerSocket(port, BACKLOG);
+        this.flushBytes = flushBytes;
+        this.flushMillis = flushMillis;
+        for (String node : nodes) {
+            place(node);
+        }
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts clients until the router is closed, starting a virtual thread for each connection.
+     */
+    void serve() {
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (!serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    throw new UncheckedIOException(e);
+                }
+                clients.submit(() -> handle(socket));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void place(String node) {
+        nodes.add(node);
+        for (int i = 0; i < POINTS_PER_NODE; i++) {
+            ring.put(hash(node + '#' + i), node);
+        }
+    }
+
+    private String owner(String home) {
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(home));
+        return point == null ? ring.firstEntry().getValue() : point.getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, finished with the MurmurHash3 mixer so that similar names spread evenly.
+     */
+    private static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private void handle(Socket socket) {
+        Map<String, NodeConnection> connections = new HashMap<>();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            ResponseSink out = new ResponseSink(socket.getOutputStream(), flushBytes, flushMillis,
+                    CommandServer.CONNECTION_BUFFER);
+            CommandReader reader = new CommandReader(socket.getInputStream(), out, CommandServer.CONNECTION_BUFFER);
+            CommandLine cmd = new CommandLine();
+            String home = DEFAULT_HOME;
+            while (reader.readLine(cmd)) {
+                if (cmd.length() == 1 && cmd.matches(0, "end")) {
+                    break;
+                }
+                if (cmd.length() == 2 && cmd.matches(0, "Home")) {
+                    if (cmd.text(1).charAt(0) == ClusterNode.MIGRATION) {
+                        // Reserved for the migration requests of addNode
+                        out.append("Invalid command").newLine();
+                        continue;
+                    }
+                    home = cmd.text(1);
+                    if (home.equals(ClusterNode.ALL_HOMES)) {
+                        out.append("All homes are selected").newLine();
+                    } else {
+                        out.append(HOME_HEADER).append(home).append(" is selected").newLine();
+                    }
+                } else if (cmd.length() == 2 && cmd.matches(0, "AddNode")) {
+                    addNode(cmd.text(1), out);
+                } else if (cmd.length() == 1 && cmd.matches(0, "Nodes")) {
+                    listNodes(out);
+                } else if (CommandTable.opcode(cmd) == CommandTable.SUBSCRIBE || isMigration(cmd)) {
+                    out.append("Invalid command").newLine();
+                } else {
+                    forward(home, cmd, connections, out);
+                }
+            }
+            out.flush();
+        } catch (IOException | UncheckedIOException e) {
+            // The client or a node went away, nothing is left to answer
+        } finally {
+            for (NodeConnection connection : connections.values()) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @return Whether the command only belongs to the migrations between nodes, or to a malformed {@code AddNode}.
+     */
+    private static boolean isMigration(CommandLine cmd) {
+        return cmd.length() > 0 && (cmd.matches(0, "Export") || cmd.matches(0, "Import") || cmd.matches(0, "AddNode"));
+    }
+
+    private void forward(String home, CommandLine cmd, Map<String, NodeConnection> connections, ResponseSink out)
+            throws IOException {
+        byte[] command = cmd.toByteArray();
+        ringLock.readLock().lock();
+        try {
+            if (!home.equals(ClusterNode.ALL_HOMES)) {
+                NodeConnection node = connection(owner(home), connections);
+                node.send(home, command);
+                node.relay(out);
+                return;
+            }
+            // Send to all nodes before reading any answer, so the nodes work at the same time
+            for (String address : nodes) {
+                connection(address, connections).send(ClusterNode.ALL_HOMES, command);
+            }
+            TreeMap<String, List<String>> answers = new TreeMap<>();
+            for (String address : nodes) {
+                List<String> answer = null;
+                for (String line : connection(address, connections).receive()) {
+                    if (line.startsWith(HOME_HEADER) && line.endsWith(":")) {
+                        answer = new ArrayList<>();
+                        answers.put(line.substring(HOME_HEADER.length(), line.length() - 1), answer);
+                    }
+                    if (answer != null) {
+                        answer.add(line);
+                    }
+                }
+            }
+            for (List<String> answer : answers.values()) {
+                for (String line : answer) {
+                    out.append(line).newLine();
+                }
+            }
+        } finally {
+            ringLock.readLock().unlock();
+        }
+    }
+
+    private static NodeConnection connection(String address, Map<String, NodeConnection> connections)
+            throws IOException {
+        NodeConnection connection = connections.get(address);
+        if (connection == null) {
+            connection = new NodeConnection(address);
+            connections.put(address, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Adds a node to the ring and moves the homes it now owns from the other nodes.
+     */
+    private void addNode(String address, ResponseSink out) throws IOException {
+        ringLock.writeLock().lock();
+        try {
+            if (nodes.contains(address)) {
+                out.append("Node ").append(address).append(" is already added").newLine();
+                return;
+            }
+            List<String> previous = new ArrayList<>(nodes);
+            place(address);
+            int moved = 0;
+            try (NodeConnection target = new NodeConnection(address)) {
+                for (String node : previous) {
+                    try (NodeConnection source = new NodeConnection(node)) {
+                        for (String home : source.request(ClusterNode.ALL_HOMES, "Homes")) {
+                            if (owner(home).equals(address)) {
+                                List<String> state = source.request(ClusterNode.MIGRATION + home, "Export");
+                                if (!state.isEmpty()) {
+                                    target.request(ClusterNode.MIGRATION + home, "Import " + state.get(0));
+                                    moved++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            out.append("Node ").append(address).append(" was added and ").append(moved)
+                    .append(moved == 1 ? " home was moved" : " homes were moved").newLine();
+        } finally {
+            ringLock.writeLock().unlock();
+        }
+    }
+
+    private void listNodes(ResponseSink out) throws IOException {
+        ringLock.readLock().lock();
+        try {
+            for (String node : nodes) {
+                try (NodeConnection connection = new NodeConnection(node)) {
+                    out.append("Node ").append(node).append(':');
+                    for (String home : connection.request(ClusterNode.ALL_HOMES, "Homes")) {
+                        out.append(' ').append(home);
+                    }
+                    out.newLine();
+                }
+            }
+        } finally {
+            ringLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loopback connection to a node, used by one thread at a time.
+     */
+    private static final class NodeConnection implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final BufferedReader in;
+
+        NodeConnection(String address) throws IOException {
+            int colon = address.lastIndexOf(':');
+            socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String home, byte[] command) throws IOException {
+            out.write(home.getBytes(StandardCharsets.UTF_8));
+            out.write(' ');
+            out.write(command);
+            out.write('\n');
+            out.flush();
+        }
+
+        /**
+         * Copies the answer of the last command to the client.
+         */
+        void relay(ResponseSink client) throws IOException {
+            String line;
+            while (!(line = readLine()).equals(ClusterNode.END_OF_RESPONSE)) {
+                client.append(line).newLine();
+            }
+        }
+
+        List<String> receive() throws IOException {
+            List<String> lines = new ArrayList<>();
+            String line;
+            while (!(line = readLine()).equals(ClusterNode.END_OF_RESPONSE)) {
+                lines.add(line);
+            }
+            return lines;
+        }
+
+        List<String> request(String home, String command) throws IOException {
+            send(home, command.getBytes(StandardCharsets.UTF_8));
+            return receive();
+        }
+
+        private String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("Node closed the connection");
+            }
+            return line;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing is left to send
+            }
+        }
+    }
+}
+
+/**
+ * Device storage keeping the state of every device in a slot addressed by its index instead of one object per device,
+ * such as {@link DeviceRegistry} and {@link MappedDeviceStore}. Attributes are read and written as the numbers of
+ * {@link DeviceAttribute#read}. {@link ColumnLight}, {@link ColumnCamera} and {@link ColumnHeater} show a slot through
+ * the usual {@link SmartDevice} API; the inventory also reads attributes of the slots directly, without a view.
+ */
+interface DeviceColumns {
+    Status[] STATUSES = Status.values();
+    BrightnessLevel[] BRIGHTNESS_LEVELS = BrightnessLevel.values();
+    LightColor[] LIGHT_COLORS = LightColor.values();
+
+    int deviceId(int index);
+
+    void setDeviceId(int index, int deviceId);
+
+    /**
+     * @param index     The device index.
+     * @param attribute An attribute of the type of the device.
+     * @return The value of the attribute.
+     */
+    int read(int index, DeviceAttribute attribute);
+
+    /**
+     * Stores an attribute without notifying the listener; the views do that.
+     *
+     * @param index     The device index.
+     * @param attribute An attribute of the type of the device.
+     * @param value     The value as returned by {@link #read}.
+     */
+    void write(int index, DeviceAttribute attribute, int value);
+
+    /**
+     * @return The listener shared by all devices of the store.
+     */
+    DeviceListener listener();
+
+    void setListener(DeviceListener listener);
+
+    /**
+     * Creates a view of a slot holding a built-in device type.
+     *
+     * @param index The device index.
+     * @param type  One of the type constants of {@link DeviceInventory}.
+     * @return The view.
+     */
+    static SmartDevice view(DeviceColumns columns, int index, byte type) {
+        switch (type) {
+            case DeviceInventory.LIGHT:
+                return new ColumnLight(columns, index);
+            case DeviceInventory.CAMERA:
+                return new ColumnCamera(columns, index);
+            default:
+                return new ColumnHeater(columns, index);
+        }
+    }
+}
+
+/**
+ * Light stored in a slot of {@link DeviceColumns}.
+ */
+final class ColumnLight extends Light {
+    private final DeviceColumns columns;
+    private final int index;
+
+    ColumnLight(DeviceColumns columns, int index) {
+        super(Status.OFF, false, BrightnessLevel.LOW, LightColor.YELLOW);
+        this.columns = columns;
+        this.index = index;
+    }
+
+    @Override
+    public int getDeviceId() {
+        return columns.deviceId(index);
+    }
+
+    @Override
+    public void setDeviceId(int deviceId) {
+        columns.setDeviceId(index, deviceId);
+    }
+
+    @Override
+    public DeviceListener getListener() {
+        return columns.listener();
+    }
+
+    @Override
+    public void setListener(DeviceListener listener) {
+        columns.setListener(listener);
+    }
+
+    @Override
+    public Status getStatus() {
+        return DeviceColumns.STATUSES[columns.read(index, DeviceAttribute.STATUS)];
+    }
+
+    @Override
+    public void setStatus(Status status) {
+        columns.write(index, DeviceAttribute.STATUS, status.ordinal());
+        changed(DeviceAttribute.STATUS);
+    }
+
+    @Override
+    public boolean isCharging() {
+        return columns.read(index, DeviceAttribute.CHARGING) != 0;
+    }
+
+    @Override
+    protected void setCharging(boolean charging) {
+        columns.write(index, DeviceAttribute.CHARGING, charging ? 1 : 0);
+        changed(DeviceAttribute.CHARGING);
+    }
+
+    @Override
+    public LightColor getLightColor() {
+        return DeviceColumns.LIGHT_COLORS[columns.read(index, DeviceAttribute.COLOR)];
+    }
+
+    @Override
+    public boolean setLightColor(LightColor lightColor) {
+        columns.write(index, DeviceAttribute.COLOR, lightColor.ordinal());
+        changed(DeviceAttribute.COLOR);
+        return true;
+    }
+
+    @Override
+    public BrightnessLevel getBrightnessLevel() {
+        return DeviceColumns.BRIGHTNESS_LEVELS[columns.read(index, DeviceAttribute.BRIGHTNESS)];
+    }
+
+    @Override
+    public boolean setBrightnessLevel(BrightnessLevel brightnessLevel) {
+        columns.write(index, DeviceAttribute.BRIGHTNESS, brightnessLevel.ordinal());
+        changed(DeviceAttribute.BRIGHTNESS);
+        return true;
+    }
+}
+
+/**
+ * Camera stored in a slot of {@link DeviceColumns}.
+ */
+final class ColumnCamera extends Camera {
+    private final DeviceColumns columns;
+    private final int index;
+
+    ColumnCamera(DeviceColumns columns, int index) {
+        super(Status.OFF, false, false, 0);
+        this.columns = columns;
+        this.index = index;
+    }
+
+    @Override
+    public int getDeviceId() {
+        return columns.deviceId(index);
+    }
+
+    @Override
+    public void setDeviceId(int deviceId) {
+        columns.setDeviceId(index, deviceId);
+    }
+
+    @Override
+    public DeviceListener getListener() {
+        return columns.listener();
+    }
+
+    @Override
+    public void setListener(DeviceListener listener) {
+        columns.setListener(listener);
+    }
+
+    @Override
+    public Status getStatus() {
+        return DeviceColumns.STATUSES[columns.read(index, DeviceAttribute.STATUS)];
+    }
+
+    @Override
+    public void setStatus(Status status) {
+        columns.write(index, DeviceAttribute.STATUS, status.ordinal());
+        changed(DeviceAttribute.STATUS);
+    }
+
+    @Override
+    public boolean isCharging() {
+        return columns.read(index, DeviceAttribute.CHARGING) != 0;
+    }
+
+    @Override
+    protected void setCharging(boolean charging) {
+        columns.write(index, DeviceAttribute.CHARGING, charging ? 1 : 0);
+        changed(DeviceAttribute.CHARGING);
+    }
+
+    @Override
+    public boolean isRecording() {
+        return columns.read(index, DeviceAttribute.RECORDING) != 0;
+    }
+
+    @Override
+    protected void setRecording(boolean recording) {
+        columns.write(index, DeviceAttribute.RECORDING, recording ? 1 : 0);
+        changed(DeviceAttribute.RECORDING);
+    }
+
+    @Override
+    public int getAngle() {
+        return columns.read(index, DeviceAttribute.ANGLE);
+    }
+
+    @Override
+    public boolean setCameraAngle(int angle) {
+        columns.write(index, DeviceAttribute.ANGLE, angle);
+        changed(DeviceAttribute.ANGLE);
+        return true;
+    }
+}
+
+/**
+ * Heater stored in a slot of {@link DeviceColumns}.
+ */
+final class ColumnHeater extends Heater {
+    private final DeviceColumns columns;
+    private final int index;
+
+    ColumnHeater(DeviceColumns columns, int index) {
+        super(Status.OFF, 0);
+        this.columns = columns;
+        this.index = index;
+    }
+
+    @Override
+    public int getDeviceId() {
+        return columns.deviceId(index);
+    }
+
+    @Override
+    public void setDeviceId(int deviceId) {
+        columns.setDeviceId(index, deviceId);
+    }
+
+    @Override
+    public DeviceListener getListener() {
+        return columns.listener();
+    }
+
+    @Override
+    public void setListener(DeviceListener listener) {
+        columns.setListener(listener);
+    }
+
+    @Override
+    public Status getStatus() {
+        return DeviceColumns.STATUSES[columns.read(index, DeviceAttribute.STATUS)];
+    }
+
+    @Override
+    public void setStatus(Status status) {
+        columns.write(index, DeviceAttribute.STATUS, status.ordinal());
+        changed(DeviceAttribute.STATUS);
+    }
+
+    @Override
+    public int getTemperature() {
+        return columns.read(index, DeviceAttribute.TEMPERATURE);
+    }
+
+    @Override
+    public boolean setTemperature(int temperature) {
+        columns.write(index, DeviceAttribute.TEMPERATURE, temperature);
+        changed(DeviceAttribute.TEMPERATURE);
+        return true;
+    }
+}
+
+/**
+ * Device storage keeping the state of all devices in primitive columns instead of one object per device.
+ * Status, charging and recording flags are bitsets, brightness and color share a byte, and the camera angle or heater
+ * temperature shares an int column. {@link #get(int)} returns a short-lived view reading and writing those columns
+ * through the usual {@link SmartDevice} API, so the command handlers work unchanged, while the lookups of the
+ * inventory read the columns through {@link DeviceColumns} without one.
+ */
+final class DeviceRegistry extends AbstractList<SmartDevice> implements RandomAccess, DeviceColumns {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int BRIGHTNESS_MASK = 0b11;
+    private static final int COLOR_SHIFT = 2;
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private byte[] types;
+    private int[] ids;
+    private long[] on;
+    private long[] charging;
+    private long[] recording;
+    private byte[] lightSettings;
+    private int[] values;
+    private int size;
+    private DeviceListener listener;
+
+    DeviceRegistry() {
+        this(INITIAL_CAPACITY);
+    }
+
+    DeviceRegistry(int capacity) {
+        capacity = Math.max(capacity, 1);
+        types = new byte[capacity];
+        ids = new int[capacity];
+        lightSettings = new byte[capacity];
+        values = new int[capacity];
+        on = new long[words(capacity)];
+        charging = new long[words(capacity)];
+        recording = new long[words(capacity)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public SmartDevice get(int index) {
+        Objects.checkIndex(index, size);
+        return DeviceColumns.view(this, index, types[index]);
+    }
+
+    @Override
+    public int deviceId(int index) {
+        return ids[index];
+    }
+
+    @Override
+    public void setDeviceId(int index, int deviceId) {
+        ids[index] = deviceId;
+    }
+
+    @Override
+    public int read(int index, DeviceAttribute attribute) {
+        switch (attribute) {
+            case STATUS:
+                return bit(on, index) ? 1 : 0;
+            case CHARGING:
+                return bit(charging, index) ? 1 : 0;
+            case RECORDING:
+                return bit(recording, index) ? 1 : 0;
+            case BRIGHTNESS:
+                return lightSettings[index] & BRIGHTNESS_MASK;
+            case COLOR:
+                return lightSettings[index] >>> COLOR_SHIFT;
+            default:
+                return values[index];
+        }
+    }
+
+    @Override
+    public void write(int index, DeviceAttribute attribute, int value) {
+        switch (attribute) {
+            case STATUS:
+                setBit(on, index, value != 0);
+                break;
+            case CHARGING:
+                setBit(charging, index, value != 0);
+                break;
+            case RECORDING:
+                setBit(recording, index, value != 0);
+                break;
+            case BRIGHTNESS:
+                lightSettings[index] = (byte) (value | lightSettings[index] & ~BRIGHTNESS_MASK);
+                break;
+            case COLOR:
+                lightSettings[index] = (byte) (lightSettings[index] & BRIGHTNESS_MASK | value << COLOR_SHIFT);
+                break;
+            default:
+                values[index] = value;
+        }
+    }
+
+    @Override
+    public DeviceListener listener() {
+        return listener;
+    }
+
+    @Override
+    public void setListener(DeviceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Appends a device by copying its state into the columns.
+     *
+     * @param device The device to store.
+     * @return {@code true}, as the registry always changes.
+     */
+    @Override
+    public boolean add(SmartDevice device) {
+        if (size == types.length) {
+            grow();
+        }
+        size++;
+        store(size - 1, device);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Replaces the state stored at an index with a copy of the given device's state.
+     *
+     * @param index  The index to overwrite.
+     * @param device The device to copy.
+     * @return A detached copy of the previous device.
+     */
+    @Override
+    public SmartDevice set(int index, SmartDevice device) {
+        SmartDevice previous = detach(index);
+        store(index, device);
+        return previous;
+    }
+
+    /**
+     * Removes a device, shifting the following devices down by one index.
+     *
+     * @param index The index to remove.
+     * @return A detached copy of the removed device.
+     */
+    @Override
+    public SmartDevice remove(int index) {
+        SmartDevice removed = detach(index);
+        int moved = size - index - 1;
+        System.arraycopy(types, index + 1, types, index, moved);
+        System.arraycopy(ids, index + 1, ids, index, moved);
+        System.arraycopy(lightSettings, index + 1, lightSettings, index, moved);
+        System.arraycopy(values, index + 1, values, index, moved);
+        for (int i = index; i < size - 1; i++) {
+            setBit(on, i, bit(on, i + 1));
+            setBit(charging, i, bit(charging, i + 1));
+            setBit(recording, i, bit(recording, i + 1));
+        }
+        size--;
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * Creates a regular heap object holding the current state of a device.
+     *
+     * @param index The device index.
+     * @return A copy of the device that is no longer backed by the registry.
+     */
+    SmartDevice detach(int index) {
+        Objects.checkIndex(index, size);
+        Status status = bit(on, index) ? Status.ON : Status.OFF;
+        SmartDevice device;
+        switch (types[index]) {
+            case DeviceInventory.LIGHT:
+                device = new Light(status, bit(charging, index), brightness(index), color(index));
+                break;
+            case DeviceInventory.CAMERA:
+                device = new Camera(status, bit(charging, index), bit(recording, index), values[index]);
+                break;
+            default:
+                device = new Heater(status, values[index]);
+        }
+        device.setDeviceId(ids[index]);
+        return device;
+    }
+
+    private void store(int index, SmartDevice device) {
+        byte type = DeviceInventory.typeOf(device);
+        if (type > DeviceInventory.HEATER) {
+            throw new IllegalArgumentException("Unsupported device type: " + device.getClass().getName());
+        }
+        types[index] = type;
+        ids[index] = device.getDeviceId();
+        setBit(on, index, device.isOn());
+        setBit(charging, index, device instanceof Chargeable && ((Chargeable) device).isCharging());
+        setBit(recording, index, device instanceof Camera && ((Camera) device).isRecording());
+        lightSettings[index] = 0;
+        values[index] = 0;
+        if (device instanceof Light) {
+            Light light = (Light) device;
+            lightSettings[index] = lightSettings(light.getBrightnessLevel(), light.getLightColor());
+        } else if (device instanceof Camera) {
+            values[index] = ((Camera) device).getAngle();
+        } else {
+            values[index] = ((Heater) device).getTemperature();
+        }
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        lightSettings = Arrays.copyOf(lightSettings, capacity);
+        values = Arrays.copyOf(values, capacity);
+        on = Arrays.copyOf(on, words(capacity));
+        charging = Arrays.copyOf(charging, words(capacity));
+        recording = Arrays.copyOf(recording, words(capacity));
+    }
+
+    private BrightnessLevel brightness(int index) {
+        return BRIGHTNESS_LEVELS[lightSettings[index] & BRIGHTNESS_MASK];
+    }
+
+    private LightColor color(int index) {
+        return LIGHT_COLORS[lightSettings[index] >>> COLOR_SHIFT];
+    }
+
+    private static byte lightSettings(BrightnessLevel brightness, LightColor color) {
+        return (byte) (brightness.ordinal() | color.ordinal() << COLOR_SHIFT);
+    }
+
+    private static int words(int bits) {
+        return (bits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private static boolean bit(long[] words, int index) {
+        return (words[index >>> 6] & 1L << index) != 0;
+    }
+
+    // Bits of different devices share a word, so updates are atomic to let devices be changed from several threads
+    private static void setBit(long[] words, int index, boolean value) {
+        if (value) {
+            WORDS.getAndBitwiseOr(words, index >>> 6, 1L << index);
+        } else {
+            WORDS.getAndBitwiseAnd(words, index >>> 6, ~(1L << index));
+        }
+    }
+}
+
+/**
+ * Device storage in a memory-mapped file, so that other processes can read the device state while this one runs.
+ * As in {@link DeviceRegistry}, {@link #get(int)} returns a view reading and writing the fixed-size record of the
+ * device in the file. The views hold nothing but the store and the index and are kept once created, since they
+ * escape to the device listeners; changing a device then allocates nothing and its state never moves through the
+ * heap.
+ *
+ * <p>The file starts with a header of {@value #HEADER_BYTES} bytes: magic, layout version, record size, capacity,
+ * number of records and a generation. Records of {@value #RECORD_BYTES} bytes follow, one per device in the order of
+ * the store, holding a sequence number, the device id, the type as in {@link DeviceInventory}, the ordinals of
+ * status, charging, recording, brightness and color, and the angle or temperature. All numbers are little-endian.
+ *
+ * <p>Writers follow the seqlock protocol: the sequence of a record is odd while the record is written, and the
+ * generation is odd while records are added, moved or removed. A reader copies a record between two reads of its
+ * sequence and retries if the sequence was odd or changed, and checks the generation around the whole snapshot, so it
+ * never waits for the writer and the writer never waits for it. {@link Reader} implements this for other processes.
+ * Different records may be written from several threads, a single record by one thread at a time.
+ */
+final class MappedDeviceStore extends AbstractList<SmartDevice> implements RandomAccess, DeviceColumns, AutoCloseable {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 32;
+
+    private static final int MAGIC = 0x53484D44;
+    private static final int LAYOUT_VERSION = 1;
+    // Header fields
+    private static final int RECORD_SIZE_FIELD = 8;
+    private static final int CAPACITY_FIELD = 12;
+    private static final int SIZE_FIELD = 16;
+    private static final int GENERATION_FIELD = 20;
+    // Record fields
+    private static final int SEQUENCE = 0;
+    private static final int ID = 4;
+    private static final int TYPE = 8;
+    private static final int STATUS = 9;
+    private static final int CHARGING = 10;
+    private static final int RECORDING = 11;
+    private static final int BRIGHTNESS = 12;
+    private static final int COLOR = 13;
+    private static final int VALUE = 16;
+    // Offsets of the attribute fields by attribute ordinal
+    private static final int[] FIELDS = {STATUS, CHARGING, RECORDING, VALUE, VALUE, BRIGHTNESS, COLOR};
+
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private SmartDevice[] views = new SmartDevice[0];
+    private int size;
+    private DeviceListener listener;
+
+    /**
+     * Creates an empty store in a new or truncated file.
+     *
+     * @param file     The file shared with the readers.
+     * @param capacity Number of records the file holds before it has to grow.
+     * @throws IOException If the file cannot be created or mapped.
+     */
+    MappedDeviceStore(Path file, int capacity) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(capacity, 1));
+        buffer.putInt(4, LAYOUT_VERSION);
+        buffer.putInt(RECORD_SIZE_FIELD, RECORD_BYTES);
+        // Readers check the magic last, so they never see a half-written header
+        INTS.setRelease(buffer, 0, MAGIC);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public SmartDevice get(int index) {
+        Objects.checkIndex(index, size);
+        SmartDevice view = views[index];
+        if (view == null) {
+            view = DeviceColumns.view(this, index, type(index));
+            views[index] = view;
+        }
+        return view;
+    }
+
+    @Override
+    public int deviceId(int index) {
+        return buffer.getInt(offset(index) + ID);
+    }
+
+    @Override
+    public void setDeviceId(int index, int deviceId) {
+        int offset = offset(index);
+        int sequence = beginRecord(offset);
+        buffer.putInt(offset + ID, deviceId);
+        endRecord(offset, sequence);
+    }
+
+    @Override
+    public int read(int index, DeviceAttribute attribute) {
+        int field = FIELDS[attribute.ordinal()];
+        return field == VALUE ? buffer.getInt(offset(index) + VALUE) : buffer.get(offset(index) + field);
+    }
+
+    @Override
+    public void write(int index, DeviceAttribute attribute, int value) {
+        int field = FIELDS[attribute.ordinal()];
+        int offset = offset(index);
+        int sequence = beginRecord(offset);
+        if (field == VALUE) {
+            buffer.putInt(offset + VALUE, value);
+        } else {
+            buffer.put(offset + field, (byte) value);
+        }
+        endRecord(offset, sequence);
+    }
+
+    @Override
+    public DeviceListener listener() {
+        return listener;
+    }
+
+    @Override
+    public void setListener(DeviceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Appends a device by copying its state into a new record.
+     *
+     * @param device The device to store.
+     * @return {@code true}, as the store always changes.
+     */
+    @Override
+    public boolean add(SmartDevice device) {
+        if (size == capacity) {
+            try {
+                map(capacity * 2);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        int generation = beginStructure();
+        store(size, device);
+        size++;
+        INTS.setRelease(buffer, SIZE_FIELD, size);
+        endStructure(generation);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Replaces the record at an index with a copy of the given device's state.
+     *
+     * @param index  The index to overwrite.
+     * @param device The device to copy.
+     * @return A detached copy of the previous device.
+     */
+    @Override
+    public SmartDevice set(int index, SmartDevice device) {
+        SmartDevice previous = detach(index);
+        int generation = beginStructure();
+        store(index, device);
+        endStructure(generation);
+        views[index] = null;
+        return previous;
+    }
+
+    /**
+     * Removes a device, shifting the following records down by one.
+     *
+     * @param index The index to remove.
+     * @return A detached copy of the removed device.
+     */
+    @Override
+    public SmartDevice remove(int index) {
+        SmartDevice removed = detach(index);
+        int generation = beginStructure();
+        for (int i = index; i < size - 1; i++) {
+            store(i, detach(i + 1));
+        }
+        // The views of the moved records would show the wrong device
+        Arrays.fill(views, index, size, null);
+        size--;
+        INTS.setRelease(buffer, SIZE_FIELD, size);
+        endStructure(generation);
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * Writes the file out to the storage device.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Creates a regular heap object holding the current state of a device.
+     *
+     * @param index The device index.
+     * @return A copy of the device that is no longer backed by the file.
+     */
+    SmartDevice detach(int index) {
+        Objects.checkIndex(index, size);
+        return read(buffer, offset(index));
+    }
+
+    private void map(int newCapacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) newCapacity * RECORD_BYTES);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        capacity = newCapacity;
+        views = Arrays.copyOf(views, newCapacity);
+        INTS.setRelease(buffer, CAPACITY_FIELD, capacity);
+    }
+
+    private int beginStructure() {
+        int generation = (int) INTS.get(buffer, GENERATION_FIELD);
+        INTS.setOpaque(buffer, GENERATION_FIELD, generation + 1);
+        VarHandle.storeStoreFence();
+        return generation;
+    }
+
+    private void endStructure(int generation) {
+        INTS.setRelease(buffer, GENERATION_FIELD, generation + 2);
+    }
+
+    private void store(int index, SmartDevice device) {
+        byte type = DeviceInventory.typeOf(device);
+        if (type > DeviceInventory.HEATER) {
+            throw new IllegalArgumentException("Unsupported device type: " + device.getClass().getName());
+        }
+        int offset = offset(index);
+        int sequence = beginRecord(offset);
+        buffer.putInt(offset + ID, device.getDeviceId());
+        buffer.put(offset + TYPE, type);
+        buffer.put(offset + STATUS, (byte) device.getStatus().ordinal());
+        buffer.put(offset + CHARGING, (byte) DeviceAttribute.CHARGING.read(device));
+        buffer.put(offset + RECORDING, (byte) DeviceAttribute.RECORDING.read(device));
+        buffer.put(offset + BRIGHTNESS, (byte) DeviceAttribute.BRIGHTNESS.read(device));
+        buffer.put(offset + COLOR, (byte) DeviceAttribute.COLOR.read(device));
+        buffer.putInt(offset + VALUE, device instanceof Heater
+                ? DeviceAttribute.TEMPERATURE.read(device)
+                : DeviceAttribute.ANGLE.read(device));
+        endRecord(offset, sequence);
+    }
+
+    private int beginRecord(int offset) {
+        int sequence = (int) INTS.get(buffer, offset + SEQUENCE);
+        INTS.setOpaque(buffer, offset + SEQUENCE, sequence + 1);
+        VarHandle.storeStoreFence();
+        return sequence;
+    }
+
+    private void endRecord(int offset, int sequence) {
+        INTS.setRelease(buffer, offset + SEQUENCE, sequence + 2);
+    }
+
+    private static int offset(int index) {
+        return HEADER_BYTES + index * RECORD_BYTES;
+    }
+
+    private byte type(int index) {
+        return buffer.get(offset(index) + TYPE);
+    }
+
+    private static SmartDevice read(ByteBuffer buffer, int offset) {
+        Status status = STATUSES[buffer.get(offset + STATUS)];
+        boolean charging = buffer.get(offset + CHARGING) != 0;
+        SmartDevice device;
+        switch (buffer.get(offset + TYPE)) {
+            case DeviceInventory.LIGHT:
+                device = new Light(status, charging, BRIGHTNESS_LEVELS[buffer.get(offset + BRIGHTNESS)],
+                        LIGHT_COLORS[buffer.get(offset + COLOR)]);
+                break;
+            case DeviceInventory.CAMERA:
+                device = new Camera(status, charging, buffer.get(offset + RECORDING) != 0,
+                        buffer.getInt(offset + VALUE));
+                break;
+            default:
+                device = new Heater(status, buffer.getInt(offset + VALUE));
+        }
+        device.setDeviceId(buffer.getInt(offset + ID));
+        return device;
+    }
+
+    /**
+     * Reads the devices from a file written by another process, without locks and without blocking the writer.
+     */
+    static final class Reader implements AutoCloseable {
+        private static final int MAX_ATTEMPTS = 1000;
+
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        /**
+         * @param file The file of a running or finished {@link MappedDeviceStore}.
+         * @throws IOException If the file cannot be mapped or is not a device store.
+         */
+        Reader(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < HEADER_BYTES || (int) INTS.getAcquire(buffer, 0) != MAGIC
+                    || buffer.getInt(4) != LAYOUT_VERSION || buffer.getInt(RECORD_SIZE_FIELD) != RECORD_BYTES) {
+                channel.close();
+                throw new IOException("Not a device store: " + file);
+            }
+        }
+
+        /**
+         * Copies all devices as they were at one point in time, retrying while records are added or removed.
+         *
+         * @return Detached copies of the devices, in ascending order of their ids.
+         * @throws IOException If the file keeps changing too fast to be read.
+         */
+        List<SmartDevice> snapshot() throws IOException {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                int generation = (int) INTS.getAcquire(buffer, GENERATION_FIELD);
+                if ((generation & 1) == 0) {
+                    int size = (int) INTS.getAcquire(buffer, SIZE_FIELD);
+                    if (HEADER_BYTES + (long) size * RECORD_BYTES > buffer.limit()) {
+                        // The file has grown since it was mapped
+                        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        buffer.order(ByteOrder.LITTLE_ENDIAN);
+                        continue;
+                    }
+                    SmartDevice[] devices = new SmartDevice[size];
+                    boolean complete = true;
+                    for (int i = 0; i < size && complete; i++) {
+                        devices[i] = readRecord(offset(i));
+                        complete = devices[i] != null;
+                    }
+                    VarHandle.loadLoadFence();
+                    if (complete && (int) INTS.get(buffer, GENERATION_FIELD) == generation) {
+                        Arrays.sort(devices, (a, b) -> Integer.compare(a.getDeviceId(), b.getDeviceId()));
+                        return Arrays.asList(devices);
+                    }
+                }
+                Thread.onSpinWait();
+            }
+            throw new IOException("The device store kept changing during " + MAX_ATTEMPTS + " attempts");
+        }
+
+        /**
+         * @return A copy of the record, or {@code null} if it kept changing.
+         */
+        private SmartDevice readRecord(int offset) {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                int sequence = (int) INTS.getAcquire(buffer, offset + SEQUENCE);
+                if ((sequence & 1) == 0) {
+                    SmartDevice device = read(buffer, offset);
+                    VarHandle.loadLoadFence();
+                    if ((int) INTS.get(buffer, offset + SEQUENCE) == sequence) {
+                        return device;
+                    }
+                }
+                Thread.onSpinWait();
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
+
+/**
+ * Cached output of {@code DisplayAllStatus}.
+ * Keeps the rendered status line of every device together with the assembled output of all of them. A change to a
+ * device only drops that device's line, so polling an unchanged home copies the assembled bytes, and polling after a
+ * few changes re-renders only the changed devices.
+ */
+final class StatusSnapshot implements DeviceListener {
+    private static final int RENDER_BUFFER = 256;
+
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(RENDER_BUFFER);
+    private final ResponseSink renderer = new ResponseSink(scratch, RENDER_BUFFER, Long.MAX_VALUE);
+    private byte[][] lines = new byte[16][];
+    private byte[] assembled = new byte[0];
+    private int assembledLength;
+    private volatile boolean stale = true;
+
+    @Override
+    public void deviceChanged(SmartDevice device, DeviceAttribute attribute) {
+        invalidate(device.getDeviceId());
+    }
+
+    @Override
+    public void deviceAdded(SmartDevice device) {
+        invalidate(device.getDeviceId());
+    }
+
+    @Override
+    public void deviceRemoved(SmartDevice device) {
+        invalidate(device.getDeviceId());
+    }
+
+    /**
+     * Writes the status of all devices, re-rendering only the devices changed since the last call.
+     *
+     * @param devices The devices in the order they are displayed.
+     * @param out     Sink receiving the statuses.
+     */
+    void write(Iterable<SmartDevice> devices, ResponseSink out) {
+        if (stale) {
+            stale = false;
+            assemble(devices);
+        }
+        out.appendLines(assembled, assembledLength);
+    }
+
+    private void invalidate(int id) {
+        byte[][] current = lines;
+        if (id < current.length) {
+            current[id] = null;
+        }
+        stale = true;
+    }
+
+    private void assemble(Iterable<SmartDevice> devices) {
+        assembledLength = 0;
+        for (SmartDevice device : devices) {
+            int id = device.getDeviceId();
+            if (id >= lines.length) {
+                lines = Arrays.copyOf(lines, Math.max(lines.length * 2, id + 1));
+            }
+            byte[] line = lines[id];
+            if (line == null) {
+                device.writeStatus(renderer);
+                renderer.newLine().flush();
+                line = scratch.toByteArray();
+                scratch.reset();
+                lines[id] = line;
+            }
+
+            if (assembledLength + line.length > assembled.length) {
+                assembled = Arrays.copyOf(assembled, Math.max(assembled.length * 2, assembledLength + line.length));
+            }
+            System.arraycopy(line, 0, assembled, assembledLength, line.length);
+            assembledLength += line.length;
+        }
+    }
+}
+
+/**
+ * A page of {@code DisplayAllStatus}, for homes too large to be shown at once:
+ * {@code DisplayAllStatus [<type>] [<id>|<from>-<to>|*] [limit=<n>] [after=<id>]}, such as
+ * {@code DisplayAllStatus Camera limit=1000 after=4500}. Devices are visited lazily in ascending order of IDs, and only
+ * the devices on the page are rendered, each as {@code DisplayAllStatus} shows it. If more devices match after the
+ * page, a last line {@code Next page after=<id>} gives the cursor of the next page.
+ */
+final class StatusPage {
+    private static final String LIMIT = "limit=";
+    private static final String AFTER = "after=";
+
+    private final byte type;
+    private final int from;
+    private final int to;
+    private final int limit;
+
+    private StatusPage(byte type, int from, int to, int limit) {
+        this.type = type;
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+    }
+
+    /**
+     * Parses the arguments of a {@code DisplayAllStatus} command with a filter or paging.
+     *
+     * @param cmd The tokenized command line, with at least one argument.
+     * @return The page, or {@code null} if the arguments are malformed.
+     */
+    static StatusPage parse(CommandLine cmd) {
+        int length = cmd.length();
+        int index = 1;
+        byte type = DeviceInventory.NONE;
+        if (index < length && cmd.deviceType(index) != DeviceInventory.NONE) {
+            type = cmd.deviceType(index++);
+        }
+        int from = 0;
+        int to = Integer.MAX_VALUE;
+        if (index < length && cmd.isInt(index)) {
+            from = cmd.parseIntClamped(index);
+            to = from;
+            index++;
+        } else if (index < length && cmd.isSelector(index)) {
+            from = cmd.selectionFrom(index);
+            to = cmd.selectionTo(index);
+            index++;
+        }
+        int limit = -1;
+        int after = -1;
+        for (; index < length; index++) {
+            String option = cmd.text(index);
+            if (option.startsWith(LIMIT) && limit < 0) {
+                limit = parseValue(option, LIMIT.length());
+                if (limit <= 0) {
+                    return null;
+                }
+            } else if (option.startsWith(AFTER) && after < 0) {
+                after = parseValue(option, AFTER.length());
+                if (after < 0) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        if (after >= 0) {
+            from = (int) Math.max(from, Math.min(after + 1L, Integer.MAX_VALUE));
+        }
+        return new StatusPage(type, from, to, limit < 0 ? Integer.MAX_VALUE : limit);
+    }
+
+    // Digits of an option value clamped to Integer.MAX_VALUE, or -1 if the value is not a non-negative number
+    private static int parseValue(String option, int start) {
+        if (start == option.length()) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < option.length(); i++) {
+            char c = option.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = Math.min(value * 10 + c - '0', Integer.MAX_VALUE);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Writes the status of the devices on the page, followed by the cursor of the next page if there is one.
+     *
+     * @param devices Inventory of smart devices.
+     * @param out     Sink receiving the statuses.
+     */
+    void write(DeviceInventory devices, ResponseSink out) {
+        int written = 0;
+        int last = -1;
+        for (int id = next(devices, from); id >= 0 && id <= to; id = next(devices, id + 1)) {
+            if (written == limit) {
+                out.append("Next page after=").append(last).newLine();
+                return;
+            }
+            devices.get(id).writeStatus(out);
+            out.newLine();
+            written++;
+            last = id;
+        }
+    }
+
+    private int next(DeviceInventory devices, int fromId) {
+        return type == DeviceInventory.NONE ? devices.next(fromId) : devices.nextOfType(type, fromId);
+    }
+}
+
+/**
+ * Feed of device changes stamped with a global, monotonically increasing version.
+ * Every mutation, addition and removal takes the next version and is recorded in a bounded ring buffer, which lets
+ * clients ask for the devices changed since the last version they have seen. Clients that fall further behind than
+ * the ring reaches get a full snapshot instead.
+ * Recording is safe from several threads; reading requires the same exclusive access as {@code DisplayAllStatus}.
+ */
+final class ChangeFeed implements DeviceListener {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final DeviceInventory devices;
+    private final int capacity;
+    private final int[] ringIds;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition advanced = waitLock.newCondition();
+    private long[] latestById = new long[16];
+    private String[] removedTypes = new String[16];
+
+    /**
+     * Creates a feed for the devices of an inventory.
+     *
+     * @param devices  The inventory whose devices are reported.
+     * @param capacity Number of recent changes kept, rounded up to a power of two.
+     */
+    ChangeFeed(DeviceInventory devices, int capacity) {
+        this.devices = devices;
+        this.capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.ringIds = new int[this.capacity];
+    }
+
+    long version() {
+        return sequence.get();
+    }
+
+    /**
+     * @param id The id of a device in the inventory.
+     * @return The version of the device's last change.
+     */
+    long versionOf(int id) {
+        return latestById[id];
+    }
+
+    @Override
+    public void deviceChanged(SmartDevice device, DeviceAttribute attribute) {
+        record(device.getDeviceId());
+    }
+
+    @Override
+    public void deviceAdded(SmartDevice device) {
+        int id = device.getDeviceId();
+        if (id >= latestById.length) {
+            latestById = Arrays.copyOf(latestById, Math.max(latestById.length * 2, id + 1));
+            removedTypes = Arrays.copyOf(removedTypes, latestById.length);
+        }
+        removedTypes[id] = null;
+        record(id);
+    }
+
+    @Override
+    public void deviceRemoved(SmartDevice device) {
+        int id = device.getDeviceId();
+        removedTypes[id] = devices.getType(id);
+        record(id);
+    }
+
+    /**
+     * Writes the devices changed after a version, or all devices if that version is no longer in the ring.
+     * Every changed device is listed once with its current status, removed devices are reported as removed.
+     *
+     * @param since The last version the client has seen.
+     * @param out   Sink receiving the changes.
+     * @return The version the written changes are up to.
+     */
+    long writeChangesSince(long since, ResponseSink out) {
+        long current = sequence.get();
+        if (since < current - capacity || since > current) {
+            out.append("Full snapshot at version ").append(current).append(':').newLine();
+            devices.writeAllStatus(out);
+            return current;
+        }
+
+        out.append("Changes since version ").append(since).append(" up to version ").append(current).append(':')
+                .newLine();
+        for (long version = since + 1; version <= current; version++) {
+            int id = ringIds[(int) version & (capacity - 1)];
+            // A device changed several times is listed at its latest change only
+            if (latestById[id] != version) {
+                continue;
+            }
+            if (removedTypes[id] != null) {
+                out.append(removedTypes[id]).append(' ').append(id).append(" was removed").newLine();
+            } else {
+                devices.get(id).writeStatus(out);
+                out.newLine();
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Waits until a version newer than the given one is recorded.
+     *
+     * @param version       The last version seen.
+     * @param timeoutMillis Maximum time to wait.
+     * @return The current version, which equals the given one if the wait timed out.
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    long awaitAfter(long version, long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        waiters.incrementAndGet();
+        waitLock.lock();
+        try {
+            while (sequence.get() <= version && remaining > 0) {
+                remaining = advanced.awaitNanos(remaining);
+            }
+        } finally {
+            waitLock.unlock();
+            waiters.decrementAndGet();
+        }
+        return sequence.get();
+    }
+
+    private void record(int id) {
+        long version = sequence.incrementAndGet();
+        ringIds[(int) version & (capacity - 1)] = id;
+        latestById[id] = version;
+
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                advanced.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+}
+
+/**
+ * Write-ahead journal and snapshot keeping the device state across restarts.
+ * Every change is appended as a fixed-size binary record, and records are written and synced to disk in groups, either
+ * by a background committer every few milliseconds or when the buffer fills up. After enough records a snapshot of all
+ * devices and of the ids free for reuse is written through a memory-mapped file and the journal starts over, so a
+ * restart loads the snapshot and replays only the journal tail, and new devices get the ids they would have got
+ * without the restart.
+ */
+final class DeviceJournal implements DeviceListener, AutoCloseable {
+    static final long DEFAULT_COMMIT_MILLIS = 10;
+    static final long DEFAULT_SNAPSHOT_EVERY = 1_000_000;
+
+    private static final String JOURNAL_FILE = "journal.log";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final int SNAPSHOT_MAGIC = 0x53484D46;
+    private static final int SNAPSHOT_HEADER = Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+    static final int SNAPSHOT_RECORD = 16;
+    private static final int RECORD_SIZE = Long.BYTES + 1 + Integer.BYTES + Integer.BYTES;
+    private static final int BUFFER_SIZE = RECORD_SIZE * 4096;
+    private static final byte ADDED = 64;
+    private static final byte REMOVED = 65;
+    private static final DeviceAttribute[] ATTRIBUTES = DeviceAttribute.values();
+    private static final Status[] STATUSES = Status.values();
+    private static final BrightnessLevel[] BRIGHTNESS_LEVELS = BrightnessLevel.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+
+    private final DeviceInventory devices;
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final long commitMillis;
+    private final long snapshotEvery;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private FileChannel journal;
+    private ScheduledExecutorService committer;
+    private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long sequence;
+    private long sinceSnapshot;
+
+    /**
+     * Creates a journal keeping its files in the given directory.
+     *
+     * @param directory     Directory for the journal and the snapshot, created if missing.
+     * @param devices       The inventory to persist.
+     * @param commitMillis  Maximum time a change waits before it is synced to disk.
+     * @param snapshotEvery Number of journal records after which a new snapshot is taken.
+     * @throws IOException If the directory cannot be created.
+     */
+    DeviceJournal(Path directory, DeviceInventory devices, long commitMillis, long snapshotEvery) throws IOException {
+        Files.createDirectories(directory);
+        this.devices = devices;
+        this.journalPath = directory.resolve(JOURNAL_FILE);
+        this.snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        this.commitMillis = commitMillis;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /**
+     * Loads the last snapshot into the inventory and replays the journal written after it.
+     * A record torn by a crash ends the replay, as do the records following it.
+     *
+     * @return {@code true} if a saved state was found, {@code false} if the inventory was left empty.
+     * @throws IOException If the files cannot be read.
+     */
+    boolean restore() throws IOException {
+        boolean restored = false;
+        if (Files.exists(snapshotPath)) {
+            loadSnapshot();
+            restored = true;
+        }
+        if (!Files.exists(journalPath)) {
+            return restored;
+        }
+
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (records.remaining() >= RECORD_SIZE) {
+                long recordSequence = records.getLong();
+                byte kind = records.get();
+                int id = records.getInt();
+                int value = records.getInt();
+                if (recordSequence <= sequence) {
+                    continue;
+                }
+                if (recordSequence != sequence + 1 || !replay(kind, id, value)) {
+                    break;
+                }
+                sequence = recordSequence;
+                restored = true;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Starts journaling changes of the inventory, after writing a snapshot of its current state.
+     *
+     * @throws IOException If the files cannot be written.
+     */
+    void start() throws IOException {
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        checkpoint();
+        devices.addListener(this);
+
+        committer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "journal-committer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(this::commit, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void deviceChanged(SmartDevice device, DeviceAttribute attribute) {
+        append((byte) attribute.ordinal(), device.getDeviceId(), attribute.read(device));
+    }
+
+    @Override
+    public void deviceAdded(SmartDevice device) {
+        int id = device.getDeviceId();
+        append(ADDED, id, DeviceInventory.typeOf(device));
+        for (DeviceAttribute attribute : ATTRIBUTES) {
+            if (attribute.appliesTo(DeviceInventory.typeOf(device))) {
+                append((byte) attribute.ordinal(), id, attribute.read(device));
+            }
+        }
+    }
+
+    @Override
+    public void deviceRemoved(SmartDevice device) {
+        append(REMOVED, device.getDeviceId(), 0);
+    }
+
+    @Override
+    public void atSafePoint() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes all pending records to the journal and syncs it to disk.
+     */
+    void commit() {
+        commitLock.lock();
+        try {
+            appendLock.lock();
+            ByteBuffer full;
+            try {
+                full = active;
+                active = spare;
+                spare = full;
+            } finally {
+                appendLock.unlock();
+            }
+
+            full.flip();
+            if (full.hasRemaining()) {
+                while (full.hasRemaining()) {
+                    journal.write(full);
+                }
+                journal.force(false);
+            }
+            full.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Commits the pending records and writes a final snapshot.
+     *
+     * @throws IOException If the files cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        committer.shutdown();
+        checkpoint();
+        journal.close();
+    }
+
+    // Callers need exclusive access to the inventory, so the snapshot is consistent with the sequence it records
+    private void checkpoint() throws IOException {
+        commitLock.lock();
+        try {
+            commit();
+            writeSnapshot();
+            journal.truncate(0);
+            journal.position(0);
+            journal.force(true);
+            sinceSnapshot = 0;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    private void append(byte kind, int id, int value) {
+        while (true) {
+            appendLock.lock();
+            try {
+                if (active.remaining() >= RECORD_SIZE) {
+                    active.putLong(++sequence).put(kind).putInt(id).putInt(value);
+                    if (++sinceSnapshot == snapshotEvery) {
+                        devices.requestSafePoint();
+                    }
+                    return;
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            // The buffer is full, so this change waits for a group commit like the ones before it
+            commit();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        Path temporary = snapshotPath.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The free ids follow the devices, so that a restored home hands out the same ids as before
+            int[] freeIds = devices.freeIds();
+            long size = SNAPSHOT_HEADER + (long) devices.size() * SNAPSHOT_RECORD
+                    + (long) freeIds.length * Integer.BYTES;
+            MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            snapshot.putInt(SNAPSHOT_MAGIC).putLong(sequence).putInt(devices.size()).putInt(freeIds.length);
+            for (SmartDevice device : devices) {
+                writeDevice(device, snapshot);
+            }
+            for (int id : freeIds) {
+                snapshot.putInt(id);
+            }
+            snapshot.force();
+        }
+        Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadSnapshot() throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (snapshot.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a device snapshot: " + snapshotPath);
+            }
+            sequence = snapshot.getLong();
+            int count = snapshot.getInt();
+            int[] freeIds = new int[snapshot.getInt()];
+            for (int i = 0; i < count; i++) {
+                readDevice(snapshot, devices);
+            }
+            for (int i = 0; i < freeIds.length; i++) {
+                freeIds[i] = snapshot.getInt();
+            }
+            devices.restoreFreeIds(freeIds);
+        }
+    }
+
+    /**
+     * Writes the state of a device as a fixed-size snapshot record of {@link #SNAPSHOT_RECORD} bytes.
+     *
+     * @param device The device.
+     * @param buffer Buffer receiving the record at its position.
+     */
+    static void writeDevice(SmartDevice device, ByteBuffer buffer) {
+        buffer.putInt(device.getDeviceId())
+                .put(DeviceInventory.typeOf(device))
+                .put((byte) DeviceAttribute.STATUS.read(device))
+                .put((byte) DeviceAttribute.CHARGING.read(device))
+                .put((byte) DeviceAttribute.RECORDING.read(device))
+                .put((byte) DeviceAttribute.BRIGHTNESS.read(device))
+                .put((byte) DeviceAttribute.COLOR.read(device))
+                .putShort((short) 0)
+                .putInt(device instanceof Heater
+                        ? DeviceAttribute.TEMPERATURE.read(device)
+                        : DeviceAttribute.ANGLE.read(device));
+    }
+
+    /**
+     * Reads a snapshot record and adds the device under its id.
+     *
+     * @param buffer  Buffer holding the record at its position.
+     * @param devices The inventory receiving the device.
+     */
+    static void readDevice(ByteBuffer buffer, DeviceInventory devices) {
+        int id = buffer.getInt();
+        byte type = buffer.get();
+        Status status = STATUSES[buffer.get()];
+        boolean charging = buffer.get() != 0;
+        boolean recording = buffer.get() != 0;
+        BrightnessLevel brightness = BRIGHTNESS_LEVELS[buffer.get()];
+        LightColor color = LIGHT_COLORS[buffer.get()];
+        buffer.getShort();
+        int value = buffer.getInt();
+
+        if (type == DeviceInventory.LIGHT) {
+            devices.add(new Light(status, charging, brightness, color), id);
+        } else if (type == DeviceInventory.CAMERA) {
+            devices.add(new Camera(status, charging, recording, value), id);
+        } else if (type == DeviceInventory.HEATER) {
+            devices.add(new Heater(status, value), id);
+        } else {
+            // Other types are restored through the attributes they declare
+            devices.add(DeviceTypes.get(type).newDevice(), id);
+            SmartDevice device = devices.get(id);
+            int[] values = {status.ordinal(), charging ? 1 : 0, recording ? 1 : 0, value, value,
+                    brightness.ordinal(), color.ordinal()};
+            for (DeviceAttribute attribute : ATTRIBUTES) {
+                if (attribute.appliesTo(type)) {
+                    apply(device, attribute, values[attribute.ordinal()]);
+                }
+            }
+        }
+    }
+
+    private boolean replay(byte kind, int id, int value) {
+        if (kind == ADDED) {
+            if (value <= DeviceInventory.NONE || value >= DeviceInventory.TYPE_COUNT || DeviceTypes.get(value) == null) {
+                return false;
+            }
+            devices.add(DeviceTypes.get(value).newDevice(), id);
+            return true;
+        }
+        if (kind == REMOVED) {
+            return devices.remove(id);
+        }
+        if (kind < 0 || kind >= ATTRIBUTES.length || !devices.contains(id)
+                || !ATTRIBUTES[kind].appliesTo(devices.type(id))) {
+            return false;
+        }
+        apply(devices.get(id), ATTRIBUTES[kind], value);
+        return true;
+    }
+
+    private static void apply(SmartDevice device, DeviceAttribute attribute, int value) {
+        switch (attribute) {
+            case STATUS:
+                device.setStatus(STATUSES[value]);
+                break;
+            case CHARGING:
+                if (value != 0) {
+                    ((Chargeable) device).startCharging();
+                } else {
+                    ((Chargeable) device).stopCharging();
+                }
+                break;
+            case RECORDING:
+                if (value != 0) {
+                    ((Camera) device).startRecording();
+                } else {
+                    ((Camera) device).stopRecording();
+                }
+                break;
+            case ANGLE:
+                ((Camera) device).setCameraAngle(value);
+                break;
+            case TEMPERATURE:
+                ((Heater) device).setTemperature(value);
+                break;
+            case BRIGHTNESS:
+                ((Light) device).setBrightnessLevel(BRIGHTNESS_LEVELS[value]);
+                break;
+            default:
+                ((Light) device).setLightColor(LIGHT_COLORS[value]);
+        }
+    }
+}
+
+/**
+ * Counters and latency histograms of the executed commands, recorded without locks or allocation so that they can
+ * stay enabled on the hot path.
+ * Latencies go into log-linear histograms, in the manner of HdrHistogram: values below 32 ns have a bucket each and
+ * every further power of two is split into 16 buckets, which keeps the relative error of a reported percentile below
+ * 1/16 for any latency. There is one histogram per opcode and one per device type named in the command.
+ * Only the commands of the clients are recorded as commands; the actions of triggered rules are counted separately,
+ * and their time is part of the latency of the command that triggered them.
+ */
+final class CommandMetrics {
+    static final long DEFAULT_DUMP_MILLIS = 10_000;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final AtomicLongArray[] byOpcode = new AtomicLongArray[CommandTable.COUNT];
+    private final AtomicLongArray[] byType = new AtomicLongArray[DeviceInventory.TYPE_COUNT];
+    private final AtomicLongArray nanosByOpcode = new AtomicLongArray(CommandTable.COUNT);
+    private final AtomicLongArray nanosByType = new AtomicLongArray(DeviceInventory.TYPE_COUNT);
+    private final AtomicLongArray ruleActions = new AtomicLongArray(CommandTable.COUNT);
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong notFound = new AtomicLong();
+    private final AtomicLong busyQueueFull = new AtomicLong();
+    private final AtomicLong busyRateLimited = new AtomicLong();
+
+    CommandMetrics() {
+        for (int op = 0; op < byOpcode.length; op++) {
+            byOpcode[op] = new AtomicLongArray(BUCKETS);
+        }
+        for (int type = 0; type < byType.length; type++) {
+            byType[type] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Records an executed command.
+     *
+     * @param op    The opcode of the command.
+     * @param type  The device type named in the command, {@link DeviceInventory#NONE} if there is none.
+     * @param nanos The time the command took.
+     */
+    void record(int op, byte type, long nanos) {
+        int bucket = bucketOf(nanos);
+        byOpcode[op].getAndIncrement(bucket);
+        nanosByOpcode.getAndAdd(op, nanos);
+        if (type != DeviceInventory.NONE) {
+            byType[type].getAndIncrement(bucket);
+            nanosByType.getAndAdd(type, nanos);
+        }
+    }
+
+    /**
+     * Counts a command run as the action of a triggered rule.
+     *
+     * @param op The opcode of the action.
+     */
+    void ruleAction(int op) {
+        ruleActions.getAndIncrement(op);
+    }
+
+    /**
+     * Counts a command answered with "Invalid command".
+     */
+    void invalidCommand() {
+        invalid.getAndIncrement();
+    }
+
+    /**
+     * Counts a command answered with "The smart device was not found".
+     */
+    void deviceNotFound() {
+        notFound.getAndIncrement();
+    }
+
+    /**
+     * Counts a command answered with "Busy, try again later" by the {@link IngestPipeline}.
+     *
+     * @param rateLimited {@code true} if its client was over its rate, {@code false} if the queue was full.
+     */
+    void busy(boolean rateLimited) {
+        (rateLimited ? busyRateLimited : busyQueueFull).getAndIncrement();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     * Counters and histograms are read one by one while commands keep running, so the output is not an atomic
+     * snapshot, but every value in it is exact at the time it was read.
+     *
+     * @param out Sink receiving the metrics.
+     */
+    void write(ResponseSink out) {
+        long[] counts = new long[BUCKETS];
+
+        out.append("# HELP smarthome_commands_total Commands executed for clients, by command name.").newLine();
+        out.append("# TYPE smarthome_commands_total counter").newLine();
+        for (int op = 0; op < byOpcode.length; op++) {
+            long count = read(byOpcode[op], counts);
+            if (count > 0) {
+                out.append("smarthome_commands_total{command=\"").append(commandLabel(op)).append("\"} ")
+                        .append(count).newLine();
+            }
+        }
+        out.append("# HELP smarthome_rule_actions_total Commands executed as actions of triggered rules, by command "
+                + "name, not included in smarthome_commands_total.").newLine();
+        out.append("# TYPE smarthome_rule_actions_total counter").newLine();
+        for (int op = 0; op < ruleActions.length(); op++) {
+            long count = ruleActions.get(op);
+            if (count > 0) {
+                out.append("smarthome_rule_actions_total{command=\"").append(commandLabel(op)).append("\"} ")
+                        .append(count).newLine();
+            }
+        }
+
+        out.append("# HELP smarthome_invalid_commands_total Commands answered with \"Invalid command\".").newLine();
+        out.append("# TYPE smarthome_invalid_commands_total counter").newLine();
+        out.append("smarthome_invalid_commands_total ").append(invalid.get()).newLine();
+        out.append("# HELP smarthome_devices_not_found_total Commands naming a device that does not exist.")
+                .newLine();
+        out.append("# TYPE smarthome_devices_not_found_total counter").newLine();
+        out.append("smarthome_devices_not_found_total ").append(notFound.get()).newLine();
+        out.append("# HELP smarthome_busy_commands_total Commands not admitted by the ingest pipeline, by reason.")
+                .newLine();
+        out.append("# TYPE smarthome_busy_commands_total counter").newLine();
+        out.append("smarthome_busy_commands_total{reason=\"queue\"} ").append(busyQueueFull.get()).newLine();
+        out.append("smarthome_busy_commands_total{reason=\"rate\"} ").append(busyRateLimited.get()).newLine();
+
+        out.append("# HELP smarthome_command_latency_nanoseconds Time taken by commands with the rule actions they "
+                + "triggered, by command name.").newLine();
+        out.append("# TYPE smarthome_command_latency_nanoseconds summary").newLine();
+        for (int op = 0; op < byOpcode.length; op++) {
+            writeSummary("smarthome_command_latency_nanoseconds", "command", commandLabel(op), byOpcode[op],
+                    nanosByOpcode.get(op), counts, out);
+        }
+        out.append("# HELP smarthome_device_command_latency_nanoseconds Time taken by commands, by device type.")
+                .newLine();
+        out.append("# TYPE smarthome_device_command_latency_nanoseconds summary").newLine();
+        for (int type = 1; type < byType.length; type++) {
+            writeSummary("smarthome_device_command_latency_nanoseconds", "type", DeviceInventory.typeName(type),
+                    byType[type], nanosByType.get(type), counts, out);
+        }
+    }
+
+    /**
+     * Writes the metrics to a file every given interval from a daemon thread.
+     * The file is replaced atomically, so readers never see a partial dump.
+     *
+     * @param file   The file to write.
+     * @param millis The interval between dumps.
+     * @return The scheduler, to be shut down when the program ends.
+     */
+    ScheduledExecutorService dumpEvery(Path file, long millis) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(() -> dump(file), millis, millis, TimeUnit.MILLISECONDS);
+        return dumper;
+    }
+
+    /**
+     * Writes the metrics to a file, replacing it atomically.
+     *
+     * @param file The file to write.
+     */
+    void dump(Path file) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (OutputStream stream = Files.newOutputStream(temp)) {
+                ResponseSink out = new ResponseSink(stream, ResponseSink.DEFAULT_FLUSH_BYTES, Long.MAX_VALUE);
+                write(out);
+                out.flush();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeSummary(String name, String label, String value, AtomicLongArray histogram,
+            long sum, long[] counts, ResponseSink out) {
+        long count = read(histogram, counts);
+        if (count == 0) {
+            return;
+        }
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append('{').append(label).append("=\"").append(value).append("\",quantile=\"")
+                    .append(QUANTILE_LABELS[i]).append("\"} ").append(percentile(counts, count, QUANTILES[i]))
+                    .newLine();
+        }
+        out.append(name).append("_sum{").append(label).append("=\"").append(value).append("\"} ").append(sum)
+                .newLine();
+        out.append(name).append("_count{").append(label).append("=\"").append(value).append("\"} ").append(count)
+                .newLine();
+    }
+
+    private static String commandLabel(int op) {
+        return op == CommandTable.INVALID ? "Invalid" : CommandTable.name(op);
+    }
+
+    /**
+     * Copies a histogram into a plain array.
+     *
+     * @return The number of recorded values.
+     */
+    private static long read(AtomicLongArray histogram, long[] counts) {
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = histogram.get(bucket);
+            total += counts[bucket];
+        }
+        return total;
+    }
+
+    /**
+     * Finds the smallest recorded value such that the given share of all values is at most this value.
+     *
+     * @return The highest value of the bucket holding the percentile.
+     */
+    private static long percentile(long[] counts, long total, double quantile) {
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return highestValueOf(bucket);
+            }
+        }
+        return highestValueOf(BUCKETS - 1);
+    }
+
+    static int bucketOf(long value) {
+        long clamped = Math.max(value, 0);
+        int shift = Math.max(0, Long.SIZE - Long.numberOfLeadingZeros(clamped) - SUB_BUCKET_BITS - 1);
+        return (int) ((shift << SUB_BUCKET_BITS) + (clamped >>> shift));
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = bucket - ((long) shift << SUB_BUCKET_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
+
+/**
+ * Automation rules running device commands when a device attribute changes, added with commands such as
+ * {@code AddRule Camera 4 Recording = true SetBrightness Light * HIGH} or
+ * {@code AddRule Heater * Temperature > 28 TurnOff Heater $}, where {@code $} stands for the triggering device.
+ * Attributes and their values may be written in any case, as in {@code Find} and {@code History}.
+ *
+ * <p>Rules are indexed by device type and attribute and, within those, by device id, so a change evaluates only the
+ * rules watching that attribute of that device and the rules watching it on all devices of the type. Actions do not
+ * run inside the mutator that triggered them: they are queued, and the command loop runs them after the triggering
+ * command through {@link #nextAction(ResponseSink)}, so their responses follow the response of the command.
+ *
+ * <p>Actions can trigger further rules. All actions caused by one command form a cascade; a rule triggered a second
+ * time by the same device within a cascade means the rules form a cycle, so it is reported and not run again, and a
+ * cascade is stopped after {@link #MAX_CASCADE} queued actions.
+ *
+ * <p>Rules can be triggered from any thread, but the command loops run device commands one at a time while any rule
+ * exists, so the queue is only used by one thread at a time. Rules are added and removed with the inventory held
+ * exclusively, and the concurrent loops check for rules again once they hold their lock.
+ */
+final class RuleEngine implements DeviceListener {
+    static final int MAX_CASCADE = 10_000;
+    private static final String PLACEHOLDER = "$";
+    private static final DeviceAttribute[] ATTRIBUTES = DeviceAttribute.values();
+    private static final BrightnessLevel[] BRIGHTNESS_LEVELS = BrightnessLevel.values();
+    private static final String[] OPERATORS = {"=", "!=", "<", "<=", ">", ">="};
+    private static final int EQUAL = 0;
+    private static final int NOT_EQUAL = 1;
+    private static final int LESS = 2;
+    private static final int LESS_OR_EQUAL = 3;
+    private static final int GREATER = 4;
+    private static final int ANY_DEVICE = -1;
+
+    private Rule[] rules = new Rule[16];
+    private int nextRuleId;
+    private volatile int count;
+    private final Bucket[] buckets = new Bucket[DeviceInventory.TYPE_COUNT * ATTRIBUTES.length];
+
+    // Actions queued in the current cascade, and the rule and device pairs already triggered in it
+    private Rule[] queuedRules = new Rule[16];
+    private int[] queuedDevices = new int[16];
+    private boolean[] queuedCycles = new boolean[16];
+    private int head;
+    private int tail;
+    private boolean overflow;
+    private long[] triggered = new long[32];
+    private int[] triggeredSlots = new int[16];
+    private int triggeredCount;
+    private final CommandLine action = new CommandLine();
+    private byte[] actionBytes = new byte[64];
+
+    /**
+     * Checks the syntax of an {@code AddRule} command:
+     * {@code AddRule <type> <id|*> <attribute> <operator> <value> <device command>}.
+     *
+     * @param cmd The tokenized command line.
+     * @return {@code true} if the rule can be added.
+     */
+    static boolean isWellFormed(CommandLine cmd) {
+        return compile(-1, cmd) != null;
+    }
+
+    /**
+     * Adds a rule from a command validated by {@link #isWellFormed(CommandLine)}.
+     *
+     * @param cmd The tokenized {@code AddRule} command.
+     * @return The id of the new rule.
+     */
+    int add(CommandLine cmd) {
+        Rule rule = compile(nextRuleId++, cmd);
+        if (rule.id >= rules.length) {
+            rules = Arrays.copyOf(rules, rules.length * 2);
+        }
+        rules[rule.id] = rule;
+        bucket(rule.type, rule.attribute).rulesFor(rule.deviceId, true).add(rule);
+        count++;
+        return rule.id;
+    }
+
+    /**
+     * Removes a rule.
+     *
+     * @param id The rule id.
+     * @return {@code false} if there is no such rule.
+     */
+    boolean remove(int id) {
+        if (id < 0 || id >= nextRuleId || rules[id] == null) {
+            return false;
+        }
+        Rule rule = rules[id];
+        rules[id] = null;
+        bucket(rule.type, rule.attribute).rulesFor(rule.deviceId, false).remove(rule);
+        count--;
+        return true;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public void deviceChanged(SmartDevice device, DeviceAttribute attribute) {
+        if (count == 0) {
+            return;
+        }
+        Bucket bucket = buckets[DeviceInventory.typeOf(device) * ATTRIBUTES.length + attribute.ordinal()];
+        if (bucket == null) {
+            return;
+        }
+        int id = device.getDeviceId();
+        int value = attribute.read(device);
+        RuleList forDevice = bucket.rulesFor(id, false);
+        if (forDevice != null) {
+            trigger(forDevice, id, value);
+        }
+        trigger(bucket.anyDevice, id, value);
+    }
+
+    /**
+     * Takes the next queued action, writing which rule it belongs to, or ends the cascade.
+     *
+     * @param out Sink receiving the rule messages.
+     * @return The action to execute, or {@code null} if the cascade is over.
+     */
+    CommandLine nextAction(ResponseSink out) {
+        while (head < tail) {
+            Rule rule = queuedRules[head];
+            int id = queuedDevices[head];
+            boolean cycle = queuedCycles[head];
+            queuedRules[head++] = null;
+            if (rules[rule.id] != rule) {
+                continue; // Removed by an earlier action
+            }
+            if (cycle) {
+                out.append("Rule ").append(rule.id).append(" was not run again for ")
+                        .append(DeviceInventory.typeName(rule.type)).append(' ').append(id)
+                        .append(", the rules form a cycle").newLine();
+                continue;
+            }
+            out.append("Rule ").append(rule.id).append(" was triggered by ")
+                    .append(DeviceInventory.typeName(rule.type)).append(' ').append(id).newLine();
+            if (actionBytes.length < rule.maxLength()) {
+                actionBytes = new byte[rule.maxLength()];
+            }
+            action.set(actionBytes, 0, rule.render(id, actionBytes));
+            return action;
+        }
+        if (tail > 0) {
+            if (overflow) {
+                out.append("Rules were stopped after ").append(MAX_CASCADE).append(" actions").newLine();
+            }
+            endCascade();
+        }
+        return null;
+    }
+
+    private void trigger(RuleList list, int id, int value) {
+        for (int i = 0; i < list.size; i++) {
+            Rule rule = list.items[i];
+            if (rule.matches(value)) {
+                enqueue(rule, id);
+            }
+        }
+    }
+
+    private void enqueue(Rule rule, int id) {
+        if (tail == MAX_CASCADE) {
+            overflow = true;
+            return;
+        }
+        if (tail == queuedRules.length) {
+            queuedRules = Arrays.copyOf(queuedRules, tail * 2);
+            queuedDevices = Arrays.copyOf(queuedDevices, tail * 2);
+            queuedCycles = Arrays.copyOf(queuedCycles, tail * 2);
+        }
+        queuedRules[tail] = rule;
+        queuedDevices[tail] = id;
+        queuedCycles[tail] = !markTriggered(rule.id, id);
+        tail++;
+    }
+
+    /**
+     * Adds a rule and device pair to the open-addressing set of the current cascade.
+     *
+     * @return {@code false} if the pair was already triggered in this cascade.
+     */
+    private boolean markTriggered(int ruleId, int deviceId) {
+        if (triggeredCount * 2 >= triggered.length) {
+            long[] old = triggered;
+            triggered = new long[old.length * 2];
+            triggeredSlots = new int[triggered.length / 2];
+            triggeredCount = 0;
+            for (long key : old) {
+                if (key != 0) {
+                    insert(key);
+                }
+            }
+        }
+        // Rule ids are offset by one, so no key is 0, which marks empty slots
+        return insert(((long) (ruleId + 1) << Integer.SIZE) | (deviceId & 0xFFFFFFFFL));
+    }
+
+    private boolean insert(long key) {
+        int mask = triggered.length - 1;
+        for (int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask; ; slot = (slot + 1) & mask) {
+            if (triggered[slot] == key) {
+                return false;
+            }
+            if (triggered[slot] == 0) {
+                triggered[slot] = key;
+                triggeredSlots[triggeredCount++] = slot;
+                return true;
+            }
+        }
+    }
+
+    private void endCascade() {
+        for (int i = 0; i < triggeredCount; i++) {
+            triggered[triggeredSlots[i]] = 0;
+        }
+        triggeredCount = 0;
+        head = 0;
+        tail = 0;
+        overflow = false;
+    }
+
+    private Bucket bucket(byte type, DeviceAttribute attribute) {
+        int index = type * ATTRIBUTES.length + attribute.ordinal();
+        if (buckets[index] == null) {
+            buckets[index] = new Bucket();
+        }
+        return buckets[index];
+    }
+
+    /**
+     * Parses an {@code AddRule} command.
+     *
+     * @return The rule, or {@code null} if the command is invalid.
+     */
+    private static Rule compile(int id, CommandLine cmd) {
+        if (cmd.length() < 9) {
+            return null;
+        }
+        byte type = cmd.deviceType(1);
+        DeviceAttribute attribute = DeviceAttribute.parse(cmd, 3);
+        int operator = indexOf(cmd, 4, OPERATORS);
+        if (type == DeviceInventory.NONE || !(cmd.isInt(2) && cmd.parseIntClamped(2) >= 0 || cmd.matches(2, "*"))
+                || attribute == null || operator < 0 || !attribute.appliesTo(type)) {
+            return null;
+        }
+
+        // The value has the same spelling as in the commands changing the attribute, in any case
+        Integer operand;
+        boolean ordered = false;
+        switch (attribute) {
+            case ANGLE:
+            case TEMPERATURE:
+                operand = cmd.isInt(5) ? cmd.parseIntClamped(5) : null;
+                ordered = true;
+                break;
+            case BRIGHTNESS:
+                int level = attribute.parseValue(cmd.text(5));
+                operand = level < 0 ? null : brightnessRank(level);
+                ordered = true;
+                break;
+            default:
+                int value = attribute.parseValue(cmd.text(5));
+                operand = value < 0 ? null : value;
+        }
+        if (operand == null || operator > NOT_EQUAL && !ordered) {
+            return null;
+        }
+
+        // The action is a device command, with $ in place of the id standing for the triggering device
+        byte[] before;
+        byte[] after;
+        if (cmd.matches(8, PLACEHOLDER)) {
+            before = cmd.copyTokens(6, 8);
+            after = cmd.copyTokens(9, cmd.length());
+        } else {
+            before = cmd.copyTokens(6, cmd.length());
+            after = null;
+        }
+        Rule rule = new Rule(id, type, cmd.isInt(2) ? cmd.parseIntClamped(2) : ANY_DEVICE, attribute,
+                operator, operand, before, after);
+        CommandLine action = new CommandLine();
+        byte[] sample = new byte[rule.maxLength()];
+        action.set(sample, 0, rule.render(0, sample));
+        int op = CommandTable.opcode(action);
+        if (op < CommandTable.TURN_ON || op > CommandTable.STOP_RECORDING || !Main.isWellFormed(op, action)) {
+            return null;
+        }
+        return rule;
+    }
+
+    private static int indexOf(CommandLine cmd, int index, String[] literals) {
+        for (int i = 0; i < literals.length; i++) {
+            if (cmd.matches(index, literals[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The rank of a brightness level given by its ordinal, from {@code LOW} up, as the levels are declared
+     *         from {@code HIGH} down.
+     */
+    private static int brightnessRank(int ordinal) {
+        switch (BRIGHTNESS_LEVELS[ordinal]) {
+            case LOW:
+                return 0;
+            case MEDIUM:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * A compiled rule: the watched attribute, the condition on its new value and the action to run.
+     */
+    private static final class Rule {
+        final int id;
+        final byte type;
+        final int deviceId;
+        final DeviceAttribute attribute;
+        final int operator;
+        final int operand;
+        final byte[] before;
+        final byte[] after;
+
+        Rule(int id, byte type, int deviceId, DeviceAttribute attribute, int operator, int operand, byte[] before,
+                byte[] after) {
+            this.id = id;
+            this.type = type;
+            this.deviceId = deviceId;
+            this.attribute = attribute;
+            this.operator = operator;
+            this.operand = operand;
+            this.before = before;
+            this.after = after;
+        }
+
+        boolean matches(int value) {
+            if (attribute == DeviceAttribute.BRIGHTNESS) {
+                value = brightnessRank(value);
+            }
+            switch (operator) {
+                case EQUAL:
+                    return value == operand;
+                case NOT_EQUAL:
+                    return value != operand;
+                case LESS:
+                    return value < operand;
+                case LESS_OR_EQUAL:
+                    return value <= operand;
+                case GREATER:
+                    return value > operand;
+                default:
+                    return value >= operand;
+            }
+        }
+
+        /**
+         * @return The length of the longest action this rule can render, with the largest id in place of {@code $}.
+         */
+        int maxLength() {
+            return after == null ? before.length : before.length + after.length + 12;
+        }
+
+        /**
+         * Writes the action with the given device id in place of {@code $}.
+         *
+         * @param id     The id of the triggering device, not negative.
+         * @param target Buffer of at least {@link #maxLength()} bytes.
+         * @return The length of the action.
+         */
+        int render(int id, byte[] target) {
+            System.arraycopy(before, 0, target, 0, before.length);
+            if (after == null) {
+                return before.length;
+            }
+            int length = before.length;
+            target[length++] = ' ';
+            int digits = 1;
+            for (int rest = id / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            for (int i = length + digits - 1; i >= length; i--) {
+                target[i] = (byte) ('0' + id % 10);
+                id /= 10;
+            }
+            length += digits;
+            if (after.length > 0) {
+                target[length++] = ' ';
+                System.arraycopy(after, 0, target, length, after.length);
+                length += after.length;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Rules watching one attribute of one device type, in an open-addressing map from device id to rules.
+     */
+    private static final class Bucket {
+        final RuleList anyDevice = new RuleList();
+        private int[] ids = new int[8];
+        private RuleList[] lists = new RuleList[8];
+        private int size;
+
+        /**
+         * @param id     A device id, or {@link #ANY_DEVICE}.
+         * @param create Whether to add an empty list for a device without rules.
+         * @return The rules watching the device, {@code null} if there are none and {@code create} is not set.
+         */
+        RuleList rulesFor(int id, boolean create) {
+            if (id == ANY_DEVICE) {
+                return anyDevice;
+            }
+            int mask = ids.length - 1;
+            int slot = slot(id, mask);
+            for (; lists[slot] != null; slot = (slot + 1) & mask) {
+                if (ids[slot] == id) {
+                    return lists[slot];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            if ((size + 1) * 2 > ids.length) {
+                grow();
+                return rulesFor(id, true);
+            }
+            ids[slot] = id;
+            lists[slot] = new RuleList();
+            size++;
+            return lists[slot];
+        }
+
+        private void grow() {
+            int[] oldIds = ids;
+            RuleList[] oldLists = lists;
+            ids = new int[oldIds.length * 2];
+            lists = new RuleList[oldLists.length * 2];
+            int mask = ids.length - 1;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldLists[i] != null) {
+                    int slot = slot(oldIds[i], mask);
+                    while (lists[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    ids[slot] = oldIds[i];
+                    lists[slot] = oldLists[i];
+                }
+            }
+        }
+    }
+
+    private static int slot(int id, int mask) {
+        int hash = id * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & mask;
+    }
+
+    private static final class RuleList {
+        Rule[] items = new Rule[2];
+        int size;
+
+        void add(Rule rule) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = rule;
+        }
+
+        void remove(Rule rule) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == rule) {
+                    items[i] = items[--size];
+                    items[size] = null;
+                    return;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Runs commands at a later time, scheduled with commands such as {@code Schedule 30m TurnOff Light 2},
+ * {@code Schedule every 10s DisplayAllStatus} or {@code Schedule 23:00 SetTemperature Heater 7 18}, the last one
+ * repeating every day at that local time.
+ *
+ * <p>Pending timers are kept in a hierarchical timing wheel with millisecond ticks: level 0 has one slot per tick for
+ * the next 64 ticks, and every further level has 64 slots, each covering a whole rotation of the level below. A
+ * timer goes to the lowest level whose current rotation contains its deadline, so inserting and cancelling are
+ * constant-time list operations. When a slot of a higher level is reached, its timers are spread over the levels
+ * below, and a timer is moved at most once per level before it expires. Occupancy bitmaps let the wheel jump over
+ * empty slots instead of visiting every tick.
+ *
+ * <p>Time comes from a {@link Clock}, so the wheel can run on simulated time: a simulated clock is advanced and
+ * {@link #runDue()} called, without starting the ticker thread. Fired commands run through the handler given to
+ * {@link #attach}, holding {@link #lock()}, which the command loops also hold while they execute a command.
+ */
+final class Scheduler implements AutoCloseable {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = (Long.SIZE + SLOT_BITS - 1) / SLOT_BITS;
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final Clock clock;
+    private final long origin;
+    private final ReentrantLock commandLock = new ReentrantLock();
+
+    // The wheel, guarded by wheelLock
+    private final ReentrantLock wheelLock = new ReentrantLock();
+    private final Condition changed = wheelLock.newCondition();
+    private final Timer[] slots = new Timer[LEVELS * SLOTS];
+    private final long[] occupied = new long[LEVELS];
+    private long now;
+    // Pending timers by id, in an open-addressing table since ids are never reused
+    private Timer[] timers = new Timer[16];
+    private int nextTimerId;
+    private int pending;
+    private final ArrayList<Timer> due = new ArrayList<>();
+
+    private Predicate<CommandLine> handler;
+    private ResponseSink messages;
+    private Flushable flusher;
+    private Thread ticker;
+    private final CommandLine fired = new CommandLine();
+
+    /**
+     * Creates an empty scheduler.
+     *
+     * @param clock The source of the current time and of the time zone of daily timers.
+     */
+    Scheduler(Clock clock) {
+        this.clock = clock;
+        this.origin = clock.millis();
+    }
+
+    /**
+     * Checks the syntax of a {@code Schedule} command: {@code Schedule <delay|every delay|HH:MM> <command>}, where
+     * a delay is a number followed by {@code ms}, {@code s}, {@code m}, {@code h} or {@code d}.
+     *
+     * @param cmd The tokenized command line.
+     * @return {@code true} if the command can be scheduled.
+     */
+    static boolean isWellFormed(CommandLine cmd) {
+        int first = cmd.length() > 1 && cmd.matches(1, "every") ? 3 : 2;
+        if (cmd.length() <= first) {
+            return false;
+        }
+        String when = cmd.text(first - 1);
+        if (first == 3 ? parseDelay(when) <= 0 : parseDelay(when) < 0 && parseTimeOfDay(when) < 0) {
+            return false;
+        }
+        CommandLine command = new CommandLine();
+        byte[] bytes = cmd.copyTokens(first, cmd.length());
+        command.set(bytes, 0, bytes.length);
+        int op = CommandTable.opcode(command);
+        switch (op) {
+            case CommandTable.INVALID:
+            case CommandTable.END:
+            case CommandTable.BEGIN:
+            case CommandTable.COMMIT:
+            case CommandTable.SUBSCRIBE:
+            case CommandTable.SCHEDULE:
+            case CommandTable.CANCEL:
+                return false;
+            default:
+                return Main.isWellFormed(op, command);
+        }
+    }
+
+    /**
+     * Adds a timer from a command validated by {@link #isWellFormed(CommandLine)}.
+     *
+     * @param cmd The tokenized {@code Schedule} command.
+     * @return The id of the new timer.
+     */
+    int schedule(CommandLine cmd) {
+        boolean repeating = cmd.matches(1, "every");
+        int first = repeating ? 3 : 2;
+        String when = cmd.text(first - 1);
+        long delay = parseDelay(when);
+        Timer timer = new Timer(cmd.copyTokens(first, cmd.length()), repeating ? delay : 0,
+                delay < 0 ? parseTimeOfDay(when) : -1);
+
+        wheelLock.lock();
+        try {
+            timer.id = nextTimerId++;
+            put(timer);
+            long millis = clock.millis();
+            long deadline = timer.daily >= 0 ? nextDaily(millis, timer.daily) - origin : millis - origin + delay;
+            insert(timer, Math.max(deadline, now + 1));
+            changed.signal();
+            return timer.id;
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    /**
+     * Cancels a pending timer.
+     *
+     * @param id The timer id.
+     * @return {@code false} if there is no such pending timer.
+     */
+    boolean cancel(int id) {
+        wheelLock.lock();
+        try {
+            Timer timer = find(id);
+            if (timer == null) {
+                return false;
+            }
+            unlink(timer);
+            delete(timer);
+            return true;
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of pending timers.
+     */
+    int pending() {
+        wheelLock.lock();
+        try {
+            return pending;
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    /**
+     * @return The lock held while a command runs, by the command loop as well as by fired timers.
+     */
+    ReentrantLock lock() {
+        return commandLock;
+    }
+
+    /**
+     * Wraps a flushable so that it is only flushed while no command runs, for the command reader, which flushes
+     * before it waits for input.
+     *
+     * @param flushable The sink or executor of the command loop.
+     * @return A flushable holding {@link #lock()} while it flushes.
+     */
+    Flushable locked(Flushable flushable) {
+        return () -> {
+            commandLock.lock();
+            try {
+                flushable.flush();
+            } finally {
+                commandLock.unlock();
+            }
+        };
+    }
+
+    /**
+     * Sets where fired timers run their commands.
+     *
+     * @param handler  Executes a command, as the command loop does.
+     * @param messages Sink receiving a line naming each fired timer before the responses of its command.
+     * @param flusher  Writes out all previous responses, called before and after each fired command.
+     */
+    void attach(Predicate<CommandLine> handler, ResponseSink messages, Flushable flusher) {
+        this.handler = handler;
+        this.messages = messages;
+        this.flusher = flusher;
+    }
+
+    /**
+     * Starts a daemon thread running timers when they are due on the clock.
+     */
+    void start() {
+        ticker = new Thread(this::tick, "scheduler");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Stops the ticker thread, waiting for a command it is running. Pending timers are dropped.
+     */
+    @Override
+    public void close() {
+        if (ticker == null) {
+            return;
+        }
+        ticker.interrupt();
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs all timers due at the current time of the clock.
+     */
+    void runDue() {
+        wheelLock.lock();
+        try {
+            advance(clock.millis() - origin);
+            if (due.isEmpty()) {
+                return;
+            }
+        } finally {
+            wheelLock.unlock();
+        }
+        for (Timer timer : due) {
+            fire(timer);
+        }
+        due.clear();
+    }
+
+    private void tick() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                wheelLock.lock();
+                try {
+                    long wait = nextEvent() - (clock.millis() - origin);
+                    if (wait > 0) {
+                        changed.await(wait, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                } finally {
+                    wheelLock.unlock();
+                }
+                runDue();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fire(Timer timer) {
+        if (handler == null) {
+            return;
+        }
+        commandLock.lock();
+        try {
+            flusher.flush();
+            messages.append("Timer ").append(timer.id).append(" fired").newLine();
+            fired.set(timer.command, 0, timer.command.length);
+            handler.test(fired);
+            flusher.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            commandLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the wheel to the given tick, collecting the expired timers in {@link #due}.
+     */
+    private void advance(long target) {
+        while (now < target) {
+            long next = nextEvent();
+            if (next > target) {
+                now = target;
+                return;
+            }
+            now = next;
+            // Spread the reached slots of higher levels over the lower ones, then expire the reached level 0 slot
+            int top = Math.min(LEVELS - 1, Long.numberOfTrailingZeros(now) / SLOT_BITS);
+            for (int level = top; level > 0; level--) {
+                int slot = level * SLOTS + index(now, level);
+                Timer timer = slots[slot];
+                slots[slot] = null;
+                occupied[level] &= ~(1L << index(now, level));
+                while (timer != null) {
+                    Timer following = timer.next;
+                    insert(timer, timer.deadline);
+                    timer = following;
+                }
+            }
+            int slot = index(now, 0);
+            Timer timer = slots[slot];
+            slots[slot] = null;
+            occupied[0] &= ~(1L << slot);
+            while (timer != null) {
+                Timer following = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                expire(timer);
+                timer = following;
+            }
+        }
+    }
+
+    private void expire(Timer timer) {
+        due.add(timer);
+        if (timer.period > 0) {
+            insert(timer, timer.deadline + timer.period);
+        } else if (timer.daily >= 0) {
+            insert(timer, nextDaily(origin + timer.deadline, timer.daily) - origin);
+        } else {
+            delete(timer);
+        }
+    }
+
+    /**
+     * Finds the next tick at which a timer expires or a slot of a higher level has to be spread out.
+     *
+     * @return The tick, or {@link Long#MAX_VALUE} if no timer is pending.
+     */
+    private long nextEvent() {
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            // Timers only go to slots after the current one, so the first occupied slot after it is the next one
+            int current = index(now, level);
+            long later = current == SLOTS - 1 ? 0 : occupied[level] & (-2L << current);
+            if (later != 0) {
+                int shift = SLOT_BITS * (level + 1);
+                long rotation = shift >= Long.SIZE ? 0 : now & -(1L << shift);
+                next = Math.min(next, rotation + ((long) Long.numberOfTrailingZeros(later) << (SLOT_BITS * level)));
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Links a timer into its slot. The deadline must not be before the current tick; a timer due at the current
+     * tick goes to the level 0 slot about to expire.
+     */
+    private void insert(Timer timer, long deadline) {
+        timer.deadline = deadline;
+        // The highest bit in which the deadline differs from now decides how many levels away the timer is
+        int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(timer.deadline ^ now)) / SLOT_BITS;
+        int index = index(timer.deadline, level);
+        int slot = level * SLOTS + index;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+        occupied[level] |= 1L << index;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+            if (timer.next == null) {
+                occupied[timer.slot / SLOTS] &= ~(1L << (timer.slot % SLOTS));
+            }
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    private Timer find(int id) {
+        int mask = timers.length - 1;
+        for (int slot = hash(id, mask); timers[slot] != null; slot = (slot + 1) & mask) {
+            if (timers[slot].id == id) {
+                return timers[slot];
+            }
+        }
+        return null;
+    }
+
+    private void put(Timer timer) {
+        if ((pending + 1) * 2 > timers.length) {
+            Timer[] old = timers;
+            timers = new Timer[old.length * 2];
+            for (Timer moved : old) {
+                if (moved != null) {
+                    timers[free(moved.id)] = moved;
+                }
+            }
+        }
+        timers[free(timer.id)] = timer;
+        pending++;
+    }
+
+    private int free(int id) {
+        int mask = timers.length - 1;
+        int slot = hash(id, mask);
+        while (timers[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes a timer from the table, moving back the timers after it that would no longer be found.
+     */
+    private void delete(Timer timer) {
+        int mask = timers.length - 1;
+        int slot = hash(timer.id, mask);
+        while (timers[slot] != timer) {
+            slot = (slot + 1) & mask;
+        }
+        timers[slot] = null;
+        pending--;
+        for (int next = (slot + 1) & mask; timers[next] != null; next = (next + 1) & mask) {
+            int home = hash(timers[next].id, mask);
+            // Move the timer into the hole unless its home lies cyclically between the hole and its slot
+            if ((next - home & mask) >= (next - slot & mask)) {
+                timers[slot] = timers[next];
+                timers[next] = null;
+                slot = next;
+            }
+        }
+    }
+
+    private static int hash(int id, int mask) {
+        int hash = id * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & mask;
+    }
+
+    private static int index(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    private long nextDaily(long millis, int minuteOfDay) {
+        ZonedDateTime current = Instant.ofEpochMilli(millis).atZone(clock.getZone());
+        ZonedDateTime next = current.truncatedTo(ChronoUnit.DAYS).plusMinutes(minuteOfDay);
+        while (!next.isAfter(current)) {
+            next = next.plusDays(1);
+        }
+        return next.toInstant().toEpochMilli();
+    }
+
+    /**
+     * Parses a delay such as {@code 500ms}, {@code 10s}, {@code 30m}, {@code 2h} or {@code 1d}.
+     *
+     * @return The delay in milliseconds, or {@code -1} if the text is not a delay.
+     */
+    static long parseDelay(String text) {
+        int digits = 0;
+        while (digits < text.length() && text.charAt(digits) >= '0' && text.charAt(digits) <= '9') {
+            digits++;
+        }
+        if (digits == 0 || digits > 9) {
+            return -1;
+        }
+        long amount = Long.parseLong(text.substring(0, digits));
+        switch (text.substring(digits)) {
+            case "ms":
+                return amount;
+            case "s":
+                return TimeUnit.SECONDS.toMillis(amount);
+            case "m":
+                return TimeUnit.MINUTES.toMillis(amount);
+            case "h":
+                return TimeUnit.HOURS.toMillis(amount);
+            case "d":
+                return amount * MILLIS_PER_DAY;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Parses a local time of day written {@code HH:MM}.
+     *
+     * @return The minute of the day, or {@code -1} if the text is not a time of day.
+     */
+    static int parseTimeOfDay(String text) {
+        if (text.length() != 5 || text.charAt(2) != ':') {
+            return -1;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (i != 2 && (text.charAt(i) < '0' || text.charAt(i) > '9')) {
+                return -1;
+            }
+        }
+        int hours = Integer.parseInt(text.substring(0, 2));
+        int minutes = Integer.parseInt(text.substring(3));
+        return hours < 24 && minutes < 60 ? hours * 60 + minutes : -1;
+    }
+
+    /**
+     * A pending command, linked into the list of its slot.
+     */
+    private static final class Timer {
+        int id;
+        final byte[] command;
+        final long period;
+        final int daily;
+        long deadline;
+        int slot;
+        Timer prev;
+        Timer next;
+
+        Timer(byte[] command, long period, int daily) {
+            this.command = command;
+            this.period = period;
+            this.daily = daily;
+        }
+    }
+}
+
+/**
+ * Energy model of the home, advanced in discrete ticks by the {@code Simulate} command.
+ * Every device has a power draw derived from its state: a light by its brightness, a camera by whether it records
+ * and a heater by its temperature setting, none when it is off. Lights and cameras run on a battery, which drains
+ * while they draw power and fills at a fixed charge rate while they are charging, when they draw from the grid
+ * instead. Heaters always draw from the grid.
+ *
+ * <p>The model is kept in primitive arrays indexed by device id, updated by the change notifications of the devices
+ * so that a tick does not have to look at any device object. Since the state of a device only changes between
+ * commands, the ticks of one {@code Simulate} command are folded into a single update per device, which is exactly
+ * the result of applying them one by one. The update runs in parallel over ranges of ids in the fork/join pool.
+ * Ticks require the same exclusive access as {@code DisplayAllStatus}; the notifications of different devices may
+ * come from several threads.
+ */
+final class EnergySimulator implements DeviceListener {
+    static final int DEFAULT_TICK_SECONDS = 60;
+    private static final double SECONDS_PER_HOUR = 3600;
+    private static final int INITIAL_CAPACITY = 16;
+    // Ids updated by one fork/join task
+    private static final int TASK_IDS = 1 << 14;
+
+    // Model constants by device type code, as declared by the types
+    private static final int[] BATTERY_WATT_HOURS = new int[DeviceInventory.TYPE_COUNT];
+    private static final int[] CHARGE_WATTS = new int[DeviceInventory.TYPE_COUNT];
+
+    static {
+        for (DeviceType type : DeviceTypes.all()) {
+            BATTERY_WATT_HOURS[type.code()] = type.batteryWattHours();
+            CHARGE_WATTS[type.code()] = type.chargeWatts();
+        }
+    }
+
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private int[] drawWatts = new int[INITIAL_CAPACITY];
+    private int[] chargeWatts = new int[INITIAL_CAPACITY];
+    private double[] batteryLevels = new double[INITIAL_CAPACITY];
+    private double[] gridWattHours = new double[INITIAL_CAPACITY];
+    private double[] batteryWattHours = new double[INITIAL_CAPACITY];
+    private int size;
+    private int tickSeconds = DEFAULT_TICK_SECONDS;
+    private long simulatedSeconds;
+    // Energy of removed devices, still part of the totals of the home
+    private double removedGridWattHours;
+    private double removedBatteryWattHours;
+
+    /**
+     * @param seconds The simulated time of one tick.
+     */
+    void setTickSeconds(int seconds) {
+        tickSeconds = seconds;
+    }
+
+    @Override
+    public void deviceChanged(SmartDevice device, DeviceAttribute attribute) {
+        if (attribute != DeviceAttribute.COLOR && attribute != DeviceAttribute.ANGLE) {
+            update(device.getDeviceId(), device);
+        }
+    }
+
+    @Override
+    public void deviceAdded(SmartDevice device) {
+        int id = device.getDeviceId();
+        if (id >= types.length) {
+            int capacity = Math.max(types.length * 2, id + 1);
+            types = Arrays.copyOf(types, capacity);
+            drawWatts = Arrays.copyOf(drawWatts, capacity);
+            chargeWatts = Arrays.copyOf(chargeWatts, capacity);
+            batteryLevels = Arrays.copyOf(batteryLevels, capacity);
+            gridWattHours = Arrays.copyOf(gridWattHours, capacity);
+            batteryWattHours = Arrays.copyOf(batteryWattHours, capacity);
+        }
+        size = Math.max(size, id + 1);
+        types[id] = DeviceInventory.typeOf(device);
+        batteryLevels[id] = BATTERY_WATT_HOURS[types[id]];
+        gridWattHours[id] = 0;
+        batteryWattHours[id] = 0;
+        update(id, device);
+    }
+
+    @Override
+    public void deviceRemoved(SmartDevice device) {
+        int id = device.getDeviceId();
+        removedGridWattHours += gridWattHours[id];
+        removedBatteryWattHours += batteryWattHours[id];
+        types[id] = DeviceInventory.NONE;
+        drawWatts[id] = 0;
+        chargeWatts[id] = 0;
+        batteryLevels[id] = 0;
+        gridWattHours[id] = 0;
+        batteryWattHours[id] = 0;
+    }
+
+    private void update(int id, SmartDevice device) {
+        drawWatts[id] = device.isOn() ? DeviceTypes.get(types[id]).drawWatts(device) : 0;
+        chargeWatts[id] = device instanceof Chargeable && ((Chargeable) device).isCharging()
+                ? CHARGE_WATTS[types[id]] : 0;
+    }
+
+    /**
+     * Advances all devices by a number of ticks.
+     *
+     * @param ticks The number of ticks.
+     */
+    void simulate(int ticks) {
+        long seconds = (long) ticks * tickSeconds;
+        ForkJoinPool.commonPool().invoke(new Tick(0, size, seconds / SECONDS_PER_HOUR));
+        simulatedSeconds += seconds;
+    }
+
+    /**
+     * Updates the devices with ids in a range over the given time, splitting large ranges into parallel tasks.
+     */
+    private final class Tick extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final double hours;
+
+        Tick(int from, int to, double hours) {
+            this.from = from;
+            this.to = to;
+            this.hours = hours;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TASK_IDS) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Tick(from, middle, hours), new Tick(middle, to, hours));
+                return;
+            }
+            for (int id = from; id < to; id++) {
+                double demand = drawWatts[id] * hours;
+                int battery = BATTERY_WATT_HOURS[types[id]];
+                if (battery == 0) {
+                    gridWattHours[id] += demand;
+                } else if (chargeWatts[id] > 0) {
+                    // Clamping once is the same as clamping after every tick, as the level only rises
+                    double level = Math.min(battery, batteryLevels[id] + chargeWatts[id] * hours);
+                    gridWattHours[id] += demand + level - batteryLevels[id];
+                    batteryLevels[id] = level;
+                } else {
+                    double level = Math.max(0, batteryLevels[id] - demand);
+                    batteryWattHours[id] += batteryLevels[id] - level;
+                    batteryLevels[id] = level;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the energy figures of one device.
+     *
+     * @param id  The id of a device in the inventory.
+     * @param out Sink receiving the figures.
+     */
+    void writeDevice(int id, ResponseSink out) {
+        out.append(DeviceInventory.typeName(types[id])).append(' ').append(id).append(" draws ")
+                .append(drawWatts[id]).append(" W");
+        int battery = BATTERY_WATT_HOURS[types[id]];
+        if (battery == 0) {
+            out.append(" and it used ").append(Math.round(gridWattHours[id])).append(" Wh from the grid").newLine();
+            return;
+        }
+        out.append(", its battery is at ").append((int) (batteryLevels[id] * 100 / battery))
+                .append("% and it used ").append(Math.round(gridWattHours[id])).append(" Wh from the grid and ")
+                .append(Math.round(batteryWattHours[id])).append(" Wh from its battery").newLine();
+    }
+
+    /**
+     * Writes the energy figures of the whole home.
+     *
+     * @param out Sink receiving the figures.
+     */
+    void writeTotals(ResponseSink out) {
+        long draw = 0;
+        double grid = removedGridWattHours;
+        double battery = removedBatteryWattHours;
+        int empty = 0;
+        for (int id = 0; id < size; id++) {
+            draw += drawWatts[id];
+            grid += gridWattHours[id];
+            battery += batteryWattHours[id];
+            if (BATTERY_WATT_HOURS[types[id]] > 0 && batteryLevels[id] == 0 && chargeWatts[id] == 0) {
+                empty++;
+            }
+        }
+        out.append("Simulated time is ").append(simulatedSeconds).append(" seconds").newLine();
+        out.append("The home draws ").append(draw).append(" W").newLine();
+        out.append("The home used ").append(Math.round(grid)).append(" Wh from the grid and ")
+                .append(Math.round(battery)).append(" Wh from batteries").newLine();
+        out.append(empty).append(" devices have an empty battery").newLine();
+    }
+}
+
+/**
+ * Append-only history of every device change, queried with the {@code History} command.
+ * Changes are collected in an open block of plain arrays and sealed into compressed column chunks of up to 4096
+ * records: the timestamps as varint deltas, the ids as zigzag varint deltas, one byte for the device type and
+ * attribute, and the values as zigzag varints. Each block starts with its time and id range, so queries skip the
+ * blocks that cannot hold the device. Blocks are appended to fixed-size segments, which are memory-mapped files when a
+ * data directory is set and heap buffers otherwise.
+ *
+ * <p>Whenever a segment fills up, a background thread keeps the footprint bounded: segments older than the retention
+ * time, and the oldest ones beyond the size limit, are dropped, and segments older than the compaction age are
+ * rewritten keeping only the last change of each device attribute per minute. When a saved home is restored, only the
+ * attributes that differ from their last entry are recorded again.
+ * Recording is safe from several threads.
+ */
+final class HistoryStore implements DeviceListener, AutoCloseable {
+    static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    static final long DEFAULT_COMPACT_AFTER_MILLIS = TimeUnit.DAYS.toMillis(1);
+    static final long DEFAULT_MAX_BYTES = 64L << 20;
+    private static final long COMPACT_RESOLUTION_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final int SEGMENT_BYTES = 4 << 20;
+    private static final int SEGMENT_MAGIC = 0x48495354;
+    private static final int SEGMENT_HEADER = Integer.BYTES + Integer.BYTES;
+    private static final int COMPACTED = 1;
+    private static final int BLOCK_RECORDS = 4096;
+    // Count, first and last time, lowest and highest id, length in bytes
+    private static final int BLOCK_HEADER = Integer.BYTES + 2 * Long.BYTES + 3 * Integer.BYTES;
+    private static final int FIRST_TIME = Integer.BYTES;
+    private static final int LAST_TIME = FIRST_TIME + Long.BYTES;
+    private static final int MIN_ID = LAST_TIME + Long.BYTES;
+    private static final int MAX_ID = MIN_ID + Integer.BYTES;
+    private static final int LENGTH = MAX_ID + Integer.BYTES;
+    // A time delta takes at most 10 bytes, an id delta or a value 5 bytes each, plus the attribute byte
+    private static final int MAX_BLOCK_BYTES = BLOCK_HEADER + BLOCK_RECORDS * 21;
+    // Attribute code of a removed device, after the codes of the attributes
+    private static final int REMOVED = 15;
+    private static final DeviceAttribute[] ATTRIBUTES = DeviceAttribute.values();
+
+    private final Clock clock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long retentionMillis = DEFAULT_RETENTION_MILLIS;
+    private volatile long compactAfterMillis = DEFAULT_COMPACT_AFTER_MILLIS;
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private Path directory;
+    private ExecutorService maintenance;
+
+    // Guarded by lock
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private int nextSegment;
+    private final long[] times = new long[BLOCK_RECORDS];
+    private final int[] ids = new int[BLOCK_RECORDS];
+    private final byte[] codes = new byte[BLOCK_RECORDS];
+    private final int[] values = new int[BLOCK_RECORDS];
+    private int openCount;
+    private long lastTime = Long.MIN_VALUE;
+    // Set while a saved home is restored, see beginRestore
+    private boolean restoring;
+    // Buffer of a dropped heap segment, reused by the next one
+    private ByteBuffer spare;
+
+    /**
+     * Creates an empty history kept in memory.
+     *
+     * @param clock The source of the timestamps.
+     */
+    HistoryStore(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the limits keeping the history bounded.
+     *
+     * @param retentionMillis    Age after which changes are dropped.
+     * @param compactAfterMillis Age after which changes are thinned out to one per device attribute and minute.
+     * @param maxBytes           Size of all segments above which the oldest ones are dropped.
+     */
+    void configure(long retentionMillis, long compactAfterMillis, long maxBytes) {
+        this.retentionMillis = retentionMillis;
+        this.compactAfterMillis = compactAfterMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Keeps the history in memory-mapped segment files in the given directory, loading the segments already there.
+     * Must be called before any change is recorded.
+     *
+     * @param directory Directory of the segment files, created if missing.
+     * @throws IOException If the directory or a segment cannot be read.
+     */
+    void open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        ArrayList<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        numbers.sort(null);
+
+        lock.lock();
+        try {
+            this.directory = directory;
+            for (int number : numbers) {
+                Segment segment = new Segment(number, map(segmentPath(number), -1));
+                segment.scan();
+                segments.add(segment);
+                nextSegment = number + 1;
+                lastTime = Math.max(lastTime, segment.lastTime);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deviceChanged(SmartDevice device, DeviceAttribute attribute) {
+        record(device.getDeviceId(), DeviceInventory.typeOf(device), attribute.ordinal(), attribute.read(device));
+    }
+
+    @Override
+    public void deviceAdded(SmartDevice device) {
+        byte type = DeviceInventory.typeOf(device);
+        for (DeviceAttribute attribute : ATTRIBUTES) {
+            if (attribute.appliesTo(type)) {
+                record(device.getDeviceId(), type, attribute.ordinal(), attribute.read(device));
+            }
+        }
+    }
+
+    @Override
+    public void deviceRemoved(SmartDevice device) {
+        record(device.getDeviceId(), DeviceInventory.typeOf(device), REMOVED, 0);
+    }
+
+    /**
+     * Stops recording while the devices of a saved home are restored, so that restoring them does not record their
+     * whole state again. {@link #endRestore} records what differs from the history instead.
+     */
+    void beginRestore() {
+        lock.lock();
+        try {
+            restoring = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records changes again after a restore, starting with the differences between the last recorded entry of every
+     * device attribute and the restored devices: an attribute with another value, a device that was added and one that
+     * is gone. A home restored as the history left it adds nothing.
+     *
+     * @param devices The restored devices.
+     */
+    void endRestore(Iterable<SmartDevice> devices) {
+        lock.lock();
+        try {
+            restoring = false;
+            LastEntries last = new LastEntries();
+            for (Segment segment : segments) {
+                for (int start = SEGMENT_HEADER; start < segment.end; start += segment.buffer.getInt(start + LENGTH)) {
+                    last.scanBlock(segment.buffer, start);
+                }
+            }
+            for (int i = 0; i < openCount; i++) {
+                last.accept(ids[i], codes[i], values[i]);
+            }
+            for (SmartDevice device : devices) {
+                int id = device.getDeviceId();
+                byte type = DeviceInventory.typeOf(device);
+                for (DeviceAttribute attribute : ATTRIBUTES) {
+                    if (attribute.appliesTo(type)) {
+                        int value = attribute.read(device);
+                        if (!last.has(id, type, attribute) || last.value(id, attribute) != value) {
+                            record(id, type, attribute.ordinal(), value);
+                        }
+                    }
+                }
+                last.forget(id);
+            }
+            for (int id = 0; id < last.size(); id++) {
+                if (last.type(id) != DeviceInventory.NONE) {
+                    record(id, last.type(id), REMOVED, 0);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(int id, byte type, int attribute, int value) {
+        lock.lock();
+        try {
+            if (restoring) {
+                return;
+            }
+            // Timestamps never go back, so that blocks stay ordered when the clock is adjusted
+            lastTime = Math.max(lastTime, clock.millis());
+            times[openCount] = lastTime;
+            ids[openCount] = id;
+            codes[openCount] = (byte) (type << 4 | attribute);
+            values[openCount] = value;
+            if (++openCount == BLOCK_RECORDS) {
+                seal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks a {@code History <Type> <id> <from> <to> [<Attribute> <interval>]} command.
+     * The times are {@code now}, a delay before now such as {@code 15m}, or epoch milliseconds.
+     *
+     * @param cmd The tokenized command line.
+     * @return {@code true} if the command is well-formed.
+     */
+    static boolean isWellFormed(CommandLine cmd) {
+        int length = cmd.length();
+        if (length != 5 && length != 7 || cmd.deviceType(1) == DeviceInventory.NONE || !cmd.isInt(2)
+                || cmd.parseIntClamped(2) < 0 || parseTime(cmd.text(3), 0) < 0 || parseTime(cmd.text(4), 0) < 0) {
+            return false;
+        }
+        if (length == 5) {
+            return true;
+        }
+        DeviceAttribute attribute = DeviceAttribute.parse(cmd, 5);
+        return attribute != null && attribute.appliesTo(cmd.deviceType(1))
+                && Scheduler.parseDelay(cmd.text(6)) > 0;
+    }
+
+    /**
+     * Runs a well-formed {@code History} command.
+     * Relative times depend on the clock, so a range ending before it starts is only rejected here.
+     *
+     * @param cmd The tokenized command line.
+     * @param out Sink receiving the changes.
+     * @return {@code false} without writing anything if the range ends before it starts.
+     */
+    boolean write(CommandLine cmd, ResponseSink out) {
+        long now = clock.millis();
+        long from = parseTime(cmd.text(3), now);
+        long to = parseTime(cmd.text(4), now);
+        if (from > to) {
+            return false;
+        }
+        boolean aggregate = cmd.length() == 7;
+        write(cmd.deviceType(1), cmd.parseIntClamped(2), from, to, aggregate ? DeviceAttribute.parse(cmd, 5) : null,
+                aggregate ? Scheduler.parseDelay(cmd.text(6)) : 0, out);
+        return true;
+    }
+
+    /**
+     * Parses a time of a {@code History} command.
+     *
+     * @return The time in epoch milliseconds, or {@code -1} if the text is not a time.
+     */
+    private static long parseTime(String text, long now) {
+        if (text.equals("now")) {
+            return now;
+        }
+        long delay = Scheduler.parseDelay(text);
+        if (delay >= 0) {
+            return Math.max(0, now - delay);
+        }
+        if (text.isEmpty() || text.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(text);
+    }
+
+    /**
+     * Writes the changes of one device in a time range, one line per change, or the changes of one attribute
+     * aggregated over fixed intervals. Intervals without changes are left out.
+     *
+     * @param type      The device type.
+     * @param id        The device id.
+     * @param from      The first timestamp, in epoch milliseconds.
+     * @param to        The last timestamp, in epoch milliseconds.
+     * @param attribute The aggregated attribute, or {@code null} to list all changes.
+     * @param interval  The length of the intervals in milliseconds, if an attribute is given.
+     * @param out       Sink receiving the changes.
+     */
+    void write(byte type, int id, long from, long to, DeviceAttribute attribute, long interval, ResponseSink out) {
+        out.append("History of ").append(DeviceInventory.typeName(type)).append(' ').append(id);
+        if (attribute != null) {
+            out.append(' ').append(attribute.label());
+        }
+        out.append(" from ").append(from).append(" to ").append(to);
+        if (attribute != null) {
+            out.append(" every ").append(interval).append(" ms");
+        }
+        out.newLine();
+
+        Query query = new Query((byte) (type << 4), id, from, to, attribute, interval, out);
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment.lastTime >= from && segment.firstTime <= to) {
+                    for (int start = SEGMENT_HEADER; start < segment.end;
+                            start += segment.buffer.getInt(start + LENGTH)) {
+                        query.scanBlock(segment.buffer, start);
+                    }
+                }
+            }
+            for (int i = 0; i < openCount; i++) {
+                query.accept(times[i], ids[i], codes[i], values[i]);
+            }
+        } finally {
+            lock.unlock();
+        }
+        query.finish();
+    }
+
+    /**
+     * Seals the open block, so that its changes are kept in a segment file, and stops the background thread.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            seal();
+            for (Segment segment : segments) {
+                if (segment.buffer instanceof MappedByteBuffer mapped && !mapped.isReadOnly()) {
+                    mapped.force();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (maintenance != null) {
+            maintenance.shutdown();
+        }
+    }
+
+    /**
+     * Encodes the open block at the end of the current segment, starting a new segment if it is full.
+     */
+    private void seal() {
+        if (openCount == 0) {
+            return;
+        }
+        Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current == null || current.compacted || current.end + MAX_BLOCK_BYTES > current.buffer.capacity()) {
+            ByteBuffer buffer = spare;
+            spare = null;
+            try {
+                if (directory != null) {
+                    buffer = map(segmentPath(nextSegment), SEGMENT_BYTES);
+                } else if (buffer == null) {
+                    buffer = ByteBuffer.allocate(SEGMENT_BYTES);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            current = new Segment(nextSegment++, buffer);
+            buffer.putInt(0, SEGMENT_MAGIC);
+            buffer.putInt(Integer.BYTES, 0);
+            segments.add(current);
+            if (segments.size() > 1) {
+                if (maintenance == null) {
+                    maintenance = Executors.newSingleThreadExecutor(task -> {
+                        Thread thread = new Thread(task, "history-maintenance");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                maintenance.execute(this::maintain);
+            }
+        }
+        current.end = encode(times, ids, codes, values, 0, openCount, current.buffer, current.end);
+        current.firstTime = Math.min(current.firstTime, times[0]);
+        current.lastTime = times[openCount - 1];
+        openCount = 0;
+    }
+
+    /**
+     * Drops the segments beyond the retention time or the size limit, oldest first, then compacts old segments.
+     * Only the current segment is ever written to, so the others are read and rewritten without holding the lock.
+     */
+    private void maintain() {
+        long now = clock.millis();
+        ArrayList<Segment> sealed = new ArrayList<>();
+        lock.lock();
+        try {
+            long bytes = 0;
+            for (Segment segment : segments) {
+                bytes += segment.buffer.capacity();
+            }
+            while (segments.size() > 1 && (segments.get(0).lastTime < now - retentionMillis || bytes > maxBytes)) {
+                Segment dropped = segments.remove(0);
+                bytes -= dropped.buffer.capacity();
+                release(dropped);
+            }
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Segment segment = segments.get(i);
+                if (!segment.compacted && segment.lastTime < now - compactAfterMillis) {
+                    sealed.add(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Segment segment : sealed) {
+            ByteBuffer compacted = compact(segment);
+            lock.lock();
+            try {
+                // The segment may have been dropped in the meantime by another run
+                int index = segments.indexOf(segment);
+                if (index >= 0) {
+                    Segment replacement = new Segment(segment.number, compacted);
+                    replacement.scan();
+                    segments.set(index, replacement);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Rewrites a sealed segment, keeping only the last change of each device attribute per minute.
+     * Removals are always kept.
+     *
+     * @return The new contents, mapped from the replaced file if the history has a directory.
+     */
+    private ByteBuffer compact(Segment segment) {
+        int total = 0;
+        for (int start = SEGMENT_HEADER; start < segment.end; start += segment.buffer.getInt(start + LENGTH)) {
+            total += segment.buffer.getInt(start);
+        }
+        long[] allTimes = new long[total];
+        int[] allIds = new int[total];
+        byte[] allCodes = new byte[total];
+        int[] allValues = new int[total];
+        int count = 0;
+        for (int start = SEGMENT_HEADER; start < segment.end; start += segment.buffer.getInt(start + LENGTH)) {
+            count += decode(segment.buffer, start, allTimes, allIds, allCodes, allValues, count);
+        }
+
+        // Sorting by id and attribute, in time order within each, puts the changes of the same minute side by side
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (long) allIds[i] << 32 | (allCodes[i] & 0xFFL) << 24 | i;
+        }
+        Arrays.sort(order);
+        boolean[] dropped = new boolean[count];
+        for (int j = 0; j + 1 < count; j++) {
+            int i = (int) (order[j] & 0xFFFFFF);
+            int next = (int) (order[j + 1] & 0xFFFFFF);
+            if (order[j] >>> 24 == order[j + 1] >>> 24 && (allCodes[i] & 0x0F) != REMOVED
+                    && allTimes[i] / COMPACT_RESOLUTION_MILLIS == allTimes[next] / COMPACT_RESOLUTION_MILLIS) {
+                dropped[i] = true;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (!dropped[i]) {
+                allTimes[kept] = allTimes[i];
+                allIds[kept] = allIds[i];
+                allCodes[kept] = allCodes[i];
+                allValues[kept] = allValues[i];
+                kept++;
+            }
+        }
+
+        ByteBuffer rewritten = ByteBuffer.allocate(segment.end);
+        rewritten.putInt(0, SEGMENT_MAGIC);
+        rewritten.putInt(Integer.BYTES, COMPACTED);
+        int end = SEGMENT_HEADER;
+        for (int from = 0; from < kept; from += BLOCK_RECORDS) {
+            end = encode(allTimes, allIds, allCodes, allValues, from, Math.min(kept, from + BLOCK_RECORDS), rewritten,
+                    end);
+        }
+        rewritten.limit(end);
+        if (segment.buffer instanceof MappedByteBuffer) {
+            try {
+                Path file = segmentPath(segment.number);
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    while (rewritten.hasRemaining()) {
+                        channel.write(rewritten);
+                    }
+                    channel.force(true);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return map(file, -1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return ByteBuffer.allocate(end).put(0, rewritten, 0, end);
+    }
+
+    /**
+     * Deletes the file of a dropped segment, or keeps its buffer for the next segment if it is on the heap.
+     */
+    private void release(Segment segment) {
+        if (segment.buffer instanceof MappedByteBuffer) {
+            try {
+                // The mapping stays valid until it is collected, the file is gone from the directory right away
+                Files.deleteIfExists(segmentPath(segment.number));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else if (segment.buffer.capacity() == SEGMENT_BYTES) {
+            spare = segment.buffer;
+        }
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Maps a segment file.
+     *
+     * @param size The size of a new writable segment, or {@code -1} to map an existing file as it is.
+     */
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size < 0 ? channel.size() : size);
+        }
+    }
+
+    /**
+     * Writes the records of one block as columns. The count is written last, so a block cut short by a crash reads
+     * as the end of the segment.
+     *
+     * @return The position after the block.
+     */
+    private static int encode(long[] times, int[] ids, byte[] codes, int[] values, int from, int to,
+            ByteBuffer buffer, int start) {
+        int position = start + BLOCK_HEADER;
+        long previousTime = times[from];
+        for (int i = from; i < to; i++) {
+            position = putVarLong(buffer, position, times[i] - previousTime);
+            previousTime = times[i];
+        }
+        int previousId = 0;
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            position = putVarLong(buffer, position, zigzag((long) ids[i] - previousId));
+            previousId = ids[i];
+            minId = Math.min(minId, ids[i]);
+            maxId = Math.max(maxId, ids[i]);
+        }
+        for (int i = from; i < to; i++) {
+            buffer.put(position++, codes[i]);
+        }
+        for (int i = from; i < to; i++) {
+            position = putVarLong(buffer, position, zigzag(values[i]));
+        }
+        buffer.putLong(start + FIRST_TIME, times[from]);
+        buffer.putLong(start + LAST_TIME, times[to - 1]);
+        buffer.putInt(start + MIN_ID, minId);
+        buffer.putInt(start + MAX_ID, maxId);
+        buffer.putInt(start + LENGTH, position - start);
+        buffer.putInt(start, to - from);
+        return position;
+    }
+
+    /**
+     * Reads the records of the block at the given position into the arrays, starting at an offset.
+     *
+     * @return The number of records.
+     */
+    private static int decode(ByteBuffer buffer, int start, long[] times, int[] ids, byte[] codes, int[] values,
+            int offset) {
+        int count = buffer.getInt(start);
+        VarIntReader reader = new VarIntReader(buffer, start + BLOCK_HEADER);
+        long time = buffer.getLong(start + FIRST_TIME);
+        for (int i = offset; i < offset + count; i++) {
+            time += reader.next();
+            times[i] = time;
+        }
+        int id = 0;
+        for (int i = offset; i < offset + count; i++) {
+            id += (int) unzigzag(reader.next());
+            ids[i] = id;
+        }
+        for (int i = offset; i < offset + count; i++) {
+            codes[i] = buffer.get(reader.position++);
+        }
+        for (int i = offset; i < offset + count; i++) {
+            values[i] = (int) unzigzag(reader.next());
+        }
+        return count;
+    }
+
+    private static int putVarLong(ByteBuffer buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put(position++, (byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(position++, (byte) value);
+        return position;
+    }
+
+    private static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static long unzigzag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * Reads consecutive varints from a buffer.
+     */
+    private static final class VarIntReader {
+        private final ByteBuffer buffer;
+        int position;
+
+        VarIntReader(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        long next() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(position++);
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * A file or heap buffer holding a header and a sequence of blocks.
+     */
+    private static final class Segment {
+        final int number;
+        final ByteBuffer buffer;
+        final boolean compacted;
+        int end = SEGMENT_HEADER;
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+
+        Segment(int number, ByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+            this.compacted = buffer.capacity() >= SEGMENT_HEADER && buffer.getInt(Integer.BYTES) == COMPACTED;
+        }
+
+        /**
+         * Finds the end and the time range of the blocks written so far, stopping at a block cut short by a crash.
+         */
+        void scan() {
+            int limit = buffer.limit();
+            if (limit < SEGMENT_HEADER || buffer.getInt(0) != SEGMENT_MAGIC) {
+                end = limit; // Not a segment, nothing in it is read and nothing is appended to it
+                return;
+            }
+            while (end + BLOCK_HEADER <= limit && buffer.getInt(end) > 0) {
+                firstTime = Math.min(firstTime, buffer.getLong(end + FIRST_TIME));
+                lastTime = buffer.getLong(end + LAST_TIME);
+                end += buffer.getInt(end + LENGTH);
+            }
+        }
+    }
+
+    /**
+     * The last recorded entry of every device attribute, by device id, built once when a restore ends.
+     */
+    private static final class LastEntries {
+        private final long[] times = new long[BLOCK_RECORDS];
+        private final int[] ids = new int[BLOCK_RECORDS];
+        private final byte[] codes = new byte[BLOCK_RECORDS];
+        private final int[] values = new int[BLOCK_RECORDS];
+        // Type of every device that was not removed last, the attributes it has an entry of, and their values
+        private byte[] types = new byte[16];
+        private int[] masks = new int[16];
+        private int[] lastValues = new int[16 * ATTRIBUTES.length];
+        private int size;
+
+        void scanBlock(ByteBuffer buffer, int start) {
+            int records = decode(buffer, start, times, ids, codes, values, 0);
+            for (int i = 0; i < records; i++) {
+                accept(ids[i], codes[i], values[i]);
+            }
+        }
+
+        void accept(int id, byte code, int value) {
+            if (id >= types.length) {
+                int capacity = Math.max(types.length * 2, id + 1);
+                types = Arrays.copyOf(types, capacity);
+                masks = Arrays.copyOf(masks, capacity);
+                lastValues = Arrays.copyOf(lastValues, capacity * ATTRIBUTES.length);
+            }
+            size = Math.max(size, id + 1);
+            byte type = (byte) ((code & 0xFF) >>> 4);
+            int attribute = code & 0x0F;
+            if (attribute == REMOVED) {
+                forget(id);
+                return;
+            }
+            if (types[id] != type) {
+                types[id] = type;
+                masks[id] = 0;
+            }
+            masks[id] |= 1 << attribute;
+            lastValues[id * ATTRIBUTES.length + attribute] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte type(int id) {
+            return id < size ? types[id] : DeviceInventory.NONE;
+        }
+
+        boolean has(int id, byte type, DeviceAttribute attribute) {
+            return type(id) == type && (masks[id] & 1 << attribute.ordinal()) != 0;
+        }
+
+        int value(int id, DeviceAttribute attribute) {
+            return lastValues[id * ATTRIBUTES.length + attribute.ordinal()];
+        }
+
+        void forget(int id) {
+            if (id < size) {
+                types[id] = DeviceInventory.NONE;
+                masks[id] = 0;
+            }
+        }
+    }
+
+    /**
+     * Filters the changes of one device in a time range and writes them as they are found, in time order.
+     */
+    private static final class Query {
+        private final byte typeCode;
+        private final int id;
+        private final long from;
+        private final long to;
+        private final DeviceAttribute attribute;
+        private final long interval;
+        private final ResponseSink out;
+        private final long[] times = new long[BLOCK_RECORDS];
+        private final int[] ids = new int[BLOCK_RECORDS];
+        private final byte[] codes = new byte[BLOCK_RECORDS];
+        private final int[] values = new int[BLOCK_RECORDS];
+
+        // The interval being aggregated
+        private long intervalStart = Long.MIN_VALUE;
+        private int count;
+        private int min;
+        private int max;
+        private int last;
+
+        Query(byte typeCode, int id, long from, long to, DeviceAttribute attribute, long interval,
+                ResponseSink out) {
+            this.typeCode = typeCode;
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.attribute = attribute;
+            this.interval = interval;
+            this.out = out;
+        }
+
+        void scanBlock(ByteBuffer buffer, int start) {
+            if (buffer.getLong(start + LAST_TIME) < from || buffer.getLong(start + FIRST_TIME) > to
+                    || buffer.getInt(start + MIN_ID) > id || buffer.getInt(start + MAX_ID) < id) {
+                return;
+            }
+            int records = decode(buffer, start, times, ids, codes, values, 0);
+            for (int i = 0; i < records; i++) {
+                accept(times[i], ids[i], codes[i], values[i]);
+            }
+        }
+
+        void accept(long time, int recordId, byte code, int value) {
+            if (recordId != id || (code & 0xF0) != typeCode || time < from || time > to) {
+                return;
+            }
+            int code4 = code & 0x0F;
+            if (attribute == null) {
+                out.append(time).append(' ');
+                if (code4 == REMOVED) {
+                    out.append("removed").newLine();
+                } else {
+                    ATTRIBUTES[code4].writeValue(value, out.append(ATTRIBUTES[code4].label()).append(' '));
+                    out.newLine();
+                }
+                return;
+            }
+            if (code4 != attribute.ordinal()) {
+                return;
+            }
+            long start = from + (time - from) / interval * interval;
+            if (start != intervalStart) {
+                finish();
+                intervalStart = start;
+                count = 0;
+                min = value;
+                max = value;
+            }
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            last = value;
+        }
+
+        /**
+         * Writes the interval being aggregated, if any.
+         */
+        void finish() {
+            if (attribute == null || intervalStart == Long.MIN_VALUE) {
+                return;
+            }
+            out.append(intervalStart).append(" count ").append(count).append(" min ");
+            attribute.writeValue(min, out);
+            out.append(" max ");
+            attribute.writeValue(max, out);
+            out.append(" last ");
+            attribute.writeValue(last, out);
+            out.newLine();
+            intervalStart = Long.MIN_VALUE;
+        }
+    }
+}
+
+/**
+ * Rooms of the home and bitmap indexes over the devices, answering the {@code Find} command.
+ * Rooms form a tree: a room can hold other rooms, and a device belongs to at most one room, so a query for a room
+ * also finds the devices of the rooms inside it.
+ *
+ * <p>There is one bitmap by device id for every device type, every room and every value of the status, charging,
+ * recording, brightness and color attributes, kept up to date by the change notifications of the devices. A query
+ * is an AND of terms, each an OR of bitmaps, evaluated a word of 64 ids at a time. Every bitmap also has a summary
+ * with one bit per non-zero word, and words are only read where all terms have a summary bit, so the cost of a query
+ * grows with the number of matching devices rather than with the number of devices. Angle and temperature filters
+ * are checked on the devices found by the other terms.
+ *
+ * <p>Devices can be changed from several threads, so bits are set and cleared atomically. Queries and rooms
+ * require the same exclusive access as {@code DisplayAllStatus}.
+ */
+final class DeviceIndex implements DeviceListener {
+    private static final DeviceAttribute[] ATTRIBUTES = DeviceAttribute.values();
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final String[] OPERATORS = {"!=", "<=", ">=", "=", "<", ">"};
+    private static final String ANY_TYPE = "*";
+    private static final String ROOM = "room";
+    // Number of values of the indexed attributes, none for the numeric ones
+    private static final int[] VALUE_COUNTS = {
+        Status.values().length, 2, 2, 0, 0, BrightnessLevel.values().length, LightColor.values().length
+    };
+
+    private final DeviceInventory devices;
+    private final Bitmap[] byType = new Bitmap[DeviceInventory.TYPE_COUNT];
+    private final Bitmap[][] byValue = new Bitmap[ATTRIBUTES.length][];
+    private final ArrayList<Room> rooms = new ArrayList<>();
+    private Room[] roomOf = new Room[Bitmap.INITIAL_CAPACITY];
+
+    DeviceIndex(DeviceInventory devices) {
+        this.devices = devices;
+        for (int type = 0; type < byType.length; type++) {
+            byType[type] = new Bitmap();
+        }
+        for (int attribute = 0; attribute < ATTRIBUTES.length; attribute++) {
+            byValue[attribute] = new Bitmap[VALUE_COUNTS[attribute]];
+            for (int value = 0; value < VALUE_COUNTS[attribute]; value++) {
+                byValue[attribute][value] = new Bitmap();
+            }
+        }
+    }
+
+    @Override
+    public void deviceChanged(SmartDevice device, DeviceAttribute attribute) {
+        Bitmap[] values = byValue[attribute.ordinal()];
+        if (values.length > 0) {
+            int id = device.getDeviceId();
+            int value = attribute.read(device);
+            for (int i = 0; i < values.length; i++) {
+                values[i].set(id, i == value);
+            }
+        }
+    }
+
+    @Override
+    public void deviceAdded(SmartDevice device) {
+        int id = device.getDeviceId();
+        if (id >= roomOf.length) {
+            roomOf = Arrays.copyOf(roomOf, Math.max(roomOf.length * 2, id + 1));
+        }
+        // Bitmaps only grow here, as the other updates may come from several threads
+        for (Bitmap bitmap : byType) {
+            bitmap.ensureCapacity(id);
+        }
+        for (Bitmap[] values : byValue) {
+            for (Bitmap bitmap : values) {
+                bitmap.ensureCapacity(id);
+            }
+        }
+        byte type = DeviceInventory.typeOf(device);
+        byType[type].set(id, true);
+        for (DeviceAttribute attribute : ATTRIBUTES) {
+            if (attribute.appliesTo(type)) {
+                deviceChanged(device, attribute);
+            }
+        }
+    }
+
+    @Override
+    public void deviceRemoved(SmartDevice device) {
+        int id = device.getDeviceId();
+        byType[DeviceInventory.typeOf(device)].set(id, false);
+        for (Bitmap[] values : byValue) {
+            for (Bitmap bitmap : values) {
+                bitmap.set(id, false);
+            }
+        }
+        move(id, null);
+    }
+
+    /**
+     * Adds a room.
+     *
+     * @param name   The name of the room.
+     * @param parent The name of the room holding it, or {@code null} for a room at the top.
+     * @param out    Sink receiving the response.
+     */
+    void addRoom(String name, String parent, ResponseSink out) {
+        Room parentRoom = parent == null ? null : room(parent);
+        if (parent != null && parentRoom == null) {
+            out.append("The room was not found").newLine();
+        } else if (room(name) != null) {
+            out.append("Room ").append(name).append(" already exists").newLine();
+        } else {
+            rooms.add(new Room(name, parentRoom));
+            out.append("Room ").append(name).append(" was added").newLine();
+        }
+    }
+
+    /**
+     * Removes a room. Its devices and the rooms inside it move to the room holding it.
+     *
+     * @param name The name of the room.
+     * @param out  Sink receiving the response.
+     */
+    void removeRoom(String name, ResponseSink out) {
+        Room room = room(name);
+        if (room == null) {
+            out.append("The room was not found").newLine();
+            return;
+        }
+        for (Room other : rooms) {
+            if (other.parent == room) {
+                other.parent = room.parent;
+            }
+        }
+        for (int id = room.devices.next(0); id >= 0; id = room.devices.next(id + 1)) {
+            move(id, room.parent);
+        }
+        rooms.remove(room);
+        out.append("Room ").append(name).append(" was removed").newLine();
+    }
+
+    /**
+     * Moves a device into a room.
+     *
+     * @param id   The id of a device in the inventory.
+     * @param name The name of the room.
+     * @param out  Sink receiving the response.
+     */
+    void moveDevice(int id, String name, ResponseSink out) {
+        Room room = room(name);
+        if (room == null) {
+            out.append("The room was not found").newLine();
+            return;
+        }
+        move(id, room);
+        out.append(devices.getType(id)).append(' ').append(id).append(" was moved to ").append(name).newLine();
+    }
+
+    private void move(int id, Room room) {
+        if (room != null) {
+            room.devices.ensureCapacity(id);
+        }
+        if (roomOf[id] != null) {
+            roomOf[id].devices.set(id, false);
+            roomOf[id].count--;
+        }
+        roomOf[id] = room;
+        if (room != null) {
+            room.devices.set(id, true);
+            room.count++;
+        }
+    }
+
+    /**
+     * Writes the rooms as a tree, each with the number of devices directly in it.
+     *
+     * @param out Sink receiving the rooms.
+     */
+    void writeRooms(ResponseSink out) {
+        if (rooms.isEmpty()) {
+            out.append("There are no rooms").newLine();
+            return;
+        }
+        writeRooms(null, 0, out);
+    }
+
+    private void writeRooms(Room parent, int depth, ResponseSink out) {
+        for (Room room : rooms) {
+            if (room.parent == parent) {
+                for (int i = 0; i < depth; i++) {
+                    out.append("  ");
+                }
+                out.append(room.name).append(" has ").append(room.count).append(" devices").newLine();
+                writeRooms(room, depth + 1, out);
+            }
+        }
+    }
+
+    private Room room(String name) {
+        for (Room room : rooms) {
+            if (room.name.equals(name)) {
+                return room;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the syntax of a {@code Find <Type|*> [<filter>...]} command, where a filter is {@code room=<names>}
+     * or {@code <attribute><operator><values>}. Names and values may be lists separated by commas, matching any of
+     * them. Attributes and their values are spelled as in {@code AddRule} and {@code History}, in any case. Angle and
+     * temperature take one number and any comparison, the other attributes only {@code =} and {@code !=}.
+     *
+     * @param cmd The tokenized command line.
+     * @return {@code true} if the command is well-formed.
+     */
+    static boolean isWellFormed(CommandLine cmd) {
+        if (cmd.length() < 2 || cmd.deviceType(1) == DeviceInventory.NONE && !cmd.matches(1, ANY_TYPE)) {
+            return false;
+        }
+        for (int i = 2; i < cmd.length(); i++) {
+            if (parseFilter(cmd.text(i)) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the status of the devices matching a well-formed {@code Find} command, in ascending order of ids.
+     *
+     * @param cmd The tokenized command line.
+     * @param out Sink receiving the devices.
+     */
+    void find(CommandLine cmd, ResponseSink out) {
+        byte type = cmd.deviceType(1);
+        int termCount = cmd.length() - 1;
+        Bitmap[][] terms = new Bitmap[termCount][];
+        Filter[] numeric = new Filter[termCount];
+        terms[0] = type == DeviceInventory.NONE ? byType : new Bitmap[] {byType[type]};
+        for (int i = 1; i < termCount; i++) {
+            Filter filter = parseFilter(cmd.text(i + 1));
+            if (filter.attribute == null) {
+                terms[i] = roomTerm(filter.values);
+                if (terms[i] == null) {
+                    out.append("The room was not found").newLine();
+                    return;
+                }
+            } else if (VALUE_COUNTS[filter.attribute.ordinal()] > 0) {
+                terms[i] = valueTerm(filter);
+            } else {
+                // Devices having the attribute, compared one by one
+                terms[i] = typesWith(filter.attribute);
+                numeric[i] = filter;
+            }
+        }
+
+        int found = 0;
+        int summaryWords = 0;
+        for (Bitmap bitmap : byType) {
+            summaryWords = Math.max(summaryWords, bitmap.summary.length);
+        }
+        for (int s = 0; s < summaryWords; s++) {
+            long candidates = -1L;
+            for (Bitmap[] term : terms) {
+                long any = 0;
+                for (Bitmap bitmap : term) {
+                    any |= bitmap.summaryWord(s);
+                }
+                candidates &= any;
+            }
+            for (; candidates != 0; candidates &= candidates - 1) {
+                int w = s << 6 | Long.numberOfTrailingZeros(candidates);
+                long word = -1L;
+                for (Bitmap[] term : terms) {
+                    long any = 0;
+                    for (Bitmap bitmap : term) {
+                        any |= bitmap.word(w);
+                    }
+                    word &= any;
+                }
+                for (; word != 0; word &= word - 1) {
+                    int id = w << 6 | Long.numberOfTrailingZeros(word);
+                    if (matches(id, numeric)) {
+                        devices.get(id).writeStatus(out);
+                        out.newLine();
+                        found++;
+                    }
+                }
+            }
+        }
+        if (found == 0) {
+            devices.metrics().deviceNotFound();
+            out.append("The smart device was not found").newLine();
+        }
+    }
+
+    private boolean matches(int id, Filter[] numeric) {
+        for (Filter filter : numeric) {
+            if (filter != null && !filter.test(devices.read(id, filter.attribute))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The bitmaps of the named rooms and of the rooms inside them, or {@code null} if a room is unknown.
+     */
+    private Bitmap[] roomTerm(String[] names) {
+        ArrayList<Bitmap> term = new ArrayList<>();
+        for (String name : names) {
+            Room room = room(name);
+            if (room == null) {
+                return null;
+            }
+            for (Room other : rooms) {
+                if (other.isInside(room)) {
+                    term.add(other.devices);
+                }
+            }
+        }
+        return term.toArray(new Bitmap[0]);
+    }
+
+    private Bitmap[] valueTerm(Filter filter) {
+        Bitmap[] values = byValue[filter.attribute.ordinal()];
+        boolean[] listed = new boolean[values.length];
+        for (String value : filter.values) {
+            listed[filter.attribute.parseValue(value)] = true;
+        }
+        ArrayList<Bitmap> term = new ArrayList<>();
+        for (int value = 0; value < values.length; value++) {
+            if (listed[value] != (filter.operator == Filter.NOT_EQUAL)) {
+                term.add(values[value]);
+            }
+        }
+        return term.toArray(new Bitmap[0]);
+    }
+
+    private Bitmap[] typesWith(DeviceAttribute attribute) {
+        ArrayList<Bitmap> term = new ArrayList<>();
+        for (byte type = DeviceInventory.LIGHT; type < byType.length; type++) {
+            if (attribute.appliesTo(type)) {
+                term.add(byType[type]);
+            }
+        }
+        return term.toArray(new Bitmap[0]);
+    }
+
+    /**
+     * @return The parsed filter, or {@code null} if the text is not a filter.
+     */
+    private static Filter parseFilter(String text) {
+        for (int operator = 0; operator < OPERATORS.length; operator++) {
+            int at = text.indexOf(OPERATORS[operator]);
+            if (at <= 0) {
+                continue;
+            }
+            String name = text.substring(0, at);
+            String[] values = text.substring(at + OPERATORS[operator].length()).split(",", -1);
+            for (String value : values) {
+                if (value.isEmpty()) {
+                    return null;
+                }
+            }
+            if (name.equalsIgnoreCase(ROOM)) {
+                return operator == Filter.EQUAL ? new Filter(null, operator, values, 0) : null;
+            }
+            DeviceAttribute attribute = DeviceAttribute.parse(name);
+            if (attribute == null) {
+                return null;
+            }
+            if (VALUE_COUNTS[attribute.ordinal()] == 0) {
+                boolean number = values.length == 1 && values[0].length() < 10 && Main.checkInt(values[0]);
+                return number ? new Filter(attribute, operator, values, Integer.parseInt(values[0])) : null;
+            }
+            if (operator != Filter.EQUAL && operator != Filter.NOT_EQUAL) {
+                return null;
+            }
+            for (String value : values) {
+                if (attribute.parseValue(value) < 0) {
+                    return null;
+                }
+            }
+            return new Filter(attribute, operator, values, 0);
+        }
+        return null;
+    }
+
+    /**
+     * One filter of a {@code Find} command. Room filters have no attribute.
+     */
+    private static final class Filter {
+        // Indexes in OPERATORS
+        static final int NOT_EQUAL = 0;
+        static final int LESS_OR_EQUAL = 1;
+        static final int GREATER_OR_EQUAL = 2;
+        static final int EQUAL = 3;
+        static final int LESS = 4;
+
+        final DeviceAttribute attribute;
+        final int operator;
+        final String[] values;
+        final int operand;
+
+        Filter(DeviceAttribute attribute, int operator, String[] values, int operand) {
+            this.attribute = attribute;
+            this.operator = operator;
+            this.values = values;
+            this.operand = operand;
+        }
+
+        boolean test(int value) {
+            switch (operator) {
+                case NOT_EQUAL:
+                    return value != operand;
+                case LESS_OR_EQUAL:
+                    return value <= operand;
+                case GREATER_OR_EQUAL:
+                    return value >= operand;
+                case EQUAL:
+                    return value == operand;
+                case LESS:
+                    return value < operand;
+                default:
+                    return value > operand;
+            }
+        }
+    }
+
+    /**
+     * A room, with the bitmap of the devices directly in it.
+     */
+    private static final class Room {
+        final String name;
+        Room parent;
+        final Bitmap devices = new Bitmap();
+        int count;
+
+        Room(String name, Room parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        boolean isInside(Room other) {
+            for (Room room = this; room != null; room = room.parent) {
+                if (room == other) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A set of device ids, with a summary bit for every word that may be non-zero.
+     * Summary bits are set on updates and cleared by the queries when they find the word empty.
+     */
+    private static final class Bitmap {
+        static final int INITIAL_CAPACITY = 64;
+
+        long[] words = new long[INITIAL_CAPACITY / Long.SIZE];
+        long[] summary = new long[1];
+
+        /**
+         * Makes room for an id. Must not run at the same time as any other method.
+         */
+        void ensureCapacity(int id) {
+            int w = id >>> 6;
+            if (w >= words.length) {
+                words = Arrays.copyOf(words, Math.max(words.length * 2, w + 1));
+                summary = Arrays.copyOf(summary, (words.length + Long.SIZE - 1) / Long.SIZE);
+            }
+        }
+
+        /**
+         * Adds or removes an id, which must be within the capacity.
+         */
+        void set(int id, boolean value) {
+            int w = id >>> 6;
+            if (!value) {
+                WORDS.getAndBitwiseAnd(words, w, ~(1L << id));
+            } else {
+                WORDS.getAndBitwiseOr(words, w, 1L << id);
+                if ((summary[w >>> 6] & 1L << w) == 0) {
+                    WORDS.getAndBitwiseOr(summary, w >>> 6, 1L << w);
+                }
+            }
+        }
+
+        /**
+         * Reads a word, clearing its summary bit if the word is zero. Must not run at the same time as {@link #set}.
+         */
+        long word(int w) {
+            if (w >= words.length) {
+                return 0;
+            }
+            if (words[w] == 0) {
+                summary[w >>> 6] &= ~(1L << w);
+            }
+            return words[w];
+        }
+
+        long summaryWord(int s) {
+            return s < summary.length ? summary[s] : 0;
+        }
+
+        /**
+         * @return The smallest id in the set from the given one on, or {@code -1} if there is none.
+         */
+        int next(int from) {
+            for (int w = from >>> 6; w < words.length; w++) {
+                long word = words[w] & (w == from >>> 6 ? -1L << from : -1L);
+                if (word != 0) {
+                    return w << 6 | Long.numberOfTrailingZeros(word);
+                }
+            }
+            return -1;
+        }
+    }
+}
+
+/**
+ * Index of the devices in the home, allowing devices to be added and removed at runtime.
+ * Device ids map to their type and to their slot in the backing store through plain arrays, so every lookup takes
+ * constant time however many devices there are. Ids of removed devices are recycled, and the store is kept dense by
+ * moving the last device into the freed slot.
+ * The inventory listens to all its devices and forwards their changes to its own listeners.
+ */
+final class DeviceInventory implements Iterable<SmartDevice>, DeviceListener {
+    static final byte NONE = 0;
+    static final byte LIGHT = 1;
+    static final byte CAMERA = 2;
+    static final byte HEATER = 3;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final DeviceAttribute[] ATTRIBUTES = DeviceAttribute.values();
+    // Type codes of the registered types are below this count, see DeviceTypes
+    static final int TYPE_COUNT = DeviceTypes.COUNT;
+
+    private final List<SmartDevice> store;
+    // The store again if it keeps its devices in slots, whose attributes are then read without a view
+    private final DeviceColumns columns;
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int[] idsBySlot = new int[INITIAL_CAPACITY];
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private int nextId;
+    private final StatusSnapshot snapshot = new StatusSnapshot();
+    private final ChangeFeed changes;
+    private final CommandMetrics metrics = new CommandMetrics();
+    private final RuleEngine rules = new RuleEngine();
+    private final Scheduler scheduler;
+    private final EnergySimulator energy = new EnergySimulator();
+    private final HistoryStore history;
+    private final DeviceIndex index = new DeviceIndex(this);
+    // The own listeners come first, followed by the listeners added later
+    private static final int OWN_LISTENERS = 6;
+    private DeviceListener[] listeners;
+    private volatile boolean safePointRequested;
+    // Changes held back by deferChanges: a mask of attributes by device id, and the ids in the order they changed
+    private boolean deferring;
+    private int[] deferredAttributes = new int[INITIAL_CAPACITY];
+    private int[] deferredIds = new int[INITIAL_CAPACITY];
+    private int deferredCount;
+
+    /**
+     * Creates an empty inventory.
+     *
+     * @param store The empty list holding the devices, such as an {@link ArrayList} or a {@link DeviceRegistry}.
+     */
+    DeviceInventory(List<SmartDevice> store) {
+        this(store, ChangeFeed.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty inventory.
+     *
+     * @param store          The empty list holding the devices.
+     * @param changeCapacity Number of recent changes kept for {@code DisplayChangedSince}.
+     */
+    DeviceInventory(List<SmartDevice> store, int changeCapacity) {
+        this(store, changeCapacity, Clock.systemDefaultZone());
+    }
+
+    /**
+     * Creates an empty inventory.
+     *
+     * @param store          The empty list holding the devices.
+     * @param changeCapacity Number of recent changes kept for {@code DisplayChangedSince}.
+     * @param clock          The clock of the scheduled commands and of the history.
+     */
+    DeviceInventory(List<SmartDevice> store, int changeCapacity, Clock clock) {
+        this.store = store;
+        this.columns = store instanceof DeviceColumns ? (DeviceColumns) store : null;
+        this.changes = new ChangeFeed(this, changeCapacity);
+        this.scheduler = new Scheduler(clock);
+        this.history = new HistoryStore(clock);
+        this.listeners = new DeviceListener[] {snapshot, changes, rules, energy, history, index};
+    }
+
+    ChangeFeed changes() {
+        return changes;
+    }
+
+    /**
+     * @return The counters and latencies of the commands executed against this inventory.
+     */
+    CommandMetrics metrics() {
+        return metrics;
+    }
+
+    RuleEngine rules() {
+        return rules;
+    }
+
+    /**
+     * @return The timers of the commands scheduled to run later.
+     */
+    Scheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return The energy model of the devices.
+     */
+    EnergySimulator energy() {
+        return energy;
+    }
+
+    /**
+     * @return The recorded changes of the devices.
+     */
+    HistoryStore history() {
+        return history;
+    }
+
+    /**
+     * @return The rooms and the attribute indexes of the devices.
+     */
+    DeviceIndex index() {
+        return index;
+    }
+
+    /**
+     * Adds a device, assigning it a recycled id if one is available.
+     *
+     * @param device The device to add.
+     * @return The id of the new device.
+     */
+    int add(SmartDevice device) {
+        int id = nextId;
+        while (freeCount > 0) {
+            // Ids taken by add(device, id) stay in the free list until they are popped
+            int free = freeIds[--freeCount];
+            if (!contains(free)) {
+                id = free;
+                break;
+            }
+        }
+        return add(device, id);
+    }
+
+    /**
+     * Adds a device under a given ID, replacing any device with that ID, e.g. when restoring a saved state.
+     *
+     * @param device The device to add.
+     * @param id     The ID of the device.
+     * @return The id of the new device.
+     */
+    int add(SmartDevice device, int id) {
+        if (contains(id)) {
+            remove(id);
+        }
+        if (id >= types.length) {
+            int capacity = Math.max(types.length * 2, id + 1);
+            types = Arrays.copyOf(types, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+        }
+        for (int skipped = nextId; skipped < id; skipped++) {
+            pushFreeId(skipped);
+        }
+        nextId = Math.max(nextId, id + 1);
+
+        int slot = store.size();
+        if (slot == idsBySlot.length) {
+            idsBySlot = Arrays.copyOf(idsBySlot, idsBySlot.length * 2);
+        }
+
+        device.setDeviceId(id);
+        store.add(device);
+        types[id] = typeOf(device);
+        slots[id] = slot;
+        idsBySlot[slot] = id;
+
+        SmartDevice stored = get(id);
+        stored.setListener(this);
+        for (DeviceListener listener : listeners) {
+            listener.deviceAdded(stored);
+        }
+        return id;
+    }
+
+    /**
+     * Removes a device and frees its id for reuse.
+     *
+     * @param id The device ID.
+     * @return {@code true} if the device existed, {@code false} otherwise.
+     */
+    boolean remove(int id) {
+        if (!contains(id)) {
+            return false;
+        }
+        SmartDevice removed = get(id);
+        for (DeviceListener listener : listeners) {
+            listener.deviceRemoved(removed);
+        }
+
+        int slot = slots[id];
+        int last = store.size() - 1;
+        if (slot != last) {
+            int movedId = idsBySlot[last];
+            store.set(slot, store.get(last));
+            slots[movedId] = slot;
+            idsBySlot[slot] = movedId;
+        }
+        store.remove(last);
+        types[id] = NONE;
+        pushFreeId(id);
+        return true;
+    }
+
+    /**
+     * @return The ids free for reuse, in the order they are pushed, so that a saved inventory assigns the same ids.
+     */
+    int[] freeIds() {
+        return Arrays.copyOf(freeIds, freeCount);
+    }
+
+    /**
+     * Replaces the ids free for reuse, after the devices of a saved inventory have been added under their ids.
+     *
+     * @param ids The ids as returned by {@link #freeIds()}.
+     */
+    void restoreFreeIds(int[] ids) {
+        freeIds = Arrays.copyOf(ids, Math.max(ids.length, INITIAL_CAPACITY));
+        freeCount = ids.length;
+        for (int id : ids) {
+            nextId = Math.max(nextId, id + 1);
+        }
+        if (nextId > types.length) {
+            types = Arrays.copyOf(types, nextId);
+            slots = Arrays.copyOf(slots, nextId);
+        }
+    }
+
+    private void pushFreeId(int id) {
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    boolean contains(int id) {
+        return id >= 0 && id < nextId && types[id] != NONE;
+    }
+
+    /**
+     * Registers a listener for changes of any device in the inventory.
+     *
+     * @param listener The listener to add.
+     */
+    void addListener(DeviceListener listener) {
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+    }
+
+    @Override
+    public void deviceChanged(SmartDevice device, DeviceAttribute attribute) {
+        if (deferring) {
+            defer(device.getDeviceId(), attribute);
+            return;
+        }
+        // The own listeners are called directly, so that the calls can be inlined on the hot path
+        snapshot.deviceChanged(device, attribute);
+        changes.deviceChanged(device, attribute);
+        rules.deviceChanged(device, attribute);
+        energy.deviceChanged(device, attribute);
+        history.deviceChanged(device, attribute);
+        index.deviceChanged(device, attribute);
+        for (int i = OWN_LISTENERS; i < listeners.length; i++) {
+            listeners[i].deviceChanged(device, attribute);
+        }
+    }
+
+    /**
+     * Holds back the notifications of device changes from the listeners until {@link #deliverChanges()}.
+     * Devices must not be added or removed meanwhile.
+     */
+    void deferChanges() {
+        deferring = true;
+    }
+
+    /**
+     * Notifies the listeners of the changes held back since {@link #deferChanges()}, once for every changed attribute
+     * of a device, with its current value, in the order the devices first changed.
+     */
+    void deliverChanges() {
+        deferring = false;
+        for (int i = 0; i < deferredCount; i++) {
+            int id = deferredIds[i];
+            int mask = deferredAttributes[id];
+            deferredAttributes[id] = 0;
+            SmartDevice device = get(id);
+            for (DeviceAttribute attribute : ATTRIBUTES) {
+                if ((mask & 1 << attribute.ordinal()) != 0) {
+                    deviceChanged(device, attribute);
+                }
+            }
+        }
+        deferredCount = 0;
+    }
+
+    private void defer(int id, DeviceAttribute attribute) {
+        if (id >= deferredAttributes.length) {
+            deferredAttributes = Arrays.copyOf(deferredAttributes, Math.max(deferredAttributes.length * 2, id + 1));
+        }
+        if (deferredAttributes[id] == 0) {
+            if (deferredCount == deferredIds.length) {
+                deferredIds = Arrays.copyOf(deferredIds, deferredCount * 2);
+            }
+            deferredIds[deferredCount++] = id;
+        }
+        deferredAttributes[id] |= 1 << attribute.ordinal();
+    }
+
+    /**
+     * Asks the command loop to call {@link #safePoint()} as soon as no command is running.
+     */
+    void requestSafePoint() {
+        safePointRequested = true;
+    }
+
+    boolean isSafePointRequested() {
+        return safePointRequested;
+    }
+
+    /**
+     * Lets the listeners run their pending maintenance work.
+     * The caller must make sure no command is running until this method returns.
+     */
+    void safePoint() {
+        safePointRequested = false;
+        for (DeviceListener listener : listeners) {
+            listener.atSafePoint();
+        }
+    }
+
+    /**
+     * Writes the status of all devices in ascending order of their IDs, as {@code DisplayAllStatus} shows it.
+     *
+     * @param out Sink receiving the statuses.
+     */
+    void writeAllStatus(ResponseSink out) {
+        snapshot.write(this, out);
+    }
+
+    /**
+     * Retrieves a device by its ID.
+     *
+     * @param id The device ID, which must be present in the inventory.
+     * @return The device.
+     */
+    SmartDevice get(int id) {
+        return store.get(slots[id]);
+    }
+
+    /**
+     * Reads an attribute of a device as {@link DeviceAttribute#read} does, straight from the slot of the device if
+     * the store keeps its devices in {@link DeviceColumns}.
+     *
+     * @param id        The device ID, which must be present in the inventory.
+     * @param attribute The attribute.
+     * @return The value, or 0 if the device does not have this attribute.
+     */
+    int read(int id, DeviceAttribute attribute) {
+        if (columns == null) {
+            return attribute.read(get(id));
+        }
+        return attribute.appliesTo(types[id]) ? columns.read(slots[id], attribute) : 0;
+    }
+
+    int size() {
+        return store.size();
+    }
+
+    /**
+     * Checks whether a device ID and type match a device in the inventory.
+     *
+     * @param id   The device ID.
+     * @param type The expected type of the device (e.g., "Light", "Camera", "Heater").
+     * @return {@code true} if the type and ID do not match, {@code false} otherwise.
+     */
+    boolean checkType(int id, String type) {
+        return !contains(id) || !DeviceTypes.name(types[id]).equals(type);
+    }
+
+    /**
+     * Retrieves the type of device based on its ID.
+     *
+     * @param id The device ID.
+     * @return The type of the device as a string ("Light", "Camera", "Heater", or "Invalid").
+     */
+    String getType(int id) {
+        return DeviceTypes.name(contains(id) ? types[id] : NONE);
+    }
+
+    /**
+     * @param id The device ID, which must be present in the inventory.
+     * @return The type of the device, one of the type codes.
+     */
+    byte type(int id) {
+        return types[id];
+    }
+
+    /**
+     * @param type One of the type constants.
+     * @return The name of the type as in commands, or "Invalid" for {@link #NONE}.
+     */
+    static String typeName(int type) {
+        return DeviceTypes.name(type);
+    }
+
+    /**
+     * Iterates over the devices in ascending order of their IDs.
+     *
+     * @return An iterator over the devices.
+     */
+    @Override
+    public Iterator<SmartDevice> iterator() {
+        return new Iterator<>() {
+            private int id = nextPresent(0);
+
+            @Override
+            public boolean hasNext() {
+                return id < nextId;
+            }
+
+            @Override
+            public SmartDevice next() {
+                if (id >= nextId) {
+                    throw new NoSuchElementException();
+                }
+                SmartDevice device = get(id);
+                id = nextPresent(id + 1);
+                return device;
+            }
+        };
+    }
+
+    /**
+     * Finds the next device of any type, in ascending order of IDs.
+     *
+     * @param fromId The first ID to look at.
+     * @return The ID of the next device, or {@code -1} if there is none.
+     */
+    int next(int fromId) {
+        int id = nextPresent(Math.max(fromId, 0));
+        return id < nextId ? id : -1;
+    }
+
+    /**
+     * Finds the next device of a type, in ascending order of IDs.
+     *
+     * @param type   The device type, one of the type constants.
+     * @param fromId The first ID to look at.
+     * @return The ID of the next device of that type, or {@code -1} if there is none.
+     */
+    int nextOfType(byte type, int fromId) {
+        if (type == NONE) {
+            return -1;
+        }
+        for (int id = Math.max(fromId, 0); id < nextId; id++) {
+            if (types[id] == type) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Resolves a device type name.
+     *
+     * @param name The type name, e.g. "Light".
+     * @return The type constant, or {@link #NONE} if the name is unknown.
+     */
+    static byte typeOf(String name) {
+        for (byte type = LIGHT; type < TYPE_COUNT; type++) {
+            if (name.equals(DeviceTypes.name(type))) {
+                return type;
+            }
+        }
+        return NONE;
+    }
+
+    private int nextPresent(int id) {
+        while (id < nextId && types[id] == NONE) {
+            id++;
+        }
+        return id;
+    }
+
+    static byte typeOf(SmartDevice device) {
+        // Devices of other types may extend the built-in classes, so they are looked for first
+        if (DeviceTypes.HAS_PLUGINS) {
+            byte type = DeviceTypes.pluginCodeOf(device);
+            if (type != NONE) {
+                return type;
+            }
+        }
+        if (device instanceof Light) {
+            return LIGHT;
+        }
+        if (device instanceof Camera) {
+            return CAMERA;
+        }
+        if (device instanceof Heater) {
+            return HEATER;
+        }
+        throw new IllegalArgumentException("Unsupported device type: " + device.getClass().getName());
+    }
+}
+
+/**
+ * Service provider interface of a device type: its name, attributes, value ranges, device commands and energy model,
+ * and how its devices are created. Light, camera and heater are built in; further types are found on the class path
+ * with {@link ServiceLoader}, as classes of the unnamed package listed in {@code META-INF/services/DeviceType}.
+ * {@link DeviceTypes} builds the dispatch table of the device commands from these declarations once at startup.
+ *
+ * <p>Attributes are read through the device classes, so a type with {@code CHARGING} must create {@link Chargeable}
+ * devices, a type with {@code RECORDING} or {@code ANGLE} cameras, a type with {@code TEMPERATURE} heaters and a type
+ * with {@code BRIGHTNESS} or {@code COLOR} lights. Devices of the types found on the class path are kept in the list
+ * store; the column-oriented and mapped stores only hold the built-in types.
+ */
+interface DeviceType {
+    /**
+     * @return The name of the type in commands, e.g. "Light".
+     */
+    String name();
+
+    /**
+     * @return The code of the type, stored in the journal, the history and the state files: the constants of
+     *         {@link DeviceInventory} for the built-in types, and a unique code up to {@link DeviceTypes#MAX_CODE} for
+     *         any other type.
+     */
+    byte code();
+
+    /**
+     * @return The class of the devices of this type.
+     */
+    Class<? extends SmartDevice> deviceClass();
+
+    /**
+     * @return The attributes of the devices, {@code STATUS} included.
+     */
+    Set<DeviceAttribute> attributes();
+
+    /**
+     * @param attribute A numeric attribute of the type.
+     * @return The smallest valid value of the attribute.
+     */
+    default int min(DeviceAttribute attribute) {
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * @param attribute A numeric attribute of the type.
+     * @return The largest valid value of the attribute.
+     */
+    default int max(DeviceAttribute attribute) {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return Number of devices of this type in a new home.
+     */
+    default int defaultCount() {
+        return 0;
+    }
+
+    /**
+     * @return A new device with the default settings, as added by {@code AddDevice <type>}.
+     */
+    SmartDevice newDevice();
+
+    /**
+     * Builds a new device from the arguments following the type in an {@code AddDevice} command.
+     *
+     * @param cmd The tokenized command line, with at least one argument after the type.
+     * @return The new device, or {@code null} if the arguments are invalid.
+     */
+    SmartDevice parse(CommandLine cmd);
+
+    /**
+     * Declares the handlers of the device commands the type supports. Every type supports {@code TurnOn} and
+     * {@code TurnOff}; the other device commands are answered as not supported unless they are declared here.
+     *
+     * @param commands The declarations of this type.
+     */
+    void declareCommands(DeviceCommands commands);
+
+    /**
+     * @return Capacity of the battery in watt-hours, 0 for devices without a battery.
+     */
+    default int batteryWattHours() {
+        return 0;
+    }
+
+    /**
+     * @return Power drawn while the battery is charging, in watts.
+     */
+    default int chargeWatts() {
+        return 0;
+    }
+
+    /**
+     * @param device A device of this type which is on.
+     * @return Power drawn by the device in watts, charging aside.
+     */
+    default int drawWatts(SmartDevice device) {
+        return 0;
+    }
+}
+
+/**
+ * Handler of a device command for the devices of one type.
+ */
+@FunctionalInterface
+interface DeviceCommand {
+    /**
+     * Applies the command to a device which exists and, if the command changes a setting, is on.
+     *
+     * @param devices Inventory of smart devices to be controlled.
+     * @param device  The device.
+     * @param dName   The device type named in the command.
+     * @param dId     The device ID.
+     * @param value   The numeric argument, if the command has one.
+     * @param setting The enum argument, or {@code null} if it is missing or invalid.
+     * @param out     Sink receiving the response.
+     */
+    void apply(DeviceInventory devices, SmartDevice device, String dName, int dId, int value, Enum<?> setting,
+            ResponseSink out);
+}
+
+/**
+ * The device commands declared by a {@link DeviceType}.
+ */
+final class DeviceCommands {
+    private final DeviceType type;
+    private final DeviceCommand[] commands = new DeviceCommand[CommandTable.COUNT];
+
+    DeviceCommands(DeviceType type) {
+        this.type = type;
+    }
+
+    /**
+     * Declares the handler of a device command.
+     *
+     * @param op      The opcode of a device command.
+     * @param command The handler.
+     * @return These declarations.
+     */
+    DeviceCommands on(int op, DeviceCommand command) {
+        if (!DeviceTypes.isDeviceCommand(op)) {
+            throw new IllegalArgumentException("Not a device command: " + CommandTable.name(op));
+        }
+        commands[op] = Objects.requireNonNull(command);
+        return this;
+    }
+
+    /**
+     * Declares a device command setting a numeric attribute to its argument, which must be in the range the type
+     * declares for the attribute.
+     *
+     * @param op        The opcode of a device command with a numeric argument.
+     * @param attribute The numeric attribute.
+     * @param setter    Sets the attribute of a device.
+     * @return These declarations.
+     */
+    DeviceCommands onSet(int op, DeviceAttribute attribute, ObjIntConsumer<SmartDevice> setter) {
+        int min = type.min(attribute);
+        int max = type.max(attribute);
+        String name = attribute.label().toLowerCase(Locale.ROOT);
+        String outOfRange = " " + name + " should be in the range [" + min + ", " + max + "]";
+        String set = " " + name + " is set to ";
+        String typeName = type.name();
+        return on(op, (devices, device, dName, dId, value, setting, out) -> {
+            if (value < min || value > max) {
+                out.append(typeName).append(' ').append(dId).append(outOfRange).newLine();
+                return;
+            }
+            setter.accept(device, value);
+            out.append(dName).append(' ').append(dId).append(set).append(value).newLine();
+        });
+    }
+
+    DeviceCommand get(int op) {
+        return commands[op];
+    }
+}
+
+/**
+ * The registered device types and the dispatch table of the device commands.
+ * The table is built once when this class is initialized, from the built-in types and the types found with
+ * {@link ServiceLoader}. It holds a handler for every type and device command, so a device command is dispatched
+ * with an array lookup and one call.
+ */
+final class DeviceTypes {
+    // The history keeps the type of a change in four bits
+    static final int MAX_CODE = 15;
+    static final int COUNT;
+    static final boolean HAS_PLUGINS;
+
+    private static final Status[] STATUSES = Status.values();
+    private static final BrightnessLevel[] BRIGHTNESS_LEVELS = BrightnessLevel.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+    private static final DeviceType[] BY_CODE;
+    private static final String[] NAMES;
+    private static final int[] ATTRIBUTES;
+    private static final DeviceCommand[] COMMANDS;
+    private static final boolean[] SUPPORTED;
+    private static final List<DeviceType> ALL;
+    private static final DeviceType[] PLUGINS;
+    private static final boolean[] REQUIRES_ON = new boolean[CommandTable.COUNT];
+    private static final String[] UNSUPPORTED = new String[CommandTable.COUNT];
+
+    static {
+        // Settings can only be changed while a device is on, and that is checked before the type
+        for (int op : new int[] {CommandTable.SET_TEMPERATURE, CommandTable.SET_BRIGHTNESS, CommandTable.SET_COLOR,
+                CommandTable.SET_ANGLE, CommandTable.START_RECORDING, CommandTable.STOP_RECORDING}) {
+            REQUIRES_ON[op] = true;
+        }
+        UNSUPPORTED[CommandTable.START_CHARGING] = " is not chargeable";
+        UNSUPPORTED[CommandTable.STOP_CHARGING] = " is not chargeable";
+        UNSUPPORTED[CommandTable.SET_TEMPERATURE] = " is not a heater";
+        UNSUPPORTED[CommandTable.SET_BRIGHTNESS] = " is not a light";
+        UNSUPPORTED[CommandTable.SET_COLOR] = " is not a light";
+        UNSUPPORTED[CommandTable.SET_ANGLE] = " is not a camera";
+        UNSUPPORTED[CommandTable.START_RECORDING] = " is not a camera";
+        UNSUPPORTED[CommandTable.STOP_RECORDING] = " is not a camera";
+
+        List<DeviceType> plugins = new ArrayList<>();
+        for (DeviceType type : ServiceLoader.load(DeviceType.class)) {
+            plugins.add(type);
+        }
+        List<DeviceType> types = new ArrayList<>(List.of(new LightType(), new CameraType(), new HeaterType()));
+        types.addAll(plugins);
+
+        DeviceType[] byCode = new DeviceType[MAX_CODE + 1];
+        int count = 1;
+        for (DeviceType type : types) {
+            check(type, byCode);
+            byCode[type.code()] = type;
+            count = Math.max(count, type.code() + 1);
+        }
+        COUNT = count;
+        BY_CODE = Arrays.copyOf(byCode, count);
+        NAMES = new String[count];
+        NAMES[DeviceInventory.NONE] = "Invalid";
+        ATTRIBUTES = new int[count];
+        COMMANDS = new DeviceCommand[count * CommandTable.COUNT];
+        SUPPORTED = new boolean[count * CommandTable.COUNT];
+        List<DeviceType> all = new ArrayList<>();
+        for (DeviceType type : BY_CODE) {
+            if (type != null) {
+                declare(type);
+                all.add(type);
+            }
+        }
+        ALL = List.copyOf(all);
+        PLUGINS = plugins.toArray(new DeviceType[0]);
+        HAS_PLUGINS = PLUGINS.length > 0;
+    }
+
+    private DeviceTypes() {
+    }
+
+    private static void check(DeviceType type, DeviceType[] byCode) {
+        byte code = type.code();
+        if (code <= DeviceInventory.NONE || code > MAX_CODE || byCode[code] != null) {
+            throw new IllegalStateException("Device type " + type.name() + " needs an unused code from 1 to "
+                    + MAX_CODE + ", not " + code);
+        }
+        for (DeviceType other : byCode) {
+            if (other != null && other.name().equals(type.name())) {
+                throw new IllegalStateException("Device type " + type.name() + " is registered twice");
+            }
+        }
+        for (DeviceAttribute attribute : type.attributes()) {
+            if (!readable(type.deviceClass(), attribute)) {
+                throw new IllegalStateException("Devices of type " + type.name() + " cannot have the attribute "
+                        + attribute.label());
+            }
+        }
+    }
+
+    private static boolean readable(Class<? extends SmartDevice> deviceClass, DeviceAttribute attribute) {
+        switch (attribute) {
+            case STATUS:
+                return true;
+            case CHARGING:
+                return Chargeable.class.isAssignableFrom(deviceClass);
+            case RECORDING:
+            case ANGLE:
+                return Camera.class.isAssignableFrom(deviceClass);
+            case TEMPERATURE:
+                return Heater.class.isAssignableFrom(deviceClass);
+            default:
+                return Light.class.isAssignableFrom(deviceClass);
+        }
+    }
+
+    private static void declare(DeviceType type) {
+        byte code = type.code();
+        NAMES[code] = type.name();
+        for (DeviceAttribute attribute : type.attributes()) {
+            ATTRIBUTES[code] |= 1 << attribute.ordinal();
+        }
+        DeviceCommands commands = new DeviceCommands(type)
+                .on(CommandTable.TURN_ON, DeviceTypes::turnOn)
+                .on(CommandTable.TURN_OFF, DeviceTypes::turnOff);
+        type.declareCommands(commands);
+        for (int op = CommandTable.TURN_ON; op <= CommandTable.STOP_RECORDING; op++) {
+            DeviceCommand command = commands.get(op);
+            COMMANDS[code * CommandTable.COUNT + op] = command != null ? command : unsupported(UNSUPPORTED[op]);
+            SUPPORTED[code * CommandTable.COUNT + op] = command != null;
+        }
+    }
+
+    private static DeviceCommand unsupported(String message) {
+        return (devices, device, dName, dId, value, setting, out) ->
+                out.append(devices.getType(dId)).append(' ').append(dId).append(message).newLine();
+    }
+
+    /**
+     * @param op An opcode.
+     * @return {@code true} if the command is applied to devices and dispatched by their type.
+     */
+    static boolean isDeviceCommand(int op) {
+        return op >= CommandTable.TURN_ON && op <= CommandTable.STOP_RECORDING;
+    }
+
+    /**
+     * @param op The opcode of a device command.
+     * @return {@code true} if the command changes a setting, which devices only allow while they are on.
+     */
+    static boolean requiresOn(int op) {
+        return REQUIRES_ON[op];
+    }
+
+    /**
+     * Looks up the handler of a device command.
+     *
+     * @param type The code of a registered type.
+     * @param op   The opcode of a device command.
+     * @return The handler declared by the type, or one answering that the command is not supported.
+     */
+    static DeviceCommand command(byte type, int op) {
+        return COMMANDS[type * CommandTable.COUNT + op];
+    }
+
+    /**
+     * @param type The code of a registered type.
+     * @param op   The opcode of a device command.
+     * @return {@code true} if the type declares a handler for the command.
+     */
+    static boolean supports(byte type, int op) {
+        return SUPPORTED[type * CommandTable.COUNT + op];
+    }
+
+    /**
+     * @param code A type code below {@link #COUNT}.
+     * @return The type, or {@code null} if no type has the code.
+     */
+    static DeviceType get(int code) {
+        return BY_CODE[code];
+    }
+
+    /**
+     * @return The registered types in ascending order of their codes.
+     */
+    static List<DeviceType> all() {
+        return ALL;
+    }
+
+    /**
+     * @param code A type code below {@link #COUNT}.
+     * @return The name of the type, "Invalid" for {@link DeviceInventory#NONE}, or {@code null} if no type has the
+     *         code.
+     */
+    static String name(int code) {
+        return NAMES[code];
+    }
+
+    /**
+     * @return The names of the types by code, as returned by {@link #name(int)}.
+     */
+    static String[] names() {
+        return NAMES.clone();
+    }
+
+    /**
+     * @param type      A type code below {@link #COUNT}.
+     * @param attribute An attribute.
+     * @return {@code true} if devices of the type have the attribute.
+     */
+    static boolean has(byte type, DeviceAttribute attribute) {
+        return (ATTRIBUTES[type] & 1 << attribute.ordinal()) != 0;
+    }
+
+    /**
+     * @param device A device.
+     * @return The code of the type found on the class path the device belongs to, or {@link DeviceInventory#NONE}.
+     */
+    static byte pluginCodeOf(SmartDevice device) {
+        for (DeviceType type : PLUGINS) {
+            if (type.deviceClass().isInstance(device)) {
+                return type.code();
+            }
+        }
+        return DeviceInventory.NONE;
+    }
 
-                    BrightnessLevel dBright;
-                    try {
-                        dBright = BrightnessLevel.valueOf(cmd[MAX_LIGHT]);
-                    } catch (IllegalArgumentException e) {
-                        System.out.println("The brightness can only be one of \"LOW\", \"MEDIUM\", or \"HIGH\"");
-                        break;
-                    }
+    private static void turnOn(DeviceInventory devices, SmartDevice device, String dName, int dId, int value,
+            Enum<?> setting, ResponseSink out) {
+        if (device.isOn()) {
+            out.append(dName).append(' ').append(dId).append(" is already on").newLine();
+            return;
+        }
+        device.turnOn();
+        out.append(dName).append(' ').append(dId).append(" is on").newLine();
+    }
 
-                    ((Light) devices.get(dId)).setBrightnessLevel(dBright);
-                    System.out.printf("%s %d brightness level is set to %s%n", dName, dId, dBright);
+    private static void turnOff(DeviceInventory devices, SmartDevice device, String dName, int dId, int value,
+            Enum<?> setting, ResponseSink out) {
+        if (!device.isOn()) {
+            out.append(dName).append(' ').append(dId).append(" is already off").newLine();
+            return;
+        }
+        device.turnOff();
+        out.append(dName).append(' ').append(dId).append(" is off").newLine();
+    }
 
-                    break;
+    private static void startCharging(DeviceInventory devices, SmartDevice device, String dName, int dId, int value,
+            Enum<?> setting, ResponseSink out) {
+        Chargeable chDevice = (Chargeable) device;
+        if (chDevice.isCharging()) {
+            out.append(dName).append(' ').append(dId).append(" is already charging").newLine();
+            return;
+        }
+        chDevice.startCharging();
+        out.append(dName).append(' ').append(dId).append(" is charging").newLine();
+    }
 
-                case "SetColor":
-                    if (length != MIN_CAMERA || !checkInt(cmd[2])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!devices.get(dId).isOn()) {
-                        System.out.printf("You can't change the status of the %s %d while it is off%n", dName, dId);
-                        break;
-                    }
-                    if (!(devices.get(dId) instanceof Light)) {
-                        System.out.printf("%s %d is not a light%n", getType(dId), dId);
-                        break;
-                    }
+    private static void stopCharging(DeviceInventory devices, SmartDevice device, String dName, int dId, int value,
+            Enum<?> setting, ResponseSink out) {
+        Chargeable chDevice = (Chargeable) device;
+        if (!chDevice.isCharging()) {
+            out.append(devices.getType(dId)).append(' ').append(dId).append(" is not charging").newLine();
+            return;
+        }
+        chDevice.stopCharging();
+        out.append(dName).append(' ').append(dId).append(" stopped charging").newLine();
+    }
 
-                    LightColor dColor;
-                    try {
-                        dColor = LightColor.valueOf(cmd[MAX_LIGHT]);
-                    } catch (IllegalArgumentException e) {
-                        System.out.println("The light color can only be \"YELLOW\" or \"WHITE\"");
-                        break;
-                    }
+    /**
+     * Lights with charging, brightness and color.
+     */
+    private static final class LightType implements DeviceType {
+        // Draw by brightness level, in the order of BrightnessLevel
+        private static final int[] WATTS = {12, 8, 4};
 
-                    ((Light) devices.get(dId)).setLightColor(dColor);
-                    System.out.printf("%s %d color is set to %s%n", dName, dId, dColor);
-                    break;
+        @Override
+        public String name() {
+            return "Light";
+        }
 
-                case "SetAngle":
-                    if (length != MIN_CAMERA || !checkInt(cmd[2]) || !checkInt(cmd[MAX_LIGHT])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!devices.get(dId).isOn()) {
-                        System.out.printf("You can't change the status of the %s %d while it is off%n", dName, dId);
-                        break;
-                    }
-                    if (!(devices.get(dId) instanceof Camera)) {
-                        System.out.printf("%s %d is not a camera%n", getType(dId), dId);
-                        break;
-                    }
+        @Override
+        public byte code() {
+            return DeviceInventory.LIGHT;
+        }
 
-                    int dAngle = Integer.parseInt(cmd[MAX_LIGHT]);
-                    if (dAngle < Camera.MIN_CAMERA_ANGLE || dAngle > Camera.MAX_CAMERA_ANGLE) {
-                        System.out.printf("Camera %d angle should be in the range [-60, 60]%n", dId);
-                        break;
-                    }
+        @Override
+        public Class<? extends SmartDevice> deviceClass() {
+            return Light.class;
+        }
 
-                    ((Camera) devices.get(dId)).setCameraAngle(dAngle);
-                    System.out.printf("%s %d angle is set to %d%n", dName, dId, dAngle);
+        @Override
+        public Set<DeviceAttribute> attributes() {
+            return EnumSet.of(DeviceAttribute.STATUS, DeviceAttribute.CHARGING, DeviceAttribute.BRIGHTNESS,
+                    DeviceAttribute.COLOR);
+        }
 
-                    break;
+        @Override
+        public int defaultCount() {
+            return Main.MAX_LIGHT - Main.MIN_LIGHT + 1;
+        }
 
-                case "StartRecording":
-                    if (length != MAX_LIGHT || !checkInt(cmd[2])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (checkType(dId, dName)) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!devices.get(dId).isOn()) {
-                        System.out.printf("You can't change the status of the %s %d while it is off%n", dName, dId);
-                        break;
-                    }
-                    if (!(devices.get(dId) instanceof Camera)) {
-                        System.out.printf("%s %d is not a camera%n", getType(dId), dId);
-                        break;
-                    }
-                    Camera cDevice = (Camera) devices.get(dId);
-                    if (cDevice.isRecording()) {
-                        System.out.printf("%s %d is already recording%n", dName, dId);
-                        break;
-                    }
-                    cDevice.startRecording();
-                    System.out.printf("%s %d started recording%n", dName, dId);
-                    break;
+        @Override
+        public SmartDevice newDevice() {
+            return new Light(Status.ON, false, BrightnessLevel.LOW, LightColor.YELLOW);
+        }
 
-                case "StopRecording":
-                    if (length != MAX_LIGHT || !checkInt(cmd[2])) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    if (dId < MIN_LIGHT || dId > MAX_HEATER) {
-                        System.out.println("The smart device was not found");
-                        break;
-                    }
-                    if (!devices.get(dId).isOn()) {
-                        System.out.printf("You can't change the status of the %s %d while it is off%n", dName, dId);
-                        break;
-                    }
-                    if (!(devices.get(dId) instanceof Camera)) {
-                        System.out.printf("%s %d is not a camera%n", getType(dId), dId);
-                        break;
-                    }
-                    cDevice = (Camera) devices.get(dId);
-                    if (!cDevice.isRecording()) {
-                        System.out.printf("%s %d is not recording%n", getType(dId), dId);
-                        break;
-                    }
-                    cDevice.stopRecording();
-                    System.out.printf("%s %d stopped recording%n", dName, dId);
-                    break;
-                case "end":
-                    if (length != 1) {
-                        System.out.println("Invalid command");
-                        break;
-                    }
-                    scanner.close();
-                    return;
-                default:
-                    System.out.println("Invalid command");
+        @Override
+        public SmartDevice parse(CommandLine cmd) {
+            int length = cmd.length();
+            Status status = cmd.parseEnum(2, STATUSES);
+            Boolean charging = length == 6 ? cmd.parseBoolean(Main.MAX_LIGHT) : null;
+            BrightnessLevel brightness = length == 6 ? cmd.parseEnum(Main.MIN_CAMERA, BRIGHTNESS_LEVELS) : null;
+            LightColor color = length == 6 ? cmd.parseEnum(Main.MAX_CAMERA, LIGHT_COLORS) : null;
+            if (status == null || charging == null || brightness == null || color == null) {
+                return null;
             }
+            return new Light(status, charging, brightness, color);
+        }
 
+        @Override
+        public void declareCommands(DeviceCommands commands) {
+            commands.on(CommandTable.START_CHARGING, DeviceTypes::startCharging)
+                    .on(CommandTable.STOP_CHARGING, DeviceTypes::stopCharging)
+                    .on(CommandTable.SET_BRIGHTNESS, LightType::setBrightness)
+                    .on(CommandTable.SET_COLOR, LightType::setColor);
         }
 
+        @Override
+        public int batteryWattHours() {
+            return 20;
+        }
 
-    }
+        @Override
+        public int chargeWatts() {
+            return 10;
+        }
 
-    /**
-     * Validates if a given string represents an integer.
-     *
-     * @param text The string to be validated.
-     * @return {@code true} if the string is a valid integer, {@code false} otherwise.
-     */
-    static boolean checkInt(String text) {
-        return text.matches("-?\\d+");
+        @Override
+        public int drawWatts(SmartDevice device) {
+            return WATTS[((Light) device).getBrightnessLevel().ordinal()];
+        }
+
+        private static void setBrightness(DeviceInventory devices, SmartDevice device, String dName, int dId,
+                int value, Enum<?> setting, ResponseSink out) {
+            if (setting == null) {
+                out.append("The brightness can only be one of \"LOW\", \"MEDIUM\", or \"HIGH\"").newLine();
+                return;
+            }
+            ((Light) device).setBrightnessLevel((BrightnessLevel) setting);
+            out.append(dName).append(' ').append(dId).append(" brightness level is set to ").append(setting)
+                    .newLine();
+        }
+
+        private static void setColor(DeviceInventory devices, SmartDevice device, String dName, int dId, int value,
+                Enum<?> setting, ResponseSink out) {
+            if (setting == null) {
+                out.append("The light color can only be \"YELLOW\" or \"WHITE\"").newLine();
+                return;
+            }
+            ((Light) device).setLightColor((LightColor) setting);
+            out.append(dName).append(' ').append(dId).append(" color is set to ").append(setting).newLine();
+        }
     }
 
     /**
-     * Checks whether a device ID and type match the expected range and type.
-     *
-     * @param id   The device ID.
-     * @param type The expected type of the device (e.g., "Light", "Camera", "Heater").
-     * @return {@code true} if the type and ID do not match, {@code false} otherwise.
+     * Cameras with charging, recording and an angle.
      */
-    static boolean checkType(int id, String type) {
-        return (id < MIN_LIGHT || id > MAX_LIGHT || !type.equals("Light"))
-                && (id < MIN_CAMERA || id > MAX_CAMERA || !type.equals("Camera"))
-                && (id < MIN_HEATER || id > MAX_HEATER || !type.equals("Heater"));
+    private static final class CameraType implements DeviceType {
+        private static final int WATTS = 3;
+        private static final int RECORDING_WATTS = 4;
+
+        @Override
+        public String name() {
+            return "Camera";
+        }
+
+        @Override
+        public byte code() {
+            return DeviceInventory.CAMERA;
+        }
+
+        @Override
+        public Class<? extends SmartDevice> deviceClass() {
+            return Camera.class;
+        }
+
+        @Override
+        public Set<DeviceAttribute> attributes() {
+            return EnumSet.of(DeviceAttribute.STATUS, DeviceAttribute.CHARGING, DeviceAttribute.RECORDING,
+                    DeviceAttribute.ANGLE);
+        }
+
+        @Override
+        public int min(DeviceAttribute attribute) {
+            return attribute == DeviceAttribute.ANGLE ? Camera.MIN_CAMERA_ANGLE : Integer.MIN_VALUE;
+        }
+
+        @Override
+        public int max(DeviceAttribute attribute) {
+            return attribute == DeviceAttribute.ANGLE ? Camera.MAX_CAMERA_ANGLE : Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int defaultCount() {
+            return Main.MAX_CAMERA - Main.MIN_CAMERA + 1;
+        }
+
+        @Override
+        public SmartDevice newDevice() {
+            return new Camera(Status.ON, false, false, Main.ANGLE);
+        }
+
+        @Override
+        public SmartDevice parse(CommandLine cmd) {
+            int length = cmd.length();
+            Status status = cmd.parseEnum(2, STATUSES);
+            Boolean charging = length == 6 ? cmd.parseBoolean(Main.MAX_LIGHT) : null;
+            Boolean recording = length == 6 ? cmd.parseBoolean(Main.MIN_CAMERA) : null;
+            if (status == null || charging == null || recording == null || !cmd.isInt(Main.MAX_CAMERA)) {
+                return null;
+            }
+            int angle = cmd.parseIntClamped(Main.MAX_CAMERA);
+            if (angle < min(DeviceAttribute.ANGLE) || angle > max(DeviceAttribute.ANGLE)) {
+                return null;
+            }
+            return new Camera(status, charging, recording, angle);
+        }
+
+        @Override
+        public void declareCommands(DeviceCommands commands) {
+            commands.on(CommandTable.START_CHARGING, DeviceTypes::startCharging)
+                    .on(CommandTable.STOP_CHARGING, DeviceTypes::stopCharging)
+                    .onSet(CommandTable.SET_ANGLE, DeviceAttribute.ANGLE,
+                            (device, angle) -> ((Camera) device).setCameraAngle(angle))
+                    .on(CommandTable.START_RECORDING, CameraType::startRecording)
+                    .on(CommandTable.STOP_RECORDING, CameraType::stopRecording);
+        }
+
+        @Override
+        public int batteryWattHours() {
+            return 50;
+        }
+
+        @Override
+        public int chargeWatts() {
+            return 15;
+        }
+
+        @Override
+        public int drawWatts(SmartDevice device) {
+            return WATTS + (((Camera) device).isRecording() ? RECORDING_WATTS : 0);
+        }
+
+        private static void startRecording(DeviceInventory devices, SmartDevice device, String dName, int dId,
+                int value, Enum<?> setting, ResponseSink out) {
+            Camera cDevice = (Camera) device;
+            if (cDevice.isRecording()) {
+                out.append(dName).append(' ').append(dId).append(" is already recording").newLine();
+                return;
+            }
+            cDevice.startRecording();
+            out.append(dName).append(' ').append(dId).append(" started recording").newLine();
+        }
 
+        private static void stopRecording(DeviceInventory devices, SmartDevice device, String dName, int dId,
+                int value, Enum<?> setting, ResponseSink out) {
+            Camera cDevice = (Camera) device;
+            if (!cDevice.isRecording()) {
+                out.append(devices.getType(dId)).append(' ').append(dId).append(" is not recording").newLine();
+                return;
+            }
+            cDevice.stopRecording();
+            out.append(dName).append(' ').append(dId).append(" stopped recording").newLine();
+        }
     }
 
     /**
-     * Retrieves the type of device based on its ID.
-     *
-     * @param id The device ID.
-     * @return The type of the device as a string ("Light", "Camera", "Heater", or "Invalid").
+     * Heaters with a temperature.
      */
-    static String getType(int id) {
-        if (id >= MIN_LIGHT && id <= MAX_LIGHT) {
-            return "Light";
+    private static final class HeaterType implements DeviceType {
+        private static final int WATTS_PER_DEGREE = 100;
+
+        @Override
+        public String name() {
+            return "Heater";
         }
-        if (id >= MIN_CAMERA && id <= MAX_CAMERA) {
-            return "Camera";
+
+        @Override
+        public byte code() {
+            return DeviceInventory.HEATER;
         }
-        if (id >= MIN_HEATER && id <= MAX_HEATER) {
-            return "Heater";
+
+        @Override
+        public Class<? extends SmartDevice> deviceClass() {
+            return Heater.class;
+        }
+
+        @Override
+        public Set<DeviceAttribute> attributes() {
+            return EnumSet.of(DeviceAttribute.STATUS, DeviceAttribute.TEMPERATURE);
         }
-        return "Invalid";
-    }
 
+        @Override
+        public int min(DeviceAttribute attribute) {
+            return attribute == DeviceAttribute.TEMPERATURE ? Heater.MIN_HEATER_TEMP : Integer.MIN_VALUE;
+        }
+
+        @Override
+        public int max(DeviceAttribute attribute) {
+            return attribute == DeviceAttribute.TEMPERATURE ? Heater.MAX_HEATER_TEMP : Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int defaultCount() {
+            return Main.MAX_HEATER - Main.MIN_HEATER + 1;
+        }
+
+        @Override
+        public SmartDevice newDevice() {
+            return new Heater(Status.ON, Main.TEMPERATURE);
+        }
+
+        @Override
+        public SmartDevice parse(CommandLine cmd) {
+            Status status = cmd.parseEnum(2, STATUSES);
+            if (cmd.length() != Main.MIN_CAMERA || status == null || !cmd.isInt(Main.MAX_LIGHT)) {
+                return null;
+            }
+            int temperature = cmd.parseIntClamped(Main.MAX_LIGHT);
+            if (temperature < min(DeviceAttribute.TEMPERATURE) || temperature > max(DeviceAttribute.TEMPERATURE)) {
+                return null;
+            }
+            return new Heater(status, temperature);
+        }
+
+        @Override
+        public void declareCommands(DeviceCommands commands) {
+            commands.onSet(CommandTable.SET_TEMPERATURE, DeviceAttribute.TEMPERATURE,
+                    (device, temperature) -> ((Heater) device).setTemperature(temperature));
+        }
+
+        @Override
+        public int drawWatts(SmartDevice device) {
+            return Math.max(0, WATTS_PER_DEGREE * ((Heater) device).getTemperature());
+        }
+    }
 }
 
 /**
@@ -398,6 +9338,7 @@ abstract class SmartDevice implements Controllable {
     private Status status;
     private int deviceId;
     private int numberOfDevices;
+    private DeviceListener listener;
 
     public SmartDevice(Status status) {
         this.status = status;
@@ -408,6 +9349,15 @@ abstract class SmartDevice implements Controllable {
         return status.toString();
     }
 
+    /**
+     * Writes the same text as {@link #displayStatus()} into a response sink without building a string.
+     *
+     * @param out Sink receiving the status.
+     */
+    public void writeStatus(ResponseSink out) {
+        out.append(status);
+    }
+
     public int getDeviceId() {
         return deviceId;
     }
@@ -422,25 +9372,46 @@ abstract class SmartDevice implements Controllable {
 
     public void setStatus(Status status) {
         this.status = status;
+        changed(DeviceAttribute.STATUS);
     }
 
     public boolean turnOff() {
-        this.status = Status.OFF;
+        setStatus(Status.OFF);
         return true;
     }
 
     public boolean turnOn() {
-        this.status = Status.ON;
+        setStatus(Status.ON);
         return true;
     }
 
     public boolean isOn() {
-        return status == Status.ON;
+        return getStatus() == Status.ON;
     }
 
     public boolean checkStatusAccess() {
         return isOn(); // very sus method
     }
+
+    public DeviceListener getListener() {
+        return listener;
+    }
+
+    public void setListener(DeviceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Notifies the listener, if any, that an attribute of this device was changed by a mutator.
+     *
+     * @param attribute The changed attribute.
+     */
+    protected void changed(DeviceAttribute attribute) {
+        DeviceListener current = getListener();
+        if (current != null) {
+            current.deviceChanged(this, attribute);
+        }
+    }
 }
 
 /**
@@ -454,6 +9425,26 @@ interface Controllable {
     boolean isOn();
 }
 
+/**
+ * Interface receiving notifications about changes of smart devices.
+ */
+interface DeviceListener {
+    void deviceChanged(SmartDevice device, DeviceAttribute attribute);
+
+    default void deviceAdded(SmartDevice device) {
+    }
+
+    default void deviceRemoved(SmartDevice device) {
+    }
+
+    /**
+     * Called when no command is running after a safe point was requested, so that maintenance work can see
+     * a consistent state of all devices.
+     */
+    default void atSafePoint() {
+    }
+}
+
 /**
  * Class representing a heater device.
  */
@@ -474,6 +9465,7 @@ class Heater extends SmartDevice {
 
     public boolean setTemperature(int temperature) {
         this.temperature = temperature;
+        changed(DeviceAttribute.TEMPERATURE);
         return true;
     }
 
@@ -481,6 +9473,12 @@ class Heater extends SmartDevice {
     public String displayStatus() {
         return "Heater %d is %s and the temperature is %d.".formatted(getDeviceId(), getStatus(), getTemperature());
     }
+
+    @Override
+    public void writeStatus(ResponseSink out) {
+        out.append("Heater ").append(getDeviceId()).append(" is ").append(getStatus())
+                .append(" and the temperature is ").append(getTemperature()).append('.');
+    }
 }
 
 /**
@@ -507,16 +9505,17 @@ class Camera extends SmartDevice implements Chargeable {
 
     public boolean setCameraAngle(int angle) {
         this.angle = angle;
+        changed(DeviceAttribute.ANGLE);
         return true;
     }
 
     public boolean startRecording() {
-        recording = true;
+        setRecording(true);
         return true;
     }
 
     public boolean stopRecording() {
-        recording = false;
+        setRecording(false);
         return true;
     }
 
@@ -524,20 +9523,29 @@ class Camera extends SmartDevice implements Chargeable {
         return recording;
     }
 
+    protected void setRecording(boolean recording) {
+        this.recording = recording;
+        changed(DeviceAttribute.RECORDING);
+    }
+
     public boolean isCharging() {
         return charging;
     }
 
     public boolean startCharging() {
-        charging = true;
+        setCharging(true);
         return true;
     }
 
     public boolean stopCharging() {
-        charging = false;
+        setCharging(false);
         return true;
     }
 
+    protected void setCharging(boolean charging) {
+        this.charging = charging;
+        changed(DeviceAttribute.CHARGING);
+    }
 
     @Override
     public String displayStatus() {
@@ -545,6 +9553,14 @@ class Camera extends SmartDevice implements Chargeable {
                 + "is %b, and the recording status is %b.")
                 .formatted(getDeviceId(), getStatus(), getAngle(), isCharging(), isRecording());
     }
+
+    @Override
+    public void writeStatus(ResponseSink out) {
+        out.append("Camera ").append(getDeviceId()).append(" is ").append(getStatus())
+                .append(", the angle is ").append(getAngle())
+                .append(", the charging status is ").append(isCharging())
+                .append(", and the recording status is ").append(isRecording()).append('.');
+    }
 }
 
 /**
@@ -580,6 +9596,7 @@ class Light extends SmartDevice implements Chargeable {
 
     public boolean setLightColor(LightColor lightColor) {
         this.lightColor = lightColor;
+        changed(DeviceAttribute.COLOR);
         return true;
     }
 
@@ -589,6 +9606,7 @@ class Light extends SmartDevice implements Chargeable {
 
     public boolean setBrightnessLevel(BrightnessLevel brightnessLevel) {
         this.brightnessLevel = brightnessLevel;
+        changed(DeviceAttribute.BRIGHTNESS);
         return true;
     }
 
@@ -597,15 +9615,20 @@ class Light extends SmartDevice implements Chargeable {
     }
 
     public boolean startCharging() {
-        charging = true;
+        setCharging(true);
         return true;
     }
 
     public boolean stopCharging() {
-        charging = false;
+        setCharging(false);
         return true;
     }
 
+    protected void setCharging(boolean charging) {
+        this.charging = charging;
+        changed(DeviceAttribute.CHARGING);
+    }
+
     @SuppressWarnings("checkstyle:OperatorWrap")
     @Override
     public String displayStatus() {
@@ -614,6 +9637,14 @@ class Light extends SmartDevice implements Chargeable {
                 + "and the brightness level is %s.")
                 .formatted(getDeviceId(), getStatus(), getLightColor(), isCharging(), getBrightnessLevel());
     }
+
+    @Override
+    public void writeStatus(ResponseSink out) {
+        out.append("Light ").append(getDeviceId()).append(" is ").append(getStatus())
+                .append(", the color is ").append(getLightColor())
+                .append(", the charging status is ").append(isCharging())
+                .append(", and the brightness level is ").append(getBrightnessLevel()).append('.');
+    }
 }
 
 /**
@@ -629,3 +9660,152 @@ enum LightColor {
 enum BrightnessLevel {
     HIGH, MEDIUM, LOW
 }
+
+/**
+ * Enumeration for the attributes of smart devices changed by their mutators.
+ */
+enum DeviceAttribute {
+    STATUS("Status"), CHARGING("Charging"), RECORDING("Recording"), ANGLE("Angle"), TEMPERATURE("Temperature"),
+    BRIGHTNESS("Brightness"), COLOR("Color");
+
+    private static final DeviceAttribute[] VALUES = values();
+    private final String label;
+
+    DeviceAttribute(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return The name of this attribute in commands.
+     */
+    String label() {
+        return label;
+    }
+
+    /**
+     * Parses the name of an attribute, in any case, as every command naming attributes does.
+     *
+     * @param cmd   The command line.
+     * @param index The index of the token.
+     * @return The attribute, or {@code null} if the token does not name one.
+     */
+    static DeviceAttribute parse(CommandLine cmd, int index) {
+        for (DeviceAttribute attribute : VALUES) {
+            if (cmd.matchesIgnoreCase(index, attribute.label)) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the name of an attribute, in any case.
+     *
+     * @param name The name.
+     * @return The attribute, or {@code null} if the text does not name one.
+     */
+    static DeviceAttribute parse(String name) {
+        for (DeviceAttribute attribute : VALUES) {
+            if (attribute.label.equalsIgnoreCase(name)) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a value of this attribute, in any case, with the spelling {@link #writeValue} uses. Angle and
+     * temperature are numbers, parsed by the commands themselves.
+     *
+     * @param text The value.
+     * @return The value as returned by {@link #read}, or {@code -1} if the text is not one or the attribute is
+     * numeric.
+     */
+    int parseValue(String text) {
+        switch (this) {
+            case STATUS:
+                return indexOf(Status.values(), text);
+            case CHARGING:
+            case RECORDING:
+                return text.equalsIgnoreCase("true") ? 1 : text.equalsIgnoreCase("false") ? 0 : -1;
+            case BRIGHTNESS:
+                return indexOf(BrightnessLevel.values(), text);
+            case COLOR:
+                return indexOf(LightColor.values(), text);
+            default:
+                return -1;
+        }
+    }
+
+    private static int indexOf(Enum<?>[] constants, String name) {
+        for (Enum<?> constant : constants) {
+            if (constant.name().equalsIgnoreCase(name)) {
+                return constant.ordinal();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param type One of the type constants of {@link DeviceInventory}.
+     * @return {@code true} if devices of the type have this attribute.
+     */
+    boolean appliesTo(byte type) {
+        return DeviceTypes.has(type, this);
+    }
+
+    /**
+     * Reads this attribute of a device as a number: enum constants as their ordinal and flags as 0 or 1.
+     *
+     * @param device The device.
+     * @return The value, or 0 if the device does not have this attribute.
+     */
+    int read(SmartDevice device) {
+        if (!appliesTo(DeviceInventory.typeOf(device))) {
+            return 0;
+        }
+        switch (this) {
+            case STATUS:
+                return device.getStatus().ordinal();
+            case CHARGING:
+                return ((Chargeable) device).isCharging() ? 1 : 0;
+            case RECORDING:
+                return ((Camera) device).isRecording() ? 1 : 0;
+            case ANGLE:
+                return ((Camera) device).getAngle();
+            case TEMPERATURE:
+                return ((Heater) device).getTemperature();
+            case BRIGHTNESS:
+                return ((Light) device).getBrightnessLevel().ordinal();
+            default:
+                return ((Light) device).getLightColor().ordinal();
+        }
+    }
+
+    /**
+     * Writes a value of this attribute as returned by {@link #read}, with the same spelling as in the commands
+     * changing the attribute.
+     *
+     * @param value The value.
+     * @param out   Sink receiving the value.
+     */
+    void writeValue(int value, ResponseSink out) {
+        switch (this) {
+            case STATUS:
+                out.append(Status.values()[value]);
+                break;
+            case CHARGING:
+            case RECORDING:
+                out.append(value != 0);
+                break;
+            case BRIGHTNESS:
+                out.append(BrightnessLevel.values()[value]);
+                break;
+            case COLOR:
+                out.append(LightColor.values()[value]);
+                break;
+            default:
+                out.append(value);
+        }
+    }
+}